@@ -0,0 +1,102 @@
+package client_i;
+
+import java.util.Arrays;
+
+/**
+ * EndpointHealth Class
+ *
+ * Tracks how fast and how reliably a server answers, so the client can pick the
+ * best one and knows when a read is taking unusually long.
+ *
+ * The latencies of the last SAMPLES answers give the p95 of the server. A server
+ * that fails FAILURES times in a row is deprioritized for a while, doubling with
+ * every further failure, until it answers again.
+ */
+class EndpointHealth {
+    //#region Class Variables
+    private static final int SAMPLES = 128; // Latencies kept to compute the p95.
+    private static final int MIN_SAMPLES = 16; // Latencies needed before the p95 is trusted.
+    private static final long DEFAULT_P95 = 50; // p95 assumed until enough latencies are known, in ms.
+    private static final int FAILURES = 3; // Failures in a row before the server is deprioritized.
+    private static final long MIN_COOLDOWN = 1000, MAX_COOLDOWN = 30 * 1000; // Time a failing server is deprioritized for, in ms.
+
+    private final String name;
+    private final long[] latencies = new long[SAMPLES];
+    private int count = 0, next = 0;
+    private long p95 = DEFAULT_P95;
+    private int failures = 0;
+    private long downUntil = 0;
+    //#endregion Class Variables
+
+    //#region Constructors
+    /**
+     * Constructor
+     * @param name The name of the server, for the metrics.
+     */
+    EndpointHealth(String name) {
+        this.name = name;
+    }
+    //#endregion Constructors
+
+    //#region Methods
+    /**
+     * Records an answer of the server.
+     * @param latency The time the server took to answer, in ms.
+     */
+    synchronized void success(long latency) {
+        this.latencies[this.next] = latency;
+        this.next = (this.next + 1) % SAMPLES;
+        this.count = Math.min(this.count + 1, SAMPLES);
+        this.failures = 0;
+        this.downUntil = 0;
+
+        if (this.count >= MIN_SAMPLES && this.next % 8 == 0) { // Sorting 128 longs is cheap, but not on every answer.
+            long[] sorted = Arrays.copyOf(this.latencies, this.count);
+            Arrays.sort(sorted);
+            this.p95 = sorted[(int) Math.ceil(this.count * 0.95) - 1];
+        }
+    }
+
+    /**
+     * Records a failure of the server: an error, or no answer in time.
+     */
+    synchronized void failure() {
+        this.failures++;
+        if (this.failures >= FAILURES) {
+            long cooldown = Math.min(MIN_COOLDOWN << Math.min(this.failures - FAILURES, 5), MAX_COOLDOWN);
+            this.downUntil = System.currentTimeMillis() + cooldown;
+        }
+    }
+
+    /**
+     * Checks if the server is deprioritized, after failing too often.
+     * @return boolean True if the server should only be used when no other one is available.
+     */
+    synchronized boolean isDown() {
+        return this.downUntil > System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the p95 of the latencies of the server.
+     * @return long The p95, in ms.
+     */
+    synchronized long p95() {
+        return this.p95;
+    }
+
+    /**
+     * Orders servers best first: the ones answering before the deprioritized ones, then the fastest first.
+     * @return int Negative if this server is better than the other one.
+     */
+    int compareTo(EndpointHealth other) {
+        boolean down = isDown(), otherDown = other.isDown();
+        if (down != otherDown) { return down ? 1 : -1; }
+        return Long.compare(p95(), other.p95());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return this.name + ": p95 " + this.p95 + "ms over " + this.count + " answers" + (isDown() ? ", deprioritized after " + this.failures + " failures" : "");
+    }
+    //#endregion Methods
+}
\ No newline at end of file
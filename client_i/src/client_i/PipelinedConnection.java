@@ -0,0 +1,191 @@
+package client_i;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * PipelinedConnection Class
+ *
+ * A connection that can have many requests in flight. Requests are written as
+ * soon as they are sent, and a reader thread hands every response to the request
+ * it answers.
+ *
+ * A write server answers requests tagged with a correlation id ("#id request"),
+ * in any order, with a "#id lines" header followed by the lines of the response.
+ * A read server answers every balance read with one line, in the order the reads
+ * were sent, so its responses are matched to the oldest request still waiting.
+ *
+ * A server can also push lines nobody asked for, between two responses, see
+ * BalanceCache. They are handed to the push listener.
+ */
+class PipelinedConnection {
+    //#region Class Variables
+    private final Socket socket;
+    private final PrintStream socketOut;
+    private final BufferedReader socketIn;
+    private final boolean framed; // Whether responses carry a correlation id, or come back in order.
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final ConcurrentHashMap<String, CompletableFuture<String>> pending = new ConcurrentHashMap<String, CompletableFuture<String>>();
+    private final ConcurrentLinkedQueue<CompletableFuture<String>> ordered = new ConcurrentLinkedQueue<CompletableFuture<String>>();
+    private volatile Consumer<String> pushListener = null;
+    private volatile boolean closed = false;
+    //#endregion Class Variables
+
+    //#region Constructors
+    /**
+     * Constructor, connects and starts the reader thread.
+     * @param address The address to connect to.
+     * @param port The port to connect to.
+     * @param handshake The first line to send, or null.
+     * @param framed Whether requests are tagged with correlation ids (write servers), or answered in order (read servers).
+     * @param connectTimeout The time to wait for the connection, in ms.
+     * @throws IOException If the connection could not be opened.
+     */
+    PipelinedConnection(InetAddress address, int port, String handshake, boolean framed, int connectTimeout) throws IOException {
+        this.socket = new Socket();
+        this.socket.setTcpNoDelay(true); // Requests are small, and many are in flight.
+        this.socket.connect(new InetSocketAddress(address, port), connectTimeout);
+        this.socketOut = new PrintStream(this.socket.getOutputStream());
+        this.socketIn = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+        this.framed = framed;
+
+        if (handshake != null) { write(handshake); }
+
+        Thread reader = new Thread(this::readLoop, "connection-" + address.getHostAddress() + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+    //#endregion Constructors
+
+    //#region Methods
+    /**
+     * Sends a request.
+     * @param request The request.
+     * @return CompletableFuture<String> The response, failed with an IOException if the connection breaks first.
+     */
+    CompletableFuture<String> send(String request) {
+        CompletableFuture<String> response = new CompletableFuture<String>();
+        if (this.closed) {
+            response.completeExceptionally(new IOException("Connection closed"));
+            return response;
+        }
+
+        if (this.framed) {
+            String id = "#" + this.nextId.getAndIncrement();
+            this.pending.put(id, response);
+            response.whenComplete((result, error) -> this.pending.remove(id)); // Also forgets a request whose deadline passed.
+            write(id + " " + request);
+        } else {
+            synchronized (this.ordered) { // The queue must be in the order the requests are written.
+                this.ordered.add(response);
+                write(request);
+            }
+        }
+
+        if (this.closed) { response.completeExceptionally(new IOException("Connection closed")); }
+        return response;
+    }
+
+    /**
+     * Sets what to do with the lines the server pushes, on the reader thread.
+     * @param pushListener Called with every pushed line.
+     */
+    void setPushListener(Consumer<String> pushListener) {
+        this.pushListener = pushListener;
+    }
+
+    /**
+     * Returns the number of requests waiting for a response.
+     * @return int The number of requests.
+     */
+    int inFlight() {
+        return this.framed ? this.pending.size() : this.ordered.size();
+    }
+
+    /**
+     * Checks if the connection is still usable.
+     * @return boolean True if the connection is open, false otherwise.
+     */
+    boolean isOpen() {
+        return !this.closed;
+    }
+
+    /**
+     * Closes the connection, and fails the requests still waiting for a response.
+     */
+    void close() {
+        if (this.closed) { return; }
+        this.closed = true;
+
+        try {
+            this.socket.close();
+        } catch (IOException e) {}
+
+        IOException error = new IOException("Connection closed");
+        this.pending.values().forEach(response -> response.completeExceptionally(error));
+        CompletableFuture<String> response;
+        while ((response = this.ordered.poll()) != null) { response.completeExceptionally(error); }
+    }
+    //#endregion Methods
+
+    //#region Helper Methods
+    /**
+     * Writes a line, and closes the connection if it failed.
+     */
+    private void write(String line) {
+        synchronized (this.socketOut) {
+            this.socketOut.println(line);
+            this.socketOut.flush();
+        }
+        if (this.socketOut.checkError()) { close(); }
+    }
+
+    /**
+     * Reader thread, hands every response to its request until the connection breaks.
+     */
+    private void readLoop() {
+        try {
+            String line;
+            while ((line = this.socketIn.readLine()) != null) {
+                if (line.startsWith("PUSH ") && this.pushListener != null) {
+                    this.pushListener.accept(line);
+                    continue;
+                }
+
+                if (!this.framed) {
+                    CompletableFuture<String> response = this.ordered.poll();
+                    if (response != null) { response.complete(line.trim()); }
+                    continue;
+                }
+
+                int separator = line.indexOf(' ');
+                if (!line.startsWith("#") || separator < 0) { continue; } // Not a response to a tagged request.
+
+                int lines = Integer.parseInt(line.substring(separator + 1).trim());
+                StringBuilder response = new StringBuilder();
+                for (int i = 0; i < lines; i++) {
+                    String responseLine = this.socketIn.readLine();
+                    if (responseLine == null) { break; }
+                    response.append(i > 0 ? "\n" : "").append(responseLine);
+                }
+
+                CompletableFuture<String> waiting = this.pending.get(line.substring(0, separator));
+                if (waiting != null) { waiting.complete(response.toString().trim()); }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // The connection broke, or the server sent something else: the waiting requests fail below.
+        }
+        close();
+    }
+    //#endregion Helper Methods
+}
\ No newline at end of file
@@ -0,0 +1,266 @@
+package client_j;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BalanceCache Class
+ *
+ * Caches the balances of the accounts a session touches, so a client that
+ * shows them over and over does not ask a server every time.
+ *
+ * The cache keeps a subscriber connection to the write server subscribed to
+ * these accounts, and the server pushes their new balance every time they
+ * change, see BalanceSubscriptions. While that
+ * connection is up, a pushed balance is used until the next push. While it is
+ * down, and for the balances that were not pushed, a balance is only used for
+ * a short time to live, and the connection is opened again in the background.
+ *
+ * The responses to our own writes and reads update the cache right away, unless
+ * a push came since the request was sent: the push is at least as recent.
+ */
+class BalanceCache {
+    //#region Class Variables
+    private static final long RETRY = 1000; // Time between two attempts to open the subscription, in ms.
+    private static final int CONNECT_TIMEOUT = 3 * 1000; // Time to wait for the connection, in ms.
+    private static final int SUBSCRIBE_BATCH = 64; // Accounts per SUB request.
+
+    private final String host;
+    private final int port;
+    private final long ttl;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final Set<String> accounts = ConcurrentHashMap.newKeySet(); // Accounts the subscription should cover.
+    private final ExecutorService connector = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "balance-cache-subscription");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean connecting = new AtomicBoolean(false);
+    private volatile PipelinedConnection subscription = null;
+    private volatile long generation = 0; // Number of the current subscription, a pushed balance is only trusted while it lasts.
+    private volatile long lastAttempt = 0;
+    private volatile String sessionToken = null, userId = "";
+    private volatile boolean closed = false;
+
+    // Metrics
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), pushes = new LongAdder();
+    //#endregion Class Variables
+
+    //#region Constructors
+    /**
+     * Constructor, the subscription is opened once the session has a token.
+     * @param host The host of the write server.
+     * @param port The port of the write server.
+     * @param ttl The time a balance is used for without a subscription, in ms.
+     */
+    BalanceCache(String host, int port, long ttl) {
+        this.host = host;
+        this.port = port;
+        this.ttl = ttl;
+    }
+    //#endregion Constructors
+
+    //#region Methods
+    /**
+     * Sets the session token, which the subscription needs to be pushed the balances of the user.
+     * A subscription opened for another session is closed, and opened again for this one.
+     * @param sessionToken The session token given at login.
+     */
+    void setSessionToken(String sessionToken) {
+        this.sessionToken = sessionToken;
+        this.userId = sessionToken == null ? "" : sessionToken.substring(0, Math.max(sessionToken.indexOf('.'), 0)); // Tokens start with the user id.
+        this.entries.clear();
+        this.accounts.clear();
+
+        PipelinedConnection current = this.subscription;
+        if (current != null) { current.close(); }
+    }
+
+    /**
+     * Returns the balance of an account, formatted as the response of a balance read.
+     * @param accountNo The account number.
+     * @return String The response, or null if the cached balance is missing or too old.
+     */
+    String get(String accountNo) {
+        Entry entry = this.entries.get(accountNo);
+        if (entry != null && isFresh(entry)) {
+            this.hits.increment();
+            return "Your balance is: " + entry.balance + ".";
+        }
+
+        this.misses.increment();
+        touch(accountNo);
+        return null;
+    }
+
+    /**
+     * Updates the cache with the response to a request of this client.
+     * @param request The request, without its read-your-writes token.
+     * @param response The response of the server.
+     * @param sentAt The time the request was sent, in ms.
+     */
+    void update(String request, String response, long sentAt) {
+        if (response == null) { return; }
+
+        String[] tokens = request.split(" ");
+        switch (tokens[0]) {
+            case "B":
+                if (tokens.length > 2) { put(tokens[2], balanceIn(response, "Your balance is: "), sentAt); }
+                break;
+            case "D":
+                put(tokens[1], balanceIn(response, "Your balance after deposit is: "), sentAt);
+                break;
+            case "W":
+                put(tokens[1], balanceIn(response, "Your balance after withdraw is: "), sentAt);
+                break;
+            case "T":
+                put(tokens[1], balanceIn(response, "Your balance after transfer: "), sentAt);
+                if (tokens.length > 2) { this.entries.remove(tokens[2]); } // Its new balance is not in the response.
+                break;
+        }
+    }
+
+    /**
+     * Returns the cache metrics.
+     * @return String The balances read from the cache and from a server, and the balances pushed.
+     */
+    String getStats() {
+        PipelinedConnection current = this.subscription;
+        return "Balance cache: " + this.hits.sum() + " hits, " + this.misses.sum() + " misses, " + this.entries.size() + " balances cached, "
+            + this.pushes.sum() + " pushed, subscription " + (current != null && current.isOpen() ? "up" : "down") + ".";
+    }
+
+    /**
+     * Closes the subscription.
+     */
+    void close() {
+        this.closed = true;
+        PipelinedConnection current = this.subscription;
+        if (current != null) { current.close(); }
+        this.connector.shutdownNow();
+    }
+    //#endregion Methods
+
+    //#region Helper Methods
+    /**
+     * Checks if a cached balance can be used: pushed during the current subscription, or younger than the time to live.
+     */
+    private boolean isFresh(Entry entry) {
+        PipelinedConnection current = this.subscription;
+        if (entry.generation == this.generation && current != null && current.isOpen()) { return true; }
+        return System.currentTimeMillis() - entry.updatedAt < this.ttl;
+    }
+
+    /**
+     * Caches the balance of an account from the response to a request, unless a push came since it was sent.
+     */
+    private void put(String accountNo, Double balance, long sentAt) {
+        touch(accountNo);
+        if (balance == null) { return; }
+
+        this.entries.compute(accountNo, (key, entry) ->
+            entry != null && entry.pushedAt >= sentAt ? entry : new Entry(balance, System.currentTimeMillis(), -1, 0));
+    }
+
+    /**
+     * Adds an account to the subscription, and opens the subscription if it is down.
+     */
+    private void touch(String accountNo) {
+        boolean added = this.accounts.add(accountNo);
+        PipelinedConnection current = this.subscription;
+
+        if (current != null && current.isOpen()) {
+            if (added) { current.send("SUB " + this.userId + " " + accountNo); }
+        } else if (this.sessionToken != null && !this.closed && System.currentTimeMillis() - this.lastAttempt >= RETRY && this.connecting.compareAndSet(false, true)) {
+            this.lastAttempt = System.currentTimeMillis();
+            this.connector.execute(this::subscribe);
+        }
+    }
+
+    /**
+     * Opens the subscription, resumes the session on it and subscribes to every account touched so far.
+     * The server pushes their current balance right away, so nothing changed while it was down is missed.
+     */
+    private void subscribe() {
+        try {
+            long subscriptionGeneration = this.generation + 1;
+            PipelinedConnection connection = new PipelinedConnection(InetAddress.getByName(this.host), this.port, "subscriber", true, CONNECT_TIMEOUT);
+            connection.setPushListener(line -> pushed(line, subscriptionGeneration));
+            connection.send("S " + this.sessionToken);
+
+            this.generation = subscriptionGeneration;
+            this.subscription = connection;
+
+            StringBuilder batch = new StringBuilder();
+            int count = 0;
+            for (String accountNo : this.accounts) {
+                batch.append(count > 0 ? "," : "").append(accountNo);
+                if (++count == SUBSCRIBE_BATCH) {
+                    connection.send("SUB " + this.userId + " " + batch);
+                    batch.setLength(0);
+                    count = 0;
+                }
+            }
+            if (count > 0) { connection.send("SUB " + this.userId + " " + batch); }
+        } catch (IOException e) {
+            // Balances are cached for the time to live only, until the next attempt.
+        } finally {
+            this.connecting.set(false);
+        }
+    }
+
+    /**
+     * Caches a balance the server pushed, formatted as PUSH B account balance version.
+     */
+    private void pushed(String line, long subscriptionGeneration) {
+        String[] tokens = line.split(" ");
+        if (tokens.length < 4 || !tokens[1].equals("B")) { return; }
+
+        try {
+            long now = System.currentTimeMillis();
+            this.entries.put(tokens[2], new Entry(Double.parseDouble(tokens[3]), now, subscriptionGeneration, now));
+            this.pushes.increment();
+        } catch (NumberFormatException e) {}
+    }
+
+    /**
+     * Reads the balance from a line of a response.
+     * @param prefix The start of the line, the balance follows it.
+     * @return Double The balance, or null if the response has no such line.
+     */
+    private static Double balanceIn(String response, String prefix) {
+        for (String line : response.split("\n")) {
+            line = line.trim();
+            if (!line.startsWith(prefix)) { continue; }
+
+            try {
+                return Double.parseDouble(line.substring(prefix.length()).replaceAll("\\.$", ""));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A cached balance.
+     */
+    private static class Entry {
+        final double balance;
+        final long updatedAt, generation, pushedAt;
+
+        Entry(double balance, long updatedAt, long generation, long pushedAt) {
+            this.balance = balance;
+            this.updatedAt = updatedAt;
+            this.generation = generation;
+            this.pushedAt = pushedAt;
+        }
+    }
+    //#endregion Helper Methods
+}
\ No newline at end of file
@@ -58,6 +58,29 @@ class SocketHandler {
         return response;
     }
 
+    /**
+     * This method reads a response that may not fit in one read, up to the line that ends it.
+     * @param lastLine The line that ends the response.
+     * @return String The response, without its last line.
+     * @throws SocketTimeoutException
+     * @throws SocketException
+     * @throws IOException
+     */
+    public String readUntil(String lastLine) throws SocketTimeoutException, SocketException, IOException {
+        StringBuilder response = new StringBuilder();
+        byte buffer[] = new byte[bufferLimit];
+        this.socket.setSoTimeout(this.timeout); // Set the timeout, so we don't wait forever.
+
+        while (true) {
+            int length = this.socket.getInputStream().read(buffer);
+            if (length < 0) { throw new SocketException("Connection closed by " + this.host + ":" + this.port); }
+            response.append(new String(buffer, 0, length));
+
+            String text = response.toString().trim();
+            if (text.equals(lastLine) || text.endsWith("\n" + lastLine)) { return text.substring(0, text.length() - lastLine.length()).trim(); }
+        }
+    }
+
     /**
      * This method sends a message over the socket.
      * @param message The message to send over the socket.
@@ -81,11 +104,13 @@ class SocketHandler {
 
     /**
      * Attempts to reconnect to the socket.
+     * The server answers OK if the session token is still valid, or EXPIRED if it is not.
+     * @param sessionToken The session token given at login, or null if the user has not logged in.
      * @throws SocketTimeoutException
      * @throws SocketException
      * @throws IOException
      */
-    public void reconnect(String userId) throws SocketTimeoutException, SocketException, IOException {
+    public void reconnect(String sessionToken) throws SocketTimeoutException, SocketException, IOException {
         try {
             this.socketOut.close();
             this.socket.close();
@@ -93,9 +118,8 @@ class SocketHandler {
             this.socket = new Socket("559-1.rickybhatti.ca", 559);
             this.socketOut = new PrintStream(this.socket.getOutputStream(), true);
             this.send("client");
-            Thread.sleep(1000); // Ensure the server has time to process the command, otherwise it will not be ready to receive the RE command.
-            this.send("RE " + userId); // Send the RE command to the server to reauthenticate, plus the user ID.
-        } catch (UnknownHostException | InterruptedException e) {
+            this.send("S " + (sessionToken == null ? "-" : sessionToken)); // Resume the session, the server reads it right after the handshake.
+        } catch (UnknownHostException e) {
             e.printStackTrace();
         } 
     }
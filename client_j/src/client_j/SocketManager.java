@@ -3,11 +3,22 @@ package client_j;
 import java.io.IOException;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.List;
 
 public class SocketManager {
     //#region Class Variables
+    private static final String BUSY = "BUSY"; // Answer to a resent write whose first run is still going on the server.
+    private static final long BUSY_WAIT = 1000; // Time before a write answered BUSY is resent, in ms.
+    private static final int BUSY_RETRIES = 30; // Times a write answered BUSY is resent at most.
     private SocketHandler writeSocketHandler;
     private SocketHandler readSocketHandler;
+    private String consistencyToken = null; // Read-your-writes token of the last write, attached to reads.
+    private final String session = Long.toHexString(new SecureRandom().nextLong() | 1); // Id of this session, never 0.
+    private long sequence = 0; // Number of the last write of this session.
+    private String sessionToken = null; // Token given at login, presented when reconnecting.
+    private final EndpointHealth readHealth = new EndpointHealth("read server"); // Reads skip the read server while it keeps failing.
+    private BalanceCache balanceCache = null; // Balances of the accounts of the session, if enabled, see enableBalanceCache.
     //#endregion Class Variables
     
     //#region Constructors
@@ -23,31 +34,93 @@ public class SocketManager {
     //#endregion Constructors
     
     //#region Methods
+    /**
+     * Keeps the session token given at login, so a reconnect resumes the session without logging in again.
+     * @param sessionToken The session token.
+     */
+    public void setSessionToken(String sessionToken) {
+        this.sessionToken = sessionToken;
+        if (this.balanceCache != null) { this.balanceCache.setSessionToken(sessionToken); }
+    }
+
+    /**
+     * Answers balance reads from a cache of the accounts the session touches, kept up to date by the write server, see BalanceCache.
+     * @param ttl The time a balance is used for while the write server cannot push updates, in ms.
+     */
+    public void enableBalanceCache(long ttl) {
+        this.balanceCache = new BalanceCache("559-1.rickybhatti.ca", 559, ttl);
+        if (this.sessionToken != null) { this.balanceCache.setSessionToken(this.sessionToken); }
+    }
+
+    /**
+     * Returns the key of a new write, sent in place of a random number.
+     * A write resent with the same key is answered with its first response instead of running twice.
+     * @return String The key, formatted as session:sequence.
+     */
+    public synchronized String nextRequestKey() {
+        return this.session + ":" + (++this.sequence);
+    }
+
     /**
      * This method queries the server.
+     * Reads carry the token of the last write, so the read server only answers once it has that write.
+     * If it cannot catch up in time it answers STALE, and the read is sent to the write server instead.
+     * While the read server keeps failing, reads go straight to the write server, see EndpointHealth.
+     * This blocking client cannot hedge a read, BankClient does.
+     * If the balance cache is enabled, balance reads it can answer are not sent, and responses update it.
      * @param isWrite Whether or not the query is a write query. (Read queries go to the read server, write queries go to the write server.)
      * @param userId The user ID of the user making the query.
      * @param message The message to send to the server.
      * @return String The response from the server.
      */
     public String query(boolean isWrite, String userId, String message) {
-        SocketHandler socketHandler = isWrite ? this.writeSocketHandler : this.readSocketHandler;
+        String cached = !isWrite && this.balanceCache != null && message.startsWith("B ") ? this.balanceCache.get(message.split(" ")[2]) : null;
+        if (cached != null) { return cached; }
+
+        long sentAt = System.currentTimeMillis();
+        String response = queryServer(isWrite, message);
+        for (int retry = 0; isWrite && BUSY.equals(response) && retry < BUSY_RETRIES; retry++) { // Resent under the same key, it still runs once.
+            pause(BUSY_WAIT);
+            response = queryServer(isWrite, message);
+        }
+        if (this.balanceCache != null) { this.balanceCache.update(message, response, sentAt); }
+        return response;
+    }
+
+    /**
+     * Sends a query to the server, see query.
+     * @param isWrite Whether or not the query is a write query.
+     * @param message The message to send to the server.
+     * @return String The response from the server.
+     */
+    private String queryServer(boolean isWrite, String message) {
+        SocketHandler socketHandler = isWrite || this.readHealth.isDown() ? this.writeSocketHandler : this.readSocketHandler;
         String response = null;
         boolean readFailed = false;
+
+        if (!isWrite && this.consistencyToken != null) { message += " " + this.consistencyToken; }
         
         while (response == null && !readFailed) {
+            long start = System.currentTimeMillis();
             try {
                 socketHandler.send(message);
                 response = socketHandler.read();
+                if (socketHandler == this.readSocketHandler) { this.readHealth.success(System.currentTimeMillis() - start); }
+
+                if (response.equals("STALE")) { // The read server has not caught up with our last write yet.
+                    socketHandler = this.writeSocketHandler;
+                    response = null;
+                }
             } catch (SocketTimeoutException | SocketException e) { // If the socket timed out, reconnect and try again
+                if (socketHandler == this.readSocketHandler) { this.readHealth.failure(); }
                 try {
-                    socketHandler.reconnect(userId);
+                    socketHandler.reconnect(this.sessionToken);
                     response = socketHandler.read();
                     
-                    if (response.equals("OK")) {
+                    if (response.equals("OK") || (response.equals("EXPIRED") && this.sessionToken == null)) { // Nothing to resume before login.
                         socketHandler.send(message);
                         response = socketHandler.read();
-                        return response;
+                        return takeToken(response);
                     }
                 } catch (IOException ex) {
                     ex.printStackTrace();
@@ -64,8 +137,85 @@ public class SocketManager {
 
         if (response == "DTE") { return ""; } // Duplicate transaction error, return an empty string. (This means the transaction was already processed by the server, aka the client already sent the transaction to the server, but the client never received the response. This is a rare case, but it can happen.)
         
+        return takeToken(response);
+    }
+
+    /**
+     * This method runs a batch of deposits, withdraws and transfers on the write server, in a single request.
+     * @param userId The user ID of the user making the query.
+     * @param requestKey Key identifying the batch, so it is only run once if it has to be resent, see nextRequestKey.
+     * @param items The items, formatted as D:account:amount, W:account:amount or T:from:to:amount.
+     * @param allOrNothing Whether the first failing item aborts the whole batch, or only fails on its own.
+     * @return String "BATCH applied count" followed by one line per item ("index OK balance(s)" or "index FAIL reason"),
+     * another message if the batch could not run, or an empty string if the batch was already run.
+     */
+    public String batch(String userId, String requestKey, List<String> items, boolean allOrNothing) {
+        String message = "BATCH " + (allOrNothing ? "all" : "each") + " " + requestKey + " " + String.join(" ", items);
+        String response = sendBatch(message);
+        for (int retry = 0; BUSY.equals(response) && retry < BUSY_RETRIES; retry++) { // See query.
+            pause(BUSY_WAIT);
+            response = sendBatch(message);
+        }
+
+        if ("DTE".equals(response)) { return ""; } // The batch was already run, see query.
+
+        return takeToken(response);
+    }
+
+    /**
+     * Sends a batch to the write server, see batch.
+     * @param message The batch request.
+     * @return String The response from the server, up to END.
+     */
+    private String sendBatch(String message) {
+        String response = null;
+
+        try {
+            this.writeSocketHandler.send(message);
+            response = this.writeSocketHandler.readUntil("END");
+        } catch (SocketTimeoutException | SocketException e) { // If the socket timed out, reconnect and resend it once
+            try {
+                this.writeSocketHandler.reconnect(this.sessionToken);
+                if (this.writeSocketHandler.read().equals("OK")) {
+                    this.writeSocketHandler.send(message);
+                    response = this.writeSocketHandler.readUntil("END");
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
         return response;
     }
+
+    /**
+     * Waits before a write is resent.
+     * @param millis The time to wait, in ms.
+     */
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Removes the read-your-writes token from the end of a write response, and keeps it for the next reads.
+     * @param response The response from the server.
+     * @return String The response without the token.
+     */
+    private String takeToken(String response) {
+        if (response == null) { return null; }
+
+        int tokenStart = response.lastIndexOf("TOKEN ");
+        if (tokenStart < 0) { return response; }
+
+        this.consistencyToken = response.substring(tokenStart + 6).trim();
+        return response.substring(0, tokenStart).trim();
+    }
     
     /**
      * This method closes the socket.
@@ -73,6 +223,7 @@ public class SocketManager {
     public void close() {
         this.writeSocketHandler.close();
         this.readSocketHandler.close();
+        if (this.balanceCache != null) { this.balanceCache.close(); }
     }
     //#endregion Methods
 }
\ No newline at end of file
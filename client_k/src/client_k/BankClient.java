@@ -0,0 +1,451 @@
+package client_k;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BankClient Class
+ *
+ * Asynchronous client of the bank, for programs that issue many requests at
+ * once. Every call returns right away with a CompletableFuture of the response,
+ * which fails with a TimeoutException if the deadline passes first.
+ *
+ * Requests are spread over a pool of connections to the write server and to the
+ * read server, each with many requests in flight, see PipelinedConnection. The
+ * connections of the write pool share the session: the login is made on one of
+ * them, and the others resume it with the session token.
+ *
+ * Balance reads go to the healthiest server, see EndpointHealth, and are hedged:
+ * once the server is slower than its p95, the read is sent to the other server
+ * too, and the first answer wins. Writes are sent once more on another
+ * connection if theirs breaks, under the same request key, so they never run
+ * twice. The server only keeps the responses of the last 16 writes of a session,
+ * see IdempotencyStore, so a write is only sent once every write 8 sequences
+ * before it is answered; the others wait for room, in order.
+ *
+ * Clients that show the same balances over and over can answer them from a
+ * cache the write server keeps up to date, see enableBalanceCache.
+ */
+public class BankClient implements AutoCloseable {
+    //#region Class Variables
+    public static final String WRITE_HOST = "559-1.rickybhatti.ca", READ_HOST = "559-2.rickybhatti.ca";
+    public static final int WRITE_PORT = 559, READ_PORT = 560;
+    private static final long DNS_TTL = 60 * 1000; // Time an address is cached for, in ms.
+    private static final int CONNECT_TIMEOUT = 3 * 1000; // Time to wait for a connection, in ms.
+    private static final long BUSY_WAIT = 1000; // Time before a write answered BUSY (its first run is still going on the server) is resent, in ms.
+    private static final int WRITE_WINDOW = 8; // Sequences a write may be ahead of the oldest unanswered one, half of IdempotencyStore.RECENT.
+    private static final ConcurrentHashMap<String, Object[]> addresses = new ConcurrentHashMap<String, Object[]>(); // Host to {address, expiry}.
+
+    private final String writeHost, readHost;
+    private final int writePort, readPort;
+    private final long deadline;
+    private final PipelinedConnection[] writePool, readPool;
+    private final AtomicInteger nextWrite = new AtomicInteger(), nextRead = new AtomicInteger();
+    private final EndpointHealth readHealth = new EndpointHealth("read server"), writeHealth = new EndpointHealth("write server");
+    private final LongAdder hedges = new LongAdder(); // Balance reads sent to a second server because the first was slow.
+    private final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "bank-client-deadlines");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String session = Long.toHexString(new SecureRandom().nextLong() | 1); // Id of this session, never 0.
+    private long sequence = 0; // Number of the last write of this session.
+    private final TreeSet<Long> unanswered = new TreeSet<Long>(); // Sequences of the writes sent and not answered yet.
+    private final ArrayDeque<LongConsumer> waitingWrites = new ArrayDeque<LongConsumer>(); // Writes waiting for room in the window, given their sequence.
+    private volatile String userId = "", sessionToken = null;
+    private volatile String consistencyToken = null; // Read-your-writes token of the last write, attached to reads.
+    private volatile BalanceCache balanceCache = null; // Balances of the accounts of the session, if enabled.
+    //#endregion Class Variables
+
+    //#region Constructors
+    /**
+     * Constructor, for the bank's servers, with 4 connections per server and a 7 second deadline.
+     */
+    public BankClient() {
+        this(WRITE_HOST, WRITE_PORT, READ_HOST, READ_PORT, 4, 7 * 1000);
+    }
+
+    /**
+     * Constructor
+     * @param writeHost The host of the write server.
+     * @param writePort The port of the write server.
+     * @param readHost The host of the read server.
+     * @param readPort The port of the read server.
+     * @param poolSize The number of connections opened to each server.
+     * @param deadline The time a call may take, in ms.
+     */
+    public BankClient(String writeHost, int writePort, String readHost, int readPort, int poolSize, long deadline) {
+        this.writeHost = writeHost;
+        this.writePort = writePort;
+        this.readHost = readHost;
+        this.readPort = readPort;
+        this.deadline = deadline;
+        this.writePool = new PipelinedConnection[Math.max(poolSize, 1)];
+        this.readPool = new PipelinedConnection[Math.max(poolSize, 1)];
+        this.timer.setRemoveOnCancelPolicy(true); // Most calls are answered well within their deadline.
+    }
+    //#endregion Constructors
+
+    //#region Request Methods
+    /**
+     * Answers balance reads from a cache of the accounts the session touches, kept up to date by the write server, see BalanceCache.
+     * @param ttl The time a balance is used for while the write server cannot push updates, in ms.
+     * @return BankClient This client.
+     */
+    public BankClient enableBalanceCache(long ttl) {
+        this.balanceCache = new BalanceCache(this.writeHost, this.writePort, ttl);
+        if (this.sessionToken != null) { this.balanceCache.setSessionToken(this.sessionToken); }
+        return this;
+    }
+
+    /**
+     * Logs in, and shares the session with every connection to the write server.
+     * @param username The username.
+     * @param password The password.
+     * @return CompletableFuture<String> The id of the user, failed with an IllegalStateException if the login was refused.
+     */
+    public CompletableFuture<String> login(String username, String password) {
+        return withDeadline(write("L " + username + " " + password).thenApply(response -> {
+            String[] split = response.split("%");
+            if (split.length < 2 || !split[1].equals("OK")) { throw new IllegalStateException(response); }
+
+            this.userId = split[0];
+            this.sessionToken = split.length > 2 ? split[2] : null;
+            resumeSessions();
+            if (this.balanceCache != null) { this.balanceCache.setSessionToken(this.sessionToken); }
+            return this.userId;
+        }));
+    }
+
+    /**
+     * Registers a new user, with an account.
+     * @return CompletableFuture<String> The response of the server.
+     */
+    public CompletableFuture<String> register(String username, String password, String firstName, String lastName, String email) {
+        return withDeadline(write("R " + username + " " + password + " " + firstName + " " + lastName + " " + email).thenApply(this::takeToken));
+    }
+
+    /**
+     * Reads the balance of an account, from the healthiest of the read and the write server.
+     * If that server has not answered once its p95 is over, the read is sent to the other one too,
+     * and the first answer wins. It is also sent to the other one if the first fails, or is behind our writes.
+     * It is not sent at all if the balance cache has the balance.
+     * @param accountNo The account number.
+     * @return CompletableFuture<String> The response of the server.
+     */
+    public CompletableFuture<String> balance(String accountNo) {
+        String request = "B " + this.userId + " " + accountNo;
+        BalanceCache cache = this.balanceCache;
+        String cached = cache == null ? null : cache.get(accountNo);
+        if (cached != null) { return CompletableFuture.completedFuture(cached); }
+
+        String token = this.consistencyToken;
+        long sentAt = System.currentTimeMillis();
+        boolean readServerFirst = this.readHealth.compareTo(this.writeHealth) <= 0;
+
+        CompletableFuture<String> response = new CompletableFuture<String>();
+        AtomicBoolean secondSent = new AtomicBoolean(false);
+        AtomicInteger missed = new AtomicInteger(0);
+        Runnable[] onMiss = new Runnable[1];
+        Runnable sendSecond = () -> {
+            if (!response.isDone() && secondSent.compareAndSet(false, true)) { balanceFrom(!readServerFirst, request, token, response, onMiss[0]); }
+        };
+        onMiss[0] = () -> {
+            if (missed.incrementAndGet() == 2) { response.completeExceptionally(new IOException("No server answered the balance read")); }
+            else { sendSecond.run(); }
+        };
+
+        balanceFrom(readServerFirst, request, token, response, onMiss[0]);
+        long hedgeDelay = Math.max((readServerFirst ? this.readHealth : this.writeHealth).p95(), 1);
+        ScheduledFuture<?> hedge = this.timer.schedule(() -> {
+            if (!response.isDone() && !secondSent.get()) {
+                this.hedges.increment();
+                sendSecond.run();
+            }
+        }, hedgeDelay, TimeUnit.MILLISECONDS);
+        response.whenComplete((result, error) -> hedge.cancel(false));
+        if (cache != null) { response.thenAccept(result -> cache.update(request, result, sentAt)); }
+
+        return withDeadline(response);
+    }
+
+    /**
+     * Deposits money into an account.
+     * @return CompletableFuture<String> The response of the server.
+     */
+    public CompletableFuture<String> deposit(String accountNo, double amount) {
+        return accountWrite("D " + accountNo + " " + amount);
+    }
+
+    /**
+     * Withdraws money from an account.
+     * @return CompletableFuture<String> The response of the server.
+     */
+    public CompletableFuture<String> withdraw(String accountNo, double amount) {
+        return accountWrite("W " + accountNo + " " + amount);
+    }
+
+    /**
+     * Transfers money from one account to another.
+     * @return CompletableFuture<String> The response of the server.
+     */
+    public CompletableFuture<String> transfer(String fromAccountNo, String toAccountNo, double amount) {
+        return accountWrite("T " + fromAccountNo + " " + toAccountNo + " " + amount);
+    }
+
+    /**
+     * Returns the health of the servers, as seen by this client.
+     * @return String The p95 of every server, whether it is deprioritized, and the reads hedged.
+     */
+    public String getStats() {
+        BalanceCache cache = this.balanceCache;
+        return this.readHealth + ", " + this.writeHealth + ", " + this.hedges.sum() + " balance reads hedged." + (cache == null ? "" : " " + cache.getStats());
+    }
+
+    /**
+     * Closes every connection, the calls still in flight fail.
+     */
+    @Override
+    public void close() {
+        this.timer.shutdownNow();
+        if (this.balanceCache != null) { this.balanceCache.close(); }
+        for (PipelinedConnection[] pool : new PipelinedConnection[][] { this.writePool, this.readPool }) {
+            synchronized (pool) {
+                for (PipelinedConnection connection : pool) {
+                    if (connection != null) { connection.close(); }
+                }
+            }
+        }
+    }
+    //#endregion Request Methods
+
+    //#region Helper Methods
+    /**
+     * Sends a deposit, withdraw or transfer as soon as the window of the session has room for it.
+     * @param request The request, without its request key.
+     */
+    private CompletableFuture<String> accountWrite(String request) {
+        CompletableFuture<String> response = new CompletableFuture<String>();
+        LongConsumer send = sequence -> sendWrite(request, sequence, response);
+
+        long sequence;
+        synchronized (this) {
+            if (!this.waitingWrites.isEmpty() || !hasRoom()) {
+                this.waitingWrites.add(send);
+                return withDeadline(response);
+            }
+            sequence = nextSequence();
+        }
+        send.accept(sequence);
+        return withDeadline(response);
+    }
+
+    /**
+     * Sends a write under its request key, once more on another connection if its connection breaks.
+     * The request key is the same both times, so the server runs it once, see IdempotencyStore.
+     * A write answered BUSY is resent a while later, under the same key, until its deadline passes.
+     * A write whose deadline passed while it waited for room is not sent at all.
+     */
+    private void sendWrite(String request, long sequence, CompletableFuture<String> response) {
+        if (response.isDone()) {
+            answered(sequence);
+            return;
+        }
+
+        String keyed = request + " " + this.session + ":" + sequence;
+        BalanceCache cache = this.balanceCache;
+        long sentAt = System.currentTimeMillis();
+        write(keyed)
+            .handle((result, error) -> error == null ? CompletableFuture.completedFuture(result) : write(keyed))
+            .thenCompose(result -> result)
+            .whenComplete((result, error) -> {
+                if (error == null && result.equals("BUSY") && !response.isDone()) {
+                    this.timer.schedule(() -> sendWrite(request, sequence, response), BUSY_WAIT, TimeUnit.MILLISECONDS);
+                    return;
+                }
+
+                answered(sequence);
+                if (error != null) {
+                    response.completeExceptionally(error);
+                    return;
+                }
+
+                String answer = takeToken(result);
+                if (cache != null) { cache.update(keyed, answer, sentAt); }
+                response.complete(answer);
+            });
+    }
+
+    /**
+     * Frees the sequence of an answered write, and sends the writes that now have room.
+     */
+    private void answered(long sequence) {
+        List<Runnable> ready = new ArrayList<Runnable>();
+        synchronized (this) {
+            this.unanswered.remove(sequence);
+            while (!this.waitingWrites.isEmpty() && hasRoom()) {
+                LongConsumer send = this.waitingWrites.poll();
+                long next = nextSequence();
+                ready.add(() -> send.accept(next));
+            }
+        }
+        for (Runnable send : ready) { send.run(); }
+    }
+
+    /**
+     * Returns whether the next write can be sent: every write more than WRITE_WINDOW sequences before it is answered.
+     * A write in flight is then never older than the responses the server keeps, nor shares an entry with another one.
+     */
+    private synchronized boolean hasRoom() {
+        return this.unanswered.isEmpty() || this.sequence + 1 < this.unanswered.first() + WRITE_WINDOW;
+    }
+
+    /**
+     * Sends a balance read to the read or the write server, and records how it went.
+     * @param response The response of the balance read, completed with the answer if it is the first.
+     * @param onMiss Run if the server fails, or is behind our writes.
+     */
+    private void balanceFrom(boolean readServer, String request, String token, CompletableFuture<String> response, Runnable onMiss) {
+        EndpointHealth health = readServer ? this.readHealth : this.writeHealth;
+        long start = System.nanoTime();
+
+        CompletableFuture<String> attempt = readServer ? read(token == null ? request : request + " " + token) : write(request);
+        attempt.orTimeout(this.deadline, TimeUnit.MILLISECONDS); // A server that never answers counts as failing.
+        attempt.whenComplete((result, error) -> {
+            if (error != null) {
+                health.failure();
+                onMiss.run();
+                return;
+            }
+
+            health.success((System.nanoTime() - start) / 1000000);
+            if (result.equals("STALE")) { // Answered, but it has not caught up with our last write.
+                onMiss.run();
+            } else {
+                response.complete(result);
+            }
+        });
+    }
+
+    /**
+     * Sends a request on the next connection of the write pool.
+     */
+    private CompletableFuture<String> write(String request) {
+        try {
+            return connection(this.writePool, this.nextWrite).send(request);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Sends a request on the next connection of the read pool.
+     */
+    private CompletableFuture<String> read(String request) {
+        try {
+            return connection(this.readPool, this.nextRead).send(request);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Returns the next connection of a pool, in turn, opening it again if it broke.
+     */
+    private PipelinedConnection connection(PipelinedConnection[] pool, AtomicInteger next) throws IOException {
+        int slot = Math.floorMod(next.getAndIncrement(), pool.length);
+        synchronized (pool) {
+            if (pool[slot] == null || !pool[slot].isOpen()) { pool[slot] = open(pool == this.writePool); }
+            return pool[slot];
+        }
+    }
+
+    /**
+     * Opens a connection to the write or the read server. A write connection resumes the session, if there is one.
+     */
+    private PipelinedConnection open(boolean toWriteServer) throws IOException {
+        String host = toWriteServer ? this.writeHost : this.readHost;
+        try {
+            PipelinedConnection connection = toWriteServer
+                ? new PipelinedConnection(resolve(this.writeHost), this.writePort, "client", true, CONNECT_TIMEOUT)
+                : new PipelinedConnection(resolve(this.readHost), this.readPort, null, false, CONNECT_TIMEOUT);
+            if (toWriteServer && this.sessionToken != null) { connection.send("S " + this.sessionToken); }
+            return connection;
+        } catch (IOException e) {
+            addresses.remove(host); // The server may have moved.
+            throw e;
+        }
+    }
+
+    /**
+     * Resumes the session on the connections of the write pool opened before the login.
+     */
+    private void resumeSessions() {
+        synchronized (this.writePool) {
+            for (PipelinedConnection connection : this.writePool) {
+                if (connection != null && connection.isOpen()) { connection.send("S " + this.sessionToken); }
+            }
+        }
+    }
+
+    /**
+     * Returns the address of a host, looked up at most once per DNS_TTL.
+     */
+    private static InetAddress resolve(String host) throws UnknownHostException {
+        Object[] cached = addresses.get(host);
+        if (cached != null && (long) cached[1] > System.currentTimeMillis()) { return (InetAddress) cached[0]; }
+
+        InetAddress address = InetAddress.getByName(host);
+        addresses.put(host, new Object[] { address, System.currentTimeMillis() + DNS_TTL });
+        return address;
+    }
+
+    /**
+     * Fails a call with a TimeoutException if it is not answered within the deadline.
+     */
+    private CompletableFuture<String> withDeadline(CompletableFuture<String> response) {
+        if (!response.isDone()) {
+            ScheduledFuture<?> expiry = this.timer.schedule(
+                () -> response.completeExceptionally(new TimeoutException("No response within " + this.deadline + "ms")), this.deadline, TimeUnit.MILLISECONDS);
+            response.whenComplete((result, error) -> expiry.cancel(false));
+        }
+        return response;
+    }
+
+    /**
+     * Returns the sequence of a new write, sent with the session as its key in place of a random number, see SocketManager.nextRequestKey.
+     */
+    private synchronized long nextSequence() {
+        this.unanswered.add(++this.sequence);
+        return this.sequence;
+    }
+
+    /**
+     * Removes the read-your-writes token from the end of a write response, and keeps it for the next reads.
+     */
+    private String takeToken(String response) {
+        int tokenStart = response.lastIndexOf("TOKEN ");
+        if (tokenStart < 0) { return response; }
+
+        this.consistencyToken = response.substring(tokenStart + 6).trim();
+        return response.substring(0, tokenStart).trim();
+    }
+    //#endregion Helper Methods
+}
\ No newline at end of file
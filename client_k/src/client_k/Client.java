@@ -1,22 +1,16 @@
 package client_k;
 
-import java.security.SecureRandom;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Client {
-    private static SecureRandom random = new SecureRandom();
-    private static final int upperBound = 1000000;
     private static SocketManager socketManager = null;
     private boolean isLoggedIn = false;
     private String userId = null;
 
-    /**
-     * Generates a random number.
-     * @return int The random number.
-     */
-    public int generateRandomNumber() {
-        return random.nextInt(upperBound);
-    }
-    
     /**
      * Validates the user's input.
      * @param min Minimum value to accept.
@@ -54,7 +48,7 @@ public class Client {
         }
 
         System.out.println("Transferring...");
-        String response = socketManager.query(true, userId, "T " + accountFrom + " " + accountTo + " " + amount + " " + generateRandomNumber());
+        String response = socketManager.query(true, userId, "T " + accountFrom + " " + accountTo + " " + amount + " " + socketManager.nextRequestKey());
         System.out.println(response);
     }
 
@@ -76,7 +70,7 @@ public class Client {
         }
 
         System.out.println("Depositing...");
-        String response = socketManager.query(true, userId, "D " + accountNo + " " + amount + " " + generateRandomNumber());
+        String response = socketManager.query(true, userId, "D " + accountNo + " " + amount + " " + socketManager.nextRequestKey());
         System.out.println(response);
     }
 
@@ -99,7 +93,7 @@ public class Client {
         }
 
         System.out.println("Withdrawing...");
-        String response = socketManager.query(true, userId, "W " + accountNo + " " + amount + " " + generateRandomNumber());
+        String response = socketManager.query(true, userId, "W " + accountNo + " " + amount + " " + socketManager.nextRequestKey());
         System.out.println(response);
     }
 
@@ -121,6 +115,41 @@ public class Client {
         System.out.println(response);
     }
 
+    /**
+     * The batch method of the Client class, runs the deposits, withdraws and transfers of a file in one request.
+     */
+    public void batch() {
+        System.out.println("Please enter the file to run, one item per line (D account amount, W account amount or T from to amount):");
+        String fileName = System.console().readLine();
+
+        List<String> items = new ArrayList<String>();
+        try {
+            for (String line : Files.readAllLines(Paths.get(fileName))) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields[0].isEmpty()) { continue; }
+
+                for (int i = 1; i < fields.length - 1; i++) { Integer.parseInt(fields[i]); }
+                Double.parseDouble(fields[fields.length - 1]);
+                items.add(String.join(":", fields));
+            }
+        } catch (IOException e) {
+            System.out.println("The file could not be read\n");
+            return;
+        } catch (NumberFormatException e) {
+            System.out.println("Account numbers and amounts must be numbers\n");
+            return;
+        }
+
+        System.out.println("Should the whole batch fail if one item fails?");
+        System.out.println("1. Yes");
+        System.out.println("2. No");
+        boolean allOrNothing = parseUserInput(1, 2) == 1;
+
+        System.out.println("Running " + items.size() + " items...");
+        String response = socketManager.batch(userId, socketManager.nextRequestKey(), items, allOrNothing);
+        System.out.println(response);
+    }
+
     /**
      * The logout method of the Client class.
      */
@@ -153,9 +182,10 @@ public class Client {
         System.out.println("2. Deposit");
         System.out.println("3. Withdraw");
         System.out.println("4. Balance");
-        System.out.println("5. Logout");
+        System.out.println("5. Batch");
+        System.out.println("6. Logout");
 
-        int option = parseUserInput(1, 5);
+        int option = parseUserInput(1, 6);
 
         switch (option) {
             case 1:
@@ -171,6 +201,9 @@ public class Client {
                 balance();
                 break;
             case 5:
+                batch();
+                break;
+            case 6:
                 logout(); // Could just call menu() here.
                 break;
         }
@@ -196,6 +229,7 @@ public class Client {
             String[] split = response.split("%");
         	userId = split[0];
             if (split[1].equals("OK")) {
+                if (split.length > 2) { socketManager.setSessionToken(split[2]); }
                 System.out.println("Login successful!");
                 isLoggedIn = true;
             } else { // It should never go in this else
@@ -308,10 +342,11 @@ public class Client {
 
     /**
      * The main method of the Client class.
-     * @param args The command line arguments.
+     * @param args The command line arguments, "-c ttl" caches balances, see SocketManager.enableBalanceCache.
      */
     public static void main(String[] args) {
         socketManager = new SocketManager();
+        if (args.length > 1 && args[0].equals("-c")) { socketManager.enableBalanceCache(Long.parseLong(args[1])); }
 
         Client client  = new Client();
         while (true) {
@@ -0,0 +1,330 @@
+package server_i;
+
+import Errors.*;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * OccManager Class
+ *
+ * Runs writes optimistically instead of taking the distributed lock first. The
+ * coordinating server checks the write against its local copy of the accounts,
+ * then proposes it to the other servers along with the versions it saw. A server
+ * applies the proposal only if its versions match, so an uncontended write
+ * commits in a single round trip.
+ *
+ * The coordinator commits once a majority (itself and one other server) applied
+ * the write, and corrects the server that refused it. If both refuse, the write
+ * conflicted with another one and is retried after a short backoff. After a few
+ * attempts the write falls back to the distributed lock, so it always finishes.
+ */
+public class OccManager {
+    //#region Class Variables
+    public static final String LOCK = "lock", OCC = "occ";
+
+    private static OccManager instance = null;
+    private static final int MAX_ATTEMPTS = 4; // Attempts before falling back to the distributed lock.
+    private static final int BACKOFF = 2; // Base of the randomized backoff between attempts, in ms.
+
+    private volatile boolean enabled = false;
+    private final ConcurrentLinkedQueue<SocketHandler> idlePeers = new ConcurrentLinkedQueue<SocketHandler>(),
+        idlePeers2 = new ConcurrentLinkedQueue<SocketHandler>();
+    private DBController db = null;
+
+    // Metrics
+    private final LongAdder attempts = new LongAdder(), commits = new LongAdder(), conflicts = new LongAdder(),
+        retries = new LongAdder(), refusals = new LongAdder(), fallbacks = new LongAdder();
+    //#endregion Class Variables
+
+    //#region Constructors & Instance Methods
+    /**
+     * Constructor
+     * @implNote This constructor is private to ensure that only one instance of this class is created.
+     */
+    private OccManager() {
+        this.db = DBController.getInstance();
+    }
+
+    /**
+     * Returns the instance of this class.
+     * @return OccManager The instance of this class.
+     */
+    public static synchronized OccManager getInstance() {
+        if (instance == null) { instance = new OccManager(); }
+        return instance;
+    }
+    //#endregion Constructors & Instance Methods
+
+    //#region OCC Methods
+    /**
+     * Sets how the writes coordinated by this server are isolated. Every write server should use the same mode.
+     * @param mode lock (the distributed lock is taken first) or occ (writes are proposed with the versions they read).
+     */
+    public void configure(String mode) {
+        if (!mode.equals(LOCK) && !mode.equals(OCC)) { throw new IllegalArgumentException("Unknown concurrency mode: " + mode); }
+
+        this.enabled = mode.equals(OCC);
+        if (this.enabled) { System.out.println("Writes run optimistically, falling back to the distributed lock after " + MAX_ATTEMPTS + " conflicts."); }
+    }
+
+    /**
+     * Checks if writes run optimistically.
+     * @return boolean True in occ mode, false otherwise.
+     */
+    public boolean isEnabled() { return this.enabled; }
+
+    /**
+     * Runs a deposit or a withdraw optimistically.
+     * @param id Id of the client.
+     * @param accountNo The account number.
+     * @param type The type of the transaction (D or W).
+     * @param amount The amount of the transaction.
+     * @param randomNumber Random number generated by the client.
+     * @return String The new balance, or null if the write kept conflicting, and should be run with the distributed lock instead.
+     */
+    public String write(String id, String accountNo, String type, double amount, String randomNumber)
+            throws InvalidError, LogicError, SQLException, DuplicateTransactionError {
+        try {
+            return execute(id, accountNo, type, amount, randomNumber);
+        } catch (DestinationError DE) { // Only a transfer has a destination.
+            throw new InvalidError();
+        }
+    }
+
+    /**
+     * Runs a transfer optimistically.
+     * @param id Id of the client.
+     * @param fromAccountNo The account number to transfer from.
+     * @param toAccountNo The account number to transfer to.
+     * @param amount The amount of the transaction.
+     * @param randomNumber Random number generated by the client.
+     * @return String "fromBalance toBalance", or null if the write kept conflicting, and should be run with the distributed lock instead.
+     */
+    public String transfer(String id, String fromAccountNo, String toAccountNo, double amount, String randomNumber)
+            throws InvalidError, LogicError, DestinationError, SQLException, DuplicateTransactionError {
+        return execute(id, fromAccountNo + "," + toAccountNo, "T", amount, randomNumber);
+    }
+
+    /**
+     * Runs a write optimistically, retrying it while it conflicts.
+     * @return String The new balance(s), or null if the write kept conflicting.
+     */
+    private String execute(String id, String account, String type, double amount, String randomNumber)
+            throws InvalidError, LogicError, DestinationError, SQLException, DuplicateTransactionError {
+        String[] accounts = account.split(",");
+        LockManager lockManager = LockManager.getInstance();
+        for (String accountNo : accounts) {
+            if (lockManager.isPreviousTransaction(accountNo, randomNumber)) { throw new DuplicateTransactionError(); }
+        }
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                this.retries.increment();
+                try {
+                    Thread.sleep(ThreadLocalRandom.current().nextInt(BACKOFF << attempt)); // Randomized, so two conflicting writes drift apart.
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            this.attempts.increment();
+
+            if (!lockManager.lockOptimistically(accounts)) { // Another write coordinated here is in progress.
+                this.conflicts.increment();
+                continue;
+            }
+
+            try {
+                String result = attempt(id, account, accounts, type, amount, randomNumber);
+                if (result != null) {
+                    this.commits.increment();
+                    return result;
+                }
+                this.conflicts.increment();
+            } finally {
+                for (String accountNo : accounts) { lockManager.unlockLocally(accountNo, "P"); }
+            }
+        }
+
+        this.fallbacks.increment();
+        return null;
+    }
+
+    /**
+     * Returns the versions of accounts, as sent with a proposal.
+     * @param accounts The account numbers.
+     * @return String The versions, comma separated.
+     * @throws SQLException
+     */
+    public String versions(String[] accounts) throws SQLException {
+        String versions = "";
+        for (String accountNo : accounts) {
+            versions += (versions.isEmpty() ? "" : ",") + this.db.accountVersion(accountNo);
+        }
+        return versions;
+    }
+
+    /**
+     * Returns the OCC metrics.
+     * @return String The attempts, conflicts, retries and fallbacks.
+     */
+    public String getStats() {
+        if (!this.enabled) { return "Concurrency: distributed lock."; }
+
+        long attempts = this.attempts.sum();
+        return "Concurrency: optimistic, " + this.commits.sum() + " commits in " + attempts + " attempts, "
+            + this.conflicts.sum() + " conflicts (" + percent(this.conflicts.sum(), attempts) + "), "
+            + this.retries.sum() + " retries (" + percent(this.retries.sum(), attempts) + "), "
+            + this.refusals.sum() + " proposals refused by a server, " + this.fallbacks.sum() + " fallbacks to the lock.";
+    }
+    //#endregion OCC Methods
+
+    //#region Helper Methods
+    /**
+     * Runs one attempt of an optimistic write. The accounts are locked locally.
+     * @return String The new balance(s), or null if both other servers refused the proposal.
+     */
+    private String attempt(String id, String account, String[] accounts, String type, double amount, String randomNumber)
+            throws InvalidError, LogicError, DestinationError, SQLException {
+        LockManager lockManager = LockManager.getInstance();
+        String txid = lockManager.newTransactionId();
+        long createdAt = System.currentTimeMillis();
+
+        String proposal = propose(id, account, type, amount, randomNumber, txid, createdAt);
+        SocketHandler peer = borrow(this.idlePeers, lockManager.socketHandler), peer2 = borrow(this.idlePeers2, lockManager.socketHandler2);
+        send(peer, proposal);
+        send(peer2, proposal);
+        String reply = read(peer, this.idlePeers), reply2 = read(peer2, this.idlePeers2);
+
+        if (!isAccepted(reply)) { this.refusals.increment(); }
+        if (!isAccepted(reply2)) { this.refusals.increment(); }
+        if (!isAccepted(reply) && !isAccepted(reply2)) { return null; }
+
+        return commit(id, account, type, amount, randomNumber, txid, createdAt, reply, reply2);
+    }
+
+    /**
+     * Checks a write against the local copy of the accounts, and formats the proposal sent to the other servers.
+     * The accounts must be locked locally.
+     * @return String The proposal.
+     */
+    String propose(String id, String account, String type, double amount, String randomNumber, String txid, long createdAt)
+            throws InvalidError, LogicError, DestinationError, SQLException {
+        this.db.checkTransaction(id, account, type, amount); // Never propose a write that has to fail.
+        return "P " + id + " " + account + " " + type + " " + amount + " " + txid + " " + createdAt + " " + randomNumber + " " + versions(account.split(","));
+    }
+
+    /**
+     * Checks if another server accepted a proposal. An unreachable server counts as accepting,
+     * as it does for the lock, and is caught up when it reconnects.
+     * @param reply The answer of the server, or null if it could not be reached.
+     * @return boolean True if the server accepted, false otherwise.
+     */
+    static boolean isAccepted(String reply) {
+        return reply == null || reply.startsWith("true");
+    }
+
+    /**
+     * Applies a proposed write that a majority accepted, and corrects the servers that did not.
+     * The accounts must still be locked locally.
+     * @param reply The answer of the first server, or null if it could not be reached.
+     * @param reply2 The answer of the second server, or null if it could not be reached.
+     * @return String The new balance(s).
+     */
+    String commit(String id, String account, String type, double amount, String randomNumber, String txid, long createdAt, String reply, String reply2)
+            throws InvalidError, LogicError, DestinationError, SQLException {
+        LockManager lockManager = LockManager.getInstance();
+        String[] accounts = account.split(",");
+
+        String result;
+        switch (type) {
+            case "D":
+                result = Double.toString(this.db.deposit(id, account, amount, txid, createdAt));
+                break;
+            case "W":
+                result = Double.toString(this.db.withdraw(id, account, amount, txid, createdAt));
+                break;
+            default:
+                result = this.db.transfer(id, accounts[0], accounts[1], amount, txid, createdAt);
+                break;
+        }
+        lockManager.recordTransaction(txid, createdAt, type, account, amount, result);
+        for (String accountNo : accounts) { lockManager.rememberTransaction(accountNo, randomNumber); }
+
+        // The server that refused, or ended up with another balance, is corrected to ours.
+        String newVersions = versions(accounts), committed = "true " + result + " " + newVersions;
+        if (reply != null && !reply.equals(committed)) { correct(lockManager.socketHandler, this.idlePeers, accounts, result.split(" "), newVersions.split(",")); }
+        if (reply2 != null && !reply2.equals(committed)) { correct(lockManager.socketHandler2, this.idlePeers2, accounts, result.split(" "), newVersions.split(",")); }
+
+        for (String accountNo : accounts) { ReadReplicaFeed.getInstance().publish(accountNo); }
+        return result;
+    }
+
+    /**
+     * Sends the committed state of the accounts to a server that did not apply the write.
+     */
+    private void correct(SocketHandler lockHandler, ConcurrentLinkedQueue<SocketHandler> idle, String[] accounts, String[] balances, String[] versions) {
+        SocketHandler peer = borrow(idle, lockHandler);
+        if (peer == null) { return; }
+
+        for (int i = 0; i < accounts.length; i++) { peer.send("C " + accounts[i] + " " + balances[i] + " " + versions[i]); }
+        if (peer.hasFailed()) {
+            peer.close();
+        } else {
+            idle.offer(peer);
+        }
+    }
+
+    /**
+     * Takes an idle connection to another server, or opens a new one. Proposals run on their own
+     * connections, so they never interleave with the lock traffic, nor with each other.
+     * @param idle The idle connections to the server.
+     * @param lockHandler The socket handler the LockManager uses for that server.
+     * @return SocketHandler The connection, or null if the server is unreachable.
+     */
+    private SocketHandler borrow(ConcurrentLinkedQueue<SocketHandler> idle, SocketHandler lockHandler) {
+        SocketHandler peer = idle.poll();
+        if (peer != null || lockHandler == null) { return peer; }
+
+        try {
+            return new SocketHandler(lockHandler.getHost(), Integer.parseInt(lockHandler.getPort()));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sends a proposal to another server.
+     */
+    private void send(SocketHandler peer, String proposal) {
+        if (peer != null) { peer.send(proposal); }
+    }
+
+    /**
+     * Reads the answer to a proposal, and gives the connection back.
+     * @return String The answer, or null if the server could not be reached.
+     */
+    private String read(SocketHandler peer, ConcurrentLinkedQueue<SocketHandler> idle) {
+        if (peer == null) { return null; }
+
+        try {
+            String reply = peer.readLine();
+            idle.offer(peer);
+            return reply;
+        } catch (IOException e) {
+            peer.close();
+            return null;
+        }
+    }
+
+    /**
+     * Formats a rate.
+     */
+    private String percent(long count, long total) {
+        return total == 0 ? "0%" : String.format("%.1f%%", 100.0 * count / total);
+    }
+    //#endregion Helper Methods
+}
\ No newline at end of file
@@ -0,0 +1,318 @@
+package server_i;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * RecoveryManager Class
+ *
+ * Implements lazy, on-demand recovery for a node that rejoins the cluster.
+ * Every account starts out as unverified, the node serves requests right away,
+ * and an account is pulled from the other servers the first time a client accesses it.
+ * A background sweeper verifies the remaining accounts in batches.
+ *
+ * Writes replicated from another server are applied without verifying first: the
+ * coordinator sends its state ("C") to a server whose copy diverges, and that
+ * marks the account verified.
+ */
+public class RecoveryManager {
+    //#region Class Variables
+    private static RecoveryManager instance = null;
+    private static final int SWEEP_BATCH_SIZE = 25; // Accounts per verify request, so a sweep never holds up the other servers for long.
+    private static final int SWEEP_INTERVAL = 200; // Pause between sweeper batches, in ms.
+    private static final int RETRY_INTERVAL = 5 * 1000; // Pause before verifying again when no other server answers, in ms.
+
+    private final Set<String> verifiedAccounts = ConcurrentHashMap.newKeySet();
+    private final Map<String, Object> accountMonitors = new ConcurrentHashMap<String, Object>();
+    private volatile boolean recovering = false;
+    private volatile long unreachableUntil = 0; // Accesses serve the local copy until then, without waiting on a verify.
+    private long recoveryStart;
+
+    private DBController db = null;
+    private SocketHandler peerHandler = null, peerHandler2 = null;
+    //#endregion Class Variables
+
+    //#region Constructors & Instance Methods
+    /**
+     * Constructor
+     * @implNote This constructor is private to ensure that only one instance of this class is created.
+     */
+    private RecoveryManager() {
+        this.db = DBController.getInstance();
+    }
+
+    /**
+     * Returns the instance of this class.
+     * @return RecoveryManager The instance of this class.
+     */
+    public static synchronized RecoveryManager getInstance() {
+        if (instance == null) { instance = new RecoveryManager(); }
+        return instance;
+    }
+    //#endregion Constructors & Instance Methods
+
+    //#region Recovery Methods
+    /**
+     * Puts the node into lazy recovery mode: every account is unverified until it is accessed or swept.
+     */
+    public void begin() {
+        this.verifiedAccounts.clear();
+        this.recoveryStart = System.currentTimeMillis();
+        this.recovering = true;
+        System.out.println("Lazy recovery started, accounts will be verified against the other servers on first access.");
+
+        Thread sweeper = new Thread(this::sweep);
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    /**
+     * Makes sure the given account has been verified against the other servers before it is used.
+     * Once no other server answered a verify, accesses serve the local copy for RETRY_INTERVAL without trying again.
+     * @param accountNo The account number about to be accessed.
+     */
+    public void ensureVerified(String accountNo) {
+        if (!this.recovering || this.verifiedAccounts.contains(accountNo)) { return; }
+        if (System.currentTimeMillis() < this.unreachableUntil) { return; }
+
+        synchronized (this.accountMonitors.computeIfAbsent(accountNo, key -> new Object())) {
+            if (this.verifiedAccounts.contains(accountNo)) { return; } // Another thread verified it while we waited.
+            if (System.currentTimeMillis() < this.unreachableUntil) { return; } // Another thread's verify just failed.
+
+            List<String> accounts = new ArrayList<String>();
+            accounts.add(accountNo);
+            if (!verify(accounts)) {
+                System.out.println("Account #" + accountNo + " could not be verified, no other server answered. Serving local copies for " + (RETRY_INTERVAL / 1000) + " seconds.");
+            }
+        }
+    }
+
+    /**
+     * Marks an account as verified, for when the coordinator of a write has just sent us its state.
+     * @param accountNo The account number.
+     */
+    public void markVerified(String accountNo) {
+        if (this.recovering) { this.verifiedAccounts.add(accountNo); }
+    }
+
+    /**
+     * Ends the recovery, for when a full database dump has overwritten every account.
+     */
+    public void markAllVerified() {
+        if (this.recovering) { finish(); }
+    }
+
+    /**
+     * Checks if the node is still recovering.
+     * @return boolean True if some accounts may still be unverified, false otherwise.
+     */
+    public boolean isRecovering() { return this.recovering; }
+    //#endregion Recovery Methods
+
+    //#region Helper Methods
+    /**
+     * Background sweeper, verifies every local account in batches until none are left.
+     */
+    private void sweep() {
+        long lastAccount = -1;
+
+        while (this.recovering) {
+            try {
+                List<String> batch = this.db.accountNumbersAfter(lastAccount, SWEEP_BATCH_SIZE);
+                if (batch.isEmpty()) { break; }
+
+                List<String> unverified = new ArrayList<String>();
+                for (String accountNo : batch) {
+                    if (!this.verifiedAccounts.contains(accountNo)) { unverified.add(accountNo); }
+                }
+
+                if (!unverified.isEmpty() && !verify(unverified)) {
+                    System.out.println("Recovery sweeper could not reach the other servers. Retrying in 5 seconds...");
+                    Thread.sleep(RETRY_INTERVAL);
+                    continue;
+                }
+
+                lastAccount = Long.parseLong(batch.get(batch.size() - 1));
+                Thread.sleep(SWEEP_INTERVAL);
+            } catch (SQLException SE) {
+                System.out.println("Error in recovery sweeper: " + SE.getMessage());
+                break;
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        if (this.recovering) { finish(); }
+    }
+
+    /**
+     * Pulls the given accounts from the other servers and overwrites the local copies with the majority state.
+     * @param accountNos The account numbers to verify.
+     * @return boolean True if at least one other server answered, false otherwise, verifies are then held off for RETRY_INTERVAL.
+     */
+    private boolean verify(List<String> accountNos) {
+        String request = "V " + String.join(",", accountNos);
+        Map<String, String> states1 = null, states2 = null;
+
+        synchronized (this) {
+            if (this.peerHandler == null) { this.peerHandler = connect(LockManager.getInstance().socketHandler); }
+            if (this.peerHandler2 == null) { this.peerHandler2 = connect(LockManager.getInstance().socketHandler2); }
+        }
+
+        states1 = query(this.peerHandler, request);
+        states2 = query(this.peerHandler2, request);
+        if (states1 == null && states2 == null) {
+            this.unreachableUntil = System.currentTimeMillis() + RETRY_INTERVAL;
+            return false;
+        }
+
+        Map<String, String> localStates = parseStates("true " + localStates(accountNos));
+        for (String accountNo : accountNos) {
+            String state = majorityState(
+                states1 == null ? null : states1.get(accountNo),
+                states2 == null ? null : states2.get(accountNo),
+                localStates.get(accountNo)
+            );
+
+            try {
+                if (state != null && !state.equals(localStates.get(accountNo))) {
+                    String[] stateTokens = state.split(":");
+                    this.db.restoreAccount(accountNo, Integer.parseInt(stateTokens[0]), Double.parseDouble(stateTokens[1]), Long.parseLong(stateTokens[2]));
+                    ReadReplicaFeed.getInstance().publish(accountNo);
+                    System.out.println("Recovered account #" + accountNo + " with balance $" + stateTokens[1] + " from the other servers.");
+                }
+                this.verifiedAccounts.add(accountNo);
+            } catch (SQLException SE) {
+                System.out.println("Error restoring account #" + accountNo + ": " + SE.getMessage());
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Opens a dedicated connection to another server, so recovery traffic never interleaves with the lock traffic.
+     * @param lockHandler The socket handler the LockManager uses for that server.
+     * @return SocketHandler The new socket handler, or null if the server is unreachable.
+     */
+    private SocketHandler connect(SocketHandler lockHandler) {
+        if (lockHandler == null) { return null; }
+
+        try {
+            return new SocketHandler(lockHandler.getHost(), Integer.parseInt(lockHandler.getPort()));
+        } catch (Exception e) {
+            System.out.println("Recovery could not connect to " + lockHandler.getHost() + ":" + lockHandler.getPort() + ".");
+            return null;
+        }
+    }
+
+    /**
+     * Sends a verify request to another server.
+     * @param handler The socket handler of the other server.
+     * @param request The verify request.
+     * @return Map<String, String> The account states keyed by account number, or null if the server did not answer.
+     */
+    private Map<String, String> query(SocketHandler handler, String request) {
+        if (handler == null) { return null; }
+
+        synchronized (handler) {
+            try {
+                handler.send(request);
+                return parseStates(handler.readLine());
+            } catch (IOException e) {
+                System.out.println("Recovery request to " + handler.getHost() + ":" + handler.getPort() + " failed, reconnecting.");
+                try {
+                    handler.reconnect();
+                } catch (IOException e1) {
+                    System.out.println("Recovery could not reconnect to " + handler.getHost() + ":" + handler.getPort() + ".");
+                }
+                return null;
+            } catch (NullPointerException e) { // The handler never managed to connect.
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reads the local state of the given accounts.
+     * @param accountNos The account numbers.
+     * @return String The local states in the same format the other servers answer with.
+     */
+    private String localStates(List<String> accountNos) {
+        try {
+            return this.db.accountStates(accountNos.toArray(new String[0]));
+        } catch (SQLException SE) {
+            return "";
+        }
+    }
+
+    /**
+     * Parses a verify response of the form "true account:user_id:balance:version,...".
+     * @param response The verify response.
+     * @return Map<String, String> The "user_id:balance:version" states keyed by account number, or null if the response was not successful.
+     */
+    private Map<String, String> parseStates(String response) {
+        if (response == null || !response.startsWith("true")) { return null; }
+
+        Map<String, String> states = new HashMap<String, String>();
+        String[] responseTokens = response.split(" ");
+        if (responseTokens.length < 2) { return states; }
+
+        for (String state : responseTokens[1].split(",")) {
+            String[] stateTokens = state.split(":");
+            if (stateTokens.length == 4) { states.put(stateTokens[0], stateTokens[1] + ":" + stateTokens[2] + ":" + stateTokens[3]); }
+        }
+
+        return states;
+    }
+
+    /**
+     * Finds the majority state out of the two other servers and the local copy.
+     * If the other servers disagree, the one with the newer version wins. If they are at the same version
+     * and the local copy does not break the tie, the first server wins.
+     * @param state1 The state reported by the first server.
+     * @param state2 The state reported by the second server.
+     * @param localState The local state.
+     * @return String The majority state, or null if nobody knows the account.
+     */
+    private String majorityState(String state1, String state2, String localState) {
+        if (state1 == null) { return state2 != null ? state2 : localState; }
+        if (state2 == null || state1.equals(state2)) { return state1; }
+        if (version(state1) != version(state2)) { return version(state1) > version(state2) ? state1 : state2; }
+
+        return state2.equals(localState) ? state2 : state1;
+    }
+
+    /**
+     * Reads the version out of an account state.
+     * @param state The state formatted as "user_id:balance:version".
+     * @return long The version of the account.
+     */
+    private long version(String state) {
+        return Long.parseLong(state.substring(state.lastIndexOf(':') + 1));
+    }
+
+    /**
+     * Leaves recovery mode.
+     */
+    private synchronized void finish() {
+        if (!this.recovering) { return; }
+        this.recovering = false;
+
+        System.out.println("Lazy recovery finished in " + (System.currentTimeMillis() - this.recoveryStart) + "ms, " + this.verifiedAccounts.size() + " accounts verified on demand or by the sweeper.");
+        this.verifiedAccounts.clear();
+        this.accountMonitors.clear();
+
+        if (this.peerHandler != null) { this.peerHandler.close(); }
+        if (this.peerHandler2 != null) { this.peerHandler2.close(); }
+        this.peerHandler = null;
+        this.peerHandler2 = null;
+    }
+    //#endregion Helper Methods
+}
\ No newline at end of file
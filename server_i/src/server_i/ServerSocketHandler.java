@@ -3,6 +3,9 @@ package server_i;
 import Errors.*;
 import java.sql.*;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
 
@@ -20,11 +23,15 @@ import java.net.SocketTimeoutException;
 public class ServerSocketHandler extends Thread {
     //#region Class Variables
     private LockManager lockManager = LockManager.getInstance();
+    private RecoveryManager recoveryManager = RecoveryManager.getInstance();
+    private HotAccounts hotAccounts = HotAccounts.getInstance();
+    private OccManager occManager = OccManager.getInstance();
 
     private Socket socket;
     private int timeout;
     private DBController db;
     private String newAmount = new String();
+    private String newVersion = new String();
     private PrintStream socketOut;
     //#endregion Class Variables
 
@@ -46,10 +53,12 @@ public class ServerSocketHandler extends Thread {
      * @param id Id of the logged in client
      * @param accountNo Account number to withdraw from 
      * @param amount Amount to withdraw from 
+     * @param txid The id of the transaction, or null
+     * @param createdAt The time the coordinating server ran the transaction, in ms
      * @return True or false depending on whether the withdraw was successful or not 
      */
-    public String withdraw(String id, String accountNo, double amount) throws InvalidError, LogicError, SQLException {
-        return Double.toString(this.db.withdraw(id, accountNo, amount));
+    public String withdraw(String id, String accountNo, double amount, String txid, long createdAt) throws InvalidError, LogicError, SQLException {
+        return Double.toString(this.db.withdraw(id, accountNo, amount, txid, createdAt));
     }
 
     /**
@@ -57,10 +66,12 @@ public class ServerSocketHandler extends Thread {
      * @param id Id of the logged in client
      * @param accountNo Account number to deposit into
      * @param amount Amount to deposit
+     * @param txid The id of the transaction, or null
+     * @param createdAt The time the coordinating server ran the transaction, in ms
      * @return True or false depending on whether the deposit was successful or not 
      */
-    public String deposit(String id, String accountNo, double amount) throws InvalidError, SQLException {
-        return Double.toString(this.db.deposit(id, accountNo, amount));
+    public String deposit(String id, String accountNo, double amount, String txid, long createdAt) throws InvalidError, SQLException {
+        return Double.toString(this.db.deposit(id, accountNo, amount, txid, createdAt));
     }
 
     /**
@@ -69,10 +80,12 @@ public class ServerSocketHandler extends Thread {
      * @param fromAccountNo Account number to transfer from
      * @param toAccountNo Account number to transfer to
      * @param amount Amount to transfer from account 1 to account 2
+     * @param txid The id of the transaction, or null
+     * @param createdAt The time the coordinating server ran the transaction, in ms
      * @return True or false depending on whether the transfer was successful or not 
      */
-    public String transfer(String id, String fromAccountNo, String toAccountNo, double amount) throws InvalidError, LogicError, SQLException, DestinationError {
-        return this.db.transfer(id, fromAccountNo, toAccountNo, amount);
+    public String transfer(String id, String fromAccountNo, String toAccountNo, double amount, String txid, long createdAt) throws InvalidError, LogicError, SQLException, DestinationError {
+        return this.db.transfer(id, fromAccountNo, toAccountNo, amount, txid, createdAt);
     }
     
     /**
@@ -90,6 +103,50 @@ public class ServerSocketHandler extends Thread {
         return this.db.registerAndCreateAccountForSync(id, username, password, firstName, lastName, email, account);
     }
 
+    /**
+     * Waits until the writes so far are durable.
+     * @return boolean True if they are, false if the wait was interrupted and the request must be refused.
+     */
+    private boolean durable() {
+        try {
+            db.awaitDurable();
+            return true;
+        } catch (SQLException SE) {
+            System.out.println("Could not wait for the commit: " + SE.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Applies a registration sent by another server, and publishes it to the read servers.
+     * A registration already applied is applied again without effect, so the other server can resend it.
+     * @param registrationTokens The tokens of the registration: R id username password firstname lastname email account
+     * @return boolean True if the user and its account are registered, false otherwise.
+     */
+    private boolean applyRegistration(String[] registrationTokens) {
+        boolean successful;
+        try {
+            successful = register(
+                Integer.parseInt(registrationTokens[1]), 
+                registrationTokens[2], 
+                registrationTokens[3], 
+                registrationTokens[4], 
+                registrationTokens[5], 
+                registrationTokens[6], 
+                registrationTokens[7]
+            );
+        } catch (Exception e) {
+            successful = false;
+        }
+        if (successful) {
+            ReadReplicaFeed.getInstance().publishRegistration(
+                String.join(" ", Arrays.copyOfRange(registrationTokens, 1, 7)),
+                registrationTokens[7]
+            );
+        }
+        return successful;
+    }
+
     /**
      * Balance controller method. Calls the database to retrieve the balance of an account
      * @param id The ID of the user.
@@ -119,23 +176,34 @@ public class ServerSocketHandler extends Thread {
      * @param account The account number to unlock and perform a transaction on
      * @param opCode Code to check if the server should deposit, withdraw or transfer
      * @param amount the amount to perform the transaction with
+     * @param txid The id of the transaction given by the coordinating server, or null if it sent none
+     * @param createdAt The time the coordinating server ran the transaction, in ms
+     * @param hotState The counters folded by a hot account fold, or null
      * @return booelan True if the method successfully processes the transaction and unlocks the account, else returns false
+     * The new version of the account(s) is kept alongside the new balance, for the server coordinating the transaction.
+     * The transaction is appended to the ledger under the coordinator's transaction id, so every server records the same entries.
      */
-    public boolean unlock(String id, String account, String opCode, double amount) throws InvalidError, LogicError, SQLException, DestinationError {
+    public boolean unlock(String id, String account, String opCode, double amount, String txid, long createdAt, String hotState) throws InvalidError, LogicError, SQLException, DestinationError {
         boolean returnValue;
 
+        // Not verified here, the coordinator is waiting: it sends its state ("C") if our copy diverges, which marks it verified.
         switch(opCode) {
             case "D": // Deposit
-            	newAmount = this.deposit(id, account, amount);
+            	newAmount = this.deposit(id, account, amount, txid, createdAt);
                 returnValue = lockManager.unlockLocally(account, opCode);  
                 break;
+            case "H": // Fold of the deposits taken by a hot account
+                newAmount = this.deposit(id, account, amount, txid, createdAt);
+                hotAccounts.merge(account, hotState);
+                returnValue = lockManager.unlockLocally(account, opCode);
+                break;
             case "W": // Withdraw
-            	newAmount = this.withdraw(id, account, amount);
+            	newAmount = this.withdraw(id, account, amount, txid, createdAt);
                 returnValue = lockManager.unlockLocally(account, opCode);  
                 break;
             case "T": // Transfer
                 String[] accounts = account.split(",");
-                newAmount = this.transfer(id, accounts[0], accounts[1], amount);
+                newAmount = this.transfer(id, accounts[0], accounts[1], amount, txid, createdAt);
                 returnValue = lockManager.unlockLocally(accounts[0], opCode) && lockManager.unlockLocally(accounts[1], opCode);
                 break;
             default:
@@ -143,9 +211,122 @@ public class ServerSocketHandler extends Thread {
                 System.out.println("Invalid operation code provided to the unlock method.");
         } 
 
+        if (returnValue && txid != null) { lockManager.recordTransaction(txid, createdAt, opCode.equals("H") ? "D" : opCode, account, amount, newAmount); }
+
+        newVersion = "";
+        for (String accountNo : account.split(",")) {
+            newVersion += (newVersion.isEmpty() ? "" : " ") + db.accountVersion(accountNo);
+            ReadReplicaFeed.getInstance().publish(accountNo);
+        }
+
         return returnValue;
     }
 
+    /**
+     * Applies an optimistic write proposed by another server, if the accounts are still at the versions it read.
+     * @param proposalTokens The tokens of the proposal: P id account type amount txid created_at random versions
+     * @param awaitDurable Whether to wait for the commit of the write, false when the caller waits once for a whole batch.
+     * @return String "true balance(s) versions" if the write was applied, "false versions" if the versions did
+     * not match, or "false -" if the accounts are locked by another write.
+     */
+    private String propose(String[] proposalTokens, boolean awaitDurable) {
+        String id = proposalTokens[1], account = proposalTokens[2], opCode = proposalTokens[3], txid = proposalTokens[5];
+        double amount = Double.parseDouble(proposalTokens[4]);
+        long createdAt = Long.parseLong(proposalTokens[6]);
+        String[] accounts = account.split(",");
+
+        if (!lockManager.lockOptimistically(accounts)) { return "false -"; } // Not verified here either, see unlock.
+
+        try {
+            String versions = occManager.versions(accounts);
+            if (!versions.equals(proposalTokens[8])) { return "false " + versions; }
+
+            String result;
+            switch (opCode) {
+                case "D":
+                    result = this.deposit(id, account, amount, txid, createdAt);
+                    break;
+                case "W":
+                    result = this.withdraw(id, account, amount, txid, createdAt);
+                    break;
+                default:
+                    result = this.transfer(id, accounts[0], accounts[1], amount, txid, createdAt);
+                    break;
+            }
+            lockManager.recordTransaction(txid, createdAt, opCode, account, amount, result);
+            for (String accountNo : accounts) {
+                lockManager.rememberTransaction(accountNo, proposalTokens[7]);
+                ReadReplicaFeed.getInstance().publish(accountNo);
+            }
+
+            if (awaitDurable) { db.awaitDurable(); } // Only acknowledge once the write is committed.
+            return "true " + result + " " + occManager.versions(accounts);
+        } catch (InvalidError | LogicError | DestinationError | SQLException e) {
+            System.out.println("Could not apply the optimistic write " + txid + " to account #" + account + ".");
+            return "false -";
+        } finally {
+            for (String accountNo : accounts) { lockManager.unlockLocally(accountNo, "P"); }
+        }
+    }
+
+    /**
+     * Applies a burst of optimistic writes proposed by the request pipeline of another server, see propose,
+     * and waits for a single commit for all of them before answering.
+     * @param proposals The proposals, one per line, each formatted as a P request.
+     * @return List<String> The answers, in the order of the proposals. If the commit fails, the writes that were
+     * applied are answered "false -", as a single proposal would be.
+     */
+    private List<String> proposeBatch(List<String> proposals) {
+        List<String> answers = new ArrayList<String>();
+        for (String proposal : proposals) {
+            String[] proposalTokens = proposal.split(" ");
+            answers.add(proposalTokens.length > 8 ? propose(proposalTokens, false) : "false -");
+        }
+
+        if (!durable()) {
+            for (int i = 0; i < answers.size(); i++) {
+                if (answers.get(i).startsWith("true")) { answers.set(i, "false -"); }
+            }
+        }
+        return answers;
+    }
+
+    /**
+     * Applies the items of a batch coordinated by another server, then unlocks its accounts, see BatchManager.
+     * Items that fail here are left out, and the coordinator corrects the accounts.
+     * @param batchTokens The tokens of the batch: UM id created_at random account,account,... type:account:amount:txid ...
+     * @return String "true" followed by the states of the accounts if the batch was applied, "false" otherwise.
+     */
+    private String applyBatch(String[] batchTokens) {
+        String id = batchTokens[1], randomNumber = batchTokens[3];
+        long createdAt = Long.parseLong(batchTokens[2]);
+        String[] accounts = batchTokens[4].split(",");
+
+        List<String[]> items = new ArrayList<String[]>();
+        for (int i = 5; i < batchTokens.length; i++) { items.add(batchTokens[i].split(":")); }
+
+        try {
+            if (items.isEmpty()) { return "true"; } // Nothing applied, the locks are only released.
+
+            List<String> entries = new ArrayList<String>(); // Not verified here either, see unlock.
+            db.applyBatch(id, items, false, createdAt, entries);
+
+            for (String entry : entries) { ReadReplicaFeed.getInstance().publishEntry(entry); }
+            for (String accountNo : accounts) {
+                lockManager.rememberTransaction(accountNo, randomNumber);
+                ReadReplicaFeed.getInstance().publish(accountNo);
+            }
+
+            db.awaitDurable(); // Only acknowledge once the batch is committed.
+            return "true " + db.accountStates(accounts);
+        } catch (SQLException SE) {
+            System.out.println("Could not apply the batch of " + items.size() + " items on accounts " + batchTokens[4] + ".");
+            return "false";
+        } finally {
+            for (String accountNo : accounts) { lockManager.unlockLocally(accountNo, "M"); }
+        }
+    }
+
     /**
      * Main server request handler method
      * The server listens for incoming server requests
@@ -164,6 +345,60 @@ public class ServerSocketHandler extends Thread {
      *  Withdraw request:
      *      Format: W from amount
      *      eg: W 12345678  100
+     * 
+     *  Release request (unlocks without a transaction, for a write that failed once locked):
+     *      Format: RL account type random
+     *      eg: RL 12345678 T 8231
+     * 
+     *  Unlock request (runs the transaction, then appends it to the ledger under the coordinator's transaction id):
+     *      Format: U id account type amount txid created_at
+     *      eg: U 2 12345678 D 100.0 9f1c0e5a2b7d4c3e8a6f1b2c3d4e5f60 1700000000000
+     * 
+     *  Registration batch (the registrations queued for this server, in order, answered with how many were applied, see RegistrationOutbox):
+     *      Format: RB count, followed by count registrations, one per line
+     *      eg: RB 2
+     *          R 101 bob pass Bob Marley bob@gmail.com 1000000000
+     *          R 102 ann pass Ann Lee ann@gmail.com 1000000001
+     * 
+     *  Optimistic write (applied only if the accounts are at the versions the coordinator read, see OccManager):
+     *      Format: P id account type amount txid created_at random versions
+     *      eg: P 2 12345678 D 100.0 9f1c0e5a2b7d4c3e8a6f1b2c3d4e5f60 1700000000000 8231 41
+     * 
+     *  Proposal batch (the proposals of a request pipeline burst, one per line, answered one line each after a single commit):
+     *      Format: PB count
+     *      eg: PB 2
+     * 
+     *  Batch lock request (every account is locked, or none is, see BatchManager):
+     *      Format: LM account,account,... random
+     *      eg: LM 12345678,87654321 8231
+     * 
+     *  Batch unlock request (applies the items that applied on the coordinator, then unlocks; no items only unlocks):
+     *      Format: UM id created_at random account,account,... type:account:amount:txid ...
+     *      eg: UM 2 1700000000000 8231 12345678,87654321 D:12345678:100.0:9f1c0e5a2b7d4c3e T:12345678,87654321:50.0:0a4d7e2c9b1f5a6e
+     * 
+     *  Hot account fold (an unlock of type H, with the counters it folded):
+     *      Format: U id account H amount txid created_at node:accepted:folded,...
+     *      eg: U 2 12345678 H 350.0 9f1c0e5a2b7d4c3e8a6f1b2c3d4e5f60 1700000000000 3f2a9c1d7b4e:350.0:350.0
+     * 
+     *  Hot account counters request (the deposits every server took without the lock, and how much of them is folded):
+     *      Format: HC account
+     *      eg: HC 12345678
+     * 
+     *  Verify request (sent by a recovering server):
+     *      Format: V account,account,...
+     *      eg: V 12345678,87654321
+     * 
+     *  Correct request (the majority balance, and the highest version of the account):
+     *      Format: C account balance version
+     *      eg: C 12345678 100.0 42
+     * 
+     *  Idempotency record (the response of a client write, for when the client resends it here, see IdempotencyStore):
+     *      Format: IK session sequence base64(response)
+     *      eg: IK 3f2a9c1d7b4e5a60 42 U1VDQ0VTUyAxMDAuMA==
+     * 
+     *  Feed subscription (sent by a read server, the connection then belongs to the ReadReplicaFeed):
+     *      Format: FEED epoch seq|head|snapshot
+     *      eg: FEED 1700000000000 1234
      */
     public void run() {
         String opCode = new String(),
@@ -223,35 +458,41 @@ public class ServerSocketHandler extends Thread {
                         socketOut.println(message);
                         socketOut.flush();
                         break;
+                    case "RL":
+                        successful = lockManager.releaseLocally(clientRequestTokens[1], clientRequestTokens[2], clientRequestTokens[3]);
+                        socketOut.println(successful ? "true" : "false");
+                        socketOut.flush();
+                        break;
                     case "U":
                         id = clientRequestTokens[1];
                         account = clientRequestTokens[2];
                         transactionCode = clientRequestTokens[3];
                         amount = Double.parseDouble(clientRequestTokens[4]);
                         try {
-                            successful = unlock(id, account, transactionCode, amount);
+                            successful = unlock(id, account, transactionCode, amount,
+                                clientRequestTokens.length > 6 ? clientRequestTokens[5] : null,
+                                clientRequestTokens.length > 6 ? Long.parseLong(clientRequestTokens[6]) : 0,
+                                clientRequestTokens.length > 7 ? clientRequestTokens[7] : null);
                         } catch(Exception e) {
                             successful = false;
                         }
+                        if (!durable()) { successful = false; } // Only acknowledge once the write is committed.
                         System.out.println("Unlocking account #" + account + " with transaction code " + transactionCode + ", with final amount: " + newAmount + ". Successful: " + successful + ".");
-                        message = successful ? "true " + newAmount : "false";
+                        message = successful ? "true " + newAmount + " " + newVersion : "false";
                         socketOut.println(message);
                         socketOut.flush();
                         break;
                     case "R":
-                        try {
-                            successful = register(
-                                Integer.parseInt(clientRequestTokens[1]), 
-                                clientRequestTokens[2], 
-                                clientRequestTokens[3], 
-                                clientRequestTokens[4], 
-                                clientRequestTokens[5], 
-                                clientRequestTokens[6], 
-                                clientRequestTokens[7]
-                            );
-                        } catch (Exception e) {
-                            successful = false;
+                        applyRegistration(clientRequestTokens);
+                        break;
+                    case "RB":
+                        int count = Integer.parseInt(clientRequestTokens[1]), applied = 0;
+                        for (int i = 0; i < count; i++) {
+                            String registration = socketInput.nextLine(); // Every registration of the batch is read, even after one failed.
+                            if (applied == i && applyRegistration(registration.split(" "))) { applied++; }
                         }
+                        socketOut.println(durable() ? "true " + applied : "false"); // Only acknowledge once the registrations are committed.
+                        socketOut.flush();
                         break;
                     case "O":
                         String dump = socketInput.nextLine();
@@ -260,17 +501,77 @@ public class ServerSocketHandler extends Thread {
                         } catch(Exception e) {
                             successful = false;
                         }
+                        if (successful) {
+                            recoveryManager.markAllVerified();
+                            ReadReplicaFeed.getInstance().restart();
+                        }
                         break;
                     case "C":
                         account = clientRequestTokens[1];
                         amount = Double.parseDouble(clientRequestTokens[2]);
                         try {
-                            successful = db.overwriteAccount(account, amount);
+                            long version = clientRequestTokens.length > 3 ? Long.parseLong(clientRequestTokens[3]) : 0;
+                            successful = db.overwriteAccount(account, amount, version);
                         } catch(Exception e){
                             successful = false;
                         }
+                        if (successful) {
+                            recoveryManager.markVerified(account);
+                            ReadReplicaFeed.getInstance().publish(account);
+                        }
                         message = successful ? "true" : "false"; 
                         break;
+                    case "LM":
+                        try {
+                            successful = lockManager.lockManyLocally(clientRequestTokens[1].split(","), "M", clientRequestTokens[2]);
+                        } catch(DuplicateTransactionError DTE) {
+                            successful = false;
+                        }
+                        socketOut.println(successful ? "true" : "false");
+                        socketOut.flush();
+                        break;
+                    case "UM":
+                        socketOut.println(applyBatch(clientRequestTokens));
+                        socketOut.flush();
+                        break;
+                    case "P":
+                        socketOut.println(propose(clientRequestTokens, true));
+                        socketOut.flush();
+                        break;
+                    case "PB":
+                        List<String> proposals = new ArrayList<String>();
+                        int proposalCount = Integer.parseInt(clientRequestTokens[1]);
+                        for (int i = 0; i < proposalCount; i++) { proposals.add(socketInput.nextLine()); } // Every proposal is read before any is applied.
+                        for (String answer : proposeBatch(proposals)) { socketOut.println(answer); }
+                        socketOut.flush();
+                        break;
+                    case "IK":
+                        try {
+                            IdempotencyStore.getInstance().replicated(clientRequestTokens);
+                        } catch(Exception e) {
+                            System.out.println("Could not record the response of " + clientRequestTokens[1] + ":" + clientRequestTokens[2] + ".");
+                        }
+                        break;
+                    case "HC":
+                        socketOut.println("true " + hotAccounts.state(clientRequestTokens[1]));
+                        socketOut.flush();
+                        break;
+                    case "V":
+                        try {
+                            message = "true " + db.accountStates(clientRequestTokens[1].split(","));
+                        } catch(Exception e) {
+                            message = "false";
+                        }
+                        socketOut.println(message);
+                        socketOut.flush();
+                        break;
+                    case "FEED":
+                        ReadReplicaFeed.getInstance().subscribe(
+                            this.socket,
+                            clientRequestTokens.length > 1 ? clientRequestTokens[1] : "-",
+                            clientRequestTokens.length > 2 ? clientRequestTokens[2] : "snapshot"
+                        );
+                        return; // The feed streams to the read server on its own thread, the connection is no longer ours.
                     default:
                         System.out.println("Invalid request received from server.");
                         break;
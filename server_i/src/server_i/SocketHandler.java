@@ -1,6 +1,8 @@
 package server_i;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.net.Socket;
 import java.net.SocketException;
@@ -14,6 +16,7 @@ class SocketHandler {
 
     private Socket socket;
     private PrintStream socketOut;
+    private BufferedReader socketIn;
 
     private final int timeout = 7 * 1000; // 7 Second timeout
     private final int bufferLimit = 1024;
@@ -59,6 +62,24 @@ class SocketHandler {
         return response;
     }
 
+    /**
+     * This method reads a single, complete line from the socket.
+     * @implNote Only use this on connections that are never read with read(), as the line reader buffers ahead.
+     * @return String The line received from the socket.
+     * @throws SocketTimeoutException
+     * @throws SocketException
+     * @throws IOException
+     */
+    public String readLine() throws SocketTimeoutException, SocketException, IOException {
+        if (this.socketIn == null) { this.socketIn = new BufferedReader(new InputStreamReader(this.socket.getInputStream())); }
+        this.socket.setSoTimeout(this.timeout); // Set the timeout, so we don't wait forever.
+
+        String response = this.socketIn.readLine();
+        if (response == null) { throw new SocketException("Connection closed by " + this.host + ":" + this.port); }
+
+        return response.trim();
+    }
+
     /**
      * This method sends a message over the socket.
      * @param message The message to send over the socket.
@@ -68,6 +89,14 @@ class SocketHandler {
         this.socketOut.flush(); // Flush the output stream to ensure the message is sent.
     }
 
+    /**
+     * Checks if sending over the socket has failed, as the output stream never throws.
+     * @return boolean True if the connection is broken or was never established, false otherwise.
+     */
+    public boolean hasFailed() {
+        return this.socketOut == null || this.socketOut.checkError();
+    }
+
     /**
      * This method closes the socket and the output stream.
      */
@@ -90,6 +119,7 @@ class SocketHandler {
         try {
             this.socket = new Socket(this.host, this.port);
             this.socketOut = new PrintStream(this.socket.getOutputStream());
+            this.socketIn = null; // The line reader belonged to the old socket.
             this.send("server"); // Inform the server we've connected too, that we're a server.
         } catch (UnknownHostException e) {
             System.out.println("Unknown host: " + this.host);
@@ -0,0 +1,440 @@
+package server_j;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BalanceSubscriptions Class
+ *
+ * Pushes the new balance of an account to the clients that subscribed to it,
+ * so a client can cache balances instead of asking for them over and over.
+ *
+ * A client opens a connection with the "subscriber" handshake, resumes its
+ * session on it with "S token", then subscribes to accounts. It is pushed the
+ * balance of every account of its user right away, then again every time the
+ * account changes. The changes are the ones the ReadReplicaFeed gathers for the
+ * read servers, the feed never waits on a client.
+ *      Subscribe:      SUB id account,account,...      answered with SUBSCRIBED count
+ *      Unsubscribe:    UNSUB id [account,account,...]  answered with UNSUBSCRIBED count (every account if none is given)
+ *      Push:           PUSH B account balance version
+ *
+ * Every subscriber is served by a single selector thread, which never blocks on
+ * a connection: an idle subscriber costs a socket and a few small objects, no
+ * thread and no buffer. The pushes waiting for a subscriber are coalesced per
+ * account, only the latest balance is kept, so what a subscriber can have
+ * waiting is bounded by the accounts it subscribed to. A subscriber that has
+ * not taken any of it for SLOW_CONSUMER ms is dropped, and has to subscribe again.
+ */
+public class BalanceSubscriptions {
+    //#region Class Variables
+    private static BalanceSubscriptions instance = null;
+    private static final int MAX_ACCOUNTS = 256; // Accounts a subscriber can subscribe to.
+    private static final int MAX_WRITE = 16 * 1024; // Bytes handed to the socket of a subscriber at a time.
+    private static final int MAX_REQUEST = 8 * 1024; // Length of a request, and of the replies waiting for a subscriber, at most.
+    private static final long SLOW_CONSUMER = 5 * 1000; // Time a subscriber may leave its pushes waiting, in ms.
+    private static final long SWEEP_INTERVAL = 1000; // Time between two checks for slow subscribers, in ms.
+
+    private DBController db = DBController.getInstance();
+    private SessionManager sessionManager = SessionManager.getInstance();
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Subscriber> joining = new ConcurrentLinkedQueue<Subscriber>();
+    private final ConcurrentLinkedQueue<String> changes = new ConcurrentLinkedQueue<String>(); // Account states to push.
+    private final ExecutorService lookups = Executors.newSingleThreadExecutor(runnable -> { // Reads the balances of new subscriptions.
+        Thread thread = new Thread(runnable, "balance-lookups");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Only used by the selector thread.
+    private final Map<String, Set<Subscriber>> subscribers = new HashMap<String, Set<Subscriber>>(); // Account to its subscribers.
+    private final ArrayDeque<Subscriber> dirty = new ArrayDeque<Subscriber>(); // Subscribers with something to write.
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(MAX_REQUEST);
+    private volatile int connections = 0, accounts = 0;
+
+    // Metrics
+    private final LongAdder subscriptions = new LongAdder(), pushes = new LongAdder(), coalesced = new LongAdder(), dropped = new LongAdder();
+    //#endregion Class Variables
+
+    //#region Constructors & Instance Methods
+    /**
+     * Constructor
+     * @implNote This constructor is private to ensure that only one instance of this class is created.
+     */
+    private BalanceSubscriptions() {
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open the selector of the balance subscriptions: " + e.getMessage());
+        }
+
+        Thread selectorThread = new Thread(this::selectLoop, "balance-subscriptions");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * Returns the instance of this class.
+     * @return BalanceSubscriptions The instance of this class.
+     */
+    public static synchronized BalanceSubscriptions getInstance() {
+        if (instance == null) { instance = new BalanceSubscriptions(); }
+        return instance;
+    }
+    //#endregion Constructors & Instance Methods
+
+    //#region Subscription Methods
+    /**
+     * Hands a subscriber connection over to the selector thread, which serves it from now on.
+     * @param socket The connection, accepted by MachineSocket so it has a channel.
+     */
+    public void register(Socket socket) {
+        SocketChannel channel = socket.getChannel();
+        try {
+            if (channel == null) { throw new IOException("the connection has no channel"); }
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            System.out.println("Could not accept the subscriber " + socket.getInetAddress() + ":" + socket.getPort() + ": " + e.getMessage());
+            try {
+                socket.close();
+            } catch (IOException ex) {}
+            return;
+        }
+
+        this.joining.add(new Subscriber(channel));
+        this.selector.wakeup();
+    }
+
+    /**
+     * Queues the states of accounts that changed, to be pushed to their subscribers. Never blocks.
+     * @param states The states, formatted as account:user_id:balance:version,... see DBController.accountStates.
+     */
+    public void changed(String states) {
+        if (this.accounts == 0 || states.isEmpty()) { return; }
+        this.changes.add(states);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Returns the subscription metrics.
+     * @return String The subscribers and accounts subscribed, and the balances pushed.
+     */
+    public String getStats() {
+        return "Balance subscriptions: " + this.connections + " subscribers on " + this.accounts + " accounts (" + this.subscriptions.sum() + " subscriptions in total), "
+            + this.pushes.sum() + " balances pushed, " + this.coalesced.sum() + " coalesced, " + this.dropped.sum() + " slow subscribers dropped.";
+    }
+    //#endregion Subscription Methods
+
+    //#region Helper Methods
+    /**
+     * Selector thread, reads the requests of the subscribers and writes what is waiting for them.
+     */
+    private void selectLoop() {
+        long lastSweep = System.currentTimeMillis();
+        while (true) {
+            try {
+                this.selector.select(SWEEP_INTERVAL);
+
+                Subscriber subscriber;
+                while ((subscriber = this.joining.poll()) != null) {
+                    subscriber.key = subscriber.channel.register(this.selector, SelectionKey.OP_READ, subscriber);
+                    this.connections++;
+                }
+
+                String states;
+                while ((states = this.changes.poll()) != null) { deliver(states); }
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    subscriber = (Subscriber) key.attachment();
+                    if (key.isValid() && key.isReadable()) { read(subscriber); }
+                    if (key.isValid() && key.isWritable()) { markDirty(subscriber); }
+                }
+
+                while ((subscriber = this.dirty.poll()) != null) {
+                    subscriber.dirty = false;
+                    flush(subscriber);
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SWEEP_INTERVAL) {
+                    lastSweep = now;
+                    for (SelectionKey key : new ArrayList<SelectionKey>(this.selector.keys())) {
+                        subscriber = (Subscriber) key.attachment();
+                        if (subscriber.waitingSince > 0 && now - subscriber.waitingSince > SLOW_CONSUMER) { drop(subscriber, true); }
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Balance subscriptions could not poll their connections: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Queues the states of accounts for the subscribers of their user, replacing the balance still waiting for an account.
+     * A state is skipped if the subscriber was already pushed this version of the account, or a newer one.
+     */
+    private void deliver(String states) {
+        long now = System.currentTimeMillis();
+        for (String state : states.split(",")) {
+            String[] fields = state.split(":");
+            Set<Subscriber> accountSubscribers = fields.length < 4 ? null : this.subscribers.get(fields[0]);
+            if (accountSubscribers == null) { continue; }
+
+            long version;
+            try {
+                version = Long.parseLong(fields[3]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            for (Subscriber subscriber : accountSubscribers) {
+                Long pushedVersion = subscriber.versions.get(fields[0]);
+                if (!fields[1].equals(subscriber.userId) || (pushedVersion != null && pushedVersion >= version)) { continue; }
+
+                subscriber.versions.put(fields[0], version);
+                if (subscriber.pending.put(fields[0], "PUSH B " + fields[0] + " " + fields[2] + " " + fields[3] + "\n") != null) { this.coalesced.increment(); }
+                if (subscriber.waitingSince == 0) { subscriber.waitingSince = now; }
+                markDirty(subscriber);
+            }
+        }
+    }
+
+    /**
+     * Reads the requests of a subscriber, and answers the complete ones.
+     */
+    private void read(Subscriber subscriber) {
+        int read;
+        this.readBuffer.clear();
+        try {
+            read = subscriber.channel.read(this.readBuffer);
+        } catch (IOException e) {
+            read = -1;
+        }
+        if (read < 0) {
+            drop(subscriber, false);
+            return;
+        }
+
+        this.readBuffer.flip();
+        while (this.readBuffer.hasRemaining() && subscriber.key.isValid()) {
+            char character = (char) this.readBuffer.get();
+            if (character == '\n') {
+                handle(subscriber, subscriber.request.toString());
+                subscriber.request.setLength(0);
+            } else if (character != '\r') {
+                subscriber.request.append(character);
+            }
+        }
+
+        if (subscriber.request.length() > MAX_REQUEST) { drop(subscriber, false); }
+        else if (subscriber.request.length() == 0) { subscriber.request.trimToSize(); } // Keeps idle subscribers small.
+    }
+
+    /**
+     * Answers a request of a subscriber.
+     * @param request The request, optionally tagged with a correlation id, see ClientSocketHandler.frame.
+     */
+    private void handle(Subscriber subscriber, String request) {
+        String correlationId = null;
+        int end = request.indexOf(' ');
+        if (request.startsWith("#") && end > 1) {
+            correlationId = request.substring(0, end);
+            request = request.substring(end + 1);
+        }
+
+        String[] requestTokens = request.split(" ");
+        String response;
+        switch (requestTokens[0]) {
+            case "S":
+                String userId = requestTokens.length > 1 ? this.sessionManager.resume(requestTokens[1]) : null;
+                if (userId != null) { subscriber.userId = userId; }
+                response = userId != null ? "OK" : "EXPIRED";
+                break;
+            case "SUB":
+                response = "SUBSCRIBED " + subscribe(subscriber, requestTokens.length > 2 ? requestTokens[2].split(",") : new String[0]);
+                break;
+            case "UNSUB":
+                response = "UNSUBSCRIBED " + unsubscribe(subscriber, requestTokens.length > 2 ? requestTokens[2].split(",") : subscriber.accounts.toArray(new String[0]));
+                break;
+            default:
+                return; // Like on a client connection, an invalid request is not answered.
+        }
+
+        subscriber.replies.append(ClientSocketHandler.frame(correlationId, response)).append('\n');
+        if (subscriber.replies.length() > MAX_REQUEST) { // It sends requests without reading the replies.
+            drop(subscriber, true);
+            return;
+        }
+        markDirty(subscriber);
+    }
+
+    /**
+     * Subscribes a subscriber to accounts, and looks up their current balance to push it.
+     * The id in the request is ignored, like in a balance request: the user is the one of the session.
+     * @return int The number of accounts the subscriber is subscribed to.
+     */
+    private int subscribe(Subscriber subscriber, String[] accountNos) {
+        List<String> added = new ArrayList<String>();
+        for (String accountNo : accountNos) {
+            if (accountNo.isEmpty() || subscriber.accounts.size() >= MAX_ACCOUNTS || !subscriber.accounts.add(accountNo)) { continue; }
+
+            Set<Subscriber> accountSubscribers = this.subscribers.get(accountNo);
+            if (accountSubscribers == null) {
+                this.subscribers.put(accountNo, accountSubscribers = new HashSet<Subscriber>());
+                this.accounts++;
+            }
+            accountSubscribers.add(subscriber);
+            added.add(accountNo);
+        }
+
+        if (!added.isEmpty()) {
+            this.subscriptions.add(added.size());
+            this.lookups.execute(() -> { // The database may be busy, the selector thread never waits for it.
+                try {
+                    changed(this.db.accountStates(added.toArray(new String[0])));
+                } catch (SQLException SE) {
+                    System.out.println("Could not read the balances of a new subscription: " + SE.getMessage()); // They are pushed with the next change.
+                }
+            });
+        }
+        return subscriber.accounts.size();
+    }
+
+    /**
+     * Unsubscribes a subscriber from accounts, and forgets their balances still waiting.
+     * @return int The number of accounts the subscriber is still subscribed to.
+     */
+    private int unsubscribe(Subscriber subscriber, String[] accountNos) {
+        for (String accountNo : accountNos) {
+            if (!subscriber.accounts.remove(accountNo)) { continue; }
+            subscriber.versions.remove(accountNo);
+            subscriber.pending.remove(accountNo);
+
+            Set<Subscriber> accountSubscribers = this.subscribers.get(accountNo);
+            if (accountSubscribers != null && accountSubscribers.remove(subscriber) && accountSubscribers.isEmpty()) {
+                this.subscribers.remove(accountNo);
+                this.accounts--;
+            }
+        }
+        return subscriber.accounts.size();
+    }
+
+    /**
+     * Writes the replies and pushes waiting for a subscriber, as much as its socket takes without blocking.
+     * What is left is written once the socket can take more.
+     */
+    private void flush(Subscriber subscriber) {
+        if (!subscriber.key.isValid()) { return; }
+
+        try {
+            while (true) {
+                if (subscriber.out == null || !subscriber.out.hasRemaining()) {
+                    subscriber.out = nextWrite(subscriber);
+                    if (subscriber.out == null) { break; }
+                }
+
+                int written = subscriber.channel.write(subscriber.out);
+                if (written > 0 && subscriber.waitingSince > 0) { subscriber.waitingSince = System.currentTimeMillis(); } // Slow, but still taking pushes.
+                if (subscriber.out.hasRemaining()) { break; } // The socket is full.
+            }
+        } catch (IOException e) {
+            drop(subscriber, false);
+            return;
+        }
+
+        boolean waiting = subscriber.out != null;
+        if (!waiting) { subscriber.waitingSince = 0; }
+        subscriber.key.interestOps(waiting ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /**
+     * Takes the replies, then the pushes, waiting for a subscriber, up to MAX_WRITE bytes.
+     * @return ByteBuffer The bytes to write, or null if nothing is waiting.
+     */
+    private ByteBuffer nextWrite(Subscriber subscriber) {
+        StringBuilder lines = new StringBuilder(subscriber.replies);
+        subscriber.replies.setLength(0);
+        subscriber.replies.trimToSize();
+
+        Iterator<String> pending = subscriber.pending.values().iterator();
+        while (pending.hasNext() && lines.length() < MAX_WRITE) {
+            lines.append(pending.next());
+            pending.remove();
+            this.pushes.increment();
+        }
+        return lines.length() == 0 ? null : ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Closes the connection of a subscriber, and removes its subscriptions.
+     * @param slow Whether it is dropped for not taking what it is sent, or because it disconnected.
+     */
+    private void drop(Subscriber subscriber, boolean slow) {
+        if (!subscriber.key.isValid()) { return; }
+
+        Socket socket = subscriber.channel.socket();
+        String from = socket.getInetAddress() + ":" + socket.getPort();
+        subscriber.key.cancel();
+        try {
+            subscriber.channel.close();
+        } catch (IOException e) {}
+
+        unsubscribe(subscriber, subscriber.accounts.toArray(new String[0]));
+        this.connections--;
+        if (slow) {
+            this.dropped.increment();
+            System.out.println("Dropped the slow subscriber " + from + ", it did not take what it was sent.");
+        }
+    }
+
+    /**
+     * Queues a subscriber to be written to once the selector thread is done with the current events.
+     */
+    private void markDirty(Subscriber subscriber) {
+        if (subscriber.dirty) { return; }
+        subscriber.dirty = true;
+        this.dirty.add(subscriber);
+    }
+
+    /**
+     * A subscriber connection, with its subscriptions and what is waiting to be written to it.
+     */
+    private static class Subscriber {
+        final SocketChannel channel;
+        SelectionKey key;
+        String userId = "";
+        final Set<String> accounts = new HashSet<String>();
+        final Map<String, Long> versions = new HashMap<String, Long>(); // Account to the version last pushed.
+        final LinkedHashMap<String, String> pending = new LinkedHashMap<String, String>(); // Account to its latest push not written yet.
+        final StringBuilder request = new StringBuilder(0), replies = new StringBuilder(0);
+        ByteBuffer out = null; // Bytes being written, null when there are none.
+        long waitingSince = 0; // Time the subscriber last took something while more was waiting, 0 if nothing is waiting.
+        boolean dirty = false;
+
+        Subscriber(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+    //#endregion Helper Methods
+}
@@ -0,0 +1,329 @@
+package server_j;
+
+import Errors.*;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BatchManager Class
+ *
+ * Runs a batch of deposits, withdraws and transfers, such as a payroll, as a single
+ * distributed transaction: every account of the batch is locked on every server in
+ * one round, the items are applied in one SQLite transaction, and the items that
+ * applied are sent to the other servers in one message. A batch costs about as much
+ * coordination as a single transfer, however many items it has.
+ *
+ * A batch is either all-or-nothing (the first item that fails aborts the whole batch)
+ * or best-effort (an item that fails is reported, and the others still apply). Every
+ * item gets its own result.
+ */
+public class BatchManager {
+    //#region Class Variables
+    public static final String ALL = "all", EACH = "each";
+
+    private static BatchManager instance = null;
+    private static final int MAX_ITEMS = 10000; // Items accepted in one batch.
+    private static final int MAX_ATTEMPTS = 8; // Attempts at locking the accounts of a batch before giving up.
+    private static final int BACKOFF = 5; // Base of the randomized backoff between attempts, in ms.
+    private static final String LOCK_TYPE = "M";
+
+    private final ConcurrentLinkedQueue<SocketHandler> idlePeers = new ConcurrentLinkedQueue<SocketHandler>(),
+        idlePeers2 = new ConcurrentLinkedQueue<SocketHandler>();
+    private DBController db = null;
+
+    // Metrics
+    private final LongAdder batches = new LongAdder(), items = new LongAdder(), failedItems = new LongAdder(),
+        abortedBatches = new LongAdder(), lockRetries = new LongAdder();
+    //#endregion Class Variables
+
+    //#region Constructors & Instance Methods
+    /**
+     * Constructor
+     * @implNote This constructor is private to ensure that only one instance of this class is created.
+     */
+    private BatchManager() {
+        this.db = DBController.getInstance();
+    }
+
+    /**
+     * Returns the instance of this class.
+     * @return BatchManager The instance of this class.
+     */
+    public static synchronized BatchManager getInstance() {
+        if (instance == null) { instance = new BatchManager(); }
+        return instance;
+    }
+    //#endregion Constructors & Instance Methods
+
+    //#region Batch Methods
+    /**
+     * Parses the items of a batch request.
+     * @param itemTokens The tokens of the request.
+     * @param from The first item token, formatted as D:account:amount, W:account:amount or T:from:to:amount.
+     * @return List<String[]> The items, as {type, account ("from,to" for a transfer), amount, null}.
+     * @throws InvalidError If an item is malformed, or the batch is empty or too large.
+     */
+    public static List<String[]> parseItems(String[] itemTokens, int from) throws InvalidError {
+        List<String[]> items = new ArrayList<String[]>();
+        if (itemTokens.length <= from || itemTokens.length - from > MAX_ITEMS) { throw new InvalidError(); }
+
+        for (int i = from; i < itemTokens.length; i++) {
+            String[] fields = itemTokens[i].split(":");
+            try {
+                if ((fields[0].equals("D") || fields[0].equals("W")) && fields.length == 3) {
+                    Double.parseDouble(fields[2]);
+                    items.add(new String[] { fields[0], fields[1], fields[2], null });
+                } else if (fields[0].equals("T") && fields.length == 4) {
+                    Double.parseDouble(fields[3]);
+                    items.add(new String[] { "T", fields[1] + "," + fields[2], fields[3], null });
+                } else {
+                    throw new InvalidError();
+                }
+            } catch (NumberFormatException e) {
+                throw new InvalidError();
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Runs a batch.
+     * @param id Id of the client.
+     * @param mode all (all-or-nothing) or each (best-effort).
+     * @param randomNumber Random number generated by the client, for the whole batch.
+     * @param items The items, see parseItems.
+     * @return String "BATCH applied count", then one line per item: "index OK balance(s)" or "index FAIL reason".
+     * @throws InvalidError If the mode is unknown.
+     * @throws LogicError If the accounts could not be locked.
+     * @throws DuplicateTransactionError If the batch was already run.
+     * @throws SQLException
+     */
+    public String run(String id, String mode, String randomNumber, List<String[]> items) throws InvalidError, LogicError, DuplicateTransactionError, SQLException {
+        if (!mode.equals(ALL) && !mode.equals(EACH)) { throw new InvalidError(); }
+
+        TreeSet<String> accountSet = new TreeSet<String>(); // Sorted, so the lock messages are the same for every retry.
+        for (String[] item : items) {
+            for (String accountNo : item[1].split(",")) { accountSet.add(accountNo); }
+        }
+        String[] accounts = accountSet.toArray(new String[0]);
+
+        HotAccounts hotAccounts = HotAccounts.getInstance();
+        for (String accountNo : accounts) { RecoveryManager.getInstance().ensureVerified(accountNo); }
+        for (String[] item : items) {
+            String debited = item[1].split(",")[0];
+            if (!item[0].equals("D") && hotAccounts.isHot(debited)) { // The debit needs every deposit in the balance.
+                try {
+                    hotAccounts.fold(debited);
+                } catch (InvalidError IE) {
+                    // The item fails on its own when it is applied.
+                }
+            }
+        }
+
+        lock(accounts, randomNumber);
+        LockManager lockManager = LockManager.getInstance();
+        String[] results;
+        try {
+            long createdAt = System.currentTimeMillis();
+            List<String> entries = new ArrayList<String>();
+            try {
+                results = this.db.applyBatch(id, items, mode.equals(ALL), createdAt, entries);
+            } catch (SQLException SE) {
+                replicate(id, createdAt, randomNumber, accounts, new ArrayList<String[]>()); // Only releases the other servers' locks.
+                throw SE;
+            }
+
+            List<String[]> applied = new ArrayList<String[]>();
+            for (int i = 0; i < results.length; i++) {
+                if (!isFailure(results[i])) { applied.add(items.get(i)); }
+            }
+            replicate(id, createdAt, randomNumber, accounts, applied);
+
+            for (String entry : entries) { ReadReplicaFeed.getInstance().publishEntry(entry); }
+            for (String accountNo : accounts) {
+                if (!applied.isEmpty()) { lockManager.rememberTransaction(accountNo, randomNumber); }
+                ReadReplicaFeed.getInstance().publish(accountNo);
+            }
+        } finally {
+            for (String accountNo : accounts) { lockManager.unlockLocally(accountNo, LOCK_TYPE); }
+        }
+        this.db.awaitDurable(); // Only acknowledge once the batch is committed.
+
+        int appliedCount = 0;
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < results.length; i++) {
+            boolean failed = isFailure(results[i]);
+            if (!failed) { appliedCount++; }
+            lines.append("\n" + i + (failed ? " FAIL " : " OK ") + results[i]);
+        }
+
+        this.batches.increment();
+        this.items.add(results.length);
+        this.failedItems.add(results.length - appliedCount);
+        if (appliedCount == 0) { this.abortedBatches.increment(); }
+        return "BATCH " + appliedCount + " " + results.length + lines;
+    }
+
+    /**
+     * Returns the batch metrics.
+     * @return String The batches, items, failures and lock retries.
+     */
+    public String getStats() {
+        long batches = this.batches.sum();
+        if (batches == 0) { return "Batches: none yet."; }
+
+        return "Batches: " + batches + " batches of " + String.format("%.1f", (double) this.items.sum() / batches) + " items on average, "
+            + this.failedItems.sum() + " items failed, " + this.abortedBatches.sum() + " batches applied nothing, " + this.lockRetries.sum() + " lock retries.";
+    }
+    //#endregion Batch Methods
+
+    //#region Helper Methods
+    /**
+     * Locks every account of a batch on every server, in one round per attempt.
+     * @throws LogicError If the accounts stayed locked by other writes.
+     */
+    private void lock(String[] accounts, String randomNumber) throws LogicError, DuplicateTransactionError {
+        LockManager lockManager = LockManager.getInstance();
+        String request = "LM " + String.join(",", accounts) + " " + randomNumber;
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                this.lockRetries.increment();
+                try {
+                    Thread.sleep(ThreadLocalRandom.current().nextInt(BACKOFF << Math.min(attempt, 6))); // Randomized, so two batches drift apart.
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            if (!lockManager.lockManyLocally(accounts, LOCK_TYPE, randomNumber)) { continue; }
+
+            SocketHandler peer = borrow(this.idlePeers, lockManager.socketHandler), peer2 = borrow(this.idlePeers2, lockManager.socketHandler2);
+            send(peer, request);
+            send(peer2, request);
+            String reply = read(peer, this.idlePeers), reply2 = read(peer2, this.idlePeers2);
+
+            // An unreachable server counts as locked, as it does for the lock, and is caught up when it reconnects.
+            boolean locked = reply == null || reply.equals("true"), locked2 = reply2 == null || reply2.equals("true");
+            if (locked && locked2) { return; }
+
+            String release = "UM - 0 " + randomNumber + " " + String.join(",", accounts);
+            if (reply != null && locked) { exchange(this.idlePeers, lockManager.socketHandler, release); }
+            if (reply2 != null && locked2) { exchange(this.idlePeers2, lockManager.socketHandler2, release); }
+            for (String accountNo : accounts) { lockManager.unlockLocally(accountNo, LOCK_TYPE); }
+        }
+
+        throw new LogicError();
+    }
+
+    /**
+     * Sends the applied items of a batch to the other servers in one message, which also
+     * unlocks the accounts there, and corrects a server that ended up with other balances.
+     */
+    private void replicate(String id, long createdAt, String randomNumber, String[] accounts, List<String[]> applied) {
+        LockManager lockManager = LockManager.getInstance();
+        StringBuilder request = new StringBuilder("UM " + id + " " + createdAt + " " + randomNumber + " " + String.join(",", accounts));
+        for (String[] item : applied) { request.append(" " + String.join(":", item)); }
+
+        SocketHandler peer = borrow(this.idlePeers, lockManager.socketHandler), peer2 = borrow(this.idlePeers2, lockManager.socketHandler2);
+        send(peer, request.toString());
+        send(peer2, request.toString());
+        String reply = read(peer, this.idlePeers), reply2 = read(peer2, this.idlePeers2);
+        if (applied.isEmpty()) { return; }
+
+        String states;
+        try {
+            states = this.db.accountStates(accounts);
+        } catch (SQLException SE) {
+            System.out.println("Could not compare the accounts of a batch with the other servers: " + SE.getMessage());
+            return; // The batch is committed, only the comparison is skipped.
+        }
+        String expected = "true " + states;
+        if (reply != null && !reply.equals(expected)) { correct(this.idlePeers, lockManager.socketHandler, states); }
+        if (reply2 != null && !reply2.equals(expected)) { correct(this.idlePeers2, lockManager.socketHandler2, states); }
+    }
+
+    /**
+     * Sends the state of the accounts of a batch to a server that did not apply it the same way.
+     * @param states The states, formatted as "account:user_id:balance:version", comma separated.
+     */
+    private void correct(ConcurrentLinkedQueue<SocketHandler> idle, SocketHandler lockHandler, String states) {
+        SocketHandler peer = borrow(idle, lockHandler);
+        if (peer == null) { return; }
+
+        for (String state : states.split(",")) {
+            String[] fields = state.split(":");
+            peer.send("C " + fields[0] + " " + fields[2] + " " + fields[3]);
+        }
+        if (peer.hasFailed()) {
+            peer.close();
+        } else {
+            idle.offer(peer);
+        }
+    }
+
+    /**
+     * Checks if the result of an item is a failure.
+     */
+    private static boolean isFailure(String result) {
+        return result.equals("INVALID") || result.equals("FUNDS") || result.equals("DESTINATION") || result.equals("ERROR") || result.equals("ABORTED");
+    }
+
+    /**
+     * Sends a request to another server on its own connection, and waits for the answer.
+     */
+    private void exchange(ConcurrentLinkedQueue<SocketHandler> idle, SocketHandler lockHandler, String request) {
+        SocketHandler peer = borrow(idle, lockHandler);
+        send(peer, request);
+        read(peer, idle);
+    }
+
+    /**
+     * Takes an idle connection to another server, or opens a new one. Batches run on their own
+     * connections, as their answers are read a line at a time and may be long.
+     * @param idle The idle connections to the server.
+     * @param lockHandler The socket handler the LockManager uses for that server.
+     * @return SocketHandler The connection, or null if the server is unreachable.
+     */
+    private SocketHandler borrow(ConcurrentLinkedQueue<SocketHandler> idle, SocketHandler lockHandler) {
+        SocketHandler peer = idle.poll();
+        if (peer != null || lockHandler == null) { return peer; }
+
+        try {
+            return new SocketHandler(lockHandler.getHost(), Integer.parseInt(lockHandler.getPort()));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sends a request to another server.
+     */
+    private void send(SocketHandler peer, String request) {
+        if (peer != null) { peer.send(request); }
+    }
+
+    /**
+     * Reads the answer of another server, and gives the connection back.
+     * @return String The answer, or null if the server could not be reached.
+     */
+    private String read(SocketHandler peer, ConcurrentLinkedQueue<SocketHandler> idle) {
+        if (peer == null) { return null; }
+
+        try {
+            String reply = peer.readLine();
+            idle.offer(peer);
+            return reply;
+        } catch (IOException e) {
+            peer.close();
+            return null;
+        }
+    }
+    //#endregion Helper Methods
+}
\ No newline at end of file
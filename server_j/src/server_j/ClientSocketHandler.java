@@ -5,6 +5,7 @@ import Errors.*;
 import java.sql.*;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.function.Supplier;
 
 import java.net.Socket;
 import java.net.SocketException;
@@ -19,11 +20,22 @@ import java.net.SocketTimeoutException;
 public class ClientSocketHandler extends Thread {
     //#region Class Variables
     private LockManager lockManager = LockManager.getInstance();
+    private RecoveryManager recoveryManager = RecoveryManager.getInstance();
+    private HotAccounts hotAccounts = HotAccounts.getInstance();
+    private OccManager occManager = OccManager.getInstance();
+    private AccountExecutors executors = AccountExecutors.getInstance();
+    private RequestPipeline pipeline = RequestPipeline.getInstance();
+    private BatchManager batchManager = BatchManager.getInstance();
+    private IdempotencyStore idempotencyStore = IdempotencyStore.getInstance();
+    private SessionManager sessionManager = SessionManager.getInstance();
 
     private Socket socket;
     private int timeout;
     private DBController db;
     private PrintStream socketOut;
+    private String correlationId = null; // Correlation id of the request the client thread is answering, see frame.
+    private String consistencyToken = null; // Read-your-writes token of the last write, see ReadReplicaFeed.
+    private int pipelined = 0; // Requests of this client still in the pipeline, see RequestPipeline.
     //#endregion Class Variables
 
     /**
@@ -44,9 +56,11 @@ public class ClientSocketHandler extends Thread {
      * Balance controller method
      * @param id The ID of the client.
      * @param accountNo The account number of the client.
-     * @return Double The balance of the client.
+     * @return Double The balance of the client, including the deposits not folded yet on a hot account.
      */
     public double balance(String id, String accountNo) throws InvalidError, SQLException {
+        recoveryManager.ensureVerified(accountNo);
+        if (hotAccounts.isHot(accountNo)) { return hotAccounts.balance(id, accountNo); }
         return this.db.balance(accountNo, id);
     }
 
@@ -59,27 +73,39 @@ public class ClientSocketHandler extends Thread {
      * @return Double the new balance of the account.
      */
     public double withdraw(String id, String accountNo, double amount, String randomNumber) throws InvalidError, LogicError, SQLException, DuplicateTransactionError {
-        while (lockManager.isLocked(accountNo, "W")) {
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {
-                System.out.println("Thread failed in withdraw method: " + e.getStackTrace());
-            }
-        }
+        recoveryManager.ensureVerified(accountNo);
+        if (hotAccounts.isHot(accountNo)) { hotAccounts.fold(accountNo); } // The debit needs every deposit in the balance.
+
+        String optimisticResult = occManager.isEnabled() ? occManager.write(id, accountNo, "W", amount, randomNumber) : null;
+        if (optimisticResult != null) { return committed(optimisticResult); }
+
+        lockManager.awaitUnlocked(accountNo); // Woken up when the write holding the lock unlocks.
 
         boolean isLocked = lockManager.lock(accountNo, "W", randomNumber);
         if (!isLocked) { throw new LogicError(); }
 
-        double result = this.db.withdraw(id, accountNo, amount);
+        String txid = lockManager.newTransactionId();
+        long createdAt = System.currentTimeMillis();
+        double result;
+        try {
+            result = this.db.withdraw(id, accountNo, amount, txid, createdAt);
+        } catch (InvalidError | LogicError | SQLException e) {
+            lockManager.release(accountNo, "W", randomNumber); // The write failed, nothing else would unlock the account.
+            throw e;
+        }
+        SQLException notLogged = record(txid, createdAt, "W", accountNo, amount, Double.toString(result));
 
-        String response = lockManager.unlock(id, accountNo, "W", amount, Double.toString(result));
+        String response = lockManager.unlock(id, accountNo, "W", amount, Double.toString(result), txid, createdAt);
         String[] multiResponse = response.split(" ");
 
         boolean isUnlocked = Boolean.parseBoolean(multiResponse[0]);
         double newBalance = Double.parseDouble(multiResponse[1]);
+        this.consistencyToken = multiResponse.length > 2 ? multiResponse[2] : null;
 
         if (!isUnlocked) { throw new LogicError(); }
+        if (notLogged != null) { throw notLogged; }
 
+        this.db.awaitDurable(); // Only acknowledge once the write is committed.
         return newBalance;
     }
 
@@ -90,28 +116,45 @@ public class ClientSocketHandler extends Thread {
      * @param amount Amount to deposit.
      * @param randomNumber Random number generated by the client.
      * @return Double the new balance of the account.
+     * Deposits into a hot account skip the account lock, and have no read-your-writes token until they are folded.
      */
     public double deposit(String id, String accountNo, double amount, String randomNumber) throws InvalidError, SQLException, LogicError, DuplicateTransactionError {
-        while (lockManager.isLocked(accountNo, "D")) {
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {
-                System.out.println("Thread failed in deposit method: " + e.getStackTrace());
-            }
+        recoveryManager.ensureVerified(accountNo);
+        if (hotAccounts.isHot(accountNo)) {
+            this.consistencyToken = null;
+            return hotAccounts.deposit(id, accountNo, amount, randomNumber);
         }
 
+        String optimisticResult = occManager.isEnabled() ? occManager.write(id, accountNo, "D", amount, randomNumber) : null;
+        if (optimisticResult != null) { return committed(optimisticResult); }
+
+        lockManager.awaitUnlocked(accountNo); // Woken up when the write holding the lock unlocks.
+
         boolean isLocked = lockManager.lock(accountNo, "D", randomNumber);
         if (!isLocked) { throw new LogicError(); }
 
-        double result = this.db.deposit(id, accountNo, amount);
-        String response = lockManager.unlock(id, accountNo, "D", amount, Double.toString(result));
+        String txid = lockManager.newTransactionId();
+        long createdAt = System.currentTimeMillis();
+        double result;
+        try {
+            result = this.db.deposit(id, accountNo, amount, txid, createdAt);
+        } catch (InvalidError | SQLException e) {
+            lockManager.release(accountNo, "D", randomNumber); // The write failed, nothing else would unlock the account.
+            throw e;
+        }
+        SQLException notLogged = record(txid, createdAt, "D", accountNo, amount, Double.toString(result));
+
+        String response = lockManager.unlock(id, accountNo, "D", amount, Double.toString(result), txid, createdAt);
         String[] multiResponse = response.split(" ");
 
         boolean isUnlocked = Boolean.parseBoolean(multiResponse[0]);
         double newBalance = Double.parseDouble(multiResponse[1]);
+        this.consistencyToken = multiResponse.length > 2 ? multiResponse[2] : null;
 
         if (!isUnlocked) { throw new LogicError(); }
+        if (notLogged != null) { throw notLogged; }
 
+        this.db.awaitDurable(); // Only acknowledge once the write is committed.
         return newBalance;
     }
 
@@ -125,30 +168,76 @@ public class ClientSocketHandler extends Thread {
      * @return Double The new balance of the account.
      */
     public double transfer(String id, String fromAccountNo, String toAccountNo, double amount, String randomNumber) throws InvalidError, LogicError, SQLException, DestinationError, DuplicateTransactionError {
-        while (lockManager.isLocked(fromAccountNo, "T") || lockManager.isLocked(toAccountNo, "T")) {
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {
-                System.out.println("Thread failed in transfer method: " + e.getStackTrace());
-            }
-        }
+        recoveryManager.ensureVerified(fromAccountNo);
+        recoveryManager.ensureVerified(toAccountNo);
+        if (hotAccounts.isHot(fromAccountNo)) { hotAccounts.fold(fromAccountNo); } // The debit needs every deposit in the balance.
+
+        String optimisticResult = occManager.isEnabled() ? occManager.transfer(id, fromAccountNo, toAccountNo, amount, randomNumber) : null;
+        if (optimisticResult != null) { return committed(optimisticResult); }
 
-        boolean isLocked = lockManager.lock(fromAccountNo, "T", randomNumber);
-        boolean isLocked2 = lockManager.lock(toAccountNo, "T", randomNumber);
-        if (!isLocked || !isLocked2) { throw new LogicError(); }
+        lockManager.awaitUnlocked(fromAccountNo, toAccountNo); // Woken up when the write holding the lock unlocks.
 
-        String result = this.db.transfer(id, fromAccountNo, toAccountNo, amount);
+        if (!lockManager.lock(fromAccountNo, "T", randomNumber)) { throw new LogicError(); }
+        boolean isLocked2 = false;
+        try {
+            isLocked2 = lockManager.lock(toAccountNo, "T", randomNumber);
+        } finally {
+            if (!isLocked2) { lockManager.release(fromAccountNo, "T", randomNumber); } // Nothing else would unlock it.
+        }
+        if (!isLocked2) { throw new LogicError(); }
+
+        String txid = lockManager.newTransactionId();
+        long createdAt = System.currentTimeMillis();
+        String result;
+        try {
+            result = this.db.transfer(id, fromAccountNo, toAccountNo, amount, txid, createdAt);
+        } catch (InvalidError | LogicError | DestinationError | SQLException e) {
+            lockManager.release(fromAccountNo, "T", randomNumber); // The write failed, nothing else would unlock the accounts.
+            lockManager.release(toAccountNo, "T", randomNumber);
+            throw e;
+        }
+        SQLException notLogged = record(txid, createdAt, "T", fromAccountNo + "," + toAccountNo, amount, result);
 
-        String response = lockManager.unlock(id, fromAccountNo + "," + toAccountNo, "T", amount, result);
+        String response = lockManager.unlock(id, fromAccountNo + "," + toAccountNo, "T", amount, result, txid, createdAt);
         String[] multiResponse = response.split(" ");
 
         boolean isUnlocked = Boolean.parseBoolean(multiResponse[0]);
         double newBalance = Double.parseDouble(multiResponse[1]);
+        this.consistencyToken = multiResponse.length > 2 ? multiResponse[2] : null;
 
         if (!isUnlocked) { throw new LogicError(); }
+        if (notLogged != null) { throw notLogged; }
 
+        this.db.awaitDurable(); // Only acknowledge once the write is committed.
         return newBalance;
     }
+
+    /**
+     * Records a write applied under the account lock. A write that could not be appended to the write-ahead log
+     * is still replicated, so every server releases its lock, but is then failed instead of acknowledged.
+     * @return SQLException The failure to throw once the accounts are unlocked, or null if the write was recorded.
+     */
+    private SQLException record(String txid, long createdAt, String type, String account, double amount, String result) {
+        try {
+            lockManager.recordTransaction(txid, createdAt, type, account, amount, result);
+            return null;
+        } catch (SQLException SE) {
+            System.out.println("Could not record transaction " + txid + ", it will not be acknowledged: " + SE.getMessage());
+            return SE;
+        }
+    }
+
+    /**
+     * Finishes a write committed optimistically, see OccManager.
+     * @param result The new balance, or "fromBalance toBalance" for a transfer.
+     * @return Double The new balance of the account (the from account of a transfer).
+     * @throws SQLException If the write may not be committed.
+     */
+    private double committed(String result) throws SQLException {
+        this.consistencyToken = ReadReplicaFeed.getInstance().currentToken();
+        this.db.awaitDurable(); // Only acknowledge once the write is committed.
+        return Double.parseDouble(result.split(" ")[0]);
+    }
     //#endregion Account database Methods
 
     //#region Login and Register database Methods
@@ -199,13 +288,37 @@ public class ClientSocketHandler extends Thread {
      *      Format: B account
      *      eg: B 12345678
      * 
-     *  Login:
+     *  Batch (all: all-or-nothing, each: best-effort), answered with one result per item and END:
+     *      Format: BATCH all|each random D:account:amount W:account:amount T:from:to:amount ...
+     *      eg: BATCH all 8231 W:12345678:300 T:12345678:87654321:100 D:87654321:50
+     * 
+     *  Login (answered with the user id and a session token):
      *      Format: L id password
      *      eg: L 2 tcEnergy
      * 
+     *  Resume a session after a reconnect (answered with OK, or EXPIRED if the token is not valid any more):
+     *      Format: S token
+     *      eg: S 2.1700028800000.kXz3b9Qe1m2Yw0pR8sT4uV6xA7cD5fG9hJ2kL4nP6q8
+     * 
      *  Register:
      *      Format: R username password firstname lastname email
      *      eg: R Bob Marley Bob Marleykon bob@gmail.com
+     * 
+     * Successful writes end their response with a read-your-writes token, which the client
+     * attaches to its balance reads so the read server only answers once it has caught up:
+     *      Format: TOKEN epoch:seq
+     *      eg: TOKEN 1700000000000:1234
+     * 
+     * Any request can be tagged with a correlation id, its response is then framed by a header
+     * with the id and the number of lines that follow, and may come before earlier responses:
+     *      Format: #id request, answered with #id lines
+     *      eg: #17 B 2 12345678
+     * 
+     * Writes can carry session:sequence in place of the random number, and are then answered
+     * with the response of their first run if the client resends them (DTE if it is too old, BUSY
+     * if it is still running, to be resent later). The key is scoped to the logged in user, so
+     * another user's request with the same session:sequence is never answered with this response:
+     *      eg: D 12345678 100 3f2a9c1d7b4e5a60:42
      */
     public void run() {
         try {
@@ -237,36 +350,42 @@ public class ClientSocketHandler extends Thread {
                 }
                 System.out.println("Received request: '" + clientRequest + "' from " + socket.getInetAddress() + ":" + socket.getPort());
 
+                // A request tagged with a correlation id is answered with it, so the client can have many in flight.
+                String correlationId = correlationIdOf(clientRequest);
+                if (correlationId != null) { clientRequest = clientRequest.substring(correlationId.length() + 1); }
+                this.correlationId = correlationId;
+
                 String[] clientRequestTokens = clientRequest.split(" ");
                 String opcode = clientRequestTokens[0];
-                
-                switch (opcode) {
-                    case "L":
-                    	id = checkLogin(clientRequestTokens);
-                    	break;
-                    case "RE":
-                        id = clientRequestTokens[1];
-                        socketOut.println("OK"); // Inform the client, it has been re-registerd.
-                        break;
-                    case "R":
-                    	registerAccount(clientRequestTokens);
-                    	break;
-                    case "D":
-                    	depositMoney(id, clientRequestTokens);
-                    	break;
-                    case "W":
-                    	withdrawMoney(id, clientRequestTokens);
-                    	break;
-                    case "B":
-                    	checkBalance(id, clientRequestTokens);
-                    	break;
-                    case "T":
-                    	transferMoney(id, clientRequestTokens);
-                    	break;
+                String userId = id;
+
+                // Checked before the write is started, so a malformed request never leaves its key in progress.
+                if (!wellFormed(clientRequestTokens)) {
+                    drain();
+                    reply(correlationId, opcode.equals("BATCH") ? "The request you entered was invalid!\nEND" : "The request you entered was invalid!");
+                    continue;
+                }
+
+                // A write the client resent is answered with the response of its first run, see IdempotencyStore.
+                String requestKey = IdempotencyStore.keyOf(userId, clientRequestTokens);
+                String replayed = idempotencyStore.begin(requestKey);
+                if (replayed != null) {
+                    drain();
+                    reply(correlationId, opcode.equals("BATCH") && !replayed.endsWith("END") ? replayed + "\nEND" : replayed);
+                    continue;
+                }
+
+                try {
+                    id = dispatch(id, opcode, correlationId, clientRequestTokens, requestKey);
+                } catch (RuntimeException e) {
+                    idempotencyStore.abandon(requestKey); // A no-op if the write already completed.
+                    System.out.println("Could not run the request '" + clientRequest + "': " + e);
+                    reply(correlationId, "There was a unknown issue in your request, please try again!");
                 }
             }
 
             // Close the socket
+            drain();
             socketInput.close();
             socket.close();
         } catch (SocketTimeoutException e) {
@@ -278,144 +397,344 @@ public class ClientSocketHandler extends Thread {
         }
     }
 
+    /**
+     * Runs a request that passed wellFormed, and whose write, if any, was started with the idempotency store.
+     * @param userId The id of the logged in user.
+     * @param opcode The opcode of the request.
+     * @param correlationId The correlation id of the request, or null.
+     * @param clientRequestTokens The request.
+     * @param requestKey The idempotency key of the write, or null.
+     * @return String The id of the logged in user after the request, changed by a login or a resumed session.
+     */
+    private String dispatch(String userId, String opcode, String correlationId, String[] clientRequestTokens, String requestKey) {
+        // Account requests go through the pipeline if it runs, and are answered from it.
+        if (pipeline.isEnabled() && RequestPipeline.handles(opcode)) {
+            pipeline.publish(this, userId, correlationId, clientRequestTokens, requestKey);
+            return userId;
+        }
+        drain(); // Any other request is answered after the ones still in the pipeline.
+
+        // Account requests run on the executor that owns the account, see AccountExecutors.
+        switch (opcode) {
+            case "L":
+                return checkLogin(clientRequestTokens);
+            case "S":
+                String resumedId = sessionManager.resume(clientRequestTokens[1]);
+                reply(correlationId, resumedId != null ? "OK" : "EXPIRED"); // Inform the client, it has been re-authenticated.
+                return resumedId != null ? resumedId : userId;
+            case "R":
+                registerAccount(clientRequestTokens);
+                break;
+            case "D":
+                executors.run(clientRequestTokens[1], () -> reply(correlationId, complete(requestKey, () -> depositMoney(userId, clientRequestTokens))));
+                break;
+            case "W":
+                executors.run(clientRequestTokens[1], () -> reply(correlationId, complete(requestKey, () -> withdrawMoney(userId, clientRequestTokens))));
+                break;
+            case "B":
+                executors.run(clientRequestTokens[2], () -> reply(correlationId, checkBalance(userId, clientRequestTokens)));
+                break;
+            case "T":
+                executors.run(clientRequestTokens[1], clientRequestTokens[2], () -> reply(correlationId, complete(requestKey, () -> transferMoney(userId, clientRequestTokens))));
+                break;
+            case "BATCH":
+                reply(correlationId, complete(requestKey, () -> runBatch(userId, clientRequestTokens) + "\nEND")); // The results can span many reads, the client reads up to END.
+                break;
+        }
+        return userId;
+    }
+
+    /**
+     * Runs a write and remembers its response, see IdempotencyStore. A write that fails without a response
+     * is forgotten instead, so the client's resend runs it again rather than waiting for it.
+     * @param requestKey The idempotency key of the write, or null.
+     * @param write The write.
+     * @return String The response of the write.
+     */
+    private String complete(String requestKey, Supplier<String> write) {
+        String response = null;
+        try {
+            response = write.get();
+            return idempotencyStore.complete(requestKey, response);
+        } finally {
+            if (response == null) { idempotencyStore.abandon(requestKey); }
+        }
+    }
+
+    /**
+     * Checks that a request has every token its handler reads, and that its amount is a number.
+     * @param clientRequestTokens The request.
+     * @return boolean True if the request can be run, false if it must be answered as invalid.
+     */
+    static boolean wellFormed(String[] clientRequestTokens) {
+        switch (clientRequestTokens[0]) {
+            case "L":
+                return clientRequestTokens.length >= 3;
+            case "S":
+                return clientRequestTokens.length >= 2;
+            case "R":
+                return clientRequestTokens.length >= 6;
+            case "B":
+            case "BATCH":
+                return clientRequestTokens.length >= 3;
+            case "D":
+            case "W":
+                return clientRequestTokens.length >= 4 && isAmount(clientRequestTokens[2]);
+            case "T":
+                return clientRequestTokens.length >= 5 && isAmount(clientRequestTokens[3]);
+            default:
+                return true; // Unknown requests are ignored.
+        }
+    }
+
+    /**
+     * Checks that a token is a finite number.
+     */
+    private static boolean isAmount(String token) {
+        try {
+            return Double.isFinite(Double.parseDouble(token));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
     //#region Account helper methods
     /**
      * Checks the balance of an account.
      * @param id Id of the client.
      * @param clientRequestTokens Array of string containing client information - account number.
+     * @return String The response to the client.
      */
-    private void checkBalance(String id, String[] clientRequestTokens) {
+    String checkBalance(String id, String[] clientRequestTokens) {
     	String accountNo = clientRequestTokens[2];
 
         double status = -1;
+        Exception error = null;
         try {
             status = balance(id, accountNo);
-        } catch(InvalidError IE) {
-            socketOut.println("The account number you entered was invalid!");
-            return;
-        } catch(SQLException SE) {
-            socketOut.println("There was a unknown issue in your request, please try again!"); 
-            return;
-        }
-
-        if (status <= 0) {
-            socketOut.println("There was a unknown issue in your request that could not be processed, please try again!");
-            return;
+        } catch(InvalidError | SQLException e) {
+            error = e;
         }
-        
-        socketOut.println("Your balance is: " + status + ".\n");         	
+        return response(clientRequestTokens, status, error);
     }
     
     /**
      * Deposit money into an account.
      * @param id Id of the client.
      * @param clientRequestTokens Array of string containing client information.
+     * @return String The response to the client.
      */
-    private void depositMoney(String id, String[] clientRequestTokens) {
+    String depositMoney(String id, String[] clientRequestTokens) {
     	String accountNo = clientRequestTokens[1];
     	double amount = Double.parseDouble(clientRequestTokens[2]);
         String randomNumber = clientRequestTokens[3];
 
         double status = -1;
+        Exception error = null;
         try {
             status = deposit(id, accountNo, amount, randomNumber);
-        } catch(InvalidError IE) {
-            socketOut.println("The account number you entered was invalid!");
-            return;
-        } catch(SQLException SE) {
-            socketOut.println("There was a unknown issue in your request, please try again!"); 
-            return;
-        } catch(LogicError LE) {
-            socketOut.println("There was a unknown issue in your request that could not be processed, please try again!");
-            return;
-        } catch(DuplicateTransactionError DTE) {
-            socketOut.println("DTE");
-            return;
+        } catch(InvalidError | SQLException | LogicError | DuplicateTransactionError e) {
+            error = e;
         }
-
-        if (status <= 0) {
-            socketOut.println("There was a unknown issue in your request that could not be processed, please try again!");
-            return;
-        }
-
-        socketOut.println("Your balance before deposit was: " + (status - amount) + ".\nYour balance after deposit is: " + status + ".\n");         	
+        return response(clientRequestTokens, status, error);
     }
     
     /**
      * Withdraws money from the account.
      * @param id Id of the client.
      * @param clientRequestTokens Array of string containing client information.
+     * @return String The response to the client.
      */
-    private void withdrawMoney(String id, String[] clientRequestTokens) {
+    String withdrawMoney(String id, String[] clientRequestTokens) {
     	String account = clientRequestTokens[1];
     	double amount = Double.parseDouble(clientRequestTokens[2]);
         String randomNumber = clientRequestTokens[3];
 
         double status = -1;
+        Exception error = null;
         try {
             status = withdraw(id, account, amount, randomNumber);
-        } catch(InvalidError IE) {
-            socketOut.println("The account number you entered was invalid!"); 
-            return;
-        } catch(SQLException SE) {
-            socketOut.println("There was a unknown issue in your request, please try again!"); 
-            return;
-        } catch(LogicError LE) {
-            socketOut.println("The balance in the given account is insufficient for withdraw!"); 
-            return;
-        } catch(DuplicateTransactionError DTE) {
-            socketOut.println("DTE");
-            return;
-        }
-
-        if (status <= 0) {
-            socketOut.println("There was a unknown issue in your request, please try again!"); // Shouldn't this be a different message?
-            return;
+        } catch(InvalidError | SQLException | LogicError | DuplicateTransactionError e) {
+            error = e;
         }
-
-        socketOut.println("Your balance before withdraw was: " + (status + amount) + ".\nYour balance after withdraw is: " + status + ".\n");        	
+        return response(clientRequestTokens, status, error);
     }
     
     /**
      * Transfer money from one account to another.
      * @param id Id of the client.
      * @param clientRequestTokens Array of string containing client accounts to transfer from and to, and the amount to transfer.
+     * @return String The response to the client.
      */
-    private void transferMoney(String id, String[] clientRequestTokens) {
+    String transferMoney(String id, String[] clientRequestTokens) {
     	String account1 = clientRequestTokens[1];
     	String account2 = clientRequestTokens[2];
     	double amount = Double.parseDouble(clientRequestTokens[3]);
         String randomNumber = clientRequestTokens[4];
 
         double status = -1;
+        Exception error = null;
         try {
             status = transfer(id, account1, account2, amount, randomNumber);
+        } catch(InvalidError | SQLException | LogicError | DestinationError | DuplicateTransactionError e) {
+            error = e;
+        }
+        return response(clientRequestTokens, status, error);
+    }
+
+    /**
+     * Runs a batch of deposits, withdraws and transfers, see BatchManager.
+     * @param id Id of the client.
+     * @param clientRequestTokens Array of string containing the mode, the random number and the items of the batch.
+     * @return String The response to the client, one line per item.
+     */
+    private String runBatch(String id, String[] clientRequestTokens) {
+        try {
+            if (clientRequestTokens.length < 3) { throw new InvalidError(); }
+
+            String response = batchManager.run(id, clientRequestTokens[1], clientRequestTokens[2], BatchManager.parseItems(clientRequestTokens, 3));
+            if (!response.startsWith("BATCH 0 ")) { this.consistencyToken = ReadReplicaFeed.getInstance().currentToken(); }
+            return response + tokenLine();
         } catch(InvalidError IE) {
-            socketOut.println("The account number you wanted to transfer from was invalid!"); 
-            return;
+            return "The batch you entered was invalid!";
         } catch(SQLException SE) {
-            socketOut.println("There was a unknown issue in your request, please try again!"); 
-            return;
+            return "There was a unknown issue in your request, please try again!";
         } catch(LogicError LE) {
-            socketOut.println("The balance in the given account is insufficient to make this transfer!"); 
-            return;
-        } catch(DestinationError DE) {
-            socketOut.println("The account number you wanted to transfer was invalid!"); 
-            return;
+            return "There was a unknown issue in your request that could not be processed, please try again!";
         } catch(DuplicateTransactionError DTE) {
-            socketOut.println("DTE");
-            return;
+            return "DTE";
+        }
+    }
+
+    /**
+     * Formats the response to an account request.
+     * @param clientRequestTokens The request.
+     * @param status The new balance (of the from account for a transfer), or the balance for a balance check.
+     * @param error The error the request failed with, or null if it succeeded.
+     * @return String The response to the client.
+     */
+    String response(String[] clientRequestTokens, double status, Exception error) {
+        String opcode = clientRequestTokens[0];
+        if (error instanceof DuplicateTransactionError) { return "DTE"; }
+        if (error instanceof InvalidError) {
+            return opcode.equals("T") ? "The account number you wanted to transfer from was invalid!" : "The account number you entered was invalid!";
+        }
+        if (error instanceof DestinationError) { return "The account number you wanted to transfer was invalid!"; }
+        if (error instanceof LogicError) {
+            switch (opcode) {
+                case "W":
+                    return "The balance in the given account is insufficient for withdraw!";
+                case "T":
+                    return "The balance in the given account is insufficient to make this transfer!";
+                default:
+                    return "There was a unknown issue in your request that could not be processed, please try again!";
+            }
         }
-        
+        if (error != null) { return "There was a unknown issue in your request, please try again!"; }
+
         if (status <= 0) {
-            socketOut.println("There was a unknown issue in your request, please try again!"); // Shouldn't this be a different message?
-            return;     
+            if (opcode.equals("W") || opcode.equals("T")) { return "There was a unknown issue in your request, please try again!"; } // Shouldn't this be a different message?
+            return "There was a unknown issue in your request that could not be processed, please try again!";
+        }
+
+        switch (opcode) {
+            case "B":
+                return "Your balance is: " + status + ".\n";
+            case "D":
+                double deposited = Double.parseDouble(clientRequestTokens[2]);
+                return "Your balance before deposit was: " + (status - deposited) + ".\nYour balance after deposit is: " + status + ".\n" + tokenLine();
+            case "W":
+                double withdrawn = Double.parseDouble(clientRequestTokens[2]);
+                return "Your balance before withdraw was: " + (status + withdrawn) + ".\nYour balance after withdraw is: " + status + ".\n" + tokenLine();
+            default:
+                return "Your balance after transfer: " + status + ".\n" + tokenLine();
         }
+    }
 
-        socketOut.println("Your balance after transfer: " + status + ".\n"); 
+    /**
+     * Formats the read-your-writes token of the last write, to end a successful write response with.
+     * @return String The token line, or an empty string if there is no token.
+     */
+    private String tokenLine() {
+        return this.consistencyToken == null ? "" : "\nTOKEN " + this.consistencyToken;
     }
     //#endregion Account helper methods
 
+    //#region Correlation helper methods
+    /**
+     * Returns the correlation id a request is tagged with.
+     * @param clientRequest The request, "#id request" if it is tagged.
+     * @return String The correlation id, with its #, or null if the request is not tagged.
+     */
+    private static String correlationIdOf(String clientRequest) {
+        int end = clientRequest.indexOf(' ');
+        return clientRequest.startsWith("#") && end > 1 ? clientRequest.substring(0, end) : null;
+    }
+
+    /**
+     * Frames the response of a tagged request: a "#id lines" header, then the lines of the response.
+     * Responses span a varying number of lines, the header tells the client where this one ends.
+     * @param correlationId The correlation id of the request, or null.
+     * @param response The response.
+     * @return String The framed response, or the response as is if the request was not tagged.
+     */
+    static String frame(String correlationId, String response) {
+        if (correlationId == null) { return response; }
+        return correlationId + " " + response.split("\n", -1).length + "\n" + response;
+    }
+
+    /**
+     * Writes the response of a request to the client.
+     * @param correlationId The correlation id of the request, or null.
+     * @param response The response.
+     */
+    private void reply(String correlationId, String response) {
+        socketOut.println(frame(correlationId, response));
+    }
+    //#endregion Correlation helper methods
+
+    //#region Pipeline helper methods
+    /**
+     * Counts a request handed to the pipeline.
+     */
+    synchronized void enqueued() {
+        this.pipelined++;
+    }
+
+    /**
+     * Writes the responses of requests that went through the pipeline, in the order they were received.
+     * @param responses The responses, one per line.
+     * @param count The number of requests answered.
+     */
+    synchronized void respond(String responses, int count) {
+        socketOut.print(responses);
+        socketOut.flush();
+        this.pipelined -= count;
+        notifyAll();
+    }
+
+    /**
+     * Waits until every request handed to the pipeline is answered.
+     */
+    private synchronized void drain() {
+        while (this.pipelined > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sets the read-your-writes token of a write the pipeline committed for this client.
+     * @param token The token, or null.
+     */
+    void setConsistencyToken(String token) {
+        this.consistencyToken = token;
+    }
+    //#endregion Pipeline helper methods
+
     //#region Login and register helper methods
     /**
      * Checks if the login is successful or not.
@@ -428,9 +747,9 @@ public class ClientSocketHandler extends Thread {
     	String user_id = login(username, password);
 
         if (user_id.equals("fail")) {
-        	socketOut.println("Incorrect username or password!");
+        	reply(this.correlationId, "Incorrect username or password!");
         } else {
-        	socketOut.println(user_id + "%OK");
+        	reply(this.correlationId, user_id + "%OK%" + sessionManager.issue(user_id)); // The token lets the client reconnect without logging in again.
         }
 
     	return user_id;
@@ -450,21 +769,17 @@ public class ClientSocketHandler extends Thread {
         int id;
 
         try {
-            id = register(username, password, firstName, lastName, email);
-            accountNumber = this.db.createAccount(id);
-        } catch (LogicError LE) {
-            socketOut.println("Your registration failed!");
-            return;
+            String[] registration = RegistrationOutbox.getInstance().register(username, password, firstName, lastName, email);
+            id = Integer.parseInt(registration[0]);
+            accountNumber = registration[1];
+            this.db.awaitDurable(); // Commits the registration together with its place in the outbox.
         } catch (SQLException SE) {
+            reply(this.correlationId, "Your registration failed!");
             return;
         }
 
-        if (!accountNumber.equals("false")) {
-            lockManager.registrationSync(id, username, password, firstName, lastName, email, accountNumber);
-            socketOut.println("You have successfully registered your account! Your account number is: " + accountNumber);
-        } else {
-            socketOut.println("Your registration was successful but there was some issue in creating your account!");
-        }
+        this.consistencyToken = lockManager.registrationSync(id, username, password, firstName, lastName, email, accountNumber);
+        reply(this.correlationId, "You have successfully registered your account! Your account number is: " + accountNumber + tokenLine());
     }
     //#endregion Login and register helper methods
 }
\ No newline at end of file
@@ -0,0 +1,239 @@
+package server_j;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * GroupCommitter Class
+ *
+ * Sits in front of the SQLite writer connection and decides when writes are committed.
+ *
+ * Durability levels:
+ *  sync:  Every statement autocommits, as before (one fsync per write).
+ *  group: Writes are gathered for a short window, or until the batch is full, committed in one
+ *         SQLite transaction and then acknowledged together.
+ *  async: Writes are committed in the background every window, nobody waits for the commit.
+ *  wal:   Like async, but the transactions are in the WriteAheadLog before they are acknowledged.
+ *         Every commit stores the offset of the log it covers, the log is applied again from
+ *         there on startup. Writes that are not in the log (registrations, hot deposits,
+ *         recoveries) still wait for their commit, as with group.
+ */
+public class GroupCommitter {
+    //#region Class Variables
+    public static final String SYNC = "sync", GROUP = "group", ASYNC = "async", WAL = "wal";
+
+    private final Connection db;
+    private final Object writer; // Monitor held by the DBController while a write is in progress.
+    private final Object lock = new Object();
+    private String durability = SYNC;
+    private int window; // Time to gather writes before committing, in ms.
+    private int maxBatchSize;
+    private WriteAheadLog wal = null;
+
+    private long writeSequence = 0, commitSequence = 0;
+    private long unloggedSequence = 0; // Last write that is not in the write-ahead log.
+
+    // Metrics
+    private long commits = 0, committedWrites = 0, largestBatch = 0;
+    private long totalCommitNanos = 0, slowestCommitNanos = 0;
+    //#endregion Class Variables
+
+    //#region Constructors
+    /**
+     * Constructor
+     * @param db The writer connection.
+     * @param writer The monitor writes on the connection are synchronized on.
+     */
+    public GroupCommitter(Connection db, Object writer) {
+        this.db = db;
+        this.writer = writer;
+    }
+    //#endregion Constructors
+
+    //#region Methods
+    /**
+     * Sets the write-ahead log of the wal durability level. Must be called before configure.
+     * @param wal The write-ahead log.
+     */
+    public void setWriteAheadLog(WriteAheadLog wal) {
+        this.wal = wal;
+    }
+
+    /**
+     * Switches the durability level, and starts the commit thread if writes are no longer autocommitted.
+     * @param durability The durability level: sync, group, async or wal.
+     * @param window The time to gather writes before committing, in ms.
+     * @param maxBatchSize The number of writes that triggers a commit before the window is over.
+     * @throws SQLException
+     */
+    public void configure(String durability, int window, int maxBatchSize) throws SQLException {
+        if (!durability.equals(SYNC) && !durability.equals(GROUP) && !durability.equals(ASYNC) && !durability.equals(WAL)) {
+            throw new IllegalArgumentException("Unknown durability level: " + durability);
+        }
+        if (durability.equals(WAL) && this.wal == null) { throw new IllegalArgumentException("The wal durability level needs a write-ahead log."); }
+
+        this.durability = durability;
+        this.window = Math.max(window, 1);
+        this.maxBatchSize = Math.max(maxBatchSize, 1);
+        if (durability.equals(SYNC)) { return; }
+
+        synchronized (this.writer) {
+            this.db.setAutoCommit(false);
+        }
+
+        Thread committer = new Thread(this::commitLoop);
+        committer.setDaemon(true);
+        committer.start();
+        System.out.println("Durability set to " + durability + " with a " + this.window + "ms window and batches of up to " + this.maxBatchSize + " writes.");
+    }
+
+    /**
+     * Records that a write has been executed on the connection, and may need to be committed.
+     */
+    public void written() {
+        if (this.durability.equals(SYNC)) { return; }
+
+        synchronized (this.lock) {
+            this.writeSequence++;
+            this.unloggedSequence = this.writeSequence;
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * Records that a write of a transaction has been executed on the connection, which the write-ahead log
+     * keeps once the transaction is recorded. At the wal level, acknowledging it does not wait for the commit.
+     */
+    public void logged() {
+        if (this.durability.equals(SYNC)) { return; }
+
+        synchronized (this.lock) {
+            this.writeSequence++;
+            if (!this.durability.equals(WAL)) { this.unloggedSequence = this.writeSequence; }
+            this.lock.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until every write executed so far is durable, so the caller may acknowledge it.
+     * Returns immediately for the sync (already committed) and async (never waited on) levels.
+     * At the wal level, waits for the write-ahead log to be flushed, and for the commit of the writes it does not keep.
+     * @throws SQLException If the thread is interrupted first: the writes may not be durable, and must not be acknowledged.
+     */
+    public void awaitDurable() throws SQLException {
+        if (this.durability.equals(WAL)) { this.wal.awaitFlushed(); }
+        if (!this.durability.equals(GROUP) && !this.durability.equals(WAL)) { return; }
+
+        synchronized (this.lock) {
+            long target = this.durability.equals(WAL) ? this.unloggedSequence : this.writeSequence;
+            while (this.commitSequence < target) {
+                try {
+                    this.lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for a group commit.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Commits any pending writes right away, used when the server shuts down.
+     */
+    public void flush() {
+        if (this.wal != null) { this.wal.close(); }
+        if (this.durability.equals(SYNC)) { return; }
+
+        long target;
+        synchronized (this.lock) { target = this.writeSequence; }
+        commit(target);
+    }
+
+    /**
+     * Returns the commit metrics.
+     * @return String The durability level, batch sizes and commit latencies.
+     */
+    public String getStats() {
+        synchronized (this.lock) {
+            if (this.commits == 0) { return "Durability: " + this.durability + ", no group commits yet."; }
+
+            return "Durability: " + this.durability
+                + ", commits: " + this.commits
+                + ", average batch: " + String.format("%.1f", (double) this.committedWrites / this.commits)
+                + ", largest batch: " + this.largestBatch
+                + ", average commit latency: " + String.format("%.2f", this.totalCommitNanos / this.commits / 1e6) + "ms"
+                + ", slowest commit: " + String.format("%.2f", this.slowestCommitNanos / 1e6) + "ms.";
+        }
+    }
+    //#endregion Methods
+
+    //#region Helper Methods
+    /**
+     * Commit thread, waits for writes, gathers them for the window (or until the batch is full) and commits them.
+     */
+    private void commitLoop() {
+        while (true) {
+            long target;
+
+            synchronized (this.lock) {
+                try {
+                    while (this.writeSequence == this.commitSequence) { this.lock.wait(); }
+
+                    long deadline = System.currentTimeMillis() + this.window;
+                    long remaining = this.window;
+                    while (remaining > 0 && this.writeSequence - this.commitSequence < this.maxBatchSize) {
+                        this.lock.wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                target = this.writeSequence;
+            }
+
+            commit(target);
+        }
+    }
+
+    /**
+     * Commits the open transaction, and wakes up everybody waiting on writes up to the target.
+     * @param target The write sequence number covered by this commit.
+     */
+    private void commit(long target) {
+        long start = System.nanoTime(), checkpoint = -1;
+
+        try {
+            synchronized (this.writer) { // Never commit in the middle of a write.
+                if (this.durability.equals(WAL)) { // Everything in the log so far is applied, the commit covers it.
+                    checkpoint = this.wal.end();
+                    PreparedStatement checkpointQuery = this.db.prepareStatement("INSERT OR REPLACE INTO storage_state (key, value) VALUES ('wal_checkpoint', ?)");
+                    checkpointQuery.setString(1, Long.toString(checkpoint));
+                    checkpointQuery.executeUpdate();
+                }
+                this.db.commit();
+            }
+        } catch (SQLException SE) {
+            System.out.println("Group commit failed, retrying with the next batch: " + SE.getMessage());
+            return;
+        }
+        if (checkpoint >= 0) { this.wal.checkpointed(checkpoint); }
+
+        long latency = System.nanoTime() - start;
+        synchronized (this.lock) {
+            if (target <= this.commitSequence) { return; }
+            long batchSize = target - this.commitSequence;
+
+            this.commits++;
+            this.committedWrites += batchSize;
+            this.largestBatch = Math.max(this.largestBatch, batchSize);
+            this.totalCommitNanos += latency;
+            this.slowestCommitNanos = Math.max(this.slowestCommitNanos, latency);
+
+            this.commitSequence = target;
+            this.lock.notifyAll();
+        }
+    }
+    //#endregion Helper Methods
+}
\ No newline at end of file
@@ -1,10 +1,12 @@
 package server_j;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.Scanner;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -60,7 +62,9 @@ public class MachineSocket extends Thread {
 	public void run() {
         try {
             // Open the server socket and listen for TCP connections on port (port)
-            ServerSocket serverSocket = new ServerSocket(this.port);
+            // The socket comes from a channel, so subscriber connections can be handed over to a selector, see BalanceSubscriptions.
+            ServerSocket serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.bind(new InetSocketAddress(this.port));
 
             /**
              * Set's the socket timeout to the default timeout of 100ms.
@@ -73,9 +77,8 @@ public class MachineSocket extends Thread {
                     // Accept incoming TCP connection request and connect to client
                     Socket socket = serverSocket.accept();
 
-                    // Open input stream to read the message from the socket to determine if it is coming from a client or another server
-                    Scanner socketInput = new Scanner(socket.getInputStream());
-                    String incomingConnection = socketInput.nextLine();
+                    // Read the first line to determine if the connection is coming from a client or another server
+                    String incomingConnection = readHandshake(socket);
 
                     if (incomingConnection.equals("client")) {
                         // Print client information (IP address and port number) every time the server accepts a client connection
@@ -95,6 +98,9 @@ public class MachineSocket extends Thread {
 
                         // Create a MachineSocketHandler thread to handle the accepted TCP connection
                         this.executorPool.execute(new ServerSocketHandler(socket, this.timeout, db));
+                    } else if (incomingConnection.equals("subscriber")) {
+                        // Subscribers are served by the selector thread of the balance subscriptions, they take no thread of the pool
+                        BalanceSubscriptions.getInstance().register(socket);
                     } else { // This should not happen
                         System.out.println("Invalid connection of type " + incomingConnection + " from " + socket.getInetAddress().getHostAddress() + ":" + socket.getPort() + ".");
                     }
@@ -120,6 +126,24 @@ public class MachineSocket extends Thread {
         }
     }
 	
+    /**
+     * Reads the first line of a connection, one byte at a time.
+     * Nothing is read past the line, so the requests sent right after it are left for the handler.
+     * @param socket The socket of the connection.
+     * @return String The line.
+     * @throws IOException
+     */
+    private String readHandshake(Socket socket) throws IOException {
+        InputStream socketInput = socket.getInputStream();
+        StringBuilder line = new StringBuilder();
+
+        int character;
+        while ((character = socketInput.read()) != -1 && character != '\n') {
+            if (character != '\r') { line.append((char) character); }
+        }
+        return line.toString();
+    }
+
     /**
      * Signals the server to shutdown.
      */
@@ -0,0 +1,407 @@
+package server_j;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * ReadReplicaFeed Class
+ *
+ * Change feed the read servers subscribe to, so a slow or restarting read server never slows down writes.
+ * Every write marks its account as changed and is given a sequence number, and its ledger entries are queued as they are. A drainer thread turns the changed
+ * accounts into a frame every few ms (an account changed many times in between is shipped once, with its latest
+ * balance and version) and keeps the most recent frames in a bounded ring.
+ *
+ * A read server subscribes with "FEED <epoch> <seq>" and is sent every frame after its sequence number.
+ * The epoch and the sequence number of the last frame are kept in the database, so a restarted server resumes the
+ * same feed, and read servers that were caught up (and read-your-writes tokens) stay valid across the restart.
+ * A read server that is new, that last read from another epoch (this server was overwritten by a dump)
+ * or that has fallen off the ring (frames are not kept across a restart) is sent a snapshot of the whole database first.
+ *      Format: FEEDING <epoch> <seq|snapshot>
+ *      User:           XR id username password first_name last_name email
+ *      Ledger entry:   XL txid account type amount balance counterparty created_at
+ *      Accounts:       XB account:user_id:balance:version,... (up to 500 accounts per line)
+ *      End of frame:   XS <epoch> <prevSeq|snapshot> <seq> <timestamp> <headSeq>
+ *      Heartbeat:      XS <epoch> <seq> <seq> <timestamp> <headSeq>
+ */
+public class ReadReplicaFeed {
+    //#region Class Variables
+    private static ReadReplicaFeed instance = null;
+    private static final int RING_SIZE = 4096; // Frames kept for read servers that are catching up.
+    private static final int MAX_FRAME_SIZE = 500; // Accounts per XB line, and users or accounts per snapshot page.
+    private static final int FLUSH_INTERVAL = 20; // Time to gather changes into a frame, in ms.
+    private static final int HEARTBEAT_INTERVAL = 1000; // Time after which an idle subscriber is sent a heartbeat, in ms.
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Frame> ring = new ArrayDeque<Frame>();
+    private Set<String> changedAccounts = new LinkedHashSet<String>();
+    private List<String> newUsers = new ArrayList<String>();
+    private List<String> newEntries = new ArrayList<String>();
+    private long epoch = 0;
+    private long publishedSeq = 0, frameSeq = 0;
+
+    private DBController db = null;
+
+    // Metrics
+    private long published = 0, coalesced = 0, frames = 0, snapshots = 0, subscribers = 0;
+    //#endregion Class Variables
+
+    //#region Constructors & Instance Methods
+    /**
+     * Constructor
+     * @implNote This constructor is private to ensure that only one instance of this class is created.
+     */
+    private ReadReplicaFeed() {
+        this.db = DBController.getInstance();
+
+        // Resume the feed where it was, a database the feed never ran on starts a new epoch.
+        try {
+            long[] state = this.db.feedState();
+            if (state[0] == 0) {
+                state[0] = System.currentTimeMillis();
+                this.db.setFeedEpoch(state[0]);
+            }
+            this.epoch = state[0];
+            this.publishedSeq = this.frameSeq = state[1];
+        } catch (SQLException SE) {
+            this.epoch = System.currentTimeMillis();
+            System.out.println("Read replica feed could not read its state, starting epoch " + this.epoch + ": " + SE.getMessage());
+        }
+
+        Thread drainer = new Thread(this::drainLoop);
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Returns the instance of this class.
+     * @return ReadReplicaFeed The instance of this class.
+     */
+    public static synchronized ReadReplicaFeed getInstance() {
+        if (instance == null) { instance = new ReadReplicaFeed(); }
+        return instance;
+    }
+    //#endregion Constructors & Instance Methods
+
+    //#region Methods
+    /**
+     * Marks an account as changed, to be shipped to the read servers with the next frame. Never blocks on a read server.
+     * @param account The account number.
+     * @return long The sequence number of the change.
+     */
+    public long publish(String account) {
+        synchronized (this.lock) {
+            this.published++;
+            if (!this.changedAccounts.add(account)) { this.coalesced++; }
+            return ++this.publishedSeq;
+        }
+    }
+
+    /**
+     * Queues a new user and their first account, to be shipped to the read servers with the next frame.
+     * @param user The user formatted as "id username password first_name last_name email".
+     * @param account The account number created for the user.
+     * @return long The sequence number of the registration.
+     */
+    public long publishRegistration(String user, String account) {
+        synchronized (this.lock) {
+            this.newUsers.add(user);
+        }
+        return publish(account);
+    }
+
+    /**
+     * Queues a ledger entry, to be shipped to the read servers with the next frame. Entries are never coalesced.
+     * @param entry The entry formatted as "txid account type amount balance counterparty created_at".
+     * @return long The sequence number of the entry.
+     */
+    public long publishEntry(String entry) {
+        synchronized (this.lock) {
+            this.newEntries.add(entry);
+            this.published++;
+            return ++this.publishedSeq;
+        }
+    }
+
+    /**
+     * Returns a read-your-writes token covering every change published so far.
+     * A read server that has applied the feed up to the token has seen those changes.
+     * @return String The token, formatted as "epoch:seq".
+     */
+    public String currentToken() {
+        synchronized (this.lock) {
+            return this.epoch + ":" + this.publishedSeq;
+        }
+    }
+
+    /**
+     * Starts a new epoch, for when the database has been overwritten by a dump and the frames no longer describe it.
+     * Every subscriber is sent a fresh snapshot.
+     */
+    public void restart() {
+        long epoch;
+        synchronized (this.lock) {
+            epoch = this.epoch = System.currentTimeMillis();
+            this.ring.clear();
+            this.lock.notifyAll();
+        }
+        try {
+            this.db.setFeedEpoch(epoch);
+        } catch (SQLException SE) {
+            System.out.println("Read replica feed could not record epoch " + epoch + ", a restart will go back to the previous one: " + SE.getMessage());
+        }
+        System.out.println("Read replica feed started epoch " + this.epoch + ", read servers will be sent a new snapshot.");
+    }
+
+    /**
+     * Hands a read server connection over to the feed, which streams to it on a dedicated thread from now on.
+     * @param socket The connection of the read server.
+     * @param epoch The epoch the read server last read from, or "-" if it has none.
+     * @param from The sequence number the read server has applied, "head" to only get new frames or "snapshot".
+     */
+    public void subscribe(Socket socket, String epoch, String from) {
+        Thread subscriber = new Thread(() -> serve(socket, epoch, from));
+        subscriber.setDaemon(true);
+        subscriber.start();
+    }
+
+    /**
+     * Returns the feed metrics.
+     * @return String The number of changes published and coalesced, frames built, snapshots sent and subscribers.
+     */
+    public String getStats() {
+        synchronized (this.lock) {
+            return "Read replica feed: epoch " + this.epoch + ", " + this.published + " changes published, "
+                + this.coalesced + " coalesced, "
+                + this.frames + " frames built (head at #" + this.frameSeq + ", " + this.ring.size() + " kept), "
+                + this.snapshots + " snapshots sent, "
+                + this.subscribers + " subscribers.";
+        }
+    }
+    //#endregion Methods
+
+    //#region Helper Methods
+    /**
+     * Drainer thread, turns the changes gathered during the flush interval into a frame.
+     */
+    private void drainLoop() {
+        while (true) {
+            Set<String> accounts;
+            List<String> users, entries;
+            long seq;
+
+            try {
+                Thread.sleep(FLUSH_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            synchronized (this.lock) {
+                if (this.publishedSeq == this.frameSeq) { continue; }
+
+                accounts = this.changedAccounts;
+                users = this.newUsers;
+                entries = this.newEntries;
+                seq = this.publishedSeq;
+                this.changedAccounts = new LinkedHashSet<String>();
+                this.newUsers = new ArrayList<String>();
+                this.newEntries = new ArrayList<String>();
+            }
+
+            List<String> lines = new ArrayList<String>();
+            try {
+                for (String user : users) { lines.add("XR " + user); }
+                for (String entry : entries) { lines.add("XL " + entry); }
+
+                List<String> page = new ArrayList<String>();
+                for (String account : accounts) {
+                    page.add(account);
+                    if (page.size() == MAX_FRAME_SIZE) {
+                        addAccountStates(lines, page);
+                        page.clear();
+                    }
+                }
+                addAccountStates(lines, page);
+                this.db.setFeedSeq(seq); // Before any read server can apply the frame.
+            } catch (SQLException SE) {
+                System.out.println("Read replica feed could not build the frame, retrying with the next one: " + SE.getMessage());
+                synchronized (this.lock) {
+                    this.changedAccounts.addAll(accounts);
+                    this.newUsers.addAll(0, users);
+                    this.newEntries.addAll(0, entries);
+                }
+                continue;
+            }
+
+            synchronized (this.lock) {
+                this.ring.addLast(new Frame(this.frameSeq, seq, System.currentTimeMillis(), lines));
+                if (this.ring.size() > RING_SIZE) { this.ring.removeFirst(); }
+                this.frameSeq = seq;
+                this.frames++;
+                this.lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Reads the current state of a page of accounts into an XB line.
+     * @param lines The lines of the frame being built.
+     * @param accounts The account numbers.
+     * @throws SQLException
+     */
+    private void addAccountStates(List<String> lines, List<String> accounts) throws SQLException {
+        if (accounts.isEmpty()) { return; }
+
+        String states = this.db.accountStates(accounts.toArray(new String[0]));
+        if (!states.isEmpty()) { lines.add("XB " + states); }
+        BalanceSubscriptions.getInstance().changed(states); // The clients caching these balances are pushed the same states.
+    }
+
+    /**
+     * Subscriber thread, streams frames to a read server until it disconnects.
+     * @param socket The connection of the read server.
+     * @param epoch The epoch the read server last read from.
+     * @param from The sequence number the read server has applied, "head" or "snapshot".
+     */
+    private void serve(Socket socket, String epoch, String from) {
+        long cursor = -1, servedEpoch;
+        PrintStream out;
+
+        try {
+            out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), false);
+        } catch (IOException e) {
+            System.out.println("Read replica feed could not open the connection to " + socket.getInetAddress() + ":" + socket.getPort() + ".");
+            return;
+        }
+
+        synchronized (this.lock) {
+            this.subscribers++;
+            servedEpoch = this.epoch;
+
+            if (from.equals("head")) {
+                cursor = this.frameSeq;
+            } else if (epoch.equals(Long.toString(this.epoch)) && from.matches("\\d+") && isCovered(Long.parseLong(from))) {
+                cursor = Long.parseLong(from);
+            }
+        }
+
+        System.out.println("Read server " + socket.getInetAddress() + ":" + socket.getPort() + " subscribed to the feed " + (cursor < 0 ? "with a snapshot." : "from #" + cursor + "."));
+        out.println("FEEDING " + servedEpoch + " " + (cursor < 0 ? "snapshot" : cursor));
+        out.flush();
+
+        try {
+            while (!out.checkError()) {
+                if (cursor < 0) {
+                    synchronized (this.lock) {
+                        servedEpoch = this.epoch;
+                        cursor = this.frameSeq; // Frames after this one are sent once the snapshot is done.
+                    }
+                    sendSnapshot(out, servedEpoch, cursor);
+                    continue;
+                }
+
+                List<Frame> pending = new ArrayList<Frame>();
+                long head;
+                synchronized (this.lock) {
+                    if (this.frameSeq == cursor && this.epoch == servedEpoch) { this.lock.wait(HEARTBEAT_INTERVAL); }
+                    if (this.epoch != servedEpoch || !isCovered(cursor)) { // Restarted, or the subscriber fell off the ring.
+                        cursor = -1;
+                        continue;
+                    }
+
+                    for (Frame frame : this.ring) {
+                        if (frame.seq > cursor) { pending.add(frame); }
+                    }
+                    head = this.frameSeq;
+                }
+
+                if (pending.isEmpty()) {
+                    out.println("XS " + servedEpoch + " " + cursor + " " + cursor + " " + System.currentTimeMillis() + " " + head);
+                }
+
+                for (Frame frame : pending) {
+                    for (String line : frame.lines) { out.println(line); }
+                    out.println("XS " + servedEpoch + " " + frame.prevSeq + " " + frame.seq + " " + frame.timestamp + " " + head);
+                    cursor = frame.seq;
+                }
+                out.flush();
+            }
+        } catch (SQLException SE) {
+            System.out.println("Read replica feed could not read a snapshot: " + SE.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (this.lock) { this.subscribers--; }
+            try {
+                socket.close();
+            } catch (IOException e) {}
+        }
+
+        System.out.println("Read server " + socket.getInetAddress() + ":" + socket.getPort() + " unsubscribed from the feed.");
+    }
+
+    /**
+     * Sends every user, account and ledger entry, followed by the snapshot marker.
+     * @param out The connection of the read server.
+     * @param epoch The epoch the snapshot belongs to.
+     * @param seq The sequence number the snapshot includes every change up to.
+     * @throws SQLException
+     */
+    private void sendSnapshot(PrintStream out, long epoch, long seq) throws SQLException {
+        long lastUser = -1, lastAccount = -1, lastEntry = -1;
+        List<String> page;
+
+        while (!(page = this.db.usersAfter(lastUser, MAX_FRAME_SIZE)).isEmpty()) {
+            for (String user : page) { out.println("XR " + user); }
+            lastUser = Long.parseLong(page.get(page.size() - 1).split(" ")[0]);
+        }
+
+        while (!(page = this.db.accountNumbersAfter(lastAccount, MAX_FRAME_SIZE)).isEmpty()) {
+            out.println("XB " + this.db.accountStates(page.toArray(new String[0])));
+            lastAccount = Long.parseLong(page.get(page.size() - 1));
+        }
+
+        while (!(page = this.db.ledgerAfter(lastEntry, MAX_FRAME_SIZE)).isEmpty()) {
+            for (String entry : page) { out.println("XL " + entry.substring(entry.indexOf(' ') + 1)); }
+            lastEntry = Long.parseLong(page.get(page.size() - 1).split(" ")[0]);
+        }
+
+        out.println("XS " + epoch + " snapshot " + seq + " " + System.currentTimeMillis() + " " + seq);
+        out.flush();
+
+        synchronized (this.lock) { this.snapshots++; }
+    }
+
+    /**
+     * Checks if the frames after a sequence number are all still in the ring.
+     * @param seq The sequence number a subscriber has applied.
+     * @return boolean True if the subscriber can catch up from the ring, false if it needs a snapshot.
+     */
+    private boolean isCovered(long seq) {
+        if (seq == this.frameSeq) { return true; }
+        return !this.ring.isEmpty() && this.ring.peekFirst().prevSeq <= seq && seq < this.frameSeq;
+    }
+
+    /**
+     * A frame of changes, kept in the ring until it is too old.
+     */
+    private static class Frame {
+        final long prevSeq, seq, timestamp;
+        final List<String> lines;
+
+        Frame(long prevSeq, long seq, long timestamp, List<String> lines) {
+            this.prevSeq = prevSeq;
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.lines = lines;
+        }
+    }
+    //#endregion Helper Methods
+}
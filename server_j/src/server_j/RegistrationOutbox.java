@@ -0,0 +1,205 @@
+package server_j;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RegistrationOutbox Class
+ *
+ * Sends the registrations of this server to the other servers, until they
+ * acknowledge them. A registration is queued in the database, one row per
+ * server, before the client is answered, and a sender thread per server sends
+ * the rows in order, then deletes them once the server acknowledged them. A
+ * server that is down gets its registrations when it comes back, even if this
+ * server restarted in the meantime.
+ *
+ * The rows queued while a batch is on its way are sent together in the next
+ * one, so a burst of signups costs a round trip per batch, not per signup.
+ *
+ * A registration the server answers but does not apply is resent with the
+ * backoff, in case the failure was passing. Once it was rejected MAX_REJECTIONS
+ * times it is parked: it stays in the outbox for an operator to look at, is
+ * logged, and the registrations after it are sent without it.
+ */
+public class RegistrationOutbox {
+    //#region Class Variables
+    private static RegistrationOutbox instance = null;
+    private static final int PEERS = 2;
+    private static final int BATCH = 64; // Registrations sent per round trip at most.
+    private static final long POLL = 1000; // Time between two checks of an idle outbox, in ms.
+    private static final long MIN_BACKOFF = 100, MAX_BACKOFF = 5000; // Time before a failed batch is resent, in ms.
+    private static final int MAX_REJECTIONS = 5; // Rejections by a server after which a registration is parked.
+
+    private DBController db = DBController.getInstance();
+    private final Object[] signals = { new Object(), new Object() }; // Wakes up the sender thread of a server.
+    private final SocketHandler[] peers = new SocketHandler[PEERS]; // Connections of the sender threads.
+    private boolean started = false;
+
+    // Metrics
+    private final LongAdder queued = new LongAdder(), acknowledged = new LongAdder(), batches = new LongAdder(), failures = new LongAdder(), parked = new LongAdder();
+    //#endregion Class Variables
+
+    //#region Constructors & Instance Methods
+    /**
+     * Constructor
+     * @implNote This constructor is private to ensure that only one instance of this class is created.
+     */
+    private RegistrationOutbox() {}
+
+    /**
+     * Returns the instance of this class.
+     * @return RegistrationOutbox The instance of this class.
+     */
+    public static synchronized RegistrationOutbox getInstance() {
+        if (instance == null) { instance = new RegistrationOutbox(); }
+        return instance;
+    }
+    //#endregion Constructors & Instance Methods
+
+    //#region Outbox Methods
+    /**
+     * Starts the sender threads, which also send what was left in the outbox when the server stopped.
+     */
+    public synchronized void start() {
+        if (this.started) { return; }
+        this.started = true;
+
+        for (int peer = 0; peer < PEERS; peer++) {
+            final int index = peer;
+            Thread sender = new Thread(() -> sendLoop(index), "registration-outbox-" + peer);
+            sender.setDaemon(true);
+            sender.start();
+        }
+    }
+
+    /**
+     * Registers a new user with a new account, and queues the registration for every other server
+     * in the same transaction, so a user who is told they are registered always reaches the other servers.
+     * @return String[] The id of the new user and its account number.
+     * @throws SQLException If the registration failed, nothing is then written.
+     */
+    public String[] register(String username, String password, String firstName, String lastName, String email) throws SQLException {
+        String[] registration = this.db.registerAndQueue(username, password, firstName, lastName, email, PEERS);
+        this.queued.increment();
+
+        for (Object signal : this.signals) {
+            synchronized (signal) { signal.notifyAll(); }
+        }
+        return registration;
+    }
+
+    /**
+     * Returns the outbox metrics.
+     * @return String The registrations queued, acknowledged and parked, and the batches sent.
+     */
+    public String getStats() {
+        long batches = this.batches.sum();
+        return "Registration outbox: " + this.queued.sum() + " registrations queued, " + this.acknowledged.sum() + " acknowledged by a server, in "
+            + batches + " batches (" + (batches == 0 ? 0 : this.acknowledged.sum() / batches) + " per batch), " + this.failures.sum() + " batches to resend, "
+            + this.parked.sum() + " registrations parked.";
+    }
+    //#endregion Outbox Methods
+
+    //#region Helper Methods
+    /**
+     * Sender thread of a server, sends its registrations in order until they are acknowledged.
+     * @param peer The index of the server.
+     */
+    private void sendLoop(int peer) {
+        long backoff = MIN_BACKOFF;
+        while (true) {
+            try {
+                List<String[]> registrations = this.db.queuedRegistrations(peer, BATCH);
+                if (registrations.isEmpty()) {
+                    synchronized (this.signals[peer]) { this.signals[peer].wait(POLL); }
+                    continue;
+                }
+
+                int applied = send(peer, registrations);
+                if (applied > 0) {
+                    this.db.dequeueRegistrations(peer, Long.parseLong(registrations.get(applied - 1)[0]));
+                    this.acknowledged.add(applied);
+                    this.batches.increment();
+                }
+                if (applied == registrations.size() || (applied >= 0 && reject(peer, registrations.get(applied)))) {
+                    backoff = MIN_BACKOFF;
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (SQLException e) {
+                System.out.println("Could not read the registration outbox: " + e.getMessage());
+            }
+
+            this.failures.increment();
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+    }
+
+    /**
+     * Counts a rejection of the first registration a server did not apply, and logs it if it is now parked.
+     * @return boolean True if the registration is parked, so the next ones can be sent right away.
+     */
+    private boolean reject(int peer, String[] registration) throws SQLException {
+        if (!this.db.rejectRegistration(peer, Long.parseLong(registration[0]), MAX_REJECTIONS)) { return false; }
+
+        String[] tokens = registration[1].split(" ");
+        System.out.println("Parked registration " + registration[0] + " of account " + tokens[tokens.length - 1]
+            + ", rejected " + MAX_REJECTIONS + " times by peer " + peer + ".");
+        this.parked.increment();
+        return true;
+    }
+
+    /**
+     * Sends a batch of registrations to a server.
+     * @return int The number of registrations, from the first, the server applied. -1 if it could not be reached or did not commit them.
+     */
+    private int send(int peer, List<String[]> registrations) {
+        SocketHandler connection = connect(peer);
+        if (connection == null) { return -1; }
+
+        StringBuilder batch = new StringBuilder("RB " + registrations.size());
+        for (String[] registration : registrations) { batch.append(System.lineSeparator()).append(registration[1]); }
+        connection.send(batch.toString());
+
+        try {
+            String reply = connection.readLine();
+            return reply.startsWith("true ") ? Math.min(Integer.parseInt(reply.substring(5)), registrations.size()) : -1;
+        } catch (Exception e) {
+            connection.close(); // The reply may still come, the connection cannot be reused.
+            this.peers[peer] = null;
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the connection of the sender thread to a server, opening a new one if needed.
+     * @return SocketHandler The connection, or null if the server is unreachable.
+     */
+    private SocketHandler connect(int peer) {
+        SocketHandler connection = this.peers[peer];
+        if (connection != null && !connection.hasFailed()) { return connection; }
+        if (connection != null) { connection.close(); }
+        this.peers[peer] = null;
+
+        LockManager lockManager = LockManager.getInstance();
+        SocketHandler lockHandler = peer == 0 ? lockManager.socketHandler : lockManager.socketHandler2;
+        if (lockHandler == null) { return null; }
+
+        try {
+            connection = new SocketHandler(lockHandler.getHost(), Integer.parseInt(lockHandler.getPort()));
+            if (connection.hasFailed()) { return null; }
+        } catch (Exception e) {
+            return null;
+        }
+        this.peers[peer] = connection;
+        return connection;
+    }
+    //#endregion Helper Methods
+}
\ No newline at end of file
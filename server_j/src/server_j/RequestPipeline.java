@@ -0,0 +1,575 @@
+package server_j;
+
+import Errors.*;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * RequestPipeline Class
+ *
+ * Runs the account requests of every client through a ring of slots allocated up
+ * front, each stage on its own thread, instead of running each request from start
+ * to end on its client's thread:
+ *
+ *  decode    - the client thread parses the request into the next free slot, and goes on reading.
+ *  sequence  - orders the writes on each account, locks the accounts locally and checks the writes.
+ *  replicate - proposes the writes to the other servers (see OccManager), a whole batch per round trip,
+ *              which the other servers apply with a single commit.
+ *  apply     - applies the accepted writes locally, and waits for one commit for the whole batch.
+ *  respond   - writes the responses back to the connections the requests came from, in order.
+ *
+ * A stage takes every slot the stage before it has finished at once, so under load
+ * the stages batch up, and the throughput is bound by the slowest stage rather than
+ * by the time a request spends in all of them.
+ *
+ * Writes are replicated before they are applied: a write is only applied here once
+ * another server accepted its proposal, as in OccManager, so a write both other
+ * servers refused never has to be undone, and the write that is applied is the one
+ * the other servers checked against the same versions.
+ *
+ * Requests that need more than a proposal (balance checks, hot accounts, repeated
+ * transactions, and writes both other servers refused) run the client's own code,
+ * which blocks on locks and round trips. The apply stage hands them to a pool of
+ * workers and goes on; the worker finishes the slot, and the respond stage waits
+ * for it in turn. Writes are replicated as proposals, so the pipeline needs every
+ * write server to run in occ mode.
+ */
+public class RequestPipeline {
+    //#region Class Variables
+    private static RequestPipeline instance = null;
+    private static final int SPINS = 100; // Times a stage checks for work before parking between checks.
+    private static final long PARK = 50 * 1000; // Time an idle stage parks between checks, in ns.
+    private static final int SEQUENCE = 0, REPLICATE = 1, APPLY = 2, RESPOND = 3;
+    private static final String[] STAGES = { "sequence", "replicate", "apply", "respond" };
+
+    private volatile boolean enabled = false;
+    private Slot[] slots = new Slot[0];
+    private int mask = 0;
+    private final AtomicLong claimed = new AtomicLong(0); // Sequence of the next slot handed to a client thread.
+    private volatile long sequenced = -1, replicated = -1, applied = -1, responded = -1; // Last slot each stage finished.
+    private final ConcurrentHashMap<String, Long> inFlight = new ConcurrentHashMap<String, Long>(); // Accounts written by a slot that is not applied yet.
+    private final SocketHandler[] peers = new SocketHandler[2]; // Connections of the replicate stage to the other servers.
+    private final ExecutorService clientWorkers = Executors.newCachedThreadPool(runnable -> { // Run the requests that take the client's code, at most one per slot.
+        Thread thread = new Thread(runnable, "pipeline-client");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private DBController db = null;
+    private final IdempotencyStore idempotencyStore = IdempotencyStore.getInstance();
+
+    // Metrics
+    private final LongAdder requests = new LongAdder(), fallbacks = new LongAdder();
+    private final LongAdder[] batches = { new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder() };
+    private volatile long fullest = 0;
+    //#endregion Class Variables
+
+    //#region Constructors & Instance Methods
+    /**
+     * Constructor
+     * @implNote This constructor is private to ensure that only one instance of this class is created.
+     */
+    private RequestPipeline() {
+        this.db = DBController.getInstance();
+    }
+
+    /**
+     * Returns the instance of this class.
+     * @return RequestPipeline The instance of this class.
+     */
+    public static synchronized RequestPipeline getInstance() {
+        if (instance == null) { instance = new RequestPipeline(); }
+        return instance;
+    }
+    //#endregion Constructors & Instance Methods
+
+    //#region Pipeline Methods
+    /**
+     * Starts the pipeline. Must be called before any client connects.
+     * @param size The number of slots, rounded up to a power of two, 0 to run requests on the client threads.
+     */
+    public void configure(int size) {
+        if (size <= 0) { return; }
+        if (!OccManager.getInstance().isEnabled()) { throw new IllegalArgumentException("the pipeline replicates writes as proposals, it needs the occ concurrency mode."); }
+
+        int capacity = 1;
+        while (capacity < size) { capacity <<= 1; }
+        this.slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) { this.slots[i] = new Slot(); }
+        this.mask = capacity - 1;
+
+        start(SEQUENCE, this::sequenceStage);
+        start(REPLICATE, this::replicateStage);
+        start(APPLY, this::applyStage);
+        start(RESPOND, this::respondStage);
+        this.enabled = true;
+        System.out.println("Client requests run through a pipeline of " + capacity + " slots.");
+    }
+
+    /**
+     * Checks if the pipeline runs.
+     * @return boolean True if account requests go through the pipeline, false otherwise.
+     */
+    public boolean isEnabled() { return this.enabled; }
+
+    /**
+     * Checks if a request goes through the pipeline.
+     * @param opcode The opcode of the request.
+     * @return boolean True for the account requests (D, W, T and B), false otherwise.
+     */
+    public static boolean handles(String opcode) {
+        return opcode.equals("D") || opcode.equals("W") || opcode.equals("T") || opcode.equals("B");
+    }
+
+    /**
+     * Decodes a request into the next free slot. Waits if every slot is in use.
+     * The response is written to the client by the respond stage.
+     * @param connection The connection of the client.
+     * @param id Id of the client.
+     * @param correlationId The correlation id the request was tagged with, or null.
+     * @param clientRequestTokens The request.
+     * @param requestKey The idempotency key the write was started with, or null.
+     */
+    public void publish(ClientSocketHandler connection, String id, String correlationId, String[] clientRequestTokens, String requestKey) {
+        String type = clientRequestTokens[0];
+        String account = null, randomNumber = null;
+        double amount = 0;
+        switch (type) { // Requests are checked by the client thread before they get here.
+            case "D":
+            case "W":
+                account = clientRequestTokens[1];
+                amount = Double.parseDouble(clientRequestTokens[2]);
+                randomNumber = clientRequestTokens[3];
+                break;
+            case "T":
+                account = clientRequestTokens[1] + "," + clientRequestTokens[2];
+                amount = Double.parseDouble(clientRequestTokens[3]);
+                randomNumber = clientRequestTokens[4];
+                break;
+            default:
+                account = clientRequestTokens[2];
+                break;
+        }
+        connection.enqueued();
+
+        long sequence = this.claimed.getAndIncrement();
+        for (int spins = 0; sequence - this.slots.length > this.responded; spins++) { idle(spins); } // The ring is full.
+
+        Slot slot = slotAt(sequence);
+        slot.connection = connection;
+        slot.id = id;
+        slot.correlationId = correlationId;
+        slot.tokens = clientRequestTokens;
+        slot.type = type;
+        slot.account = account;
+        slot.amount = amount;
+        slot.randomNumber = randomNumber;
+        slot.requestKey = requestKey;
+        slot.published = sequence; // The sequence stage may take the slot from here on.
+
+        this.requests.increment();
+        long inUse = sequence - this.responded;
+        if (inUse > this.fullest) { this.fullest = inUse; }
+    }
+
+    /**
+     * Returns the pipeline metrics.
+     * @return String The requests, the average batch of each stage, and the fallbacks to the client code.
+     */
+    public String getStats() {
+        if (!this.enabled) { return "Pipeline: client threads."; }
+
+        long requests = this.requests.sum();
+        String averages = "";
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            long batches = this.batches[stage].sum();
+            averages += (stage == 0 ? "" : ", ") + STAGES[stage] + " " + (batches == 0 ? "0" : String.format("%.1f", (double) requests / batches));
+        }
+        return "Pipeline: " + requests + " requests through " + this.slots.length + " slots, " + this.fullest + " in use at most, average batch: "
+            + averages + ", " + this.fallbacks.sum() + " run on the client code after a refused proposal.";
+    }
+    //#endregion Pipeline Methods
+
+    //#region Stage Methods
+    /**
+     * Orders the writes on each account, and checks and locks the writes that can be proposed.
+     */
+    private void sequenceStage() {
+        while (true) {
+            long first = this.sequenced + 1, last = waitFor(first, this::decoded);
+            for (long sequence = first; sequence <= last; sequence++) {
+                Slot slot = slotAt(sequence);
+                try {
+                    sequence(slot, sequence);
+                } catch (RuntimeException e) {
+                    slot.error = e;
+                }
+                this.sequenced = sequence; // One slot at a time, as a write may wait here for the ones before it.
+            }
+            this.batches[SEQUENCE].increment();
+        }
+    }
+
+    /**
+     * Sequences one slot.
+     */
+    private void sequence(Slot slot, long sequence) {
+        if (slot.type.equals("B")) {
+            slot.kind = Slot.CLIENT;
+            return;
+        }
+
+        LockManager lockManager = LockManager.getInstance();
+        String[] accounts = slot.account.split(",");
+        boolean proposable = true;
+        for (String accountNo : accounts) {
+            awaitAccount(accountNo, sequence); // Writes on an account are applied one at a time, in order.
+            if (HotAccounts.getInstance().isHot(accountNo) || lockManager.isPreviousTransaction(accountNo, slot.randomNumber)) { proposable = false; }
+        }
+        if (!proposable) {
+            slot.kind = Slot.CLIENT;
+            return;
+        }
+
+        slot.kind = Slot.PROPOSAL;
+        for (String accountNo : accounts) { RecoveryManager.getInstance().ensureVerified(accountNo); }
+        for (int spins = 0; !lockManager.lockOptimistically(accounts); spins++) { idle(spins); } // Held by a write of another server.
+        slot.locked = true;
+
+        slot.txid = lockManager.newTransactionId();
+        slot.createdAt = System.currentTimeMillis();
+        try {
+            slot.proposal = OccManager.getInstance().propose(slot.id, slot.account, slot.type, slot.amount, slot.randomNumber, slot.txid, slot.createdAt);
+        } catch (InvalidError | LogicError | DestinationError | SQLException e) {
+            slot.error = e;
+        }
+    }
+
+    /**
+     * Proposes a batch of writes to the other servers in a single PB request, answered once the whole batch is committed there.
+     */
+    private void replicateStage() {
+        LockManager lockManager = LockManager.getInstance();
+        while (true) {
+            long first = this.replicated + 1, last = waitFor(first, () -> this.sequenced);
+
+            this.peers[0] = connect(this.peers[0], lockManager.socketHandler);
+            this.peers[1] = connect(this.peers[1], lockManager.socketHandler2);
+            int count = 0;
+            StringBuilder batch = new StringBuilder();
+            for (long sequence = first; sequence <= last; sequence++) {
+                Slot slot = slotAt(sequence);
+                if (slot.isProposed()) {
+                    batch.append(System.lineSeparator()).append(slot.proposal);
+                    count++;
+                }
+            }
+            if (count > 0) {
+                send(0, "PB " + count + batch);
+                send(1, "PB " + count + batch);
+            }
+            for (long sequence = first; sequence <= last; sequence++) {
+                Slot slot = slotAt(sequence);
+                if (slot.isProposed()) {
+                    slot.replies[0] = read(0);
+                    slot.replies[1] = read(1);
+                }
+            }
+
+            this.replicated = last;
+            this.batches[REPLICATE].increment();
+        }
+    }
+
+    /**
+     * Applies a batch of requests, and waits for a single commit for all of its writes.
+     */
+    private void applyStage() {
+        OccManager occManager = OccManager.getInstance();
+        while (true) {
+            long first = this.applied + 1, last = waitFor(first, () -> this.replicated);
+
+            boolean written = false;
+            for (long sequence = first; sequence <= last; sequence++) {
+                Slot slot = slotAt(sequence);
+                boolean onClient = slot.kind == Slot.CLIENT && slot.error == null;
+                if (slot.isProposed() && !OccManager.isAccepted(slot.replies[0]) && !OccManager.isAccepted(slot.replies[1])) {
+                    this.fallbacks.increment(); // The write conflicted, the client code retries it and falls back to the lock.
+                    unlock(slot);
+                    onClient = true;
+                }
+                if (onClient) {
+                    long slotSequence = sequence;
+                    slot.onWorker = true;
+                    this.clientWorkers.execute(() -> runOnClient(slot, slotSequence));
+                    continue;
+                }
+
+                try {
+                    if (slot.isProposed()) {
+                        slot.result = occManager.commit(slot.id, slot.account, slot.type, slot.amount, slot.randomNumber, slot.txid, slot.createdAt, slot.replies[0], slot.replies[1]);
+                        written = true;
+                    }
+                } catch (InvalidError | LogicError | DestinationError | SQLException | RuntimeException e) {
+                    slot.error = e;
+                } finally {
+                    unlock(slot);
+                    for (String accountNo : slot.account.split(",")) { this.inFlight.remove(accountNo, sequence); }
+                }
+            }
+
+            SQLException notDurable = null;
+            if (written) { // Only acknowledge once the writes are committed.
+                try {
+                    this.db.awaitDurable();
+                } catch (SQLException SE) {
+                    notDurable = SE;
+                }
+            }
+            String token = written ? ReadReplicaFeed.getInstance().currentToken() : null;
+            for (long sequence = first; sequence <= last; sequence++) {
+                Slot slot = slotAt(sequence);
+                if (slot.onWorker) { continue; } // Finished by its worker.
+                if (notDurable != null && slot.result != null) {
+                    slot.result = null;
+                    slot.error = notDurable;
+                }
+
+                if (slot.result != null) { slot.connection.setConsistencyToken(token); }
+                double status = slot.result == null ? -1 : Double.parseDouble(slot.result.split(" ")[0]);
+                slot.response = slot.connection.response(slot.tokens, status, slot.error);
+                slot.finished = true;
+            }
+
+            this.applied = last;
+            this.batches[APPLY].increment();
+        }
+    }
+
+    /**
+     * Writes the responses of a batch back to their connections, the consecutive responses of a connection at once.
+     */
+    private void respondStage() {
+        String newLine = System.lineSeparator();
+        while (true) {
+            long first = this.responded + 1, last = waitFor(first, () -> this.applied);
+
+            ClientSocketHandler connection = null;
+            StringBuilder responses = new StringBuilder();
+            int count = 0;
+            for (long sequence = first; sequence <= last; sequence++) {
+                Slot slot = slotAt(sequence);
+                if (!slot.finished) { // Still on its worker, the responses before it are not held back meanwhile.
+                    if (count > 0) { connection.respond(responses.toString(), count); }
+                    responses.setLength(0);
+                    count = 0;
+                    for (int spins = 0; !slot.finished; spins++) { idle(spins); }
+                }
+                if (slot.connection != connection && count > 0) {
+                    connection.respond(responses.toString(), count);
+                    responses.setLength(0);
+                    count = 0;
+                }
+
+                connection = slot.connection;
+                String response = idempotencyStore.complete(slot.requestKey, slot.response); // Remembered in case the client resends it.
+                responses.append(ClientSocketHandler.frame(slot.correlationId, response)).append(newLine);
+                count++;
+                slot.clear();
+            }
+            if (count > 0) { connection.respond(responses.toString(), count); }
+
+            this.responded = last; // The slots can be handed out again.
+            this.batches[RESPOND].increment();
+        }
+    }
+    //#endregion Stage Methods
+
+    //#region Helper Methods
+    /**
+     * Starts the thread of a stage.
+     */
+    private void start(int stage, Runnable loop) {
+        Thread thread = new Thread(loop, "pipeline-" + STAGES[stage]);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the slot of a sequence.
+     */
+    private Slot slotAt(long sequence) {
+        return this.slots[(int) (sequence & this.mask)];
+    }
+
+    /**
+     * Returns the last slot published by the client threads with no gap before it.
+     */
+    private long decoded() {
+        long last = this.sequenced;
+        while (slotAt(last + 1).published == last + 1) { last++; }
+        return last;
+    }
+
+    /**
+     * Waits until the stage before has finished a slot.
+     * @param next The next slot of the stage.
+     * @param finished The last slot finished by the stage before.
+     * @return long The last slot finished by the stage before, the end of the batch.
+     */
+    private long waitFor(long next, LongSupplier finished) {
+        for (int spins = 0;; spins++) {
+            long last = finished.getAsLong();
+            if (last >= next) { return last; }
+            idle(spins);
+        }
+    }
+
+    /**
+     * Waits until no earlier slot writes an account, and marks it as written by this slot.
+     */
+    private void awaitAccount(String accountNo, long sequence) {
+        for (int spins = 0;; spins++) {
+            Long writer = this.inFlight.putIfAbsent(accountNo, sequence);
+            if (writer == null || writer == sequence) { return; }
+            idle(spins);
+        }
+    }
+
+    /**
+     * Spins for a while, then parks between checks.
+     */
+    private static void idle(int spins) {
+        if (spins < SPINS) {
+            Thread.onSpinWait();
+        } else {
+            LockSupport.parkNanos(PARK);
+        }
+    }
+
+    /**
+     * Releases the local lock of a proposed write.
+     */
+    private void unlock(Slot slot) {
+        if (!slot.locked) { return; }
+        for (String accountNo : slot.account.split(",")) { LockManager.getInstance().unlockLocally(accountNo, "P"); }
+        slot.locked = false;
+    }
+
+    /**
+     * Runs a request with the client's own code, on a worker, and finishes its slot.
+     * The accounts of a write are only released to the writes after it once it is done.
+     */
+    private void runOnClient(Slot slot, long sequence) {
+        try {
+            switch (slot.type) {
+                case "D":
+                    slot.response = slot.connection.depositMoney(slot.id, slot.tokens);
+                    break;
+                case "W":
+                    slot.response = slot.connection.withdrawMoney(slot.id, slot.tokens);
+                    break;
+                case "T":
+                    slot.response = slot.connection.transferMoney(slot.id, slot.tokens);
+                    break;
+                default:
+                    slot.response = slot.connection.checkBalance(slot.id, slot.tokens);
+                    break;
+            }
+        } catch (RuntimeException e) {
+            slot.response = slot.connection.response(slot.tokens, -1, e);
+        } finally {
+            for (String accountNo : slot.account.split(",")) { this.inFlight.remove(accountNo, sequence); }
+            slot.finished = true;
+        }
+    }
+
+    /**
+     * Returns a working connection of the replicate stage to another server, opening a new one if needed.
+     * @return SocketHandler The connection, or null if the server is unreachable.
+     */
+    private SocketHandler connect(SocketHandler peer, SocketHandler lockHandler) {
+        if (peer != null && !peer.hasFailed()) { return peer; }
+        if (peer != null) { peer.close(); }
+        if (lockHandler == null) { return null; }
+
+        try {
+            SocketHandler connection = new SocketHandler(lockHandler.getHost(), Integer.parseInt(lockHandler.getPort()));
+            return connection.hasFailed() ? null : connection;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sends a batch of proposals to another server.
+     */
+    private void send(int peer, String batch) {
+        if (this.peers[peer] != null) { this.peers[peer].send(batch); }
+    }
+
+    /**
+     * Reads the next answer of another server.
+     * @return String The answer, or null if the server could not be reached.
+     */
+    private String read(int peer) {
+        if (this.peers[peer] == null) { return null; }
+
+        try {
+            return this.peers[peer].readLine();
+        } catch (IOException e) {
+            this.peers[peer].close();
+            this.peers[peer] = null; // The answers still due count as accepted, as for an unreachable server.
+            return null;
+        }
+    }
+    //#endregion Helper Methods
+
+    /**
+     * A request on its way through the pipeline. Slots are reused, cleared once their response is written.
+     */
+    private static class Slot {
+        static final int CLIENT = 0, PROPOSAL = 1;
+
+        volatile long published = -1; // Sequence of the request in the slot, once it is decoded.
+        ClientSocketHandler connection;
+        String id, correlationId, type, account, randomNumber, requestKey;
+        String[] tokens;
+        double amount;
+
+        int kind;
+        boolean locked;
+        String txid, proposal;
+        long createdAt;
+        final String[] replies = new String[2];
+
+        String result, response;
+        Exception error;
+        boolean onWorker; // Run with the client's code by a worker, which finishes the slot.
+        volatile boolean finished; // The response is set, the respond stage may write it.
+
+        boolean isProposed() {
+            return this.kind == PROPOSAL && this.error == null;
+        }
+
+        void clear() {
+            this.connection = null;
+            this.id = this.correlationId = this.type = this.account = this.randomNumber = this.requestKey = null;
+            this.tokens = null;
+            this.txid = this.proposal = this.result = this.response = null;
+            this.replies[0] = this.replies[1] = null;
+            this.error = null;
+            this.kind = CLIENT;
+            this.locked = false;
+            this.onWorker = false;
+            this.finished = false;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,152 @@
+package server_j;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * SessionManager Class
+ *
+ * Issues the session tokens handed to clients at login, and checks the tokens
+ * clients present when they reconnect, so a reconnect needs neither the password
+ * nor the database.
+ *
+ * A token is the user id and an expiry time, signed with an HMAC of a secret
+ * shared by every write server: any of them can check a token issued by another,
+ * without asking it. Tokens that were checked are cached until they expire, so
+ * a client reconnecting over and over is only checked once.
+ */
+public class SessionManager {
+    //#region Class Variables
+    private static SessionManager instance = null;
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int MAX_CACHED = 100000; // Tokens cached at most, the cache is cleared when it is full.
+
+    private SecretKeySpec key = null;
+    private long lifetime = 8 * 60 * 60 * 1000; // Time a token is valid for, in ms.
+    private final ConcurrentHashMap<String, Long> verified = new ConcurrentHashMap<String, Long>(); // Checked token to its expiry.
+
+    // Metrics
+    private final LongAdder issued = new LongAdder(), resumed = new LongAdder(), cacheHits = new LongAdder(), rejected = new LongAdder();
+    //#endregion Class Variables
+
+    //#region Constructors & Instance Methods
+    /**
+     * Constructor
+     * @implNote This constructor is private to ensure that only one instance of this class is created.
+     */
+    private SessionManager() {}
+
+    /**
+     * Returns the instance of this class.
+     * @return SessionManager The instance of this class.
+     */
+    public static synchronized SessionManager getInstance() {
+        if (instance == null) { instance = new SessionManager(); }
+        return instance;
+    }
+    //#endregion Constructors & Instance Methods
+
+    //#region Session Methods
+    /**
+     * Sets the secret tokens are signed with, and how long they are valid for.
+     * The secret is required: every server has two other write servers, see LockManager, and a
+     * secret of its own would make its tokens useless on them, so clients would lose their session on failover.
+     * @param secret The secret, the same on every write server.
+     * @param lifetime The time a token is valid for, in ms.
+     * @throws IllegalArgumentException If no secret is given.
+     */
+    public synchronized void configure(String secret, long lifetime) {
+        if (secret.isEmpty()) { throw new IllegalArgumentException("no session secret given, give every write server the same secret with -ss."); }
+
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        this.lifetime = Math.max(lifetime, 1);
+        this.verified.clear();
+    }
+
+    /**
+     * Issues a token for a user who just logged in.
+     * @param userId The id of the user.
+     * @return String The token, formatted as userId.expiry.signature.
+     */
+    public String issue(String userId) {
+        this.issued.increment();
+        String claims = userId + "." + (System.currentTimeMillis() + this.lifetime);
+        return claims + "." + sign(claims);
+    }
+
+    /**
+     * Checks a token presented by a reconnecting client.
+     * @param token The token.
+     * @return String The id of the user, or null if the token is not valid or expired.
+     */
+    public String resume(String token) {
+        long now = System.currentTimeMillis();
+
+        Long expiry = this.verified.get(token);
+        if (expiry != null) {
+            if (expiry > now) {
+                this.cacheHits.increment();
+                this.resumed.increment();
+                return token.substring(0, token.indexOf('.'));
+            }
+            this.verified.remove(token);
+        }
+
+        String[] parts = token.split("\\.");
+        if (parts.length != 3) { return reject(); }
+        try {
+            expiry = Long.parseLong(parts[1]);
+            Integer.parseInt(parts[0]);
+        } catch (NumberFormatException e) {
+            return reject();
+        }
+
+        byte[] expected = sign(parts[0] + "." + parts[1]).getBytes(StandardCharsets.US_ASCII);
+        if (expiry <= now || !MessageDigest.isEqual(expected, parts[2].getBytes(StandardCharsets.US_ASCII))) { return reject(); }
+
+        if (this.verified.size() >= MAX_CACHED) { this.verified.clear(); }
+        this.verified.put(token, expiry);
+        this.resumed.increment();
+        return parts[0];
+    }
+
+    /**
+     * Returns the session metrics.
+     * @return String The tokens issued, and the reconnects they resumed.
+     */
+    public String getStats() {
+        return "Sessions: " + this.issued.sum() + " tokens issued, " + this.resumed.sum() + " reconnects resumed (" + this.cacheHits.sum()
+            + " from the cache), " + this.rejected.sum() + " tokens rejected, " + this.verified.size() + " tokens cached.";
+    }
+    //#endregion Session Methods
+
+    //#region Helper Methods
+    /**
+     * Signs the claims of a token.
+     * @return String The signature, base64url encoded.
+     */
+    private String sign(String claims) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM); // Not thread safe, and cheap to create.
+            mac.init(this.key);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(mac.doFinal(claims.getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not sign a session token: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Counts a rejected token.
+     * @return String Always null.
+     */
+    private String reject() {
+        this.rejected.increment();
+        return null;
+    }
+    //#endregion Helper Methods
+}
\ No newline at end of file
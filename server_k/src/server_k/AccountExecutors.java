@@ -0,0 +1,190 @@
+package server_k;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AccountExecutors Class
+ *
+ * Partitions the accounts over a fixed number of single threaded executors. Every
+ * client request on an account runs on the executor the account hashes to, in
+ * the order the requests arrived, so requests on the same account coordinated
+ * by this server never find each other's lock taken. The account lock is still
+ * taken, as the other servers lock the same accounts for their own writes; a
+ * request waits for such a lock to be released, without polling, see
+ * LockManager.awaitUnlocked. The client's thread waits for its request, it has
+ * nothing else to answer meanwhile.
+ *
+ * A transfer between two partitions runs on the lower one, and parks the higher
+ * one until it is done. Partitions are always taken in the same order, so two
+ * transfers can never wait on each other.
+ *
+ * Writes replicated from the other servers do not go through the executors: they
+ * are already ordered by the account lock, or refused by the version check.
+ */
+public class AccountExecutors {
+    //#region Class Variables
+    private static AccountExecutors instance = null;
+
+    private ThreadPoolExecutor[] partitions = new ThreadPoolExecutor[0];
+
+    // Metrics
+    private final LongAdder requests = new LongAdder(), crossPartition = new LongAdder();
+    private volatile int deepestQueue = 0;
+    //#endregion Class Variables
+
+    //#region Constructors & Instance Methods
+    /**
+     * Constructor
+     * @implNote This constructor is private to ensure that only one instance of this class is created.
+     */
+    private AccountExecutors() {}
+
+    /**
+     * Returns the instance of this class.
+     * @return AccountExecutors The instance of this class.
+     */
+    public static synchronized AccountExecutors getInstance() {
+        if (instance == null) { instance = new AccountExecutors(); }
+        return instance;
+    }
+    //#endregion Constructors & Instance Methods
+
+    //#region Executor Methods
+    /**
+     * Starts the executors.
+     * @param count The number of partitions, 0 to run every request on the client's own thread.
+     */
+    public void configure(int count) {
+        ThreadPoolExecutor[] partitions = new ThreadPoolExecutor[Math.max(count, 0)];
+        for (int i = 0; i < partitions.length; i++) {
+            int partition = i;
+            partitions[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+                Thread thread = new Thread(runnable, "partition-" + partition);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.partitions = partitions;
+
+        if (count > 0) { System.out.println("Client requests run on " + count + " account partitions."); }
+    }
+
+    /**
+     * Runs a request on the executor that owns an account, and waits for it. Without
+     * executors, the request runs on the calling thread.
+     * @param accountNo The account number.
+     * @param request The request.
+     */
+    public void run(String accountNo, Runnable request) {
+        if (this.partitions.length == 0) {
+            request.run();
+            return;
+        }
+        await(submit(partitionOf(accountNo), request));
+    }
+
+    /**
+     * Runs a request on two accounts, such as a transfer, once it owns the executors of both.
+     * @param accountNo The first account number.
+     * @param accountNo2 The second account number.
+     * @param request The request.
+     */
+    public void run(String accountNo, String accountNo2, Runnable request) {
+        if (this.partitions.length == 0) {
+            request.run();
+            return;
+        }
+
+        int partition = partitionOf(accountNo), partition2 = partitionOf(accountNo2);
+        if (partition == partition2) {
+            await(submit(partition, request));
+            return;
+        }
+
+        ThreadPoolExecutor higher = this.partitions[Math.max(partition, partition2)];
+        this.crossPartition.increment();
+        await(submit(Math.min(partition, partition2), () -> {
+            CountDownLatch parked = new CountDownLatch(1), done = new CountDownLatch(1);
+            higher.execute(() -> {
+                parked.countDown();
+                awaitUninterruptibly(done);
+            });
+
+            awaitUninterruptibly(parked); // The higher partition is ours from here on.
+            try {
+                request.run();
+            } finally {
+                done.countDown();
+            }
+        }));
+    }
+
+    /**
+     * Returns the executor metrics.
+     * @return String The requests run, and the longest queue seen.
+     */
+    public String getStats() {
+        if (this.partitions.length == 0) { return "Executors: client threads."; }
+
+        int queued = 0;
+        for (ThreadPoolExecutor partition : this.partitions) { queued += partition.getQueue().size(); }
+        return "Executors: " + this.partitions.length + " account partitions, " + this.requests.sum() + " requests, "
+            + this.crossPartition.sum() + " across two partitions, " + queued + " queued now, " + this.deepestQueue + " queued at most on one partition.";
+    }
+    //#endregion Executor Methods
+
+    //#region Helper Methods
+    /**
+     * Returns the partition of an account.
+     */
+    private int partitionOf(String accountNo) {
+        long h = accountNo.hashCode() * 0x9E3779B97F4A7C15L; // Fibonacci hashing, account numbers are often sequential.
+        return (int) Math.floorMod(h ^ (h >>> 32), (long) this.partitions.length);
+    }
+
+    /**
+     * Queues a request on a partition.
+     */
+    private Future<?> submit(int partition, Runnable request) {
+        this.requests.increment();
+        int queued = this.partitions[partition].getQueue().size() + 1;
+        if (queued > this.deepestQueue) { this.deepestQueue = queued; }
+
+        return this.partitions[partition].submit(request);
+    }
+
+    /**
+     * Waits for a request, and rethrows what it threw on the calling thread.
+     */
+    private void await(Future<?> result) {
+        try {
+            result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) { throw (RuntimeException) e.getCause(); }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Waits on a latch, ignoring interrupts.
+     */
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        while (true) {
+            try {
+                latch.await();
+                return;
+            } catch (InterruptedException e) {
+                // The partition threads are never interrupted on purpose.
+            }
+        }
+    }
+    //#endregion Helper Methods
+}
\ No newline at end of file
@@ -1,6 +1,12 @@
 package server_k;
 
+import java.io.IOException;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import Errors.*;
 
 public class DBController {
@@ -8,6 +14,18 @@ public class DBController {
 	private String DBURL = new String();
     private static DBController dbController = null;
     private Connection db;
+    private GroupCommitter committer;
+    private WriteAheadLog wal = null; // Keeps the transactions at the wal durability level.
+    private List<String> deferredRecords = null; // Records of a batch in progress, only logged if it is kept.
+
+    public static final String BALANCE = "balance", LEDGER = "ledger";
+    private static final String CASH_ACCOUNT = "0"; // Other side of deposits and withdraws in the ledger.
+    private static final int CHECKPOINT_BATCH = 10000; // Ledger entries folded into the balances per checkpoint.
+    private boolean ledgerMode = false; // Writes only append to the ledger, balances are derived from it.
+    private long checkpointedEntry = 0; // Every ledger entry up to this one is folded into the balances.
+
+    // Metrics
+    private long checkpoints = 0, foldedAccounts = 0;
     //#endregion Class Variables
 
     //#region Constructors & Instance Methods
@@ -43,6 +61,11 @@ public class DBController {
             } catch (SQLException e) {
                 e.printStackTrace();
             }
+            addVersionColumn();
+            createLedgerTable();
+            createHotAccountTables();
+            createRegistrationOutboxTable();
+            this.committer = new GroupCommitter(this.db, this);
         } catch(Exception e){
             System.out.println("Connection to SQLite has failed: " + e.getStackTrace());
             System.exit(1); // Exit the program if the connection fails, as it is required for the program to run.
@@ -54,11 +77,487 @@ public class DBController {
      */
     public void close() {
         try {
+            this.committer.flush();
             this.db.close();
         } catch (SQLException e) {
             System.out.println("Connection closure to SQLite has failed: " + e.getStackTrace());
         }
     }
+
+    /**
+     * Adds the version column to the accounts table of databases created before accounts were versioned.
+     * Every write bumps the version, so the read servers can tell a newer balance from an older one.
+     */
+    private void addVersionColumn() {
+        try (Statement statement = this.db.createStatement()) {
+            ResultSet columns = statement.executeQuery("PRAGMA table_info(accounts)");
+            while (columns.next()) {
+                if (columns.getString("name").equals("version")) { return; }
+            }
+            statement.execute("ALTER TABLE accounts ADD COLUMN version INTEGER NOT NULL DEFAULT 0");
+            System.out.println("Added the version column to the accounts table.");
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Creates the ledger, which keeps every committed deposit, withdraw and transfer leg.
+     * Entries are never updated, and are identified by the transaction id the coordinating server gave them.
+     * In ledger mode the balance of an account is its balance as of its checkpoint_entry, plus the entries after it.
+     */
+    private void createLedgerTable() {
+        try (Statement statement = this.db.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS ledger (entry_id INTEGER PRIMARY KEY AUTOINCREMENT, txid TEXT, account_number INTEGER, "
+                + "type TEXT, amount REAL, balance REAL, counterparty INTEGER, created_at INTEGER, UNIQUE (txid, account_number))");
+            statement.execute("CREATE INDEX IF NOT EXISTS ledger_account ON ledger (account_number, entry_id)");
+            statement.execute("CREATE TABLE IF NOT EXISTS storage_state (key TEXT PRIMARY KEY, value TEXT)");
+
+            boolean checkpointed = false;
+            ResultSet columns = statement.executeQuery("PRAGMA table_info(accounts)");
+            while (columns.next()) {
+                if (columns.getString("name").equals("checkpoint_entry")) { checkpointed = true; }
+            }
+            if (!checkpointed) { statement.execute("ALTER TABLE accounts ADD COLUMN checkpoint_entry INTEGER NOT NULL DEFAULT 0"); }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Creates the tables of the hot accounts: the deposits this server accepted without the account lock,
+     * and for every server, the total it accepted and the part of it already folded into the balance.
+     */
+    private void createHotAccountTables() {
+        try (Statement statement = this.db.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS hot_deposits (account_number INTEGER, request TEXT, amount REAL, created_at INTEGER, "
+                + "PRIMARY KEY (account_number, request))");
+            statement.execute("CREATE TABLE IF NOT EXISTS hot_counters (account_number INTEGER, node_id TEXT, accepted REAL NOT NULL DEFAULT 0, "
+                + "folded REAL NOT NULL DEFAULT 0, PRIMARY KEY (account_number, node_id))");
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Creates the outbox of the registrations still to be sent to the other servers, one row per server.
+     * Rows are deleted once the server acknowledged them, and parked once it rejected them too often, see RegistrationOutbox.
+     */
+    private void createRegistrationOutboxTable() {
+        try (Statement statement = this.db.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS registration_outbox (seq INTEGER PRIMARY KEY AUTOINCREMENT, peer INTEGER, message TEXT, "
+                + "rejections INTEGER NOT NULL DEFAULT 0, parked INTEGER NOT NULL DEFAULT 0)");
+            statement.execute("CREATE INDEX IF NOT EXISTS registration_outbox_peer ON registration_outbox (peer, seq)");
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //#region Durability Methods
+    /**
+     * Sets how writes are committed to disk.
+     * @param durability The durability level: sync (commit per write), group (batched commits, acknowledged together) or async (background commits).
+     * @param window The time to gather writes before committing, in ms.
+     * @param maxBatchSize The number of writes that triggers a commit before the window is over.
+     * @throws SQLException
+     */
+    public void configureDurability(String durability, int window, int maxBatchSize) throws SQLException {
+        this.committer.configure(durability, window, maxBatchSize);
+    }
+
+    /**
+     * Opens the write-ahead log of the wal durability level, and applies again the transactions logged after
+     * the last commit, in order, before anything else runs. Must be called before configureDurability.
+     * @param directory The directory of the log segments.
+     * @param segmentSize The size of a segment, in bytes.
+     * @param flushPolicy When the log is forced to disk: always, interval or none, see WriteAheadLog.
+     * @param flushInterval The time between two forces for the interval policy, in ms.
+     * @throws SQLException If the log could not be opened or applied.
+     */
+    public synchronized void configureWriteAheadLog(String directory, long segmentSize, String flushPolicy, int flushInterval) throws SQLException {
+        try {
+            this.wal = new WriteAheadLog(directory, segmentSize, flushPolicy, flushInterval);
+        } catch (IOException e) {
+            throw new SQLException("Could not open the write-ahead log: " + e.getMessage());
+        }
+
+        long checkpoint = Long.parseLong(storageState("wal_checkpoint", "0"));
+        List<String> records = this.wal.recordsAfter(checkpoint);
+        long start = System.currentTimeMillis();
+
+        this.db.setAutoCommit(false);
+        try {
+            for (String record : records) { replayTransaction(record); }
+            setStorageState("wal_checkpoint", Long.toString(this.wal.end()));
+            this.db.commit();
+        } catch (SQLException | RuntimeException e) {
+            this.db.rollback();
+            throw new SQLException("Could not apply the write-ahead log: " + e.getMessage());
+        } finally {
+            this.db.setAutoCommit(true);
+        }
+        this.wal.checkpointed(this.wal.end());
+
+        System.out.println("Applied " + records.size() + " transactions from the write-ahead log after offset " + checkpoint + " in "
+            + (System.currentTimeMillis() - start) + "ms.");
+        this.committer.setWriteAheadLog(this.wal);
+    }
+
+    /**
+     * Blocks until all writes so far are durable. Must be called before acknowledging a write, and never from inside a synchronized method of this class.
+     * @throws SQLException If the wait was interrupted, the writes must not be acknowledged then.
+     */
+    public void awaitDurable() throws SQLException {
+        this.committer.awaitDurable();
+    }
+
+    /**
+     * Returns the group commit metrics.
+     * @return String The batch sizes and commit latencies.
+     */
+    public String getCommitStats() {
+        return this.committer.getStats() + (this.wal == null ? "" : "\n" + this.wal.getStats());
+    }
+    //#endregion Durability Methods
+
+    //#region Storage Methods
+    /**
+     * Sets how balances are stored. Called on startup, before any write.
+     * @param mode balance (writes update the balance in place) or ledger (writes append postings, balances are derived from
+     * the last checkpoint plus the postings after it, and checkpoints are folded in the background).
+     * @param checkpointInterval The time between two checkpoints in ledger mode, in ms.
+     * @throws SQLException
+     */
+    public void configureStorage(String mode, int checkpointInterval) throws SQLException {
+        if (!mode.equals(BALANCE) && !mode.equals(LEDGER)) { throw new IllegalArgumentException("Unknown storage mode: " + mode); }
+
+        synchronized (this) {
+            String previousMode = storageState("mode", BALANCE);
+            this.checkpointedEntry = Long.parseLong(storageState("checkpointed_entry", "0"));
+            if (previousMode.equals(LEDGER)) {
+                while (checkpoint(CHECKPOINT_BATCH) > 0) {} // Balances are only complete once every posting is folded in.
+            }
+
+            // Every balance includes the whole ledger at this point, the derived balances start from here.
+            try (Statement statement = this.db.createStatement()) {
+                statement.execute("UPDATE accounts SET checkpoint_entry = (SELECT COALESCE(MAX(entry_id), 0) FROM ledger)");
+            }
+            this.checkpointedEntry = lastLedgerEntry();
+            setStorageState("checkpointed_entry", Long.toString(this.checkpointedEntry));
+            setStorageState("mode", mode);
+            this.ledgerMode = mode.equals(LEDGER);
+            this.committer.written();
+        }
+        this.committer.awaitDurable();
+
+        if (!this.ledgerMode) { return; }
+
+        Thread checkpointer = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(Math.max(checkpointInterval, 1));
+                    while (checkpoint(CHECKPOINT_BATCH) == CHECKPOINT_BATCH) {} // Catch up in batches, so writes are never held up for long.
+                } catch (InterruptedException e) {
+                    return;
+                } catch (SQLException SE) {
+                    System.out.println("Checkpoint failed, retrying later: " + SE.getMessage());
+                }
+            }
+        });
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+        System.out.println("Storage set to ledger mode, checkpointing every " + checkpointInterval + "ms.");
+    }
+
+    /**
+     * Folds the next batch of ledger entries into the balances and versions of their accounts.
+     * @param maxEntries The number of entries to fold at most.
+     * @return int The number of entries folded.
+     * @throws SQLException
+     */
+    private synchronized int checkpoint(int maxEntries) throws SQLException {
+        long last = lastLedgerEntry(), upTo = Math.min(last, this.checkpointedEntry + maxEntries);
+        if (upTo <= this.checkpointedEntry) { return 0; }
+
+        String postings = "FROM ledger l WHERE l.account_number = accounts.account_number AND l.entry_id > accounts.checkpoint_entry AND l.entry_id <= ?";
+        String updateStatement = "UPDATE accounts SET balance = balance + COALESCE((SELECT SUM(l.amount) " + postings + "), 0), "
+            + "version = version + (SELECT COUNT(*) " + postings + "), checkpoint_entry = MAX(checkpoint_entry, ?) "
+            + "WHERE account_number IN (SELECT account_number FROM ledger WHERE entry_id > ? AND entry_id <= ?)";
+        PreparedStatement updateQuery = db.prepareStatement(updateStatement);
+        updateQuery.setLong(1, upTo);
+        updateQuery.setLong(2, upTo);
+        updateQuery.setLong(3, upTo);
+        updateQuery.setLong(4, this.checkpointedEntry);
+        updateQuery.setLong(5, upTo);
+        int accounts = updateQuery.executeUpdate();
+
+        int folded = (int) (upTo - this.checkpointedEntry);
+        this.checkpointedEntry = upTo;
+        setStorageState("checkpointed_entry", Long.toString(upTo));
+        this.committer.written();
+
+        this.checkpoints++;
+        this.foldedAccounts += accounts;
+        return folded;
+    }
+
+    /**
+     * Returns the storage metrics.
+     * @return String The storage mode, and how far the checkpoints are behind the ledger.
+     */
+    public synchronized String getStorageStats() {
+        if (!this.ledgerMode) { return "Storage: balance mode."; }
+
+        long last;
+        try {
+            last = lastLedgerEntry();
+        } catch (SQLException SE) {
+            last = -1;
+        }
+        return "Storage: ledger mode, checkpointed up to entry #" + this.checkpointedEntry + " of #" + last + ", "
+            + this.checkpoints + " checkpoints, " + this.foldedAccounts + " account checkpoints.";
+    }
+
+    /**
+     * Returns the balance column of the accounts, derived from the ledger in ledger mode.
+     * @return String The column, named balance.
+     */
+    private String balanceColumn() {
+        if (!this.ledgerMode) { return "balance"; }
+        return "balance + COALESCE((SELECT SUM(l.amount) FROM ledger l WHERE l.account_number = accounts.account_number "
+            + "AND l.entry_id > accounts.checkpoint_entry), 0) AS balance";
+    }
+
+    /**
+     * Returns the version column of the accounts, derived from the ledger in ledger mode (one posting per write).
+     * @return String The column, named version.
+     */
+    private String versionColumn() {
+        return this.ledgerMode ? derivedVersion() + " AS version" : "version";
+    }
+
+    /**
+     * Returns the version of an account derived from its checkpoint and the postings after it.
+     * @return String The SQL expression.
+     */
+    private String derivedVersion() {
+        return "version + (SELECT COUNT(*) FROM ledger l WHERE l.account_number = accounts.account_number "
+            + "AND l.entry_id > accounts.checkpoint_entry)";
+    }
+
+    /**
+     * Appends a posting to the ledger. A posting already recorded for the transaction and account is ignored.
+     * @param txid The id of the transaction.
+     * @param createdAt The time the coordinating server ran the transaction, in ms.
+     * @param type The type of the transaction (D, W or T).
+     * @param accountNo The account number.
+     * @param amount The amount, negative for a debit.
+     * @param balance The balance of the account after the posting.
+     * @param counterparty The account on the other side of the transaction.
+     * @throws SQLException
+     */
+    private void appendPosting(String txid, long createdAt, String type, String accountNo, double amount, double balance, String counterparty) throws SQLException {
+        String insertStatement = "INSERT OR IGNORE INTO ledger (txid, account_number, type, amount, balance, counterparty, created_at) VALUES (?,?,?,?,?,?,?)";
+        PreparedStatement insertQuery = db.prepareStatement(insertStatement);
+        insertQuery.setString(1, txid);
+        insertQuery.setString(2, accountNo);
+        insertQuery.setString(3, type);
+        insertQuery.setDouble(4, amount);
+        insertQuery.setDouble(5, balance);
+        insertQuery.setString(6, counterparty);
+        insertQuery.setLong(7, createdAt);
+        insertQuery.executeUpdate();
+    }
+
+    /**
+     * Returns the id of the last ledger entry.
+     * @return long The entry id, 0 if the ledger is empty.
+     * @throws SQLException
+     */
+    private long lastLedgerEntry() throws SQLException {
+        try (Statement statement = this.db.createStatement()) {
+            ResultSet res = statement.executeQuery("SELECT COALESCE(MAX(entry_id), 0) AS last FROM ledger");
+            return res.next() ? res.getLong("last") : 0;
+        }
+    }
+
+    /**
+     * Returns a value of the storage state.
+     * @param key The key.
+     * @param defaultValue The value returned if the key is not set.
+     * @return String The value.
+     * @throws SQLException
+     */
+    private String storageState(String key, String defaultValue) throws SQLException {
+        PreparedStatement selectQuery = db.prepareStatement("SELECT value FROM storage_state WHERE key = ?");
+        selectQuery.setString(1, key);
+        ResultSet res = selectQuery.executeQuery();
+        return res.next() ? res.getString("value") : defaultValue;
+    }
+
+    /**
+     * Sets a value of the storage state.
+     * @param key The key.
+     * @param value The value.
+     * @throws SQLException
+     */
+    private void setStorageState(String key, String value) throws SQLException {
+        PreparedStatement updateQuery = db.prepareStatement("INSERT OR REPLACE INTO storage_state (key, value) VALUES (?,?)");
+        updateQuery.setString(1, key);
+        updateQuery.setString(2, value);
+        updateQuery.executeUpdate();
+    }
+
+    /**
+     * Returns a new transaction id, which identifies the ledger entries of a transaction on every server.
+     * @return String The transaction id, see IdAllocator.
+     */
+    public String newTransactionId() {
+        return IdAllocator.getInstance().nextTransactionId();
+    }
+
+    /**
+     * Leases the next block of ids of a kind for this server, see IdAllocator.
+     * The lease is committed before it is returned, so a restarted server never hands out the same block again.
+     * @param kind The kind of id (user or account).
+     * @return long The number of the block, among the blocks of this server.
+     * @throws SQLException
+     */
+    public synchronized long leaseBlock(String kind) throws SQLException {
+        long block = Long.parseLong(storageState("lease_" + kind, "0"));
+        setStorageState("lease_" + kind, String.valueOf(block + 1));
+        this.committer.written();
+        this.committer.flush();
+        return block;
+    }
+
+    /**
+     * Returns the epoch and sequence number the read replica feed had reached, see ReadReplicaFeed.
+     * @return long[] The epoch (0 if the feed never ran on this database) and the sequence number of the last frame.
+     * @throws SQLException
+     */
+    public synchronized long[] feedState() throws SQLException {
+        return new long[] { Long.parseLong(storageState("feed_epoch", "0")), Long.parseLong(storageState("feed_seq", "0")) };
+    }
+
+    /**
+     * Records the epoch of the read replica feed, committed before it is returned.
+     * @param epoch The epoch.
+     * @throws SQLException
+     */
+    public synchronized void setFeedEpoch(long epoch) throws SQLException {
+        setStorageState("feed_epoch", Long.toString(epoch));
+        this.committer.written();
+        this.committer.flush();
+    }
+
+    /**
+     * Records the sequence number of the last frame of the read replica feed, committed before it is returned,
+     * so a read server is never sent a frame that a restarted server would number again.
+     * @param seq The sequence number.
+     * @throws SQLException
+     */
+    public synchronized void setFeedSeq(long seq) throws SQLException {
+        setStorageState("feed_seq", Long.toString(seq));
+        this.committer.written();
+        this.committer.flush();
+    }
+    //#endregion Storage Methods
+
+    //#region Hot Account Methods
+    /**
+     * Returns the id of this server, which names its counters on the hot accounts. Generated on first use.
+     * @return String The node id.
+     * @throws SQLException
+     */
+    public synchronized String nodeId() throws SQLException {
+        String nodeId = storageState("node_id", null);
+        if (nodeId == null) {
+            nodeId = UUID.randomUUID().toString().replace("-", "").substring(0, 12);
+            setStorageState("node_id", nodeId);
+            this.committer.written();
+        }
+        return nodeId;
+    }
+
+    /**
+     * Records a deposit into a hot account, accepted by this server without taking the account lock.
+     * The deposit is only added to this server's counter, the balance is left for the next fold.
+     * @param id Id of the client, who must own the account.
+     * @param accountNo The account number.
+     * @param request The random number the client sent with the deposit.
+     * @param nodeId The id of this server.
+     * @param amount The amount deposited.
+     * @param createdAt The time the deposit was accepted, in ms.
+     * @throws InvalidError If the account does not exist or belongs to someone else.
+     * @throws DuplicateTransactionError If the deposit was already accepted.
+     * @throws SQLException
+     */
+    public synchronized void recordHotDeposit(String id, String accountNo, String request, String nodeId, double amount, long createdAt)
+            throws InvalidError, DuplicateTransactionError, SQLException {
+        balance(accountNo, id);
+
+        String insertStatement = "INSERT OR IGNORE INTO hot_deposits (account_number, request, amount, created_at) VALUES (?,?,?,?)";
+        PreparedStatement insertQuery = db.prepareStatement(insertStatement);
+        insertQuery.setString(1, accountNo);
+        insertQuery.setString(2, request);
+        insertQuery.setDouble(3, amount);
+        insertQuery.setLong(4, createdAt);
+        if (insertQuery.executeUpdate() == 0) { throw new DuplicateTransactionError(); }
+
+        mergeHotCounter(accountNo, nodeId, 0, 0);
+        PreparedStatement updateQuery = db.prepareStatement("UPDATE hot_counters SET accepted = accepted + ? WHERE account_number = ? AND node_id = ?");
+        updateQuery.setDouble(1, amount);
+        updateQuery.setString(2, accountNo);
+        updateQuery.setString(3, nodeId);
+        updateQuery.executeUpdate();
+        this.committer.written();
+    }
+
+    /**
+     * Returns the counters of every server on a hot account.
+     * @param accountNo The account number.
+     * @return Map<String, double[]> The accepted and folded totals, by node id.
+     * @throws SQLException
+     */
+    public synchronized Map<String, double[]> hotCounters(String accountNo) throws SQLException {
+        Map<String, double[]> counters = new HashMap<String, double[]>();
+
+        PreparedStatement selectQuery = db.prepareStatement("SELECT node_id, accepted, folded FROM hot_counters WHERE account_number = ?");
+        selectQuery.setString(1, accountNo);
+        ResultSet res = selectQuery.executeQuery();
+        while (res.next()) {
+            counters.put(res.getString("node_id"), new double[] { res.getDouble("accepted"), res.getDouble("folded") });
+        }
+
+        return counters;
+    }
+
+    /**
+     * Merges the counter of a server on a hot account. Counters only grow, so the highest totals win.
+     * @param accountNo The account number.
+     * @param nodeId The id of the server the counter belongs to.
+     * @param accepted The total the server accepted.
+     * @param folded The part of it folded into the balance.
+     * @throws SQLException
+     */
+    public synchronized void mergeHotCounter(String accountNo, String nodeId, double accepted, double folded) throws SQLException {
+        PreparedStatement insertQuery = db.prepareStatement("INSERT OR IGNORE INTO hot_counters (account_number, node_id) VALUES (?,?)");
+        insertQuery.setString(1, accountNo);
+        insertQuery.setString(2, nodeId);
+        insertQuery.executeUpdate();
+
+        String updateStatement = "UPDATE hot_counters SET accepted = MAX(accepted, ?), folded = MAX(folded, ?) WHERE account_number = ? AND node_id = ?";
+        PreparedStatement updateQuery = db.prepareStatement(updateStatement);
+        updateQuery.setDouble(1, accepted);
+        updateQuery.setDouble(2, folded);
+        updateQuery.setString(3, accountNo);
+        updateQuery.setString(4, nodeId);
+        updateQuery.executeUpdate();
+        this.committer.written();
+    }
+    //#endregion Hot Account Methods
+
     //#region Account Methods
     /**
      * This method will get the balace of an account given the uesr id
@@ -73,7 +572,7 @@ public class DBController {
         double balance;
 
         try {
-            String selectStatement = "SELECT * FROM accounts WHERE account_number = ? AND user_id = ?";   
+            String selectStatement = "SELECT " + balanceColumn() + " FROM accounts WHERE account_number = ? AND user_id = ?";   
             PreparedStatement selectQuery = db.prepareStatement(selectStatement);
             
             selectQuery.setString(1, accountNo);
@@ -110,7 +609,7 @@ public class DBController {
         double balance; 
         
         try {
-            String selectStatement = "SELECT * FROM accounts WHERE account_number = ?";
+            String selectStatement = "SELECT " + balanceColumn() + " FROM accounts WHERE account_number = ?";
 
             PreparedStatement selectQuery = db.prepareStatement(selectStatement);
             selectQuery.setString(1, accountNo);
@@ -136,21 +635,48 @@ public class DBController {
      * @param id Id of the client 
      * @param accountNo Account number to withdraw from
      * @param amount amount to withdraw from the account
+     * @param txid The id of the transaction, or null to give it a new one
+     * @param createdAt The time the coordinating server ran the transaction, in ms
      * @return double The new balance of the account 
+     * In ledger mode, the withdraw is appended to the ledger against the cash account instead of updating the balance.
+     * Otherwise its postings are appended in the same savepoint as the balance update, see post.
      * This mehod will return a double which is balance of that account after withdraw,
      * if there is a sql error, it would return -3.0
      * if there is inavlid account number, it would return -2.0
      * if there is insufficent balance, it would return -1.0
      */
-    public synchronized double withdraw(String id, String accountNo, double amount) throws InvalidError, SQLException, LogicError {
+    public synchronized double withdraw(String id, String accountNo, double amount, String txid, long createdAt) throws InvalidError, SQLException, LogicError {
+        Statement statement = db.createStatement();
+        statement.execute("SAVEPOINT write");
+        try {
+            double balance = withdraw(id, accountNo, amount, txid == null && this.ledgerMode ? newTransactionId() : txid, createdAt, true);
+            statement.execute("RELEASE write");
+            return balance;
+        } catch (InvalidError | LogicError | SQLException e) {
+            statement.execute("ROLLBACK TO write");
+            statement.execute("RELEASE write");
+            throw e;
+        }
+    }
+
+    /**
+     * Withdraws money from an account, see withdraw. Runs inside the savepoint of the write.
+     * @param post True to append the postings of the withdraw, false if it is the debit of a transfer, which posts its own.
+     */
+    private double withdraw(String id, String accountNo, double amount, String txid, long createdAt, boolean post) throws InvalidError, SQLException, LogicError {
         double balance;
 
         try {
             balance = balance(accountNo, id);
             // Sufficient balance in the account
-            if (balance > amount) {
+            if (balance > amount && this.ledgerMode) {
                 balance = balance - amount;
-                String updateStatement = "UPDATE accounts SET balance = ? WHERE account_number = ? AND user_id = ?";
+                if (post) { post(txid, createdAt, "W", accountNo, amount, Double.toString(balance)); }
+                this.committer.logged();
+                System.out.println("Balance before withdraw: " + (balance + amount) + ", after withdraw: " + balance + " into account: " + accountNo + ".");
+            } else if (balance > amount) {
+                balance = balance - amount;
+                String updateStatement = "UPDATE accounts SET balance = ?, version = version + 1 WHERE account_number = ? AND user_id = ?";
                 PreparedStatement updateQuery = db.prepareStatement(updateStatement);
                 updateQuery.setString(1, balance + "");
                 updateQuery.setString(2, accountNo);
@@ -159,6 +685,8 @@ public class DBController {
                 // Update was successful.
                 if (updateQuery.executeUpdate() > 0) {
                     balance = this.balance(accountNo, id);
+                    if (post) { post(txid, createdAt, "W", accountNo, amount, Double.toString(balance)); }
+                    this.committer.logged();
                     System.out.println("Balance before withdraw: " + (balance + amount) + ", after withdraw: " + balance + " into account: " + accountNo + ".");
                 } else {
                     System.out.println("An invalid account number or user_id was used for withdraw, account number: " + accountNo + ".");
@@ -181,18 +709,33 @@ public class DBController {
      * @param id Id of the client 
      * @param accountNo Account number to deposit into
      * @param amount amount to deposit into the account
+     * @param txid The id of the transaction, or null to give it a new one
+     * @param createdAt The time the coordinating server ran the transaction, in ms
      * @return double return the new balance of the account 
+     * In ledger mode, the deposit is appended to the ledger against the cash account instead of updating the balance.
+     * Otherwise its postings are appended in the same savepoint as the balance update, see post.
      * This mehod will return a double which is balance of that account after deposit,
      * if there is a sql error, it would return -3.0
      * if there is inavlid account number, it would return -2.0
      * 
      */
-    public synchronized double deposit(String id, String accountNo, double amount) throws InvalidError, SQLException {
+    public synchronized double deposit(String id, String accountNo, double amount, String txid, long createdAt) throws InvalidError, SQLException {
         double balance;
+        txid = txid == null && this.ledgerMode ? newTransactionId() : txid;
 
+        Statement statement = db.createStatement();
+        statement.execute("SAVEPOINT write");
         try {
             balance = balance(accountNo, id) + amount;
-            String updateStatement = "UPDATE accounts SET balance = ? WHERE account_number = ? AND user_id = ?";
+            if (this.ledgerMode) {
+                post(txid, createdAt, "D", accountNo, amount, Double.toString(balance));
+                statement.execute("RELEASE write");
+                this.committer.logged();
+                System.out.println("Balance before deposit: " + (balance - amount) + ", after deposit: " + balance + " into account: " + accountNo + ".");
+                return balance;
+            }
+
+            String updateStatement = "UPDATE accounts SET balance = ?, version = version + 1 WHERE account_number = ? AND user_id = ?";
 
             PreparedStatement updateQuery = db.prepareStatement(updateStatement);
             updateQuery.setString(1, balance + "");
@@ -201,14 +744,19 @@ public class DBController {
 
             if (updateQuery.executeUpdate() > 0) {
                 balance = this.balance(accountNo, id);
+                post(txid, createdAt, "D", accountNo, amount, Double.toString(balance));
+                statement.execute("RELEASE write");
+                this.committer.logged();
                 System.out.println("Balance before deposit: " + (balance - amount) + ", after deposit: " + balance + " into account: " + accountNo + ".");
             } else {
                 System.out.println("An invalid account number or user_id was used for deposit, account number: " + accountNo + ".");
                 throw new InvalidError();
             }  
-        } catch(SQLException SE) {
-            System.out.println("Error in SQL query for deposit.");
-            throw SE;
+        } catch(InvalidError | SQLException e) {
+            if (e instanceof SQLException) { System.out.println("Error in SQL query for deposit."); }
+            statement.execute("ROLLBACK TO write");
+            statement.execute("RELEASE write");
+            throw e;
         }
 
         return balance;
@@ -227,12 +775,12 @@ public class DBController {
      * if there is a sql error, it would return -3.0
      * if there is inavlid account number, it would return -2.0
      */
-    public double depositForTransfer(String accountNo, double amount) throws InvalidError, SQLException {
+    public synchronized double depositForTransfer(String accountNo, double amount) throws InvalidError, SQLException {
         double balance;
 
         try {
             balance = balanceForTransfer(accountNo) + amount;
-            String updateStatement = "UPDATE accounts SET balance = ? WHERE account_number = ?";
+            String updateStatement = "UPDATE accounts SET balance = ?, version = version + 1 WHERE account_number = ?";
 
             // there should be no id check when we deposit money, as we should be able to make deposit in any account
             PreparedStatement updateQuery = db.prepareStatement(updateStatement);
@@ -240,6 +788,7 @@ public class DBController {
             updateQuery.setString(2, accountNo);
 
             if (updateQuery.executeUpdate() > 0) {
+                this.committer.logged();
                 balance = this.balanceForTransfer(accountNo);
                 System.out.println("Balance before deposit (transfer): " + (balance - amount) + ", after deposit (transfer): " + balance + " into account: " + accountNo + ".");
             } else {
@@ -260,7 +809,11 @@ public class DBController {
      * @param fromAccountNo Account to transfer from
      * @param toAccountNo Account to transfer to
      * @param amount Amount to transfer
+     * @param txid The id of the transaction, or null to give it a new one
+     * @param createdAt The time the coordinating server ran the transaction, in ms
      * @return String The new balance of both accounts 
+     * In ledger mode, the transfer is appended to the ledger as a debit and a credit posting instead.
+     * Otherwise both postings are appended in the same savepoint as the two balance updates, see post.
      * This method is to facilitate transfer from account to another account
      * from account has to be of the person who log in, so we need to verify user_id
      * and hence call withdraw() method to remove money from fromAccount
@@ -269,22 +822,282 @@ public class DBController {
      * need to verify the user_id for the account we make transfer into
      * 
      */
-    public synchronized String transfer(String id, String fromAccountNo, String toAccountNo, double amount) throws InvalidError, SQLException, LogicError, DestinationError {
+    public synchronized String transfer(String id, String fromAccountNo, String toAccountNo, double amount, String txid, long createdAt) throws InvalidError, SQLException, LogicError, DestinationError {
         String fromBalance;
         String toBalance;
         double fromStatus, toStatus;
-        
-        fromStatus = this.withdraw(id, fromAccountNo, amount);
-        fromBalance = Double.toString(fromStatus);
+
+        if (this.ledgerMode) {
+            fromStatus = balance(fromAccountNo, id) - amount;
+            if (fromStatus + amount <= amount) {
+                System.out.println("Insufficient balance for transfer.");
+                throw new LogicError();
+            }
+            if (accountVersion(toAccountNo) < 0) { throw new DestinationError(); }
+            toStatus = balanceForTransfer(toAccountNo) + amount;
+
+            txid = txid == null ? newTransactionId() : txid;
+            Statement statement = db.createStatement();
+            statement.execute("SAVEPOINT write");
+            try {
+                post(txid, createdAt, "T", fromAccountNo + "," + toAccountNo, amount, fromStatus + " " + toStatus);
+                statement.execute("RELEASE write");
+            } catch (SQLException SE) {
+                statement.execute("ROLLBACK TO write");
+                statement.execute("RELEASE write");
+                throw SE;
+            }
+            this.committer.logged();
+
+            return fromStatus + " " + toStatus;
+        }
+
+        Statement statement = db.createStatement();
+        statement.execute("SAVEPOINT write");
         try {
-            toStatus = this.depositForTransfer(toAccountNo, amount);
-        } catch(InvalidError IE) {
-            throw new DestinationError();
+            fromStatus = this.withdraw(id, fromAccountNo, amount, txid, createdAt, false);
+            fromBalance = Double.toString(fromStatus);
+            try {
+                toStatus = this.depositForTransfer(toAccountNo, amount);
+            } catch(InvalidError IE) {
+                throw new DestinationError();
+            }
+            toBalance = Double.toString(toStatus);
+
+            post(txid, createdAt, "T", fromAccountNo + "," + toAccountNo, amount, fromBalance + " " + toBalance);
+            statement.execute("RELEASE write");
+        } catch (InvalidError | LogicError | DestinationError | SQLException e) {
+            statement.execute("ROLLBACK TO write"); // The from account is not debited without the credit, nor either without the postings.
+            statement.execute("RELEASE write");
+            throw e;
         }
-        toBalance = Double.toString(toStatus);
 
         return fromBalance + " " + toBalance; // This is the balance of the account where we transfered from, and the account where we transfered to
     }
+
+    /**
+     * Checks that a transaction can run against the current state of its accounts, without running it.
+     * Used by an optimistic write before it is sent to the other servers, see OccManager.
+     * @param id Id of the client, who must own the account (the from account of a transfer).
+     * @param account The account number, or "from,to" for a transfer.
+     * @param type The type of the transaction (D, W or T).
+     * @param amount The amount of the transaction.
+     * @throws InvalidError If the account does not exist or belongs to someone else.
+     * @throws LogicError If the balance is insufficient for a withdraw or a transfer.
+     * @throws DestinationError If the account transferred to does not exist.
+     * @throws SQLException
+     */
+    public synchronized void checkTransaction(String id, String account, String type, double amount) throws InvalidError, LogicError, DestinationError, SQLException {
+        String[] accounts = account.split(",");
+        double balance = balance(accounts[0], id);
+
+        if (!type.equals("D") && !(balance > amount)) { throw new LogicError(); }
+        if (type.equals("T") && (accounts.length < 2 || accountVersion(accounts[1]) < 0)) { throw new DestinationError(); }
+    }
+
+    /**
+     * Appends a transaction to the write-ahead log, and returns its ledger entries: one per account, debits negative, credits positive.
+     * The write itself already appended them to the ledger, in the same savepoint as its balance update, see post.
+     * A transaction that could not be appended to the write-ahead log must not be acknowledged.
+     * @param txid The id of the transaction, the same on every server.
+     * @param createdAt The time the coordinating server ran the transaction, in ms.
+     * @param type The type of the transaction (D, W or T).
+     * @param account The account number, or "from,to" for a transfer.
+     * @param amount The amount of the transaction.
+     * @param result The new balance of the account, or "fromBalance toBalance" for a transfer.
+     * @return List<String> The entries of the customer accounts, formatted as "txid account type amount balance counterparty created_at".
+     * @throws SQLException If the transaction could not be appended to the write-ahead log.
+     */
+    public synchronized List<String> recordTransaction(String txid, long createdAt, String type, String account, double amount, String result) throws SQLException {
+        List<String> entries = entriesOf(txid, createdAt, type, account, amount, result);
+
+        try {
+            logTransaction(txid, createdAt, type, account, amount, result);
+        } catch (SQLException SE) {
+            System.out.println("Error in SQL query for recordTransaction.");
+            throw SE;
+        }
+
+        return entries;
+    }
+
+    /**
+     * Appends the postings of a write to the ledger, in the savepoint of the write, so the balance is never
+     * updated without them. A write without a transaction id is not recorded, and has no postings.
+     * @param account The account number, or "from,to" for a transfer.
+     * @param result The new balance of the account, or "fromBalance toBalance" for a transfer.
+     * @throws SQLException If the postings could not be written, the write must then be rolled back.
+     */
+    private void post(String txid, long createdAt, String type, String account, double amount, String result) throws SQLException {
+        if (txid == null) { return; }
+        appendPostings(txid, createdAt, type, account, amount, entriesOf(txid, createdAt, type, account, amount, result));
+    }
+
+    /**
+     * Returns the entries of the customer accounts of a transaction.
+     * @return List<String> The entries, formatted as "txid account type amount balance counterparty created_at".
+     */
+    private List<String> entriesOf(String txid, long createdAt, String type, String account, double amount, String result) {
+        List<String> entries = new ArrayList<String>();
+        String[] accounts = account.split(","), balances = result.split(" ");
+
+        if (type.equals("T")) {
+            entries.add(txid + " " + accounts[0] + " T " + (-amount) + " " + balances[0] + " " + accounts[1] + " " + createdAt);
+            entries.add(txid + " " + accounts[1] + " T " + amount + " " + balances[1] + " " + accounts[0] + " " + createdAt);
+        } else {
+            entries.add(txid + " " + account + " " + type + " " + (type.equals("W") ? -amount : amount) + " " + balances[0] + " " + CASH_ACCOUNT + " " + createdAt);
+        }
+        return entries;
+    }
+
+    /**
+     * Appends the postings of a transaction, the entries of its customer accounts and the leg on the cash account.
+     * @param entries The entries of the customer accounts, see entriesOf.
+     * @throws SQLException
+     */
+    private void appendPostings(String txid, long createdAt, String type, String account, double amount, List<String> entries) throws SQLException {
+        for (String entry : entries) {
+            String[] entryTokens = entry.split(" ");
+            appendPosting(txid, createdAt, type, entryTokens[1], Double.parseDouble(entryTokens[3]), Double.parseDouble(entryTokens[4]), entryTokens[5]);
+        }
+        if (!type.equals("T")) { appendPosting(txid, createdAt, type, CASH_ACCOUNT, type.equals("W") ? amount : -amount, 0, account); }
+    }
+
+    /**
+     * Appends a transaction to the write-ahead log, with the balance and version its accounts have now.
+     * Formatted as "txid created_at type account amount balance[,balance] account:balance:version[,...]",
+     * the states being "-" in ledger mode, where the postings are the balances.
+     * @throws SQLException If the log could not be written.
+     */
+    private void logTransaction(String txid, long createdAt, String type, String account, double amount, String result) throws SQLException {
+        if (this.wal == null) { return; }
+
+        StringBuilder states = new StringBuilder();
+        if (!this.ledgerMode) {
+            PreparedStatement selectQuery = db.prepareStatement("SELECT balance, version FROM accounts WHERE account_number = ?");
+            for (String accountNo : account.split(",")) {
+                selectQuery.setString(1, accountNo);
+                ResultSet res = selectQuery.executeQuery();
+                if (res.next()) { states.append(states.length() == 0 ? "" : ",").append(accountNo + ":" + res.getDouble("balance") + ":" + res.getLong("version")); }
+            }
+        }
+
+        String record = txid + " " + createdAt + " " + type + " " + account + " " + amount + " " + result.replace(' ', ',') + " " + (states.length() == 0 ? "-" : states);
+        if (this.deferredRecords != null) {
+            this.deferredRecords.add(record);
+            return;
+        }
+        try {
+            this.wal.append(record);
+        } catch (IOException e) {
+            throw new SQLException("Could not append to the write-ahead log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Applies a transaction of the write-ahead log again, on startup. Applying it twice changes nothing:
+     * an account only takes the state of the record if its version is older, and postings are only appended once.
+     * @param record The record, see logTransaction.
+     * @throws SQLException
+     */
+    private void replayTransaction(String record) throws SQLException {
+        String[] recordTokens = record.split(" ");
+        String txid = recordTokens[0], type = recordTokens[2], account = recordTokens[3], result = recordTokens[5].replace(',', ' ');
+        long createdAt = Long.parseLong(recordTokens[1]);
+        double amount = Double.parseDouble(recordTokens[4]);
+
+        if (!recordTokens[6].equals("-")) {
+            PreparedStatement updateQuery = db.prepareStatement("UPDATE accounts SET balance = ?, version = ? WHERE account_number = ? AND version < ?");
+            for (String state : recordTokens[6].split(",")) {
+                String[] stateTokens = state.split(":");
+                updateQuery.setString(1, stateTokens[1]);
+                updateQuery.setLong(2, Long.parseLong(stateTokens[2]));
+                updateQuery.setString(3, stateTokens[0]);
+                updateQuery.setLong(4, Long.parseLong(stateTokens[2]));
+                updateQuery.executeUpdate();
+            }
+        }
+
+        appendPostings(txid, createdAt, type, account, amount, entriesOf(txid, createdAt, type, account, amount, result));
+    }
+
+    /**
+     * Runs the items of a batch in one SQLite transaction, each under its own savepoint, see BatchManager.
+     * With the all-or-nothing semantics, the first item that fails rolls back the whole batch.
+     * Otherwise a failed item is rolled back on its own, and the others still apply.
+     * @param id Id of the client, who must own the accounts debited.
+     * @param items The items, as {type, account ("from,to" for a transfer), amount, txid}. A null txid is given a new one.
+     * @param atomic True for all-or-nothing, false for best-effort.
+     * @param createdAt The time the coordinating server ran the batch, in ms.
+     * @param entries Receives the ledger entries of the items that applied, to queue for the read servers.
+     * @return String[] Per item, the new balance(s) as returned by the write, or INVALID, FUNDS, DESTINATION, ERROR or ABORTED.
+     * @throws SQLException If the batch itself could not be started or committed.
+     */
+    public synchronized String[] applyBatch(String id, List<String[]> items, boolean atomic, long createdAt, List<String> entries) throws SQLException {
+        String[] results = new String[items.size()];
+        List<String> applied = new ArrayList<String>();
+        Statement statement = db.createStatement();
+
+        statement.execute("SAVEPOINT batch");
+        List<String> records = new ArrayList<String>();
+        this.deferredRecords = records; // An atomic batch may still be rolled back after its items are recorded.
+        try {
+            for (int i = 0; i < items.size(); i++) {
+                String[] item = items.get(i);
+                String[] accounts = item[1].split(",");
+                double amount = Double.parseDouble(item[2]);
+                if (item[3] == null) { item[3] = newTransactionId(); }
+
+                statement.execute("SAVEPOINT item");
+                try {
+                    switch (item[0]) {
+                        case "D":
+                            results[i] = Double.toString(deposit(id, item[1], amount, item[3], createdAt));
+                            break;
+                        case "W":
+                            results[i] = Double.toString(withdraw(id, item[1], amount, item[3], createdAt));
+                            break;
+                        default:
+                            results[i] = transfer(id, accounts[0], accounts[1], amount, item[3], createdAt);
+                            break;
+                    }
+                    applied.addAll(recordTransaction(item[3], createdAt, item[0], item[1], amount, results[i]));
+                    statement.execute("RELEASE item");
+                } catch (InvalidError | LogicError | DestinationError | SQLException e) {
+                    statement.execute("ROLLBACK TO item");
+                    statement.execute("RELEASE item");
+                    results[i] = e instanceof InvalidError ? "INVALID" : e instanceof LogicError ? "FUNDS" : e instanceof DestinationError ? "DESTINATION" : "ERROR";
+
+                    if (atomic) {
+                        for (int j = 0; j < results.length; j++) { if (j != i) { results[j] = "ABORTED"; } }
+                        statement.execute("ROLLBACK TO batch");
+                        statement.execute("RELEASE batch");
+                        return results;
+                    }
+                }
+            }
+            statement.execute("RELEASE batch");
+        } catch (SQLException SE) {
+            System.out.println("Error in SQL query for applyBatch.");
+            statement.execute("ROLLBACK TO batch");
+            statement.execute("RELEASE batch");
+            throw SE;
+        } finally {
+            this.deferredRecords = null;
+        }
+
+        for (String record : records) {
+            try {
+                this.wal.append(record);
+            } catch (IOException e) {
+                throw new SQLException("Could not append to the write-ahead log: " + e.getMessage());
+            }
+        }
+
+        entries.addAll(applied);
+        this.committer.logged();
+        return results;
+    }
     //#endregion Account methods
 
     //#region Login and Register methods
@@ -321,6 +1134,8 @@ public class DBController {
     
     /**
      * Register a new account with the system given user information
+     * The id comes from the IdAllocator, so it is unique across the servers. An id already
+     * taken by a user registered before ids were allocated is skipped.
      * @param username username to register with
      * @param password password to register with
      * @param firstName firstname to register with
@@ -328,27 +1143,29 @@ public class DBController {
      * @param email email to register with
      * @return int id of newly registered user
      */
-    public int register(String username, String password, String firstName, String lastName, String email) throws LogicError, SQLException {
+    public synchronized int register(String username, String password, String firstName, String lastName, String email) throws LogicError, SQLException {
         try {
-            String selectStatement = "INSERT INTO users (username, password, first_name, last_name, email) VALUES (?,?,?,?,?);";
-            PreparedStatement updateQuery = db.prepareStatement(selectStatement);
-            updateQuery.setString(1, username);
-            updateQuery.setString(2, password);
-            updateQuery.setString(3, firstName);
-            updateQuery.setString(4, lastName);
-            updateQuery.setString(5, email);
-            
-            int rows = updateQuery.executeUpdate();
-            System.out.println(rows + " rows inserted.");
-
-            // Retrieve the generated keys
-            ResultSet rs = updateQuery.getGeneratedKeys();
-            if (rs.next()) {
-               int id = rs.getInt(1);
-               return id;
-            }
+            String insertStatement = "INSERT OR IGNORE INTO users (id, username, password, first_name, last_name, email) VALUES (?,?,?,?,?,?);";
+            PreparedStatement updateQuery = db.prepareStatement(insertStatement);
+            updateQuery.setString(2, username);
+            updateQuery.setString(3, password);
+            updateQuery.setString(4, firstName);
+            updateQuery.setString(5, lastName);
+            updateQuery.setString(6, email);
 
-            throw new LogicError();
+            IdAllocator idAllocator = IdAllocator.getInstance();
+            while (true) {
+                int id = idAllocator.nextUserId();
+                updateQuery.setInt(1, id);
+
+                int rows = updateQuery.executeUpdate();
+                if (rows > 0) {
+                    this.committer.written();
+                    System.out.println(rows + " rows inserted.");
+                    return id;
+                }
+                idAllocator.skipped();
+            }
         } catch(SQLException SE) {
             SE.printStackTrace();
             throw SE;
@@ -364,11 +1181,17 @@ public class DBController {
     * @param lastName lastname  to register with
     * @param email email to register with
     * @param accountNumber New account number with newly registered user
-    * @return boolean true or false if the register and create account is successful
+    * @return boolean true if the user and account are registered, also when a resent registration finds them already there,
+    * false if the id, username or account number belongs to another user
     */
-    public boolean registerAndCreateAccountForSync(int id, String username, String password, String firstName, String lastName, String email, String accountNumber) throws SQLException {
+    public synchronized boolean registerAndCreateAccountForSync(int id, String username, String password, String firstName, String lastName, String email, String accountNumber) throws SQLException {
         try {
-            String insertStatement_1 = "INSERT INTO users (id, username, password, first_name, last_name, email) VALUES (?,?,?,?,?,?);";
+            PreparedStatement ownerQuery = db.prepareStatement("SELECT user_id FROM accounts WHERE account_number = ?");
+            ownerQuery.setString(1, accountNumber);
+            ResultSet owner = ownerQuery.executeQuery();
+            if (owner.next() && owner.getInt("user_id") != id) { return false; } // Checked first, so a conflict writes nothing.
+
+            String insertStatement_1 = "INSERT OR IGNORE INTO users (id, username, password, first_name, last_name, email) VALUES (?,?,?,?,?,?);";
             PreparedStatement updateQuery_1 = db.prepareStatement(insertStatement_1);
             updateQuery_1.setInt(1, id);
             updateQuery_1.setString(2, username);
@@ -377,15 +1200,24 @@ public class DBController {
             updateQuery_1.setString(5, lastName);
             updateQuery_1.setString(6, email);
 
-            if (updateQuery_1.executeUpdate() < 0) { return false; }
+            if (updateQuery_1.executeUpdate() == 0) { // A registration can be resent, the user may already be there.
+                PreparedStatement userQuery = db.prepareStatement("SELECT username FROM users WHERE id = ?");
+                userQuery.setInt(1, id);
+                ResultSet user = userQuery.executeQuery();
+                if (!user.next() || !user.getString("username").equals(username)) { return false; }
+            }
+            this.committer.written();
 
-            String insertStatement_2 = "INSERT INTO accounts (account_number, user_id, balance) VALUES (?,?,?);";
+            String insertStatement_2 = "INSERT OR IGNORE INTO accounts (account_number, user_id, balance) VALUES (?,?,?);";
             PreparedStatement updateQuery_2 = db.prepareStatement(insertStatement_2);
             updateQuery_2.setString(1, accountNumber);
             updateQuery_2.setInt(2, id);
             updateQuery_2.setString(3, 0.0 + "");
 
-            return updateQuery_2.executeUpdate() > 0;
+            updateQuery_2.executeUpdate(); // Already there if the registration was resent, checked above.
+            this.committer.written();
+
+            return true;
         } catch(SQLException SE) {
             SE.printStackTrace();
             throw SE;
@@ -394,45 +1226,136 @@ public class DBController {
 
     /**
      * Create a new account associated with a specific client Id
+     * The account number comes from the IdAllocator, so it is unique across the servers. A number
+     * already taken by an account created before numbers were allocated is skipped.
      * @param id user id to associate new account with 
      * @return String newly created account number 
      */
-    public String createAccount(int id) throws SQLException {
+    public synchronized String createAccount(int id) throws SQLException {
         try {
-            String selectStatement = "SELECT * FROM accounts WHERE account_number = ?";
-            PreparedStatement selectQuery = db.prepareStatement(selectStatement);
-            StringBuilder accountNumber;
-            
-            while (true) {
-                accountNumber = new StringBuilder();
-
-                for(int i = 0; i < 10; i++) {
-                    accountNumber.append((int) (Math.random() * 10));
-                }
-
-                selectQuery.setString(1, accountNumber.toString());
-                ResultSet res = selectQuery.executeQuery();
-
-                if (!res.next()) { break; }
-            }    
-
-            String insertStatement = "INSERT INTO accounts (account_number, user_id, balance) VALUES (?,?,?);";
+            String insertStatement = "INSERT OR IGNORE INTO accounts (account_number, user_id, balance) VALUES (?,?,?);";
             PreparedStatement updateQuery = db.prepareStatement(insertStatement);
-
-            updateQuery.setString(1, accountNumber.toString());
             updateQuery.setInt(2, id);
             updateQuery.setString(3, 0.0 + "");
 
-            if (updateQuery.executeUpdate() > 0) {
-                return accountNumber.toString();
-            } else {
-                return "false";
+            IdAllocator idAllocator = IdAllocator.getInstance();
+            while (true) {
+                String accountNumber = idAllocator.nextAccountNumber();
+                updateQuery.setString(1, accountNumber);
+
+                if (updateQuery.executeUpdate() > 0) {
+                    this.committer.written();
+                    return accountNumber;
+                }
+                idAllocator.skipped();
             }
         } catch(SQLException SE) {
             SE.printStackTrace();
             throw SE;
         }
     }
+
+    /**
+     * Registers a new user with a new account, and queues the registration for the other servers, in a single
+     * transaction: the user, its account and its place in the outbox are either all written, or none of them.
+     * @param username username to register with
+     * @param password password to register with
+     * @param firstName firstname to register with
+     * @param lastName lastname to register with
+     * @param email email to register with
+     * @param peers The number of other servers.
+     * @return String[] The id of the new user and its account number.
+     * @throws SQLException If any of them could not be written, nothing is then written.
+     */
+    public synchronized String[] registerAndQueue(String username, String password, String firstName, String lastName, String email, int peers) throws SQLException {
+        Statement statement = db.createStatement();
+        statement.execute("SAVEPOINT registration");
+        try {
+            int id = register(username, password, firstName, lastName, email);
+            String accountNumber = createAccount(id);
+            queueRegistration("R " + id + " " + username + " " + password + " " + firstName + " " + lastName + " " + email + " " + accountNumber, peers);
+            statement.execute("RELEASE registration");
+            return new String[] { Integer.toString(id), accountNumber };
+        } catch (LogicError | SQLException e) {
+            System.out.println("Error in SQL query for registerAndQueue.");
+            statement.execute("ROLLBACK TO registration");
+            statement.execute("RELEASE registration");
+            throw e instanceof SQLException ? (SQLException) e : new SQLException("Could not register " + username + ".");
+        }
+    }
+
+    /**
+     * Queues a registration for the other servers, see RegistrationOutbox.
+     * @param message The registration, formatted as an "R" request.
+     * @param peers The number of other servers.
+     * @throws SQLException
+     */
+    public synchronized void queueRegistration(String message, int peers) throws SQLException {
+        PreparedStatement insertQuery = db.prepareStatement("INSERT INTO registration_outbox (peer, message) VALUES (?,?)");
+        for (int peer = 0; peer < peers; peer++) {
+            insertQuery.setInt(1, peer);
+            insertQuery.setString(2, message);
+            insertQuery.executeUpdate();
+        }
+        this.committer.written();
+    }
+
+    /**
+     * Returns the oldest registrations still to be sent to a server, parked registrations aside.
+     * @param peer The index of the server.
+     * @param limit The number of registrations returned at most.
+     * @return List<String[]> The registrations, in the order they were queued, as {seq, message}.
+     * @throws SQLException
+     */
+    public synchronized List<String[]> queuedRegistrations(int peer, int limit) throws SQLException {
+        PreparedStatement selectQuery = db.prepareStatement("SELECT seq, message FROM registration_outbox WHERE peer = ? AND parked = 0 ORDER BY seq LIMIT ?");
+        selectQuery.setInt(1, peer);
+        selectQuery.setInt(2, limit);
+
+        List<String[]> registrations = new ArrayList<String[]>();
+        ResultSet res = selectQuery.executeQuery();
+        while (res.next()) { registrations.add(new String[] { res.getString("seq"), res.getString("message") }); }
+        return registrations;
+    }
+
+    /**
+     * Removes the registrations a server acknowledged.
+     * @param peer The index of the server.
+     * @param upTo The seq of the last registration acknowledged.
+     * @throws SQLException
+     */
+    public synchronized void dequeueRegistrations(int peer, long upTo) throws SQLException {
+        PreparedStatement deleteQuery = db.prepareStatement("DELETE FROM registration_outbox WHERE peer = ? AND seq <= ?");
+        deleteQuery.setInt(1, peer);
+        deleteQuery.setLong(2, upTo);
+        deleteQuery.executeUpdate();
+        this.committer.written();
+    }
+
+    /**
+     * Counts a rejection of a registration by a server, and parks the registration once it was rejected too often.
+     * A parked registration stays in the outbox, but is no longer sent.
+     * @param peer The index of the server.
+     * @param seq The seq of the registration.
+     * @param maxRejections The rejections after which the registration is parked.
+     * @return boolean True if the registration is now parked, false otherwise.
+     * @throws SQLException
+     */
+    public synchronized boolean rejectRegistration(int peer, long seq, int maxRejections) throws SQLException {
+        PreparedStatement updateQuery = db.prepareStatement("UPDATE registration_outbox SET rejections = rejections + 1, "
+            + "parked = CASE WHEN rejections + 1 >= ? THEN 1 ELSE 0 END WHERE peer = ? AND seq = ?");
+        updateQuery.setInt(1, maxRejections);
+        updateQuery.setInt(2, peer);
+        updateQuery.setLong(3, seq);
+        updateQuery.executeUpdate();
+        this.committer.written();
+
+        PreparedStatement selectQuery = db.prepareStatement("SELECT parked FROM registration_outbox WHERE peer = ? AND seq = ?");
+        selectQuery.setInt(1, peer);
+        selectQuery.setLong(2, seq);
+        ResultSet res = selectQuery.executeQuery();
+        return res.next() && res.getInt("parked") == 1;
+    }
     //#endregion Login/Register Methods
 
     //#region Overwrite Database Methods
@@ -448,19 +1371,19 @@ public class DBController {
 	    
         //Create new tables SQL query
 	    String createTablesSQL = "CREATE TABLE users (id INTEGER PRIMARY KEY, username TEXT, password TEXT, first_name TEXT, last_name TEXT, email TEXT);" +
-	            "CREATE TABLE accounts (account_number INTEGER PRIMARY KEY, user_id INTEGER, balance REAL, FOREIGN KEY (user_id) REFERENCES users(id));";
+	            "CREATE TABLE accounts (account_number INTEGER PRIMARY KEY, user_id INTEGER, balance REAL, version INTEGER NOT NULL DEFAULT 0, checkpoint_entry INTEGER NOT NULL DEFAULT 0, FOREIGN KEY (user_id) REFERENCES users(id));";
 	    
 	    String dumpSQL = "O\n" +  dropTablesSQL + createTablesSQL;
 
 	    StringBuilder dumpBuilder = new StringBuilder();
 
-	    // Dump the 'accounts' table data
-	    try (ResultSet resultSet = db.createStatement().executeQuery("SELECT * FROM accounts")) {
+	    // Dump the 'accounts' table data, with the balances derived from the ledger in ledger mode
+	    try (ResultSet resultSet = db.createStatement().executeQuery("SELECT account_number, user_id, " + balanceColumn() + ", " + versionColumn() + " FROM accounts")) {
 	        ResultSetMetaData metaData = resultSet.getMetaData();
 	        int columnCount = metaData.getColumnCount();
 
 	        while (resultSet.next()) {
-	            dumpBuilder.append("INSERT INTO accounts VALUES (");
+	            dumpBuilder.append("INSERT INTO accounts (account_number, user_id, balance, version) VALUES (");
 
 	            for (int i = 1; i <= columnCount; i++) {
 	                if (i > 1) {
@@ -518,6 +1441,11 @@ public class DBController {
                 }
             }
 
+            if (this.ledgerMode) { // The dumped balances already include every posting of the local ledger.
+                statement.execute("UPDATE accounts SET checkpoint_entry = (SELECT COALESCE(MAX(entry_id), 0) FROM ledger)");
+            }
+
+            this.committer.written();
             System.out.println("Overwrite successful");
             return true;
         } catch (SQLException SE) {
@@ -527,26 +1455,39 @@ public class DBController {
     }
 
     /**
-     * Updates the balance of the account with the given account number, for situations where the balance is not in sync with the other servers.
+     * Updates the balance of the account with the given account number, and raises its version to the one agreed on.
      * @param accountNo The account number to be overwritten.
      * @param balance The new balance of the account.
-     * @return boolean If the account was successfully overwritten.
+     * @param version The version of the new balance. An account at a newer version is left as it is: corrections travel
+     * over different connections and can arrive out of order, a late one must not put an older balance back.
+     * @return boolean True if the account was overwritten, false if it is at a newer version.
+     * In ledger mode, the new balance replaces the checkpoint of the account, and the postings so far are no longer added to it.
      */
-	public boolean overwriteAccount(String accountNo, Double balance) throws InvalidError, SQLException {
+	public synchronized boolean overwriteAccount(String accountNo, Double balance, long version) throws InvalidError, SQLException {
         System.out.println("Overwriting account: " + accountNo + " with amount " + balance);
 
-        String updateStatement = "UPDATE accounts SET balance = ? WHERE account_number = ?";
+        String updateStatement = "UPDATE accounts SET balance = ?, version = ? WHERE account_number = ? AND version <= ?";
+        if (this.ledgerMode) {
+            updateStatement = "UPDATE accounts SET balance = ?, version = ?, "
+                + "checkpoint_entry = (SELECT COALESCE(MAX(entry_id), 0) FROM ledger) WHERE account_number = ? AND " + derivedVersion() + " <= ?";
+        }
         // there should be no id check when we deposit money, as we should be able to make deposit in any account
         PreparedStatement updateQuery;
 
 		try {
 			updateQuery = db.prepareStatement(updateStatement);
 	        updateQuery.setString(1, balance + "");
-	        updateQuery.setString(2, accountNo);
+	        updateQuery.setLong(2, version);
+	        updateQuery.setString(3, accountNo);
+	        updateQuery.setLong(4, version);
 
 	        if (updateQuery.executeUpdate() > 0) {
+	            this.committer.written();
 	            System.out.println("Overwrote account with new balance : " + balance);
 	            return true;
+	        } else if (accountVersion(accountNo) >= 0) {
+	            System.out.println("Kept account #" + accountNo + ", it is at a newer version than " + version + ".");
+	            return false;
 	        } else {
 	            System.out.println("Invalid account number for depositForTransfer.");
 	            throw new InvalidError();
@@ -556,5 +1497,184 @@ public class DBController {
             throw SE;
 		}
 	}
+
+    /**
+     * Returns the current state of the given accounts, used by a recovering node to verify its own copy.
+     * @param accountNos The account numbers to look up.
+     * @return String The states formatted as "account:user_id:balance:version", comma separated. Unknown accounts are left out.
+     * @throws SQLException
+     */
+    public String accountStates(String[] accountNos) throws SQLException {
+        StringBuilder states = new StringBuilder();
+
+        try {
+            String selectStatement = "SELECT user_id, " + balanceColumn() + ", " + versionColumn() + " FROM accounts WHERE account_number = ?";
+            PreparedStatement selectQuery = db.prepareStatement(selectStatement);
+
+            for (String accountNo : accountNos) {
+                selectQuery.setString(1, accountNo);
+                ResultSet res = selectQuery.executeQuery();
+
+                if (res.next()) {
+                    if (states.length() > 0) { states.append(","); }
+                    states.append(accountNo + ":" + res.getInt("user_id") + ":" + res.getDouble("balance") + ":" + res.getLong("version"));
+                }
+            }
+        } catch (SQLException SE) {
+            System.out.println("Error in SQL query for accountStates.");
+            throw SE;
+        }
+
+        return states.toString();
+    }
+
+    /**
+     * Returns the version of an account, which is bumped by every write.
+     * @param accountNo The account number.
+     * @return long The version of the account, or -1 if the account does not exist.
+     * @throws SQLException
+     */
+    public long accountVersion(String accountNo) throws SQLException {
+        try {
+            String selectStatement = "SELECT " + versionColumn() + " FROM accounts WHERE account_number = ?";
+            PreparedStatement selectQuery = db.prepareStatement(selectStatement);
+            selectQuery.setString(1, accountNo);
+
+            ResultSet res = selectQuery.executeQuery();
+            return res.next() ? res.getLong("version") : -1;
+        } catch (SQLException SE) {
+            System.out.println("Error in SQL query for accountVersion.");
+            throw SE;
+        }
+    }
+
+    /**
+     * Returns a page of account numbers in ascending order, used by the recovery sweeper.
+     * @param after Only account numbers greater than this are returned.
+     * @param limit The maximum number of account numbers to return.
+     * @return List<String> The account numbers.
+     * @throws SQLException
+     */
+    public List<String> accountNumbersAfter(long after, int limit) throws SQLException {
+        List<String> accountNos = new ArrayList<String>();
+
+        try {
+            String selectStatement = "SELECT account_number FROM accounts WHERE account_number > ? ORDER BY account_number LIMIT ?";
+            PreparedStatement selectQuery = db.prepareStatement(selectStatement);
+            selectQuery.setLong(1, after);
+            selectQuery.setInt(2, limit);
+
+            ResultSet res = selectQuery.executeQuery();
+            while (res.next()) {
+                accountNos.add(res.getString("account_number"));
+            }
+        } catch (SQLException SE) {
+            System.out.println("Error in SQL query for accountNumbersAfter.");
+            throw SE;
+        }
+
+        return accountNos;
+    }
+
+    /**
+     * Returns a page of users in ascending id order, used to send a snapshot to a read server.
+     * @param after Only users with a greater id are returned.
+     * @param limit The maximum number of users to return.
+     * @return List<String> The users formatted as "id username password first_name last_name email", like a registration.
+     * @throws SQLException
+     */
+    public List<String> usersAfter(long after, int limit) throws SQLException {
+        List<String> users = new ArrayList<String>();
+
+        try {
+            String selectStatement = "SELECT * FROM users WHERE id > ? ORDER BY id LIMIT ?";
+            PreparedStatement selectQuery = db.prepareStatement(selectStatement);
+            selectQuery.setLong(1, after);
+            selectQuery.setInt(2, limit);
+
+            ResultSet res = selectQuery.executeQuery();
+            while (res.next()) {
+                users.add(res.getInt("id") + " " + res.getString("username") + " " + res.getString("password") + " "
+                    + res.getString("first_name") + " " + res.getString("last_name") + " " + res.getString("email"));
+            }
+        } catch (SQLException SE) {
+            System.out.println("Error in SQL query for usersAfter.");
+            throw SE;
+        }
+
+        return users;
+    }
+
+    /**
+     * Returns a page of ledger entries of the customer accounts in the order they were appended, used to send a snapshot to a read server.
+     * @param after Only entries appended after this entry id are returned.
+     * @param limit The maximum number of entries to return.
+     * @return List<String> The entries formatted as "entry_id txid account type amount balance counterparty created_at".
+     * @throws SQLException
+     */
+    public List<String> ledgerAfter(long after, int limit) throws SQLException {
+        List<String> entries = new ArrayList<String>();
+
+        try {
+            String selectStatement = "SELECT * FROM ledger WHERE entry_id > ? AND account_number != " + CASH_ACCOUNT + " ORDER BY entry_id LIMIT ?";
+            PreparedStatement selectQuery = db.prepareStatement(selectStatement);
+            selectQuery.setLong(1, after);
+            selectQuery.setInt(2, limit);
+
+            ResultSet res = selectQuery.executeQuery();
+            while (res.next()) {
+                entries.add(res.getLong("entry_id") + " " + res.getString("txid") + " " + res.getLong("account_number") + " "
+                    + res.getString("type") + " " + res.getDouble("amount") + " " + res.getDouble("balance") + " "
+                    + res.getLong("counterparty") + " " + res.getLong("created_at"));
+            }
+        } catch (SQLException SE) {
+            System.out.println("Error in SQL query for ledgerAfter.");
+            throw SE;
+        }
+
+        return entries;
+    }
+
+    /**
+     * Overwrites (or inserts, if it is missing locally) an account with the state pulled from the other servers.
+     * @param accountNo The account number to restore.
+     * @param userId The id of the user owning the account.
+     * @param balance The balance agreed on by the other servers.
+     * @param version The version of the balance agreed on by the other servers.
+     * @return boolean If the account was successfully restored. In ledger mode, the local postings so far are no longer added to it.
+     * @throws SQLException
+     */
+    public synchronized boolean restoreAccount(String accountNo, int userId, double balance, long version) throws SQLException {
+        try {
+            String updateStatement = "UPDATE accounts SET balance = ?, user_id = ?, version = ?, "
+                + "checkpoint_entry = (SELECT COALESCE(MAX(entry_id), 0) FROM ledger) WHERE account_number = ?";
+            PreparedStatement updateQuery = db.prepareStatement(updateStatement);
+            updateQuery.setString(1, balance + "");
+            updateQuery.setInt(2, userId);
+            updateQuery.setLong(3, version);
+            updateQuery.setString(4, accountNo);
+
+            if (updateQuery.executeUpdate() > 0) {
+                this.committer.written();
+                return true;
+            }
+
+            String insertStatement = "INSERT INTO accounts (account_number, user_id, balance, version, checkpoint_entry) "
+                + "VALUES (?,?,?,?,(SELECT COALESCE(MAX(entry_id), 0) FROM ledger));";
+            PreparedStatement insertQuery = db.prepareStatement(insertStatement);
+            insertQuery.setString(1, accountNo);
+            insertQuery.setInt(2, userId);
+            insertQuery.setString(3, balance + "");
+            insertQuery.setLong(4, version);
+
+            boolean inserted = insertQuery.executeUpdate() > 0;
+            this.committer.written();
+
+            return inserted;
+        } catch (SQLException SE) {
+            SE.printStackTrace();
+            throw SE;
+        }
+    }
     //#endregion Overwrite Database Methods
 }
\ No newline at end of file
@@ -0,0 +1,403 @@
+package server_k;
+
+import Errors.*;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HotAccounts Class
+ *
+ * Deposits into hot accounts (eg. a popular merchant) are accepted without the
+ * account lock: deposits commute, only debits need the exact balance. Every
+ * server adds the deposits it accepts to its own counter on the account, and the
+ * counters of all servers are merged by keeping the highest totals, so they can be
+ * exchanged in any order.
+ *
+ * The accepted deposits are folded into the balance by a regular locked deposit,
+ * periodically and before every debit of the account. A fold carries the counters
+ * it folded, so every server knows which deposits are already in the balance.
+ * Balances read on the write servers include the deposits not folded yet, the read
+ * servers only see them once folded.
+ */
+public class HotAccounts {
+    //#region Class Variables
+    private static HotAccounts instance = null;
+    private static final double EPSILON = 1e-9; // Amounts below this are rounding left overs of the counters.
+
+    private final Set<String> hotAccounts = ConcurrentHashMap.newKeySet();
+    private final Map<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private DBController db = null;
+    private String nodeId = null;
+    private SocketHandler peerHandler = null, peerHandler2 = null;
+
+    // Metrics
+    private final LongAdder deposits = new LongAdder();
+    private long folds = 0, failedFolds = 0;
+    private double foldedAmount = 0;
+    //#endregion Class Variables
+
+    //#region Constructors & Instance Methods
+    /**
+     * Constructor
+     * @implNote This constructor is private to ensure that only one instance of this class is created.
+     */
+    private HotAccounts() {
+        try {
+            this.db = DBController.getInstance();
+            this.nodeId = this.db.nodeId();
+        } catch (SQLException SE) {
+            System.out.println("Could not read the node id of this server: " + SE.getMessage());
+        }
+    }
+
+    /**
+     * Returns the instance of this class.
+     * @return HotAccounts The instance of this class.
+     */
+    public static synchronized HotAccounts getInstance() {
+        if (instance == null) { instance = new HotAccounts(); }
+        return instance;
+    }
+    //#endregion Constructors & Instance Methods
+
+    //#region Hot Account Methods
+    /**
+     * Flags the hot accounts, and starts folding their deposits in the background.
+     * Every write server should be given the same accounts.
+     * @param accounts The hot account numbers, comma separated.
+     * @param foldInterval The time between two folds of an account, in ms.
+     */
+    public void configure(String accounts, int foldInterval) {
+        for (String accountNo : accounts.split(",")) {
+            if (!accountNo.trim().isEmpty()) { this.hotAccounts.add(accountNo.trim()); }
+        }
+        if (this.hotAccounts.isEmpty()) { return; }
+
+        Thread folder = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(Math.max(foldInterval, 1));
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                for (String accountNo : this.hotAccounts) {
+                    if (pending(accountNo) < EPSILON) { continue; }
+                    try {
+                        fold(accountNo);
+                    } catch (InvalidError | LogicError | SQLException e) {
+                        System.out.println("Could not fold the deposits of hot account #" + accountNo + ", retrying later.");
+                    }
+                }
+            }
+        });
+        folder.setDaemon(true);
+        folder.start();
+        System.out.println("Hot accounts " + this.hotAccounts + " take deposits without the account lock, folded every " + foldInterval + "ms.");
+    }
+
+    /**
+     * Checks if deposits into an account are taken without the account lock.
+     * @param accountNo The account number.
+     * @return boolean True if the account is hot, false otherwise.
+     */
+    public boolean isHot(String accountNo) {
+        return this.hotAccounts.contains(accountNo);
+    }
+
+    /**
+     * Accepts a deposit into a hot account. It is committed to this server's counter only, and
+     * reaches the balance on every server with the next fold.
+     * @param id Id of the client.
+     * @param accountNo The account number.
+     * @param amount The amount to deposit.
+     * @param randomNumber Random number generated by the client.
+     * @return double The balance of the account, including the deposits not folded yet.
+     */
+    public double deposit(String id, String accountNo, double amount, String randomNumber) throws InvalidError, DuplicateTransactionError, SQLException {
+        Counter counter = counter(accountNo);
+
+        this.db.recordHotDeposit(id, accountNo, randomNumber, this.nodeId, amount, System.currentTimeMillis());
+        counter.local.add(amount);
+        this.deposits.increment();
+
+        this.db.awaitDurable(); // Only acknowledge once the deposit is committed.
+        return balance(id, accountNo);
+    }
+
+    /**
+     * Returns the balance of a hot account, including the deposits not folded yet.
+     * @param id Id of the client.
+     * @param accountNo The account number.
+     * @return double The balance.
+     */
+    public double balance(String id, String accountNo) throws InvalidError, SQLException {
+        return this.db.balance(accountNo, id) + pending(accountNo);
+    }
+
+    /**
+     * Folds every deposit accepted into a hot account, by any server this one knows of, into its balance.
+     * Called before a debit, so the debit sees every deposit acknowledged before it started.
+     * @param accountNo The account number.
+     */
+    public void fold(String accountNo) throws InvalidError, LogicError, SQLException {
+        Counter counter = counter(accountNo);
+
+        synchronized (counter.folding) {
+            for (String state : pullStates(accountNo)) { merge(accountNo, state); }
+            if (pending(accountNo) < EPSILON) { return; }
+
+            String[] accountState = this.db.accountStates(new String[] { accountNo }).split(":");
+            if (accountState.length < 4) { throw new InvalidError(); }
+            String owner = accountState[1]; // The fold is a deposit by the owner, as on any other deposit.
+
+            LockManager lockManager = LockManager.getInstance();
+            String txid = lockManager.newTransactionId();
+            lockManager.awaitUnlocked(accountNo);
+            try {
+                if (!lockManager.lock(accountNo, "H", txid)) { throw new LogicError(); }
+            } catch (DuplicateTransactionError DTE) {
+                throw new LogicError();
+            }
+
+            // Folds that completed while we waited for the lock are already in the counters.
+            double amount;
+            String folded;
+            synchronized (counter) {
+                counter.accepted.put(this.nodeId, counter.local.sum()); // The amount and the counters must match.
+                amount = pendingLocked(counter);
+                folded = stateLocked(counter, true);
+            }
+
+            long createdAt = System.currentTimeMillis();
+
+            String result;
+            try {
+                result = Double.toString(this.db.deposit(owner, accountNo, amount, txid, createdAt));
+            } catch (InvalidError | SQLException e) {
+                lockManager.release(accountNo, "H", txid); // The fold failed, nothing else would unlock the account.
+                throw e;
+            }
+            merge(accountNo, folded);
+            SQLException notLogged = null;
+            try {
+                lockManager.recordTransaction(txid, createdAt, "D", accountNo, amount, result);
+            } catch (SQLException SE) {
+                notLogged = SE; // Still replicated, so every server releases its lock.
+            }
+
+            String response = lockManager.unlock(owner, accountNo, "H", amount, result, txid, createdAt, folded);
+            synchronized (this) {
+                if (response.startsWith("true")) {
+                    this.folds++;
+                    this.foldedAmount += amount;
+                } else {
+                    this.failedFolds++;
+                }
+            }
+            if (!response.startsWith("true")) { throw new LogicError(); }
+            if (notLogged != null) { throw notLogged; }
+        }
+    }
+
+    /**
+     * Returns the counters of a hot account, as sent to the other servers.
+     * @param accountNo The account number.
+     * @return String The counters formatted as "node:accepted:folded", comma separated, or "-" if there are none.
+     */
+    public String state(String accountNo) {
+        Counter counter = counter(accountNo);
+
+        synchronized (counter) {
+            counter.accepted.put(this.nodeId, counter.local.sum());
+            return stateLocked(counter, false);
+        }
+    }
+
+    /**
+     * Merges the counters of a hot account reported by another server, or carried by a fold.
+     * @param accountNo The account number.
+     * @param state The counters, formatted as in state().
+     */
+    public void merge(String accountNo, String state) throws SQLException {
+        if (state == null || state.equals("-")) { return; }
+        Counter counter = counter(accountNo);
+
+        for (String nodeState : state.split(",")) {
+            String[] stateTokens = nodeState.split(":");
+            String node = stateTokens[0];
+            double accepted = Double.parseDouble(stateTokens[1]), folded = Double.parseDouble(stateTokens[2]);
+
+            synchronized (counter) {
+                if (!node.equals(this.nodeId)) { // Nobody knows our own deposits better than we do.
+                    accepted = Math.max(accepted, counter.accepted.getOrDefault(node, 0.0));
+                    counter.accepted.put(node, accepted);
+                }
+                folded = Math.max(folded, counter.folded.getOrDefault(node, 0.0));
+                counter.folded.put(node, folded);
+            }
+            this.db.mergeHotCounter(accountNo, node, node.equals(this.nodeId) ? 0 : accepted, folded);
+        }
+    }
+
+    /**
+     * Returns the metrics of the hot accounts.
+     * @return String The deposits taken and the folds run.
+     */
+    public synchronized String getStats() {
+        if (this.hotAccounts.isEmpty()) { return "Hot accounts: none."; }
+        return "Hot accounts: " + this.hotAccounts.size() + " accounts, " + this.deposits.sum() + " deposits taken without the lock, "
+            + this.folds + " folds of $" + this.foldedAmount + " in total, " + this.failedFolds + " failed folds.";
+    }
+    //#endregion Hot Account Methods
+
+    //#region Helper Methods
+    /**
+     * Returns the amount accepted into a hot account and not folded into its balance yet.
+     * @param accountNo The account number.
+     * @return double The amount.
+     */
+    private double pending(String accountNo) {
+        Counter counter = counter(accountNo);
+
+        synchronized (counter) {
+            counter.accepted.put(this.nodeId, counter.local.sum());
+            return pendingLocked(counter);
+        }
+    }
+
+    /**
+     * Returns the amount accepted and not folded yet, as of the last time the local deposits were read.
+     * @implNote The caller must hold the monitor of the counter.
+     * @param counter The counters of the account.
+     * @return double The amount.
+     */
+    private double pendingLocked(Counter counter) {
+        double pending = 0;
+        for (Map.Entry<String, Double> accepted : counter.accepted.entrySet()) {
+            pending += Math.max(0, accepted.getValue() - counter.folded.getOrDefault(accepted.getKey(), 0.0));
+        }
+        return pending;
+    }
+
+    /**
+     * Formats the counters, as of the last time the local deposits were read.
+     * @implNote The caller must hold the monitor of the counter.
+     * @param counter The counters of the account.
+     * @param folded True to report every accepted deposit as folded, for a fold.
+     * @return String The counters formatted as "node:accepted:folded", comma separated, or "-" if there are none.
+     */
+    private String stateLocked(Counter counter, boolean folded) {
+        StringBuilder state = new StringBuilder();
+        for (Map.Entry<String, Double> accepted : counter.accepted.entrySet()) {
+            double foldedAmount = counter.folded.getOrDefault(accepted.getKey(), 0.0);
+            if (folded) { foldedAmount = Math.max(foldedAmount, accepted.getValue()); }
+
+            if (state.length() > 0) { state.append(","); }
+            state.append(accepted.getKey() + ":" + accepted.getValue() + ":" + foldedAmount);
+        }
+        return state.length() == 0 ? "-" : state.toString();
+    }
+
+    /**
+     * Returns the counters of an account, loading them from the database the first time.
+     * @param accountNo The account number.
+     * @return Counter The counters.
+     */
+    private Counter counter(String accountNo) {
+        return this.counters.computeIfAbsent(accountNo, key -> {
+            Counter counter = new Counter();
+            try {
+                for (Map.Entry<String, double[]> stored : this.db.hotCounters(key).entrySet()) {
+                    if (stored.getKey().equals(this.nodeId)) {
+                        counter.local.add(stored.getValue()[0]);
+                    } else {
+                        counter.accepted.put(stored.getKey(), stored.getValue()[0]);
+                    }
+                    counter.folded.put(stored.getKey(), stored.getValue()[1]);
+                }
+            } catch (SQLException SE) {
+                System.out.println("Could not load the counters of hot account #" + key + ": " + SE.getMessage());
+            }
+            return counter;
+        });
+    }
+
+    /**
+     * Asks the other servers for their counters on a hot account.
+     * @param accountNo The account number.
+     * @return String[] The counters of the servers that answered.
+     */
+    private String[] pullStates(String accountNo) {
+        synchronized (this) {
+            if (this.peerHandler == null) { this.peerHandler = connect(LockManager.getInstance().socketHandler); }
+            if (this.peerHandler2 == null) { this.peerHandler2 = connect(LockManager.getInstance().socketHandler2); }
+        }
+
+        String state1 = query(this.peerHandler, "HC " + accountNo), state2 = query(this.peerHandler2, "HC " + accountNo);
+        if (state1 == null) { return state2 == null ? new String[0] : new String[] { state2 }; }
+        return state2 == null ? new String[] { state1 } : new String[] { state1, state2 };
+    }
+
+    /**
+     * Opens a dedicated connection to another server, so counter requests never interleave with the lock traffic.
+     * @param lockHandler The socket handler the LockManager uses for that server.
+     * @return SocketHandler The new socket handler, or null if the server is unreachable.
+     */
+    private SocketHandler connect(SocketHandler lockHandler) {
+        if (lockHandler == null) { return null; }
+
+        try {
+            return new SocketHandler(lockHandler.getHost(), Integer.parseInt(lockHandler.getPort()));
+        } catch (Exception e) {
+            System.out.println("Hot accounts could not connect to " + lockHandler.getHost() + ":" + lockHandler.getPort() + ".");
+            return null;
+        }
+    }
+
+    /**
+     * Sends a counter request to another server.
+     * @param handler The socket handler of the other server.
+     * @param request The counter request.
+     * @return String The counters, or null if the server did not answer.
+     */
+    private String query(SocketHandler handler, String request) {
+        if (handler == null) { return null; }
+
+        synchronized (handler) {
+            try {
+                handler.send(request);
+                String[] responseTokens = handler.readLine().split(" ");
+                return responseTokens[0].equals("true") && responseTokens.length > 1 ? responseTokens[1] : null;
+            } catch (IOException e) {
+                System.out.println("Counter request to " + handler.getHost() + ":" + handler.getPort() + " failed, reconnecting.");
+                try {
+                    handler.reconnect();
+                } catch (IOException e1) {
+                    System.out.println("Hot accounts could not reconnect to " + handler.getHost() + ":" + handler.getPort() + ".");
+                }
+                return null;
+            } catch (NullPointerException e) { // The handler never managed to connect.
+                return null;
+            }
+        }
+    }
+    //#endregion Helper Methods
+
+    /**
+     * The counters of a hot account, guarded by the counter itself.
+     */
+    private static class Counter {
+        final DoubleAdder local = new DoubleAdder(); // Deposits accepted by this server, striped so they never contend.
+        final Map<String, Double> accepted = new HashMap<String, Double>(); // Totals accepted by every server, as last heard.
+        final Map<String, Double> folded = new HashMap<String, Double>(); // Part of those totals already in the balance.
+        final Object folding = new Object(); // Held while this server folds the account.
+    }
+}
\ No newline at end of file
@@ -0,0 +1,163 @@
+package server_k;
+
+import java.sql.SQLException;
+
+/**
+ * IdAllocator Class
+ *
+ * Hands out user ids, account numbers and transaction ids without asking the
+ * database or the other servers, so no two servers ever pick the same one.
+ *
+ * Every server has a node index, unique in the cluster. User ids and account
+ * numbers are cut into blocks, and the blocks are dealt out to the nodes in
+ * turn: node n leases blocks n, n + NODES, n + 2 * NODES, ... A lease is saved
+ * before its first id is handed out, so a restarted server moves on to its next
+ * block instead of reusing one.
+ *
+ * Transaction ids are Snowflake ids: the time in ms since EPOCH, the node index
+ * and a sequence within the ms, packed into one long.
+ */
+public class IdAllocator {
+    //#region Class Variables
+    private static IdAllocator instance = null;
+    public static final int NODES = 1024; // Node indexes are 0 to NODES - 1, 10 bits of a transaction id.
+    private static final int USER_BLOCK = 100, ACCOUNT_BLOCK = 1000; // Ids leased at a time.
+    private static final long FIRST_ACCOUNT = 1000000000L, LAST_ACCOUNT = 9999999999L; // Account numbers have 10 digits.
+    private static final long EPOCH = 1577836800000L; // 2020-01-01, the start of the transaction id clock.
+    private static final int NODE_BITS = 10, SEQUENCE_BITS = 12;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+
+    private volatile int node = -1;
+    private final Object clock = new Object(); // Guards the transaction ids, which are taken while the database is locked.
+    private long nextUser = 0, lastUser = -1, nextAccount = 0, lastAccount = -1; // The ids left in the current leases.
+    private long lastMillis = -1, sequence = 0; // Of the last transaction id.
+
+    // Metrics
+    private long users = 0, accounts = 0, transactions = 0, leases = 0, skipped = 0, clockWaits = 0;
+    //#endregion Class Variables
+
+    //#region Constructors & Instance Methods
+    /**
+     * Constructor
+     * @implNote This constructor is private to ensure that only one instance of this class is created.
+     */
+    private IdAllocator() {}
+
+    /**
+     * Returns the instance of this class.
+     * @return IdAllocator The instance of this class.
+     */
+    public static synchronized IdAllocator getInstance() {
+        if (instance == null) { instance = new IdAllocator(); }
+        return instance;
+    }
+    //#endregion Constructors & Instance Methods
+
+    //#region Allocation Methods
+    /**
+     * Sets the node index of this server.
+     * A derived index could collide with another server's, so the index must be given.
+     * @param node The node index, unique in the cluster.
+     * @throws IllegalArgumentException If the node index is out of range.
+     */
+    public synchronized void configure(int node) {
+        if (node < 0 || node >= NODES) { throw new IllegalArgumentException("the node index must be between 0 and " + (NODES - 1) + ", give every server its own with -ni."); }
+        this.node = node;
+    }
+
+    /**
+     * Returns a new user id.
+     * @return int The user id.
+     * @throws SQLException If a new block could not be leased.
+     */
+    public synchronized int nextUserId() throws SQLException {
+        if (this.nextUser > this.lastUser) {
+            long first = (lease("user") * NODES + node()) * USER_BLOCK + 1;
+            if (first + USER_BLOCK - 1 > Integer.MAX_VALUE) { throw new SQLException("No user ids are left for node " + node() + "."); }
+            this.nextUser = first;
+            this.lastUser = first + USER_BLOCK - 1;
+        }
+
+        this.users++;
+        return (int) this.nextUser++;
+    }
+
+    /**
+     * Returns a new account number.
+     * @return String The account number, 10 digits.
+     * @throws SQLException If a new block could not be leased.
+     */
+    public synchronized String nextAccountNumber() throws SQLException {
+        if (this.nextAccount > this.lastAccount) {
+            long first = FIRST_ACCOUNT + (lease("account") * NODES + node()) * ACCOUNT_BLOCK;
+            if (first + ACCOUNT_BLOCK - 1 > LAST_ACCOUNT) { throw new SQLException("No account numbers are left for node " + node() + "."); }
+            this.nextAccount = first;
+            this.lastAccount = first + ACCOUNT_BLOCK - 1;
+        }
+
+        this.accounts++;
+        return String.valueOf(this.nextAccount++);
+    }
+
+    /**
+     * Returns a new transaction id, which identifies the ledger entries of a transaction on every server.
+     * Waits for the clock if it went back, or if the sequence of the current ms is used up.
+     * @return String The transaction id.
+     * @throws IllegalStateException If the server was not configured, its ids would collide with node 0's.
+     */
+    public String nextTransactionId() {
+        long node = node(); // Set at startup, never leases, so it never waits for the database.
+        synchronized (this.clock) {
+            long now = System.currentTimeMillis();
+            if (now < this.lastMillis || (now == this.lastMillis && this.sequence == MAX_SEQUENCE)) {
+                this.clockWaits++;
+                while (now <= this.lastMillis) {
+                    Thread.onSpinWait();
+                    now = System.currentTimeMillis();
+                }
+            }
+
+            this.sequence = now == this.lastMillis ? this.sequence + 1 : 0;
+            this.lastMillis = now;
+            this.transactions++;
+            return String.valueOf(((now - EPOCH) << (NODE_BITS + SEQUENCE_BITS)) | (node << SEQUENCE_BITS) | this.sequence);
+        }
+    }
+
+    /**
+     * Counts an id that was already taken, by a row written before ids were allocated.
+     */
+    public synchronized void skipped() {
+        this.skipped++;
+    }
+
+    /**
+     * Returns the allocation metrics.
+     * @return String The ids handed out, and the blocks leased.
+     */
+    public synchronized String getStats() {
+        synchronized (this.clock) { return "Ids of node " + this.node + ": " + this.users + " users, " + this.accounts + " accounts, " + this.transactions + " transactions, "
+            + this.leases + " blocks leased, " + this.skipped + " ids already taken, " + this.clockWaits + " waits for the clock."; }
+    }
+    //#endregion Allocation Methods
+
+    //#region Helper Methods
+    /**
+     * Returns the node index.
+     * @throws IllegalStateException If the server was not configured.
+     */
+    private int node() {
+        if (this.node < 0) { throw new IllegalStateException("The node index of this server is not set."); }
+        return this.node;
+    }
+
+    /**
+     * Leases the next block of ids of a kind for this node.
+     * @return long The number of the block, among the blocks of this node.
+     */
+    private long lease(String kind) throws SQLException {
+        this.leases++;
+        return DBController.getInstance().leaseBlock(kind);
+    }
+    //#endregion Helper Methods
+}
\ No newline at end of file
@@ -0,0 +1,400 @@
+package server_k;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * IdempotencyStore Class
+ *
+ * Remembers the responses of the writes of every client session, so a write the
+ * client resends (after a timeout, or to another server after a failover) is
+ * answered with its original response instead of running twice.
+ *
+ * Writes are keyed by the client's session id and a sequence number the client
+ * increases with every request, sent as "session:sequence" where a random number
+ * used to be. Each session keeps the responses of its last few sequences; the
+ * sessions are kept in an open addressing table of primitive arrays, bounded in
+ * size, and a session unused for longer than the window is forgotten. The
+ * session id is mixed with the id of the logged in user, so a session id another
+ * user reuses is a different session, and never gets this user's responses.
+ *
+ * A write resent while its first run is still going waits for it, for a while: if
+ * it is still not done, it is answered BUSY, and the client asks again later. It is
+ * never run a second time.
+ *
+ * Every response is also sent to the other servers in the background, so they
+ * can answer the resent write too.
+ */
+public class IdempotencyStore {
+    //#region Class Variables
+    private static IdempotencyStore instance = null;
+    public static final String IN_PROGRESS = "BUSY"; // Answer to a resent write whose first run is still going, the client resends it later.
+    private static final int RECENT = 16; // Responses kept per session, twice the writes BankClient has in flight per session.
+    private static final long WAIT = 10 * 1000; // Time a resent write waits for the original to finish, in ms.
+    private static final long FREE = 0; // Marks a free slot, session ids are never 0.
+
+    private long window = 10 * 60 * 1000; // Time a session is remembered after its last write, in ms.
+    private int maxSessions = 16384;
+
+    // Per session, the table has twice as many slots as sessions so probes stay short.
+    private long[] sessions = new long[0], lastUsed = new long[0], highest = new long[0];
+    // Per session, RECENT entries: the sequence, and its response (null while the write runs).
+    private long[] sequences = new long[0];
+    private String[] responses = new String[0];
+    private int size = 0, mask = 0;
+
+    private final LinkedBlockingQueue<String> outbox = new LinkedBlockingQueue<String>(); // Responses to send to the other servers.
+    private SocketHandler peer = null, peer2 = null; // Connections of the sender thread.
+
+    // Metrics
+    private long replays = 0, expired = 0, evictions = 0;
+    //#endregion Class Variables
+
+    //#region Constructors & Instance Methods
+    /**
+     * Constructor
+     * @implNote This constructor is private to ensure that only one instance of this class is created.
+     */
+    private IdempotencyStore() {
+        allocate(this.maxSessions);
+    }
+
+    /**
+     * Returns the instance of this class.
+     * @return IdempotencyStore The instance of this class.
+     */
+    public static synchronized IdempotencyStore getInstance() {
+        if (instance == null) { instance = new IdempotencyStore(); }
+        return instance;
+    }
+    //#endregion Constructors & Instance Methods
+
+    //#region Store Methods
+    /**
+     * Sizes the store and starts sending the responses to the other servers.
+     * @param maxSessions The number of sessions remembered at most.
+     * @param window The time a session is remembered after its last write, in ms.
+     */
+    public synchronized void configure(int maxSessions, long window) {
+        this.maxSessions = Math.max(maxSessions, 1);
+        this.window = Math.max(window, 1);
+        allocate(this.maxSessions);
+
+        Thread sender = new Thread(this::sendLoop, "idempotency-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Returns the idempotency key of a write request, scoped to the user who sent it.
+     * @param userId The id of the logged in user, empty if the client is not logged in.
+     * @param clientRequestTokens The request.
+     * @return String The "session:sequence" key, or null if the request is not a write, or carries a plain random number.
+     */
+    public static String keyOf(String userId, String[] clientRequestTokens) {
+        int position;
+        switch (clientRequestTokens[0]) {
+            case "D":
+            case "W":
+                position = 3;
+                break;
+            case "T":
+                position = 4;
+                break;
+            case "BATCH":
+                position = 2;
+                break;
+            default:
+                return null;
+        }
+
+        if (clientRequestTokens.length <= position) { return null; }
+        long[] key = parse(clientRequestTokens[position]);
+        if (key == null) { return null; }
+
+        long session = key[0] ^ (userId.hashCode() * 0x9E3779B97F4A7C15L); // The same on every server, so replicated responses match.
+        return Long.toHexString(session == FREE ? key[0] : session) + ":" + key[1];
+    }
+
+    /**
+     * Starts a write. If the write was already run, waits for it to finish and returns its response.
+     * @param requestKey The key of the write, or null.
+     * @return String The response of the earlier run, DTE if it is too old to be remembered, IN_PROGRESS if the earlier
+     * run is still going after the wait, or null if the write should run.
+     */
+    public synchronized String begin(String requestKey) {
+        long[] key = parse(requestKey);
+        if (key == null) { return null; }
+
+        long deadline = System.currentTimeMillis() + WAIT;
+        while (true) {
+            int slot = slotOf(key[0]);
+            int entry = slot * RECENT + (int) (key[1] % RECENT);
+            this.lastUsed[slot] = System.currentTimeMillis();
+
+            if (this.sequences[entry] == key[1]) {
+                if (this.responses[entry] != null) {
+                    this.replays++;
+                    return this.responses[entry];
+                }
+
+                long remaining = deadline - System.currentTimeMillis(); // Still running, the client resent it early.
+                if (remaining <= 0) { return IN_PROGRESS; }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return IN_PROGRESS;
+                }
+                continue;
+            }
+
+            if (key[1] <= this.highest[slot] - RECENT) { // Its response is no longer kept, but it did run.
+                this.expired++;
+                return "DTE";
+            }
+
+            this.sequences[entry] = key[1];
+            this.responses[entry] = null;
+            this.highest[slot] = Math.max(this.highest[slot], key[1]);
+            return null;
+        }
+    }
+
+    /**
+     * Finishes a write started with begin, and sends its response to the other servers.
+     * @param requestKey The key of the write, or null.
+     * @param response The response to the client.
+     * @return String The response, unchanged.
+     */
+    public String complete(String requestKey, String response) {
+        long[] key = parse(requestKey);
+        if (key == null) { return response; }
+
+        record(key[0], key[1], response);
+        this.outbox.offer("IK " + Long.toHexString(key[0]) + " " + key[1] + " " + Base64.getEncoder().encodeToString(response.getBytes(StandardCharsets.UTF_8)));
+        return response;
+    }
+
+    /**
+     * Forgets a write started with begin that failed without a response, so a resent write runs it
+     * again instead of being answered BUSY until the client gives up.
+     * @param requestKey The key of the write, or null.
+     */
+    public synchronized void abandon(String requestKey) {
+        long[] key = parse(requestKey);
+        if (key == null) { return; }
+
+        int slot = find(key[0]);
+        if (slot < 0) { return; }
+        int entry = slot * RECENT + (int) (key[1] % RECENT);
+        if (this.sequences[entry] == key[1] && this.responses[entry] == null) {
+            this.sequences[entry] = -1;
+            notifyAll(); // A resent write waiting for it runs it now.
+        }
+    }
+
+    /**
+     * Remembers the response of a write run by another server.
+     * @param replicationTokens The tokens of the request: IK session sequence base64(response)
+     */
+    public void replicated(String[] replicationTokens) {
+        long session = Long.parseUnsignedLong(replicationTokens[1], 16), sequence = Long.parseLong(replicationTokens[2]);
+        if (session == FREE) { return; }
+
+        record(session, sequence, new String(Base64.getDecoder().decode(replicationTokens[3]), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the idempotency metrics.
+     * @return String The sessions remembered, and the writes answered from the store.
+     */
+    public synchronized String getStats() {
+        return "Idempotency: " + this.size + " sessions of at most " + this.maxSessions + ", " + this.replays + " resent writes answered from the store, "
+            + this.expired + " too old to answer, " + this.evictions + " sessions evicted, " + this.outbox.size() + " responses waiting to be sent.";
+    }
+    //#endregion Store Methods
+
+    //#region Helper Methods
+    /**
+     * Parses a "session:sequence" key.
+     * @return long[] {session, sequence}, or null if the key is not one.
+     */
+    private static long[] parse(String requestKey) {
+        if (requestKey == null) { return null; }
+
+        int separator = requestKey.indexOf(':');
+        if (separator < 0) { return null; }
+        try {
+            long session = Long.parseUnsignedLong(requestKey.substring(0, separator), 16), sequence = Long.parseLong(requestKey.substring(separator + 1));
+            return session == FREE || sequence < 0 ? null : new long[] { session, sequence };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores a response, and wakes up a resent write waiting for it.
+     */
+    private synchronized void record(long session, long sequence, String response) {
+        int slot = slotOf(session);
+        int entry = slot * RECENT + (int) (sequence % RECENT);
+        if (sequence < this.sequences[entry]) { return; } // A newer write already took the entry.
+
+        this.sequences[entry] = sequence;
+        this.responses[entry] = response;
+        this.highest[slot] = Math.max(this.highest[slot], sequence);
+        this.lastUsed[slot] = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    /**
+     * Returns the slot of a session, adding it (and making room for it) if needed.
+     * A session unused for longer than the window starts over.
+     */
+    private int slotOf(long session) {
+        int slot = find(session);
+        if (slot >= 0) {
+            if (this.lastUsed[slot] < System.currentTimeMillis() - this.window) { reset(slot); }
+            return slot;
+        }
+
+        if (this.size >= this.maxSessions) {
+            rebuild(true);
+            if (this.size >= this.maxSessions) { evictLeastRecentlyUsed(); }
+        }
+
+        slot = probe(session);
+        this.sessions[slot] = session;
+        reset(slot);
+        this.size++;
+        return slot;
+    }
+
+    /**
+     * Returns the slot of a session, or -1 if it is not in the table.
+     */
+    private int find(long session) {
+        int slot = probe(session);
+        return this.sessions[slot] == session ? slot : -1;
+    }
+
+    /**
+     * Returns the slot a session is in, or the free slot it goes to.
+     */
+    private int probe(long session) {
+        long h = session * 0x9E3779B97F4A7C15L;
+        int slot = (int) (h ^ (h >>> 32)) & this.mask;
+        while (this.sessions[slot] != FREE && this.sessions[slot] != session) { slot = (slot + 1) & this.mask; }
+        return slot;
+    }
+
+    /**
+     * Clears the entries of a slot.
+     */
+    private void reset(int slot) {
+        this.highest[slot] = 0;
+        this.lastUsed[slot] = System.currentTimeMillis();
+        Arrays.fill(this.sequences, slot * RECENT, (slot + 1) * RECENT, -1);
+        Arrays.fill(this.responses, slot * RECENT, (slot + 1) * RECENT, null);
+    }
+
+    /**
+     * Drops the least recently used session, when the table is full of sessions within the window.
+     */
+    private void evictLeastRecentlyUsed() {
+        int oldest = -1;
+        for (int slot = 0; slot < this.sessions.length; slot++) {
+            if (this.sessions[slot] != FREE && (oldest < 0 || this.lastUsed[slot] < this.lastUsed[oldest])) { oldest = slot; }
+        }
+        this.lastUsed[oldest] = 0;
+        rebuild(true);
+    }
+
+    /**
+     * Copies the sessions into fresh arrays, leaving out the ones older than the window if asked.
+     * Open addressing leaves no holes to fill, so sessions are only ever dropped by rebuilding.
+     */
+    private void rebuild(boolean dropExpired) {
+        long[] sessions = this.sessions, lastUsed = this.lastUsed, highest = this.highest, sequences = this.sequences;
+        String[] responses = this.responses;
+        long cutoff = System.currentTimeMillis() - this.window;
+        int before = this.size;
+
+        allocate(this.maxSessions);
+        for (int old = 0; old < sessions.length; old++) {
+            if (sessions[old] == FREE || (dropExpired && lastUsed[old] < cutoff)) { continue; }
+
+            int slot = probe(sessions[old]);
+            this.sessions[slot] = sessions[old];
+            this.lastUsed[slot] = lastUsed[old];
+            this.highest[slot] = highest[old];
+            System.arraycopy(sequences, old * RECENT, this.sequences, slot * RECENT, RECENT);
+            System.arraycopy(responses, old * RECENT, this.responses, slot * RECENT, RECENT);
+            this.size++;
+        }
+        this.evictions += before - this.size;
+    }
+
+    /**
+     * Allocates an empty table for a number of sessions.
+     */
+    private void allocate(int maxSessions) {
+        int capacity = 2;
+        while (capacity < maxSessions * 2) { capacity <<= 1; }
+
+        this.sessions = new long[capacity];
+        this.lastUsed = new long[capacity];
+        this.highest = new long[capacity];
+        this.sequences = new long[capacity * RECENT];
+        this.responses = new String[capacity * RECENT];
+        this.mask = capacity - 1;
+        this.size = 0;
+    }
+
+    /**
+     * Sender thread, sends the responses to the other servers as they come, a burst at a time.
+     */
+    private void sendLoop() {
+        List<String> burst = new ArrayList<String>();
+        while (true) {
+            try {
+                burst.add(this.outbox.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            this.outbox.drainTo(burst);
+
+            LockManager lockManager = LockManager.getInstance();
+            this.peer = connect(this.peer, lockManager.socketHandler);
+            this.peer2 = connect(this.peer2, lockManager.socketHandler2);
+            for (String message : burst) {
+                if (this.peer != null) { this.peer.send(message); }
+                if (this.peer2 != null) { this.peer2.send(message); }
+            }
+            burst.clear();
+        }
+    }
+
+    /**
+     * Returns a working connection to another server, opening a new one if needed.
+     * @return SocketHandler The connection, or null if the server is unreachable.
+     */
+    private SocketHandler connect(SocketHandler peer, SocketHandler lockHandler) {
+        if (peer != null && !peer.hasFailed()) { return peer; }
+        if (peer != null) { peer.close(); }
+        if (lockHandler == null) { return null; }
+
+        try {
+            SocketHandler connection = new SocketHandler(lockHandler.getHost(), Integer.parseInt(lockHandler.getPort()));
+            return connection.hasFailed() ? null : connection;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+    //#endregion Helper Methods
+}
\ No newline at end of file
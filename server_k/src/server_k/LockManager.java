@@ -16,9 +16,10 @@ public class LockManager {
     private static Dictionary<String, String> transactionLocks = new Hashtable<String, String>();
     private DBController db = null;
     private final Object lock = new Object();
+    private final Object peerLock = new Object(); // Held for a round trip to the other servers, the connections carry one request at a time.
     private boolean isConnecting = false;
     
-    SocketHandler socketHandler = null, socketHandler2 = null, socketHandlerRead = null;
+    SocketHandler socketHandler = null, socketHandler2 = null;
     //#endregion Class Variables
 
     //#region Constructors & Instance Methods
@@ -30,7 +31,6 @@ public class LockManager {
         try {
             this.socketHandler = new SocketHandler("144.217.92.18", 2026);
             this.socketHandler2 = new SocketHandler("144.217.92.18", 2025);
-            this.socketHandlerRead = new SocketHandler("localhost", 2028);
             this.db = DBController.getInstance();
         } catch (Exception e) {
             e.printStackTrace();
@@ -58,53 +58,60 @@ public class LockManager {
     //#region Lock Methods
     /**
      * This method is used to lock an account.
+     * The account is locked here before the other servers are asked, and the lock manager itself is not held
+     * while they answer, so locks on other accounts, and the writes of the other servers, go on meanwhile.
      * @param account The account number.
      * @param type The type of lock (transaction -> deposit, withdraw, transfer, etc.)
      * @param randomNumber Random number generated by the client.
      * @return boolean Returns true if the account is successfully locked, false otherwise.
      */
-    public synchronized boolean lock(String account, String type, String randomNumber) throws DuplicateTransactionError {
-        if (isLocked(account, type)) { return false; }
-        if (isPreviousTransaction(account, randomNumber)) { throw new DuplicateTransactionError(); }
-
-        this.socketHandler.send("L " + account + " " + type + " " + randomNumber);
-        this.socketHandler2.send("L " + account + " " + type + " " + randomNumber);
-
-        Boolean response_1 = false, response_2 = false;
-
-        // Read reponse from server 1
-        try {
-            String response = this.socketHandler.read();
-            response_1 = Boolean.parseBoolean(response);
-        } catch (SocketTimeoutException | SocketException e) {
-            response_1 = true;
-            System.out.println("SocketException(): Socket Handler #1 has timed out due to a unresponsive master server.");
-            attemptSocketReconnection(this.socketHandler);
-		} catch (IOException e) {
-			System.out.println("IOException(): Socket Handler #1: " + e.getStackTrace());
-		}
-
-        // Read response from server 2
-        try {
-			String response = this.socketHandler2.read();
-            response_2 = Boolean.parseBoolean(response);
-        } catch (SocketTimeoutException | SocketException e) {
-            response_2 = true;
-            System.out.println("SocketException(): Socket Handler #2 has timed out due to a unresponsive master server.");
-            attemptSocketReconnection(this.socketHandler2);
-		} catch (IOException e) {
-			System.out.println("IOException(): Socket Handler #2: " + e.getStackTrace());
-		}
-
-        if (response_1 && response_2) {
+    public boolean lock(String account, String type, String randomNumber) throws DuplicateTransactionError {
+        synchronized (this) {
             if (isLocked(account, type)) { return false; }
+            if (isPreviousTransaction(account, randomNumber)) { throw new DuplicateTransactionError(); }
             accountLocks.put(account, new Lock(type));
-            transactionLocks.put(account, randomNumber);
+        }
 
-            return true;
-        } 
+        Boolean response_1 = false, response_2 = false;
+        synchronized (this.peerLock) {
+            this.socketHandler.send("L " + account + " " + type + " " + randomNumber);
+            this.socketHandler2.send("L " + account + " " + type + " " + randomNumber);
+
+            // Read reponse from server 1
+            try {
+                String response = this.socketHandler.read();
+                response_1 = Boolean.parseBoolean(response);
+            } catch (SocketTimeoutException | SocketException e) {
+                response_1 = true;
+                System.out.println("SocketException(): Socket Handler #1 has timed out due to a unresponsive master server.");
+                attemptSocketReconnection(this.socketHandler);
+			} catch (IOException e) {
+				System.out.println("IOException(): Socket Handler #1: " + e.getStackTrace());
+			}
+
+            // Read response from server 2
+            try {
+				String response = this.socketHandler2.read();
+                response_2 = Boolean.parseBoolean(response);
+            } catch (SocketTimeoutException | SocketException e) {
+                response_2 = true;
+                System.out.println("SocketException(): Socket Handler #2 has timed out due to a unresponsive master server.");
+                attemptSocketReconnection(this.socketHandler2);
+			} catch (IOException e) {
+				System.out.println("IOException(): Socket Handler #2: " + e.getStackTrace());
+			}
+        }
 
-        return false;
+        synchronized (this) {
+            if (response_1 && response_2) {
+                transactionLocks.put(account, randomNumber);
+                return true;
+            }
+
+            accountLocks.remove(account);
+            notifyAll();
+            return false;
+        }
     }
 
     /**
@@ -118,12 +125,54 @@ public class LockManager {
         System.out.println("Server is being requested to lock account #" + account + " locally, with type: " + type);
         if (isLocked(account, type)) { return false; }
         if (isPreviousTransaction(account, randomNumber)) { throw new DuplicateTransactionError(); }
-
+        
         accountLocks.put(account, new Lock(type));
         transactionLocks.put(account, randomNumber);
 
         return true;
     }
+
+    /**
+     * This method takes the local locks of an optimistic write, see OccManager. Either every account is locked, or none is.
+     * Unlike lockLocally, the client's random number is only remembered once the write commits, as the write may be retried.
+     * @param accounts The account numbers.
+     * @return boolean Returns true if the accounts are successfully locked, false otherwise.
+     */
+    public synchronized boolean lockOptimistically(String[] accounts) {
+        for (String account : accounts) {
+            if (isLocked(account, "P")) { return false; }
+        }
+        for (String account : accounts) { accountLocks.put(account, new Lock("P")); }
+
+        return true;
+    }
+
+    /**
+     * This method locks the accounts of a batch locally, see BatchManager. Either every account is locked, or none is.
+     * The client's random number is only remembered once the batch commits.
+     * @param accounts The account numbers.
+     * @param type The type of lock.
+     * @param randomNumber Random number generated by the client.
+     * @return boolean Returns true if the accounts are successfully locked, false otherwise.
+     */
+    public synchronized boolean lockManyLocally(String[] accounts, String type, String randomNumber) throws DuplicateTransactionError {
+        for (String account : accounts) {
+            if (isLocked(account, type)) { return false; }
+            if (isPreviousTransaction(account, randomNumber)) { throw new DuplicateTransactionError(); }
+        }
+        for (String account : accounts) { accountLocks.put(account, new Lock(type)); }
+
+        return true;
+    }
+
+    /**
+     * This method remembers the random number of a committed transaction, so a resent request is detected as a duplicate.
+     * @param account The account number.
+     * @param randomNumber Random number generated by the client.
+     */
+    public synchronized void rememberTransaction(String account, String randomNumber) {
+        transactionLocks.put(account, randomNumber);
+    }
     //#endregion Lock Methods
 
     //#region Unlock Methods
@@ -134,87 +183,165 @@ public class LockManager {
      * @param type The type of lock (transaction -> deposit, withdraw, transfer, etc.)
      * @param amount The amount of money involved in the transaction.
      * @param result The result of the transaction.
-     * @return String The result of the transaction.
+     * @param txid The id of the transaction, for the ledger of the other servers.
+     * @param createdAt The time the transaction was run, in ms.
+     * @return String The result of the transaction, followed by the read-your-writes token of the change.
      */
-    public synchronized String unlock(String xid, String account, String type, double amount, String result) {
+    public String unlock(String xid, String account, String type, double amount, String result, String txid, long createdAt) {
+        return unlock(xid, account, type, amount, result, txid, createdAt, null);
+    }
+
+    /**
+     * This method is used to unlock an account, see unlock above.
+     * As for lock, the lock manager is not held while the other servers answer.
+     * @param hotState The counters folded by a hot account fold (type H), or null for any other transaction.
+     * @return String The result of the transaction, followed by the read-your-writes token of the change.
+     */
+    public String unlock(String xid, String account, String type, double amount, String result, String txid, long createdAt, String hotState) {
         String accounts[] = account.split(",");
         String MajorityBalance = new String();
-        // If type is transfer, check both accounts are locked. If not, check if the account is locked
-        if (!type.equals("T")) {
-            if (!isLocked(account, type)) { return "false"; } // If the account is not locked, then return false.
-            if (!accountLocks.get(account).getType().equals(type)) { return "false"; }  // If the lock is not of the same type, then return false.
-        } else {
-            if (!isLocked(accounts[0], type) || !isLocked(accounts[1], type)) { return "false"; } // If the account is not locked, then return false.
-            if (!accountLocks.get(accounts[0]).getType().equals(type) || !accountLocks.get(accounts[1]).getType().equals(type)) { return "false"; }  
-        }    
-
-        // Inform the other servers to unlock the account.
-        this.socketHandler.send("U " + xid + " " + account + " " + type + " " + amount);
-        this.socketHandler2.send("U " + xid + " " + account + " " + type + " " + amount);
-
-        Boolean response_1 = false, response_2 = false;
-        Double amountFrom1 = null, amountFrom2 = null;
-        Double amountTo1 = null, amountTo2 = null;
-        try {
-            String answer = this.socketHandler.read();
-            String[] answerTokens = answer.split(" ");
-            response_1 = Boolean.parseBoolean(answerTokens[0]);
-
+        synchronized (this) {
+            // If type is transfer, check both accounts are locked. If not, check if the account is locked
             if (!type.equals("T")) {
-                amountFrom1 = Double.parseDouble(answerTokens[1]);
+                if (!isLocked(account, type)) { return "false"; } // If the account is not locked, then return false.
+                if (!accountLocks.get(account).getType().equals(type)) { return "false"; }  // If the lock is not of the same type, then return false.
             } else {
-                amountFrom1 = Double.parseDouble(answerTokens[1]);
-                amountTo1 = Double.parseDouble(answerTokens[2]);
-            }
-        } catch (SocketTimeoutException | SocketException e) {
-            response_1 = true;
-            System.out.println("Socket Handler #1 has timed out due to a unrespnsive master server: " + e.getStackTrace());
-            attemptSocketReconnection(this.socketHandler);
-        } catch (IOException e) {
-            System.out.println("Socket Handler #1 has received an IOException: " + e.getStackTrace());
+                if (!isLocked(accounts[0], type) || !isLocked(accounts[1], type)) { return "false"; } // If the account is not locked, then return false.
+                if (!accountLocks.get(accounts[0]).getType().equals(type) || !accountLocks.get(accounts[1]).getType().equals(type)) { return "false"; }  
+            }    
         }
 
-        try {
-            String answer = this.socketHandler2.read();
-            String[] answerTokens = answer.split(" ");
-            response_2 = Boolean.parseBoolean(answerTokens[0]);
+        Boolean response_1 = false, response_2 = false;
+        synchronized (this.peerLock) {
+            // Inform the other servers to unlock the account.
+            String unlockRequest = "U " + xid + " " + account + " " + type + " " + amount + " " + txid + " " + createdAt + (hotState == null ? "" : " " + hotState);
+            this.socketHandler.send(unlockRequest);
+            this.socketHandler2.send(unlockRequest);
+
+            Double amountFrom1 = null, amountFrom2 = null;
+            Double amountTo1 = null, amountTo2 = null;
+            Long versionFrom1 = null, versionFrom2 = null;
+            Long versionTo1 = null, versionTo2 = null;
+            try {
+                String answer = this.socketHandler.read();
+                String[] answerTokens = answer.split(" ");
+                response_1 = Boolean.parseBoolean(answerTokens[0]);
+
+                if (!type.equals("T")) {
+                    amountFrom1 = Double.parseDouble(answerTokens[1]);
+                    if (answerTokens.length > 2) { versionFrom1 = Long.parseLong(answerTokens[2]); }
+                } else {
+                    amountFrom1 = Double.parseDouble(answerTokens[1]);
+                    amountTo1 = Double.parseDouble(answerTokens[2]);
+                    if (answerTokens.length > 4) {
+                        versionFrom1 = Long.parseLong(answerTokens[3]);
+                        versionTo1 = Long.parseLong(answerTokens[4]);
+                    }
+                }
+            } catch (SocketTimeoutException | SocketException e) {
+                response_1 = true;
+                System.out.println("Socket Handler #1 has timed out due to a unrespnsive master server: " + e.getStackTrace());
+                attemptSocketReconnection(this.socketHandler);
+            } catch (IOException e) {
+                System.out.println("Socket Handler #1 has received an IOException: " + e.getStackTrace());
+            }
+
+            try {
+                String answer = this.socketHandler2.read();
+                String[] answerTokens = answer.split(" ");
+                response_2 = Boolean.parseBoolean(answerTokens[0]);
+
+                if (!type.equals("T")) {
+                    amountFrom2 = Double.parseDouble(answerTokens[1]); 
+                    if (answerTokens.length > 2) { versionFrom2 = Long.parseLong(answerTokens[2]); }
+                } else {
+                    amountFrom2 = Double.parseDouble(answerTokens[1]);
+                    amountTo2 = Double.parseDouble(answerTokens[2]);
+                    if (answerTokens.length > 4) {
+                        versionFrom2 = Long.parseLong(answerTokens[3]);
+                        versionTo2 = Long.parseLong(answerTokens[4]);
+                    }
+                }  
+            } catch (SocketTimeoutException | SocketException e) {
+                response_2 = true;
+                System.out.println("Socket Handler #1 has timed out due to a unrespnsive master server: " + e.getStackTrace());
+                attemptSocketReconnection(this.socketHandler2);
+            } catch (IOException e) {
+                System.out.println("Socket Handler #1 has received an IOException: " + e.getStackTrace());
+            }
 
             if (!type.equals("T")) {
-                amountFrom2 = Double.parseDouble(answerTokens[1]); 
+                MajorityBalance = Double.toString(synchronizeAccounts(xid, amountFrom1, amountFrom2, Double.parseDouble(result), account, versionFrom1, versionFrom2));
             } else {
-                amountFrom2 = Double.parseDouble(answerTokens[1]);
-                amountTo2 = Double.parseDouble(answerTokens[2]);
-            }  
-        } catch (SocketTimeoutException | SocketException e) {
-            response_2 = true;
-            System.out.println("Socket Handler #1 has timed out due to a unrespnsive master server: " + e.getStackTrace());
-            attemptSocketReconnection(this.socketHandler2);
-        } catch (IOException e) {
-            System.out.println("Socket Handler #1 has received an IOException: " + e.getStackTrace());
-        }
-
-        if (!type.equals("T")) {
-            MajorityBalance = Double.toString(synchronizeAccounts(xid, amountFrom1, amountFrom2, Double.parseDouble(result), account));
-        } else {
-            String[] results = result.split(" ");
-            MajorityBalance = Double.toString(synchronizeAccounts(xid, amountFrom1, amountFrom2, Double.parseDouble(results[0]), accounts[0]));
-            synchronizeAccounts(xid, amountTo1, amountTo2, Double.parseDouble(results[1]), accounts[1]);
+                String[] results = result.split(" ");
+                MajorityBalance = Double.toString(synchronizeAccounts(xid, amountFrom1, amountFrom2, Double.parseDouble(results[0]), accounts[0], versionFrom1, versionFrom2));
+                synchronizeAccounts(xid, amountTo1, amountTo2, Double.parseDouble(results[1]), accounts[1], versionTo1, versionTo2);
+            }
         }
 
         if (response_1 && response_2) {
-            if (!type.equals("T")) {
-                accountLocks.remove(account);
-            } else {
-                accountLocks.remove(accounts[0]);
-                accountLocks.remove(accounts[1]);
+            synchronized (this) {
+                if (!type.equals("T")) {
+                    accountLocks.remove(account);
+                } else {
+                    accountLocks.remove(accounts[0]);
+                    accountLocks.remove(accounts[1]);
+                }
+                notifyAll();
             }
 
-            return "true " + MajorityBalance;
+            return "true " + MajorityBalance + " " + ReadReplicaFeed.getInstance().currentToken();
         } 
 
         return "false";
     }
     
+    /**
+     * This method releases a lock taken with lock on every server, without running a transaction, for a write that
+     * gives up once its account is locked. Nothing else would ever unlock the account.
+     * The client's random number is forgotten as well, so the write may be resent.
+     * @param account The account number.
+     * @param type The type of lock (transaction -> deposit, withdraw, transfer, etc.)
+     * @param randomNumber Random number generated by the client.
+     */
+    public void release(String account, String type, String randomNumber) {
+        synchronized (this.peerLock) {
+            String releaseRequest = "RL " + account + " " + type + " " + randomNumber;
+            this.socketHandler.send(releaseRequest);
+            this.socketHandler2.send(releaseRequest);
+
+            try {
+                this.socketHandler.read();
+            } catch (SocketTimeoutException | SocketException e) {
+                attemptSocketReconnection(this.socketHandler);
+            } catch (IOException e) {
+                System.out.println("IOException(): Socket Handler #1: " + e.getStackTrace());
+            }
+
+            try {
+                this.socketHandler2.read();
+            } catch (SocketTimeoutException | SocketException e) {
+                attemptSocketReconnection(this.socketHandler2);
+            } catch (IOException e) {
+                System.out.println("IOException(): Socket Handler #2: " + e.getStackTrace());
+            }
+        }
+
+        releaseLocally(account, type, randomNumber);
+    }
+
+    /**
+     * This method releases a lock locally without a transaction, see release.
+     * @param account The account number.
+     * @param type The type of lock (transaction -> deposit, withdraw, transfer, etc.)
+     * @param randomNumber Random number generated by the client.
+     * @return boolean Returns true if the account was locked, false otherwise.
+     */
+    public synchronized boolean releaseLocally(String account, String type, String randomNumber) {
+        if (randomNumber.equals(transactionLocks.get(account))) { transactionLocks.remove(account); }
+        return unlockLocally(account, type);
+    }
+
     /**
      * This method attempts to unlock the account locally.
      * @param account The account number.
@@ -227,6 +354,7 @@ public class LockManager {
         if (!accountLocks.get(account).getType().equals(type)) { return false; } // If the lock is not of the same type, then return false.
 
         accountLocks.remove(account);
+        notifyAll();
 
         return true;
     }
@@ -243,6 +371,25 @@ public class LockManager {
         return accountLocks.get(account) == null ? false : true;
     }
 
+    /**
+     * Waits until none of the accounts is locked, woken up by every unlock instead of polling isLocked.
+     * @param accounts The account numbers.
+     */
+    public synchronized void awaitUnlocked(String... accounts) {
+        while (true) {
+            boolean locked = false;
+            for (String account : accounts) { locked |= isLocked(account, null); }
+            if (!locked) { return; }
+
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
     /**
      * This method is used to check if a transaction is a previous transaction.
      * @param account The account number.
@@ -253,6 +400,31 @@ public class LockManager {
         return transactionLocks.get(account) == null ? false : transactionLocks.get(account).equals(id);
     }
 
+    /**
+     * Returns a new transaction id, which identifies the ledger entries of a transaction on every server.
+     * @return String The transaction id.
+     */
+    public String newTransactionId() {
+        return db.newTransactionId();
+    }
+
+    /**
+     * Appends a committed transaction to the write-ahead log, and queues its ledger entries for the read servers.
+     * The postings themselves were written with the balance, a write whose postings failed was rolled back, see DBController.post.
+     * @param txid The id of the transaction.
+     * @param createdAt The time the coordinating server ran the transaction, in ms.
+     * @param type The type of the transaction (D, W or T).
+     * @param account The account number, or "from,to" for a transfer.
+     * @param amount The amount of the transaction.
+     * @param result The new balance of the account, or "fromBalance toBalance" for a transfer.
+     * @throws SQLException If the transaction could not be appended to the write-ahead log, it must not be acknowledged then.
+     */
+    public void recordTransaction(String txid, long createdAt, String type, String account, double amount, String result) throws SQLException {
+        for (String entry : db.recordTransaction(txid, createdAt, type, account, amount, result)) {
+            ReadReplicaFeed.getInstance().publishEntry(entry);
+        }
+    }
+
     /**
      * This method is used to attempt to reconnect to another server that has gone down.
      * @param socketHandler The socket handler that we are attempting to reconnect to.
@@ -301,33 +473,37 @@ public class LockManager {
 
     /**
      * This method will synchronize the accounts between the servers, if the majority number is not the same as the result of the transaction, then the account will be updated.
+     * Every server also ends up with the highest version of the account, so the read servers see the corrected balance as the newest one.
      * @param xid The user's ID.
      * @param amount1 The result of the transaction that was performed on another server.
      * @param amount2 The result of the transaction that was performed on another server.
      * @param result The result of the transaction that was performed on this server.
      * @param account The account number.
+     * @param version1 The version of the account on another server, or null if it did not report one.
+     * @param version2 The version of the account on another server, or null if it did not report one.
      * @return Double The majority number.
      */
-    private Double synchronizeAccounts(String xid, Double amount1, Double amount2, double result, String account) {
+    private Double synchronizeAccounts(String xid, Double amount1, Double amount2, double result, String account, Long version1, Long version2) {
         Double majorityEl = null;
 
 		try {
             majorityEl = findMajorityNumber(result, amount1, amount2);
             System.out.println("Majority number is: " + majorityEl);
 
-            this.socketHandlerRead.send("X " + account + " " + majorityEl);
+            long localVersion = db.accountVersion(account);
+            long version = Math.max(localVersion, Math.max(version1 == null ? 0 : version1, version2 == null ? 0 : version2));
 
-            if (amount1 != null && Double.compare(amount1, majorityEl) != 0) {
-                this.socketHandler.send("C " + account + " " + majorityEl);
+            if (amount1 != null && (Double.compare(amount1, majorityEl) != 0 || (version1 != null && version1 < version))) {
+                this.socketHandler.send("C " + account + " " + majorityEl + " " + version);
             }
 
-            if (amount2 != null && Double.compare(amount2, majorityEl) != 0) {
-                this.socketHandler2.send("C " + account + " " + majorityEl);
+            if (amount2 != null && (Double.compare(amount2, majorityEl) != 0 || (version2 != null && version2 < version))) {
+                this.socketHandler2.send("C " + account + " " + majorityEl + " " + version);
             }
 
-            if (Double.compare(result, majorityEl) != 0) {
+            if (Double.compare(result, majorityEl) != 0 || localVersion < version) {
                 try {
-                    db.overwriteAccount(account, majorityEl);
+                    db.overwriteAccount(account, majorityEl, version);
                 } catch (InvalidError IE) {
                     System.out.println("Error in synchronizeAccounts: " + IE.getStackTrace());
                 } catch (SQLException SE) {
@@ -335,10 +511,14 @@ public class LockManager {
                 }
             }
 
+            ReadReplicaFeed.getInstance().publish(account); // Picked up by the read servers asynchronously.
+
             System.out.println("All accounts synchronized with new balance $" + majorityEl); 
         } catch (NumberFormatException e) {
             System.out.println("Error in synchronizeAccounts: " + e.getStackTrace());
-        } 
+        } catch (SQLException SE) {
+            System.out.println("Error in synchronizeAccounts: " + SE.getStackTrace());
+        }
 
         return majorityEl;
 	}
@@ -365,7 +545,8 @@ public class LockManager {
     }
 
     /**
-     * This method synchronizes the user's registration with the other servers.
+     * This method publishes the user's registration to the read servers.
+     * The other write servers get it from the outbox, where it was queued with the user, see RegistrationOutbox.
      * @param id The user's ID.
      * @param username The user's username.
      * @param password The user's password.
@@ -373,15 +554,11 @@ public class LockManager {
      * @param lastName The user's last name.
      * @param email The user's email.
      * @param accountNumber The account number.
+     * @return String The read-your-writes token of the registration.
      */
-    public void registrationSync(int id, String username, String password, String firstName, String lastName, String email, String accountNumber) {
-        if (this.socketHandler != null) {
-            this.socketHandler.send("R " + id + " " + username + " " + password + " " + firstName + " " + lastName + " " + email + " " + accountNumber);
-        }
-
-        if (this.socketHandler2 != null) {
-            this.socketHandler2.send("R " + id + " " + username + " " + password + " " + firstName + " " + lastName + " " + email + " " + accountNumber);
-        }
+    public String registrationSync(int id, String username, String password, String firstName, String lastName, String email, String accountNumber) {
+        ReadReplicaFeed.getInstance().publishRegistration(id + " " + username + " " + password + " " + firstName + " " + lastName + " " + email, accountNumber);
+        return ReadReplicaFeed.getInstance().currentToken();
     }
     //#endregion Misc Methods
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package server_k;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.sql.SQLException;
 import java.util.HashMap;
 
 public class ServerDriver {
@@ -10,6 +11,26 @@ public class ServerDriver {
     private static final int TERM_WAIT_TIME = 10 * 1000; // wait 10 seconds for server process to terminate
     private static final String SERVER_PORT_NUM = "2027";
     private static final String IDLE_TIMEOUT = "0"; // idle connection timeout in milli-seconds, 0 means infinity
+    private static final String RECOVERY_MODE = "none"; // "lazy" verifies accounts against the other servers on first access after a restart
+    private static final String DURABILITY = "sync"; // sync, group, async or wal, see GroupCommitter
+    private static final String GROUP_COMMIT_WINDOW = "5"; // time to gather writes into one commit, in milli-seconds
+    private static final String GROUP_COMMIT_BATCH = "64"; // number of writes that triggers a commit before the window is over
+    private static final String WAL_DIRECTORY = "bankmanager_k_wal"; // directory of the write-ahead log segments, for the wal durability level
+    private static final String WAL_SEGMENT = "67108864"; // size of a write-ahead log segment, in bytes
+    private static final String WAL_FLUSH = "always"; // always, interval or none, see WriteAheadLog
+    private static final String WAL_FLUSH_INTERVAL = "10"; // time between two forces of the write-ahead log for the interval flush policy, in milli-seconds
+    private static final String STORAGE_MODE = "balance"; // balance or ledger, see DBController.configureStorage
+    private static final String CHECKPOINT_INTERVAL = "1000"; // time between two balance checkpoints in ledger mode, in milli-seconds
+    private static final String CONCURRENCY = "lock"; // lock or occ, see OccManager
+    private static final String PARTITIONS = "0"; // number of single threaded account executors, 0 runs requests on the client threads
+    private static final String HOT_ACCOUNTS = ""; // accounts taking deposits without the account lock, comma separated, see HotAccounts
+    private static final String HOT_FOLD_INTERVAL = "1000"; // time between two folds of a hot account's deposits, in milli-seconds
+    private static final String PIPELINE = "0"; // number of slots of the request pipeline, 0 runs requests on the client threads, see RequestPipeline
+    private static final String IDEMPOTENCY_WINDOW = "600000"; // time a client session's responses are kept after its last write, in milli-seconds
+    private static final String IDEMPOTENCY_SESSIONS = "16384"; // number of client sessions whose responses are kept, see IdempotencyStore
+    private static final String NODE_INDEX = "2"; // index of this server in the cluster, unique per server, see IdAllocator
+    private static final String SESSION_SECRET = ""; // secret the session tokens are signed with, the same on every write server, required, see SessionManager
+    private static final String SESSION_LIFETIME = "28800000"; // time a session token is valid for, in milli-seconds
     //#endregion Class Variables
 
     //#region Methods
@@ -24,6 +45,26 @@ public class ServerDriver {
         // Set the parameters
         int serverPort = Integer.parseInt(params.getOrDefault("-p", SERVER_PORT_NUM));
         int conTimeout = Integer.parseInt(params.getOrDefault("-t", IDLE_TIMEOUT));
+        String recoveryMode = params.getOrDefault("-r", RECOVERY_MODE);
+        String durability = params.getOrDefault("-d", DURABILITY);
+        int commitWindow = Integer.parseInt(params.getOrDefault("-gw", GROUP_COMMIT_WINDOW));
+        int commitBatch = Integer.parseInt(params.getOrDefault("-gb", GROUP_COMMIT_BATCH));
+        String walDirectory = params.getOrDefault("-wd", WAL_DIRECTORY);
+        long walSegment = Long.parseLong(params.getOrDefault("-ws", WAL_SEGMENT));
+        String walFlush = params.getOrDefault("-wf", WAL_FLUSH);
+        int walFlushInterval = Integer.parseInt(params.getOrDefault("-wi", WAL_FLUSH_INTERVAL));
+        String storageMode = params.getOrDefault("-sm", STORAGE_MODE);
+        int checkpointInterval = Integer.parseInt(params.getOrDefault("-ci", CHECKPOINT_INTERVAL));
+        String concurrency = params.getOrDefault("-cc", CONCURRENCY);
+        int partitions = Integer.parseInt(params.getOrDefault("-ex", PARTITIONS));
+        String hotAccounts = params.getOrDefault("-ha", HOT_ACCOUNTS);
+        int hotFoldInterval = Integer.parseInt(params.getOrDefault("-hf", HOT_FOLD_INTERVAL));
+        int pipeline = Integer.parseInt(params.getOrDefault("-pl", PIPELINE));
+        long idempotencyWindow = Long.parseLong(params.getOrDefault("-iw", IDEMPOTENCY_WINDOW));
+        int idempotencySessions = Integer.parseInt(params.getOrDefault("-is", IDEMPOTENCY_SESSIONS));
+        int nodeIndex = Integer.parseInt(params.getOrDefault("-ni", NODE_INDEX));
+        String sessionSecret = params.getOrDefault("-ss", SESSION_SECRET);
+        long sessionLifetime = Long.parseLong(params.getOrDefault("-st", SESSION_LIFETIME));
 
         // Redirect out to our custom print stream.
         CustomPrintStream customOut = new CustomPrintStream(System.out);
@@ -32,10 +73,68 @@ public class ServerDriver {
         // Standard output
         System.out.println("Starting server on port " + serverPort + " with a connection timeout of " + conTimeout + "ms.");
         MachineSocket server = MachineSocket.getInstance(serverPort, conTimeout);
+
+        try {
+            if (durability.equals(GroupCommitter.WAL)) {
+                DBController.getInstance().configureWriteAheadLog(walDirectory, walSegment, walFlush, walFlushInterval);
+            }
+            DBController.getInstance().configureDurability(durability, commitWindow, commitBatch);
+        } catch (SQLException | IllegalArgumentException e) {
+            System.out.println("Could not set the durability level: " + e.getMessage());
+            System.exit(1);
+        }
+
+        try {
+            DBController.getInstance().configureStorage(storageMode, checkpointInterval);
+        } catch (SQLException | IllegalArgumentException e) {
+            System.out.println("Could not set the storage mode: " + e.getMessage());
+            System.exit(1);
+        }
+
+        try {
+            IdAllocator.getInstance().configure(nodeIndex);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Could not set the node index: " + e.getMessage());
+            System.exit(1);
+        }
+
+        try {
+            OccManager.getInstance().configure(concurrency);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Could not set the concurrency mode: " + e.getMessage());
+            System.exit(1);
+        }
+
+        AccountExecutors.getInstance().configure(partitions);
+        HotAccounts.getInstance().configure(hotAccounts, hotFoldInterval);
+        IdempotencyStore.getInstance().configure(idempotencySessions, idempotencyWindow);
+
+        try {
+            SessionManager.getInstance().configure(sessionSecret, sessionLifetime);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Could not set the session secret: " + e.getMessage());
+            System.exit(1);
+        }
+
+        try {
+            RequestPipeline.getInstance().configure(pipeline);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Could not start the request pipeline: " + e.getMessage());
+            System.exit(1);
+        }
+
+        // Rejoin lazily, accounts are pulled from the other servers as they are accessed.
+        if (recoveryMode.equals("lazy")) { RecoveryManager.getInstance().begin(); }
+
+        // Send the registrations the other servers have not acknowledged yet.
+        RegistrationOutbox.getInstance().start();
+
+        // Start building the change feed the read servers subscribe to.
+        ReadReplicaFeed.getInstance();
          
         // Start the server
         server.start();
-        System.out.println("Server has been successfully started! Type 'quit' to stop the server.");
+        System.out.println("Server has been successfully started! Type 'quit' to stop the server, or 'stats' to print its metrics.");
         System.out.println("Waiting for client connections...");
 
         // Wait for quit command
@@ -46,6 +145,7 @@ public class ServerDriver {
             System.out.println("Server is shutting down...");
             server.shutdown();
             server.join(TERM_WAIT_TIME);
+            DBController.getInstance().close(); // Commits anything still pending.
             System.out.println("Server stopped.");
         } catch (InterruptedException e) {
             System.out.println("Server did not shutdown properly.");
@@ -63,8 +163,13 @@ public class ServerDriver {
 
         try {
             while (server.isAlive()) {
-                if (console.ready() && console.readLine().equals("quit")) { // Avoids blocking the console.
+                if (!console.ready()) { continue; } // Avoids blocking the console.
+
+                String command = console.readLine();
+                if (command.equals("quit")) {
                     break;
+                } else if (command.equals("stats")) {
+                    printStats();
                 }
             }
         } catch (IOException e) {
@@ -72,6 +177,25 @@ public class ServerDriver {
         }
     }
  
+    /**
+     * Prints the server metrics to the console.
+     */
+    private static void printStats() {
+        System.out.println(DBController.getInstance().getCommitStats());
+        System.out.println(DBController.getInstance().getStorageStats());
+        System.out.println(OccManager.getInstance().getStats());
+        System.out.println(AccountExecutors.getInstance().getStats());
+        System.out.println(RequestPipeline.getInstance().getStats());
+        System.out.println(BatchManager.getInstance().getStats());
+        System.out.println(HotAccounts.getInstance().getStats());
+        System.out.println(IdempotencyStore.getInstance().getStats());
+        System.out.println(IdAllocator.getInstance().getStats());
+        System.out.println(RegistrationOutbox.getInstance().getStats());
+        System.out.println(SessionManager.getInstance().getStats());
+        System.out.println(ReadReplicaFeed.getInstance().getStats());
+        System.out.println(BalanceSubscriptions.getInstance().getStats());
+    }
+ 
     /**
      * Parses the command line arguments.
      * @param args The command line arguments.
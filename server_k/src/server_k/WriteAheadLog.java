@@ -0,0 +1,331 @@
+package server_k;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * WriteAheadLog Class
+ *
+ * Keeps the committed transactions of this server in a log of its own, so a write
+ * can be acknowledged as soon as it is in the log, while SQLite commits it later
+ * in the background, see GroupCommitter.
+ *
+ * The log is split into segment files, preallocated to the segment size, memory
+ * mapped and named after the offset of their first record. A record is framed by
+ * its length and the CRC32 of its bytes. Writing one is a copy into the mapping:
+ * from then on it survives a crash of the server, and once the mapping is forced,
+ * a crash of the machine too.
+ *
+ * Flush policies:
+ *  always:   A write is acknowledged once the log is forced up to it. Writes that
+ *            wait at the same time share one force.
+ *  interval: The log is forced in the background every interval, a write is acknowledged
+ *            right away. A crash of the machine loses at most the last interval.
+ *  none:     The log is only forced when a segment is full, the operating system writes
+ *            it back. A crash of the machine can lose anything not written back yet.
+ *
+ * SQLite stores the offset of the log its last commit covers. On startup the records
+ * after it are read in order and applied again; applying a record twice changes nothing.
+ * Segments before that offset are deleted.
+ */
+public class WriteAheadLog {
+    //#region Class Variables
+    public static final String ALWAYS = "always", INTERVAL = "interval", NONE = "none";
+    private static final int HEADER = 8; // Length and CRC32 of a record.
+    private static final String SUFFIX = ".wal";
+
+    private final File directory;
+    private final long segmentSize;
+    private final String flushPolicy;
+    private final ConcurrentSkipListMap<Long, File> segments = new ConcurrentSkipListMap<Long, File>(); // Offset of the first record to the segment.
+    private final Object flushLock = new Object();
+
+    // Only used under the lock of the log.
+    private MappedByteBuffer active = null; // The segment records are appended to.
+    private long activeBase = 0;
+    private int position = 0; // Position in the active segment the next record is written at.
+    private volatile long appended = 0; // Offset after the last record.
+    private volatile long flushed = 0; // Offset the log is forced up to.
+
+    // Metrics
+    private long records = 0, forces = 0, forceNanos = 0, replayed = 0, deleted = 0;
+    //#endregion Class Variables
+
+    //#region Constructors
+    /**
+     * Constructor, opens the log and finds its end.
+     * @param directory The directory of the segments.
+     * @param segmentSize The size of a segment, in bytes.
+     * @param flushPolicy When the log is forced to disk: always, interval or none.
+     * @param flushInterval The time between two forces for the interval policy, in ms.
+     * @throws IOException If the directory or a segment could not be opened.
+     */
+    public WriteAheadLog(String directory, long segmentSize, String flushPolicy, int flushInterval) throws IOException {
+        if (!flushPolicy.equals(ALWAYS) && !flushPolicy.equals(INTERVAL) && !flushPolicy.equals(NONE)) {
+            throw new IllegalArgumentException("Unknown flush policy: " + flushPolicy);
+        }
+        this.directory = new File(directory);
+        this.segmentSize = Math.min(Math.max(segmentSize, 64 * 1024), Integer.MAX_VALUE);
+        this.flushPolicy = flushPolicy;
+
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) { throw new IOException("Could not create " + this.directory); }
+        File[] files = this.directory.listFiles((dir, name) -> name.matches("\\d{20}\\" + SUFFIX));
+        for (File file : files == null ? new File[0] : files) {
+            this.segments.put(Long.parseLong(file.getName().substring(0, 20)), file);
+        }
+
+        if (this.segments.isEmpty()) {
+            createSegment(0);
+        } else {
+            this.activeBase = this.segments.lastKey();
+            this.active = map(this.segments.lastEntry().getValue());
+            this.position = recover(this.active);
+        }
+        this.appended = this.activeBase + this.position;
+        this.flushed = this.appended;
+
+        if (flushPolicy.equals(INTERVAL)) {
+            Thread flusher = new Thread(() -> flushLoop(Math.max(flushInterval, 1)), "wal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        System.out.println("Write-ahead log opened in " + this.directory + " with the " + flushPolicy + " flush policy, "
+            + this.segments.size() + " segments, up to offset " + this.appended + ".");
+    }
+    //#endregion Constructors
+
+    //#region Methods
+    /**
+     * Appends a record to the log. It survives a crash of the server from now on, see awaitFlushed for the machine.
+     * @param record The record.
+     * @throws IOException If the record does not fit in a segment, or a new segment could not be created.
+     */
+    public synchronized void append(String record) throws IOException {
+        byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+        if (HEADER + bytes.length > this.segmentSize) { throw new IOException("A record of " + bytes.length + " bytes does not fit in a segment."); }
+        if (this.position + HEADER + bytes.length > this.active.capacity()) {
+            this.active.force(); // The flush only forces the active segment.
+            createSegment(this.appended);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        this.active.put(this.position + HEADER, bytes);
+        this.active.putInt(this.position + 4, (int) crc.getValue());
+        this.active.putInt(this.position, bytes.length); // Last, a record is only there once its length is.
+
+        this.position += HEADER + bytes.length;
+        this.appended += HEADER + bytes.length;
+        this.records++;
+    }
+
+    /**
+     * Blocks until every record appended so far is on disk, for the always flush policy.
+     * Returns immediately for the other policies.
+     */
+    public void awaitFlushed() {
+        if (this.flushPolicy.equals(ALWAYS)) { flush(this.appended); }
+    }
+
+    /**
+     * Returns the offset after the last record, the offset a commit of everything applied so far covers.
+     * @return long The offset.
+     */
+    public long end() {
+        return this.appended;
+    }
+
+    /**
+     * Reads the records from an offset to the end of the log, in order, to apply them again on startup.
+     * Every record is checked against its CRC32, and the replay stops at the first one that does not match:
+     * the records after a corrupt one are never applied out of order.
+     * @param from The offset the last SQLite commit covers.
+     * @return List<String> The records up to the first corrupt one.
+     */
+    public synchronized List<String> recordsAfter(long from) {
+        List<String> records = new ArrayList<String>();
+        long offset = Math.max(from, this.segments.firstKey());
+
+        while (offset < this.appended) {
+            Map.Entry<Long, File> segment = this.segments.floorEntry(offset);
+            MappedByteBuffer buffer;
+            try {
+                buffer = segment.getKey() == this.activeBase ? this.active : map(segment.getValue());
+            } catch (IOException e) {
+                System.out.println("Could not read the write-ahead log segment " + segment.getValue() + ": " + e.getMessage());
+                break;
+            }
+
+            int position = (int) (offset - segment.getKey());
+            int length = position + HEADER <= buffer.capacity() ? buffer.getInt(position) : 0;
+            if (length <= 0 || position + HEADER + length > buffer.capacity()) { // The end of a segment closed before it was full.
+                Long next = this.segments.higherKey(segment.getKey());
+                if (next == null) { break; }
+                offset = next;
+                continue;
+            }
+
+            byte[] bytes = new byte[length];
+            buffer.get(position + HEADER, bytes);
+            if (!matches(bytes, buffer.getInt(position + 4))) {
+                System.out.println("Write-ahead log: stopping the replay at a corrupt record at offset " + offset + " of segment " + segment.getValue() + ".");
+                break;
+            }
+            records.add(new String(bytes, StandardCharsets.UTF_8));
+            offset += HEADER + length;
+        }
+
+        this.replayed += records.size();
+        return records;
+    }
+
+    /**
+     * Deletes the segments SQLite no longer needs, once a commit covers them.
+     * @param checkpoint The offset the commit covers.
+     */
+    public void checkpointed(long checkpoint) {
+        long activeBase;
+        synchronized (this) { activeBase = this.activeBase; }
+
+        for (Map.Entry<Long, File> segment : this.segments.headMap(activeBase).entrySet()) {
+            Long next = this.segments.higherKey(segment.getKey());
+            if (next == null || next > checkpoint) { break; } // Still has records the commit does not cover.
+
+            this.segments.remove(segment.getKey());
+            if (segment.getValue().delete()) {
+                synchronized (this) { this.deleted++; }
+            }
+        }
+    }
+
+    /**
+     * Forces the whole log to disk, used when the server shuts down.
+     */
+    public void close() {
+        flush(this.appended);
+    }
+
+    /**
+     * Returns the log metrics.
+     * @return String The records appended and replayed, the forces and their latency, and the segments kept.
+     */
+    public synchronized String getStats() {
+        return "Write-ahead log: " + this.flushPolicy + " flush policy, " + this.records + " records appended, " + this.replayed + " replayed on startup, "
+            + this.forces + " forces" + (this.forces == 0 ? "" : " (" + String.format("%.2f", this.forceNanos / this.forces / 1e6) + "ms on average)")
+            + ", offset " + this.appended + " in " + this.segments.size() + " segments (" + this.deleted + " deleted).";
+    }
+    //#endregion Methods
+
+    //#region Helper Methods
+    /**
+     * Forces the log to disk up to an offset at least. A force in progress when the caller
+     * arrives may not cover it, the next one does, and covers every caller waiting for it.
+     */
+    private void flush(long target) {
+        if (this.flushed >= target) { return; }
+
+        synchronized (this.flushLock) {
+            if (this.flushed >= target) { return; } // Forced by the caller before us.
+
+            MappedByteBuffer buffer;
+            long base, end;
+            synchronized (this) {
+                buffer = this.active;
+                base = this.activeBase;
+                end = this.appended;
+            }
+
+            long start = System.nanoTime();
+            int from = (int) Math.max(this.flushed - base, 0); // Full segments were forced when they were closed.
+            buffer.force(from, (int) (end - base) - from);
+            this.flushed = end;
+
+            synchronized (this) {
+                this.forces++;
+                this.forceNanos += System.nanoTime() - start;
+            }
+        }
+    }
+
+    /**
+     * Flusher thread of the interval policy, forces what was appended since the last force.
+     */
+    private void flushLoop(int interval) {
+        while (true) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            flush(this.appended);
+        }
+    }
+
+    /**
+     * Creates a preallocated segment starting at an offset, and makes it the active segment.
+     */
+    private void createSegment(long base) throws IOException {
+        File file = new File(this.directory, String.format("%020d", base) + SUFFIX);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(this.segmentSize);
+        }
+
+        this.active = map(file);
+        this.activeBase = base;
+        this.position = 0;
+        this.segments.put(base, file);
+    }
+
+    /**
+     * Maps a whole segment into memory.
+     */
+    private static MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+    }
+
+    /**
+     * Checks the bytes of a record against the CRC32 written in its header.
+     */
+    private static boolean matches(byte[] bytes, int checksum) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue() == checksum;
+    }
+
+    /**
+     * Finds the end of the last segment: the first record that is missing or torn. What follows it is cleared.
+     * @return int The position after the last whole record.
+     */
+    private static int recover(MappedByteBuffer segment) {
+        int position = 0;
+        while (position + HEADER <= segment.capacity()) {
+            int length = segment.getInt(position);
+            if (length <= 0 || position + HEADER + length > segment.capacity()) { break; }
+
+            byte[] bytes = new byte[length];
+            segment.get(position + HEADER, bytes);
+            if (!matches(bytes, segment.getInt(position + 4))) { break; }
+
+            position += HEADER + length;
+        }
+
+        if (position + HEADER <= segment.capacity() && segment.getLong(position) != 0) {
+            System.out.println("Write-ahead log: dropping a torn record at position " + position + " of the last segment.");
+            for (int i = position; i < segment.capacity(); i++) { segment.put(i, (byte) 0); }
+            segment.force();
+        }
+        return position;
+    }
+    //#endregion Helper Methods
+}
\ No newline at end of file
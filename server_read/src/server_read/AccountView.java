@@ -0,0 +1,331 @@
+package server_read;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * AccountView Class
+ *
+ * Keeps every account (owner, balance and version) in memory, so balance reads
+ * never reach SQLite. Accounts are stored in an open addressing table keyed by
+ * the account number, laid out as parallel primitive arrays.
+ *
+ * The view has a single writer, the replication feed (through DBController),
+ * while any number of reader threads read it without taking a lock: a read is
+ * optimistic, and is only retried if a write happened in the meantime.
+ *
+ * The view also tracks the money deposited into every account, from the D
+ * entries of the ledger, and when the account last changed, as seen by this
+ * read server, for the analytics reports.
+ *
+ */
+public class AccountView {
+    // #region Class Variables
+    private static AccountView instance = null;
+    private static final long EMPTY = Long.MIN_VALUE; // Marks a free slot, account numbers are positive.
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private static final int OPTIMISTIC_ATTEMPTS = 8; // Optimistic reads tried before waiting for the writer.
+    private static final int COPY_CHUNK = 4096; // Slots copied per optimistic read when taking a columnar snapshot.
+
+    private final StampedLock lock = new StampedLock();
+    private Table table = new Table(INITIAL_CAPACITY); // Replaced as a whole when the view grows.
+    private volatile int size = 0;
+    // #endregion Class Variables
+
+    // #region Constructors & Instance Methods
+    /**
+     * Constructor
+     *
+     * @implNote This constructor is private to ensure that only one instance of
+     *           this class is created.
+     */
+    private AccountView() {}
+
+    /**
+     * Returns the instance of this class.
+     *
+     * @return AccountView The instance of this class.
+     */
+    public static synchronized AccountView getInstance() {
+        if (instance == null) {
+            instance = new AccountView();
+        }
+        return instance;
+    }
+    // #endregion Constructors & Instance Methods
+
+    // #region Read Methods
+    /**
+     * Returns the balance of an account, if it belongs to the user.
+     *
+     * @param accountNo The account number.
+     * @param userId    The id of the user.
+     * @return double The balance, or NaN if the account does not exist or belongs to someone else.
+     */
+    public double balance(long accountNo, int userId) {
+        for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+            long stamp = this.lock.tryOptimisticRead();
+            if (stamp == 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+
+            double balance = this.table.balance(accountNo, userId);
+            if (this.lock.validate(stamp)) {
+                return balance;
+            }
+        }
+
+        long stamp = this.lock.readLock(); // Only under a constant stream of writes.
+        try {
+            return this.table.balance(accountNo, userId);
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns the state of an account, as it is shipped in the feed of the write servers.
+     *
+     * @param accountNo The account number.
+     * @return String The state, formatted as "accountNo:user_id:balance:version", or null if the account does not exist.
+     */
+    public String state(long accountNo) {
+        long stamp = this.lock.readLock(); // Only used when a subscription starts, not worth an optimistic read.
+        try {
+            int slot = this.table.find(accountNo);
+            return slot < 0 ? null
+                    : accountNo + ":" + this.table.users[slot] + ":" + this.table.balances[slot] + ":" + this.table.versions[slot];
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns the number of accounts in the view.
+     *
+     * @return int The number of accounts.
+     */
+    public int size() {
+        return this.size;
+    }
+    // #endregion Read Methods
+
+    // #region Write Methods
+    /**
+     * Adds or overwrites an account, unless the view already holds a newer version of it.
+     *
+     * @param accountNo The account number.
+     * @param userId    The id of the owner.
+     * @param balance   The balance.
+     * @param version   The version of the account.
+     */
+    public void put(long accountNo, int userId, double balance, long version) {
+        long stamp = this.lock.writeLock();
+        try {
+            if (this.size + 1 > this.table.keys.length / 2) { // Kept at most half full, so probes stay short.
+                this.table = this.table.grow();
+            }
+            if (this.table.put(accountNo, userId, balance, version, System.currentTimeMillis())) {
+                this.size++;
+            }
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds a deposit to the total deposited into an existing account.
+     *
+     * @param accountNo The account number.
+     * @param amount    The amount of a D entry of the ledger.
+     */
+    public void addDeposit(long accountNo, double amount) {
+        long stamp = this.lock.writeLock();
+        try {
+            int slot = this.table.find(accountNo);
+            if (slot >= 0) {
+                this.table.deposits[slot] += amount;
+            }
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+    // #endregion Write Methods
+
+    // #region Snapshot Methods
+    /**
+     * Copies the view into columns for the analytics reports. The copy is taken chunk
+     * by chunk, so the feed is never held up for long: every account is consistent,
+     * but accounts in different chunks may be a few changes apart.
+     *
+     * @return Columns The accounts, one array per field.
+     */
+    public Columns snapshot() {
+        while (true) {
+            Table copied = this.table;
+            Columns columns = new Columns(this.size + COPY_CHUNK); // Room for the accounts added during the copy.
+            boolean complete = true;
+
+            for (int from = 0; from < copied.keys.length && complete; from += COPY_CHUNK) {
+                int to = Math.min(from + COPY_CHUNK, copied.keys.length), count = columns.count;
+                long stamp = this.lock.tryOptimisticRead();
+                if (stamp == 0 || !copied.copyTo(columns, from, to) || !this.lock.validate(stamp)) {
+                    columns.count = count; // Copy the chunk again under the read lock.
+                    stamp = this.lock.readLock();
+                    try {
+                        complete = copied == this.table && copied.copyTo(columns, from, to);
+                    } finally {
+                        this.lock.unlockRead(stamp);
+                    }
+                }
+            }
+
+            if (complete && copied == this.table) {
+                return columns;
+            }
+        }
+    }
+    // #endregion Snapshot Methods
+
+    /**
+     * The arrays of the view. A table is never resized, the view swaps in a bigger one instead.
+     */
+    private static class Table {
+        final long[] keys;
+        final int[] users;
+        final double[] balances;
+        final long[] versions;
+        final double[] deposits; // Total of the D entries of the account.
+        final long[] modified; // Time the account last changed, 0 if never seen changing.
+        final int mask;
+
+        Table(int capacity) {
+            this.keys = new long[capacity];
+            this.users = new int[capacity];
+            this.balances = new double[capacity];
+            this.versions = new long[capacity];
+            this.deposits = new double[capacity];
+            this.modified = new long[capacity];
+            this.mask = capacity - 1;
+            Arrays.fill(this.keys, EMPTY);
+        }
+
+        /**
+         * Returns the slot of an account, or -1 if it is not in the table.
+         */
+        int find(long accountNo) {
+            for (int slot = hash(accountNo) & this.mask;; slot = (slot + 1) & this.mask) {
+                long key = this.keys[slot];
+                if (key == accountNo) {
+                    return slot;
+                }
+                if (key == EMPTY) {
+                    return -1;
+                }
+            }
+        }
+
+        double balance(long accountNo, int userId) {
+            int slot = find(accountNo);
+            return slot >= 0 && this.users[slot] == userId ? this.balances[slot] : Double.NaN;
+        }
+
+        /**
+         * Returns the slot an account is in, or the free slot it goes to.
+         */
+        int slotFor(long accountNo) {
+            int slot = hash(accountNo) & this.mask;
+            while (this.keys[slot] != EMPTY && this.keys[slot] != accountNo) {
+                slot = (slot + 1) & this.mask;
+            }
+            return slot;
+        }
+
+        /**
+         * Adds or overwrites an account, returns true if it was added.
+         */
+        boolean put(long accountNo, int userId, double balance, long version, long now) {
+            int slot = slotFor(accountNo);
+
+            boolean added = this.keys[slot] == EMPTY;
+            if (added) {
+                this.modified[slot] = version > 0 ? now : 0; // Accounts at version 0 have never changed.
+            } else if (version > this.versions[slot]) {
+                this.modified[slot] = now;
+            } else if (version < this.versions[slot]) {
+                return false;
+            }
+
+            this.users[slot] = userId;
+            this.balances[slot] = balance;
+            this.versions[slot] = version;
+            this.keys[slot] = accountNo;
+            return added;
+        }
+
+        /**
+         * Appends the accounts of a range of slots to the columns, returns false if they are full.
+         */
+        boolean copyTo(Columns columns, int from, int to) {
+            for (int slot = from; slot < to; slot++) {
+                if (this.keys[slot] == EMPTY) {
+                    continue;
+                }
+                if (columns.count == columns.accounts.length) {
+                    return false;
+                }
+
+                int row = columns.count++;
+                columns.accounts[row] = this.keys[slot];
+                columns.users[row] = this.users[slot];
+                columns.balances[row] = this.balances[slot];
+                columns.deposits[row] = this.deposits[slot];
+                columns.modified[row] = this.modified[slot];
+            }
+            return true;
+        }
+
+        Table grow() {
+            Table bigger = new Table(this.keys.length * 2);
+            for (int slot = 0; slot < this.keys.length; slot++) {
+                if (this.keys[slot] != EMPTY) {
+                    int biggerSlot = bigger.slotFor(this.keys[slot]);
+                    bigger.keys[biggerSlot] = this.keys[slot];
+                    bigger.users[biggerSlot] = this.users[slot];
+                    bigger.balances[biggerSlot] = this.balances[slot];
+                    bigger.versions[biggerSlot] = this.versions[slot];
+                    bigger.deposits[biggerSlot] = this.deposits[slot];
+                    bigger.modified[biggerSlot] = this.modified[slot];
+                }
+            }
+            return bigger;
+        }
+
+        static int hash(long accountNo) {
+            long h = accountNo * 0x9E3779B97F4A7C15L; // Fibonacci hashing, account numbers are often sequential.
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    /**
+     * A columnar copy of the view, one array per field, the first count rows in use.
+     */
+    public static class Columns {
+        public final long[] accounts;
+        public final int[] users;
+        public final double[] balances;
+        public final double[] deposits;
+        public final long[] modified;
+        public final long takenAt = System.currentTimeMillis();
+        public int count = 0;
+
+        Columns(int capacity) {
+            this.accounts = new long[capacity];
+            this.users = new int[capacity];
+            this.balances = new double[capacity];
+            this.deposits = new double[capacity];
+            this.modified = new long[capacity];
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,380 @@
+package server_read;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+
+/**
+ * AnalyticsEngine Class
+ *
+ * Runs the reports over a columnar snapshot of the account view, refreshed in
+ * the background. Reports never query SQLite or the write servers. Each report
+ * is split over row ranges on a dedicated fork/join pool. That pool is smaller
+ * than the machine, so balance reads always have cores left.
+ *
+ */
+public class AnalyticsEngine {
+    // #region Class Variables
+    private static AnalyticsEngine instance = null;
+    private static final int LEAF_SIZE = 16 * 1024; // Rows aggregated by a single task.
+
+    private final ForkJoinPool pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private volatile AccountView.Columns snapshot = null;
+    private int refreshInterval = 10 * 1000; // in ms
+
+    // Metrics
+    private long refreshes = 0, reports = 0;
+    // #endregion Class Variables
+
+    // #region Constructors & Instance Methods
+    /**
+     * Constructor
+     *
+     * @implNote This constructor is private to ensure that only one instance of
+     *           this class is created.
+     */
+    private AnalyticsEngine() {}
+
+    /**
+     * Returns the instance of this class.
+     *
+     * @return AnalyticsEngine The instance of this class.
+     */
+    public static synchronized AnalyticsEngine getInstance() {
+        if (instance == null) {
+            instance = new AnalyticsEngine();
+        }
+        return instance;
+    }
+    // #endregion Constructors & Instance Methods
+
+    // #region Snapshot Methods
+    /**
+     * Starts refreshing the snapshot in the background.
+     *
+     * @param refreshInterval The time between two snapshots, in ms.
+     */
+    public void start(int refreshInterval) {
+        this.refreshInterval = Math.max(refreshInterval, 100);
+
+        Thread refresher = new Thread(() -> {
+            while (true) {
+                refresh();
+                try {
+                    Thread.sleep(this.refreshInterval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        refresher.setDaemon(true);
+        refresher.start();
+    }
+
+    /**
+     * Takes a new snapshot of the account view.
+     */
+    private void refresh() {
+        this.snapshot = AccountView.getInstance().snapshot();
+        synchronized (this) {
+            this.refreshes++;
+        }
+    }
+
+    /**
+     * Returns the current snapshot, taking one if there is none yet.
+     *
+     * @return AccountView.Columns The snapshot.
+     */
+    private AccountView.Columns snapshot() {
+        if (this.snapshot == null) {
+            refresh();
+        }
+        return this.snapshot;
+    }
+    // #endregion Snapshot Methods
+
+    // #region Report Methods
+    /**
+     * Runs a report and streams its rows, followed by "END <rows> <snapshot age in ms>".
+     *
+     * Reports:
+     * SUMMARY              accounts, total, min, max and mean balance
+     * DEPOSITS [limit]     users by money deposited, from the D entries of the ledger, the largest first
+     * TOP [limit]          largest balances
+     * INACTIVE <seconds>   accounts that have not changed for that long, as seen by this read server
+     * HIST [buckets]       balance distribution, in buckets of equal width
+     *
+     * @param requestTokens The request, "A <report> [argument]".
+     * @param out           Where the rows are written.
+     */
+    public void report(String[] requestTokens, PrintStream out) {
+        AccountView.Columns columns = snapshot();
+        String report = requestTokens.length > 1 ? requestTokens[1] : "";
+        int argument;
+        try {
+            argument = requestTokens.length > 2 ? Integer.parseInt(requestTokens[2]) : -1;
+        } catch (NumberFormatException e) {
+            out.println("ERROR The argument of the report must be a number.");
+            return;
+        }
+
+        int rows;
+        switch (report) {
+            case "SUMMARY":
+                rows = summary(columns, out);
+                break;
+            case "DEPOSITS":
+                rows = deposits(columns, argument > 0 ? argument : 10, out);
+                break;
+            case "TOP":
+                rows = top(columns, argument > 0 ? argument : 10, out);
+                break;
+            case "INACTIVE":
+                rows = inactive(columns, argument >= 0 ? argument : 30 * 24 * 3600, out);
+                break;
+            case "HIST":
+                rows = histogram(columns, argument > 0 ? Math.min(argument, 1000) : 10, out);
+                break;
+            default:
+                out.println("ERROR Unknown report, expected SUMMARY, DEPOSITS, TOP, INACTIVE or HIST.");
+                return;
+        }
+
+        out.println("END " + rows + " " + (System.currentTimeMillis() - columns.takenAt));
+        synchronized (this) {
+            this.reports++;
+        }
+    }
+
+    /**
+     * ROW <accounts> <total> <min> <max> <mean>
+     */
+    private int summary(AccountView.Columns columns, PrintStream out) {
+        double[] stats = aggregate(columns, (c, from, to) -> {
+            double[] partial = { 0, 0, Double.MAX_VALUE, -Double.MAX_VALUE };
+            for (int row = from; row < to; row++) {
+                partial[0]++;
+                partial[1] += c.balances[row];
+                partial[2] = Math.min(partial[2], c.balances[row]);
+                partial[3] = Math.max(partial[3], c.balances[row]);
+            }
+            return partial;
+        }, (a, b) -> new double[] { a[0] + b[0], a[1] + b[1], Math.min(a[2], b[2]), Math.max(a[3], b[3]) });
+
+        if (stats[0] == 0) {
+            out.println("ROW 0 0 0 0 0");
+        } else {
+            out.println("ROW " + (long) stats[0] + " " + stats[1] + " " + stats[2] + " " + stats[3] + " " + stats[1] / stats[0]);
+        }
+        return 1;
+    }
+
+    /**
+     * ROW <user_id> <money deposited>
+     */
+    private int deposits(AccountView.Columns columns, int limit, PrintStream out) {
+        Map<Integer, Double> perUser = aggregate(columns, (c, from, to) -> {
+            Map<Integer, Double> partial = new HashMap<Integer, Double>();
+            for (int row = from; row < to; row++) {
+                if (c.deposits[row] > 0) {
+                    partial.merge(c.users[row], c.deposits[row], Double::sum);
+                }
+            }
+            return partial;
+        }, (a, b) -> {
+            Map<Integer, Double> smaller = a.size() < b.size() ? a : b, larger = smaller == a ? b : a;
+            smaller.forEach((user, deposited) -> larger.merge(user, deposited, Double::sum));
+            return larger;
+        });
+
+        PriorityQueue<Map.Entry<Integer, Double>> largest = new PriorityQueue<Map.Entry<Integer, Double>>(
+                (a, b) -> Double.compare(a.getValue(), b.getValue()));
+        for (Map.Entry<Integer, Double> entry : perUser.entrySet()) {
+            largest.offer(entry);
+            if (largest.size() > limit) {
+                largest.poll();
+            }
+        }
+
+        List<Map.Entry<Integer, Double>> rows = new ArrayList<Map.Entry<Integer, Double>>(largest);
+        rows.sort((a, b) -> Double.compare(b.getValue(), a.getValue()));
+        for (Map.Entry<Integer, Double> row : rows) {
+            out.println("ROW " + row.getKey() + " " + row.getValue());
+        }
+        return rows.size();
+    }
+
+    /**
+     * ROW <account_number> <user_id> <balance>
+     */
+    private int top(AccountView.Columns columns, int limit, PrintStream out) {
+        PriorityQueue<Integer> largest = aggregate(columns, (c, from, to) -> {
+            PriorityQueue<Integer> partial = new PriorityQueue<Integer>((a, b) -> Double.compare(c.balances[a], c.balances[b]));
+            for (int row = from; row < to; row++) {
+                partial.offer(row);
+                if (partial.size() > limit) {
+                    partial.poll();
+                }
+            }
+            return partial;
+        }, (a, b) -> {
+            for (Integer row : b) {
+                a.offer(row);
+                if (a.size() > limit) {
+                    a.poll();
+                }
+            }
+            return a;
+        });
+
+        List<Integer> rows = new ArrayList<Integer>(largest);
+        rows.sort((a, b) -> Double.compare(columns.balances[b], columns.balances[a]));
+        for (int row : rows) {
+            out.println("ROW " + columns.accounts[row] + " " + columns.users[row] + " " + columns.balances[row]);
+        }
+        return rows.size();
+    }
+
+    /**
+     * ROW <account_number> <user_id> <balance>, streamed one range at a time.
+     */
+    private int inactive(AccountView.Columns columns, int seconds, PrintStream out) {
+        long cutoff = columns.takenAt - seconds * 1000L;
+        List<int[]> ranges = new ArrayList<int[]>();
+        for (int from = 0; from < columns.count; from += LEAF_SIZE) {
+            ranges.add(new int[] { from, Math.min(from + LEAF_SIZE, columns.count) });
+        }
+
+        // The ranges are filtered in parallel, and written in order as soon as each one is ready.
+        List<ForkJoinTask<List<Integer>>> tasks = new ArrayList<ForkJoinTask<List<Integer>>>();
+        for (int[] range : ranges) {
+            tasks.add(this.pool.submit(() -> {
+                List<Integer> matches = new ArrayList<Integer>();
+                for (int row = range[0]; row < range[1]; row++) {
+                    if (columns.modified[row] < cutoff) {
+                        matches.add(row);
+                    }
+                }
+                return matches;
+            }));
+        }
+
+        int rows = 0;
+        for (ForkJoinTask<List<Integer>> task : tasks) {
+            for (int row : task.join()) {
+                out.println("ROW " + columns.accounts[row] + " " + columns.users[row] + " " + columns.balances[row]);
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * ROW <from> <to> <accounts>
+     */
+    private int histogram(AccountView.Columns columns, int buckets, PrintStream out) {
+        double[] range = aggregate(columns, (c, from, to) -> {
+            double[] partial = { Double.MAX_VALUE, -Double.MAX_VALUE };
+            for (int row = from; row < to; row++) {
+                partial[0] = Math.min(partial[0], c.balances[row]);
+                partial[1] = Math.max(partial[1], c.balances[row]);
+            }
+            return partial;
+        }, (a, b) -> new double[] { Math.min(a[0], b[0]), Math.max(a[1], b[1]) });
+        if (columns.count == 0) {
+            return 0;
+        }
+
+        double min = range[0], width = Math.max((range[1] - range[0]) / buckets, Double.MIN_NORMAL);
+        long[] counts = aggregate(columns, (c, from, to) -> {
+            long[] partial = new long[buckets];
+            for (int row = from; row < to; row++) {
+                partial[Math.min((int) ((c.balances[row] - min) / width), buckets - 1)]++;
+            }
+            return partial;
+        }, (a, b) -> {
+            for (int bucket = 0; bucket < buckets; bucket++) {
+                a[bucket] += b[bucket];
+            }
+            return a;
+        });
+
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            out.println("ROW " + (min + bucket * width) + " " + (min + (bucket + 1) * width) + " " + counts[bucket]);
+        }
+        return buckets;
+    }
+
+    /**
+     * Aggregates every row of a snapshot, split in ranges over the fork/join pool.
+     *
+     * @param columns The snapshot.
+     * @param leaf    Aggregates a range of rows.
+     * @param merge   Merges the results of two ranges.
+     * @return R The result over every row.
+     */
+    private <R> R aggregate(AccountView.Columns columns, Leaf<R> leaf, BinaryOperator<R> merge) {
+        return this.pool.invoke(new RangeTask<R>(columns, 0, columns.count, leaf, merge));
+    }
+    // #endregion Report Methods
+
+    /**
+     * Returns the analytics metrics.
+     *
+     * @return String The snapshot age and size, refreshes and reports run.
+     */
+    public synchronized String getStats() {
+        AccountView.Columns columns = this.snapshot;
+        return "Analytics: " + (columns == null ? "no snapshot yet"
+                : "snapshot of " + columns.count + " accounts, " + (System.currentTimeMillis() - columns.takenAt) + "ms old")
+                + ", " + this.refreshes + " refreshes, " + this.reports + " reports.";
+    }
+
+    /**
+     * Aggregates a range of rows of a snapshot.
+     */
+    private interface Leaf<R> {
+        R apply(AccountView.Columns columns, int from, int to);
+    }
+
+    /**
+     * Splits a range of rows in halves until they are small enough to be aggregated by a single task.
+     */
+    private static class RangeTask<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+
+        private final AccountView.Columns columns;
+        private final int from, to;
+        private final Leaf<R> leaf;
+        private final BinaryOperator<R> merge;
+
+        RangeTask(AccountView.Columns columns, int from, int to, Leaf<R> leaf, BinaryOperator<R> merge) {
+            this.columns = columns;
+            this.from = from;
+            this.to = to;
+            this.leaf = leaf;
+            this.merge = merge;
+        }
+
+        @Override
+        protected R compute() {
+            if (this.to - this.from <= LEAF_SIZE) {
+                return this.leaf.apply(this.columns, this.from, this.to);
+            }
+
+            int middle = (this.from + this.to) >>> 1;
+            RangeTask<R> left = new RangeTask<R>(this.columns, this.from, middle, this.leaf, this.merge);
+            left.fork();
+            R right = new RangeTask<R>(this.columns, middle, this.to, this.leaf, this.merge).compute();
+            return this.merge.apply(left.join(), right);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,452 @@
+package server_read;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BalanceSubscriptions Class
+ *
+ * Pushes the new balance of an account to the clients that subscribed to it,
+ * as the read server applies the frames of the write servers, so a client can
+ * cache balances instead of asking for them over and over.
+ *
+ * A connection becomes a subscriber with its first SUB request, from then on it
+ * only takes SUB and UNSUB requests. Like a balance read, a request names the
+ * user, and only the accounts of that user are pushed: right away, then every
+ * time they change.
+ *      Subscribe:      SUB <id> <account,account,...>      answered with SUBSCRIBED <count>
+ *      Unsubscribe:    UNSUB <id> [account,account,...]    answered with UNSUBSCRIBED <count> (every account if none is given)
+ *      Push:           PUSH B <account> <balance> <version>
+ *
+ * Every subscriber is served by a single selector thread, which never blocks on
+ * a connection: an idle subscriber costs a socket and a few small objects, no
+ * thread and no buffer. The pushes waiting for a subscriber are coalesced per
+ * account, only the latest version is kept, so what a subscriber can have waiting
+ * is bounded by the accounts it subscribed to. A subscriber that has not taken
+ * any of it for SLOW_CONSUMER ms is dropped, and has to subscribe again.
+ *
+ */
+public class BalanceSubscriptions {
+    // #region Class Variables
+    private static BalanceSubscriptions instance = null;
+    private static final int MAX_ACCOUNTS = 256; // Accounts a subscriber can subscribe to.
+    private static final int MAX_WRITE = 16 * 1024; // Bytes handed to the socket of a subscriber at a time.
+    private static final int MAX_REQUEST = 8 * 1024; // Length of a request, and of the replies waiting for a subscriber, at most.
+    private static final long SLOW_CONSUMER = 5 * 1000; // Time a subscriber may leave its pushes waiting, in ms.
+    private static final long SWEEP_INTERVAL = 1000; // Time between two checks for slow subscribers, in ms.
+
+    private final AccountView view = AccountView.getInstance();
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Subscriber> joining = new ConcurrentLinkedQueue<Subscriber>();
+    private final ConcurrentLinkedQueue<List<String>> changes = new ConcurrentLinkedQueue<List<String>>(); // Account states to push.
+
+    // Only used by the selector thread.
+    private final Map<String, Set<Subscriber>> subscribers = new HashMap<String, Set<Subscriber>>(); // Account to its subscribers.
+    private final ArrayDeque<Subscriber> dirty = new ArrayDeque<Subscriber>(); // Subscribers with something to write.
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(MAX_REQUEST);
+    private volatile int connections = 0, accounts = 0;
+
+    // Metrics
+    private final LongAdder subscriptions = new LongAdder(), pushes = new LongAdder(), coalesced = new LongAdder(), dropped = new LongAdder();
+    // #endregion Class Variables
+
+    // #region Constructors & Instance Methods
+    /**
+     * Constructor
+     *
+     * @implNote This constructor is private to ensure that only one instance of
+     *           this class is created.
+     */
+    private BalanceSubscriptions() {
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open the selector of the balance subscriptions: " + e.getMessage());
+        }
+
+        Thread selectorThread = new Thread(this::selectLoop, "balance-subscriptions");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * Returns the instance of this class.
+     *
+     * @return BalanceSubscriptions The instance of this class.
+     */
+    public static synchronized BalanceSubscriptions getInstance() {
+        if (instance == null) {
+            instance = new BalanceSubscriptions();
+        }
+        return instance;
+    }
+    // #endregion Constructors & Instance Methods
+
+    // #region Subscription Methods
+    /**
+     * Hands a connection over to the selector thread, which serves it from now on.
+     * The connection must not have sent anything after its first request yet.
+     *
+     * @param socket       The connection, accepted by MachineSocket so it has a channel.
+     * @param firstRequest The SUB or UNSUB request the connection was handed over with.
+     */
+    public void register(Socket socket, String firstRequest) {
+        SocketChannel channel = socket.getChannel();
+        try {
+            if (channel == null) { throw new IOException("the connection has no channel"); }
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            System.out.println("Could not accept the subscriber " + socket.getInetAddress() + ":" + socket.getPort() + ": " + e.getMessage());
+            try {
+                socket.close();
+            } catch (IOException ex) {
+            }
+            return;
+        }
+
+        Subscriber subscriber = new Subscriber(channel);
+        subscriber.firstRequest = firstRequest;
+        this.joining.add(subscriber);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Queues the states of accounts the read server applied, to be pushed to their subscribers. Never blocks.
+     *
+     * @param states The states, formatted as "accountNo:user_id:balance:version".
+     */
+    public void changed(List<String> states) {
+        if (this.accounts == 0 || states.isEmpty()) { return; }
+        this.changes.add(new ArrayList<String>(states));
+        this.selector.wakeup();
+    }
+
+    /**
+     * Returns the subscription metrics.
+     *
+     * @return String The subscribers and accounts subscribed, and the balances pushed.
+     */
+    public String getStats() {
+        return "Balance subscriptions: " + this.connections + " subscribers on " + this.accounts + " accounts ("
+                + this.subscriptions.sum() + " subscriptions in total), " + this.pushes.sum() + " balances pushed, "
+                + this.coalesced.sum() + " coalesced, " + this.dropped.sum() + " slow subscribers dropped.";
+    }
+    // #endregion Subscription Methods
+
+    // #region Helper Methods
+    /**
+     * Selector thread, reads the requests of the subscribers and writes what is waiting for them.
+     */
+    private void selectLoop() {
+        long lastSweep = System.currentTimeMillis();
+        while (true) {
+            try {
+                this.selector.select(SWEEP_INTERVAL);
+
+                Subscriber subscriber;
+                while ((subscriber = this.joining.poll()) != null) {
+                    subscriber.key = subscriber.channel.register(this.selector, SelectionKey.OP_READ, subscriber);
+                    this.connections++;
+                    handle(subscriber, subscriber.firstRequest);
+                    subscriber.firstRequest = null;
+                }
+
+                List<String> states;
+                while ((states = this.changes.poll()) != null) { deliver(states); }
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    subscriber = (Subscriber) key.attachment();
+                    if (key.isValid() && key.isReadable()) { read(subscriber); }
+                    if (key.isValid() && key.isWritable()) { markDirty(subscriber); }
+                }
+
+                while ((subscriber = this.dirty.poll()) != null) {
+                    subscriber.dirty = false;
+                    flush(subscriber);
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SWEEP_INTERVAL) {
+                    lastSweep = now;
+                    for (SelectionKey key : new ArrayList<SelectionKey>(this.selector.keys())) {
+                        subscriber = (Subscriber) key.attachment();
+                        if (subscriber.waitingSince > 0 && now - subscriber.waitingSince > SLOW_CONSUMER) { drop(subscriber, true); }
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Balance subscriptions could not poll their connections: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Queues the states of accounts for the subscribers of their user, replacing the balance still waiting for an account.
+     * A state is skipped if the subscriber was already pushed this version of the account, or a newer one: every
+     * write server ships the same change.
+     */
+    private void deliver(List<String> states) {
+        long now = System.currentTimeMillis();
+        for (String state : states) {
+            String[] fields = state.split(":");
+            Set<Subscriber> accountSubscribers = fields.length < 4 ? null : this.subscribers.get(fields[0]);
+            if (accountSubscribers == null) { continue; }
+
+            long version;
+            try {
+                version = Long.parseLong(fields[3]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            for (Subscriber subscriber : accountSubscribers) {
+                Long pushedVersion = subscriber.versions.get(fields[0]);
+                if (!fields[1].equals(subscriber.userId) || (pushedVersion != null && pushedVersion >= version)) { continue; }
+
+                subscriber.versions.put(fields[0], version);
+                if (subscriber.pending.put(fields[0], "PUSH B " + fields[0] + " " + fields[2] + " " + fields[3] + "\n") != null) {
+                    this.coalesced.increment();
+                }
+                if (subscriber.waitingSince == 0) { subscriber.waitingSince = now; }
+                markDirty(subscriber);
+            }
+        }
+    }
+
+    /**
+     * Reads the requests of a subscriber, and answers the complete ones.
+     */
+    private void read(Subscriber subscriber) {
+        int read;
+        this.readBuffer.clear();
+        try {
+            read = subscriber.channel.read(this.readBuffer);
+        } catch (IOException e) {
+            read = -1;
+        }
+        if (read < 0) {
+            drop(subscriber, false);
+            return;
+        }
+
+        this.readBuffer.flip();
+        while (this.readBuffer.hasRemaining() && subscriber.key.isValid()) {
+            char character = (char) this.readBuffer.get();
+            if (character == '\n') {
+                handle(subscriber, subscriber.request.toString());
+                subscriber.request.setLength(0);
+            } else if (character != '\r') {
+                subscriber.request.append(character);
+            }
+        }
+
+        if (subscriber.request.length() > MAX_REQUEST) {
+            drop(subscriber, false);
+        } else if (subscriber.request.length() == 0) {
+            subscriber.request.trimToSize(); // Keeps idle subscribers small.
+        }
+    }
+
+    /**
+     * Answers a request of a subscriber.
+     *
+     * @param request The request, SUB or UNSUB.
+     */
+    private void handle(Subscriber subscriber, String request) {
+        String[] requestTokens = request.split(" ");
+        if (requestTokens.length > 1) {
+            subscriber.userId = requestTokens[1];
+        }
+
+        String response;
+        switch (requestTokens[0]) {
+            case "SUB":
+                response = "SUBSCRIBED " + subscribe(subscriber, requestTokens.length > 2 ? requestTokens[2].split(",") : new String[0]);
+                break;
+            case "UNSUB":
+                response = "UNSUBSCRIBED " + unsubscribe(subscriber,
+                        requestTokens.length > 2 ? requestTokens[2].split(",") : subscriber.accounts.toArray(new String[0]));
+                break;
+            default:
+                response = "There was a unknown issue in your request, please try again!";
+                break;
+        }
+
+        subscriber.replies.append(response).append('\n');
+        if (subscriber.replies.length() > MAX_REQUEST) { // It sends requests without reading the replies.
+            drop(subscriber, true);
+            return;
+        }
+        markDirty(subscriber);
+    }
+
+    /**
+     * Subscribes a subscriber to accounts, and queues their current balance.
+     *
+     * @return int The number of accounts the subscriber is subscribed to.
+     */
+    private int subscribe(Subscriber subscriber, String[] accountNos) {
+        List<String> states = new ArrayList<String>();
+        for (String accountNo : accountNos) {
+            if (accountNo.isEmpty() || subscriber.accounts.size() >= MAX_ACCOUNTS || !subscriber.accounts.add(accountNo)) { continue; }
+
+            Set<Subscriber> accountSubscribers = this.subscribers.get(accountNo);
+            if (accountSubscribers == null) {
+                this.subscribers.put(accountNo, accountSubscribers = new HashSet<Subscriber>());
+                this.accounts++;
+            }
+            accountSubscribers.add(subscriber);
+            this.subscriptions.increment();
+
+            try {
+                String state = this.view.state(Long.parseLong(accountNo)); // In memory, the selector thread does not wait.
+                if (state != null) { states.add(state); }
+            } catch (NumberFormatException e) {
+            }
+        }
+
+        deliver(states);
+        return subscriber.accounts.size();
+    }
+
+    /**
+     * Unsubscribes a subscriber from accounts, and forgets their balances still waiting.
+     *
+     * @return int The number of accounts the subscriber is still subscribed to.
+     */
+    private int unsubscribe(Subscriber subscriber, String[] accountNos) {
+        for (String accountNo : accountNos) {
+            if (!subscriber.accounts.remove(accountNo)) { continue; }
+            subscriber.versions.remove(accountNo);
+            subscriber.pending.remove(accountNo);
+
+            Set<Subscriber> accountSubscribers = this.subscribers.get(accountNo);
+            if (accountSubscribers != null && accountSubscribers.remove(subscriber) && accountSubscribers.isEmpty()) {
+                this.subscribers.remove(accountNo);
+                this.accounts--;
+            }
+        }
+        return subscriber.accounts.size();
+    }
+
+    /**
+     * Writes the replies and pushes waiting for a subscriber, as much as its socket takes without blocking.
+     * What is left is written once the socket can take more.
+     */
+    private void flush(Subscriber subscriber) {
+        if (!subscriber.key.isValid()) { return; }
+
+        try {
+            while (true) {
+                if (subscriber.out == null || !subscriber.out.hasRemaining()) {
+                    subscriber.out = nextWrite(subscriber);
+                    if (subscriber.out == null) { break; }
+                }
+
+                int written = subscriber.channel.write(subscriber.out);
+                if (written > 0 && subscriber.waitingSince > 0) {
+                    subscriber.waitingSince = System.currentTimeMillis(); // Slow, but still taking pushes.
+                }
+                if (subscriber.out.hasRemaining()) { break; } // The socket is full.
+            }
+        } catch (IOException e) {
+            drop(subscriber, false);
+            return;
+        }
+
+        boolean waiting = subscriber.out != null;
+        if (!waiting) { subscriber.waitingSince = 0; }
+        subscriber.key.interestOps(waiting ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /**
+     * Takes the replies, then the pushes, waiting for a subscriber, up to MAX_WRITE bytes.
+     *
+     * @return ByteBuffer The bytes to write, or null if nothing is waiting.
+     */
+    private ByteBuffer nextWrite(Subscriber subscriber) {
+        StringBuilder lines = new StringBuilder(subscriber.replies);
+        subscriber.replies.setLength(0);
+        subscriber.replies.trimToSize();
+
+        Iterator<String> pending = subscriber.pending.values().iterator();
+        while (pending.hasNext() && lines.length() < MAX_WRITE) {
+            lines.append(pending.next());
+            pending.remove();
+            this.pushes.increment();
+        }
+        return lines.length() == 0 ? null : ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Closes the connection of a subscriber, and removes its subscriptions.
+     *
+     * @param slow Whether it is dropped for not taking what it is sent, or because it disconnected.
+     */
+    private void drop(Subscriber subscriber, boolean slow) {
+        if (!subscriber.key.isValid()) { return; }
+
+        Socket socket = subscriber.channel.socket();
+        String from = socket.getInetAddress() + ":" + socket.getPort();
+        subscriber.key.cancel();
+        try {
+            subscriber.channel.close();
+        } catch (IOException e) {
+        }
+
+        unsubscribe(subscriber, subscriber.accounts.toArray(new String[0]));
+        this.connections--;
+        if (slow) {
+            this.dropped.increment();
+            System.out.println("Dropped the slow subscriber " + from + ", it did not take what it was sent.");
+        }
+    }
+
+    /**
+     * Queues a subscriber to be written to once the selector thread is done with the current events.
+     */
+    private void markDirty(Subscriber subscriber) {
+        if (subscriber.dirty) { return; }
+        subscriber.dirty = true;
+        this.dirty.add(subscriber);
+    }
+
+    /**
+     * A subscriber connection, with its subscriptions and what is waiting to be written to it.
+     */
+    private static class Subscriber {
+        final SocketChannel channel;
+        SelectionKey key;
+        String userId = "", firstRequest = null;
+        final Set<String> accounts = new HashSet<String>();
+        final Map<String, Long> versions = new HashMap<String, Long>(); // Account to the version last pushed.
+        final LinkedHashMap<String, String> pending = new LinkedHashMap<String, String>(); // Account to its latest push not written yet.
+        final StringBuilder request = new StringBuilder(0), replies = new StringBuilder(0);
+        ByteBuffer out = null; // Bytes being written, null when there are none.
+        long waitingSince = 0; // Time the subscriber last took something while more was waiting, 0 if nothing is waiting.
+        boolean dirty = false;
+
+        Subscriber(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+    // #endregion Helper Methods
+}
\ No newline at end of file
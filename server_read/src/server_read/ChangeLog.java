@@ -0,0 +1,506 @@
+package server_read;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * ChangeLog Class
+ *
+ * Publishes every change the read server applies to an append-only log on disk,
+ * so downstream systems (fraud checks, notifications, accounting) can follow the
+ * committed transactions without scraping the output or polling the database,
+ * and without adding any load to the write servers.
+ *
+ * The log is split into segment files, preallocated to the segment size and named
+ * after the offset of their first record, the offset of a record being its position
+ * in the whole log. A record is framed by its length and the CRC32 of its bytes, and
+ * holds "<source> <epoch>:<seq> <kind> <data>", where the position is the one of the
+ * frame in the feed of the write server (-1 for a snapshot):
+ *      Registration:   U <id> <username> <first_name> <last_name> <email>     (the password is left out)
+ *      Account:        A <accountNo>:<user_id>:<balance>:<version>
+ *      Ledger entry:   E <txid> <accountNo> <type> <amount> <balance> <counterparty> <created_at>
+ *
+ * The records of a frame are forced to disk before the frame is committed to the
+ * database, and only streamed once it is. A crash in between leaves the frame in the
+ * log, and it is logged again when the feed replays it: consumers that need every
+ * change exactly once skip the feed positions they have already seen.
+ *
+ * Consumers stream the log from an offset, and store the offset they got to under
+ * their name, in a file next to the segments:
+ *      Stream:     CDC <consumer> [offset]         answered with CDC <offset>, then a REC <next offset> <record> line per
+ *                                                  record, and IDLE <offset> when there is nothing new for IDLE_INTERVAL ms
+ *      Commit:     CDCACK <consumer> <offset>      answered with CDCACK <offset> once the offset is on disk
+ * Without an offset, a consumer resumes from the one it stored, or from the oldest
+ * segment. A stream connection takes no other request. Every consumer has its own
+ * thread, which reads the segments through its own memory mapping: the thread
+ * applying the frames only wakes them up, however many there are.
+ *
+ * Closed segments are deleted once they are older than the retention, whether every
+ * consumer has read them or not; a consumer behind them resumes from the oldest one left.
+ */
+public class ChangeLog {
+    // #region Class Variables
+    private static ChangeLog instance = null;
+    private static final int HEADER = 8; // Length and CRC32 of a record.
+    private static final long IDLE_INTERVAL = 10 * 1000; // Time between two IDLE lines on a stream with nothing new, in ms.
+    private static final long RETENTION_CHECK = 60 * 1000; // Time between two checks for segments to delete, in ms.
+    private static final String SUFFIX = ".log";
+    private static final String OFFSETS_FILE = "consumers.offsets";
+
+    private File directory = new File("bankmanager_read_changelog");
+    private long segmentSize = 64 * 1024 * 1024;
+    private long retention = 7L * 24 * 60 * 60 * 1000;
+    private boolean opened = false;
+
+    private final ConcurrentSkipListMap<Long, File> segments = new ConcurrentSkipListMap<Long, File>(); // Offset of the first record to the segment.
+    private final Map<String, Long> offsets = new HashMap<String, Long>(); // Consumer to the offset it stored.
+    private final Object signal = new Object(); // Wakes up the consumers when records are published.
+
+    // Only used under the lock of the log.
+    private MappedByteBuffer active = null; // The segment records are appended to.
+    private long activeBase = 0;
+    private int position = 0; // Position in the active segment the next record is written at.
+    private long appended = 0; // Offset after the last record appended.
+    private volatile long published = 0; // Offset after the last record of a committed frame, consumers read up to it.
+
+    // Metrics
+    private final LongAdder records = new LongAdder(), streamed = new LongAdder(), deleted = new LongAdder();
+    private final AtomicInteger consumers = new AtomicInteger();
+    // #endregion Class Variables
+
+    // #region Constructors & Instance Methods
+    /**
+     * Constructor
+     *
+     * @implNote This constructor is private to ensure that only one instance of
+     *           this class is created.
+     */
+    private ChangeLog() {}
+
+    /**
+     * Returns the instance of this class.
+     *
+     * @return ChangeLog The instance of this class.
+     */
+    public static synchronized ChangeLog getInstance() {
+        if (instance == null) {
+            instance = new ChangeLog();
+        }
+        return instance;
+    }
+    // #endregion Constructors & Instance Methods
+
+    // #region Log Methods
+    /**
+     * Sets where the log is kept, the size of its segments and how long they are kept.
+     * Must be called before the log is opened.
+     *
+     * @param directory   The directory of the segments and the consumer offsets.
+     * @param segmentSize The size of a segment, in bytes.
+     * @param retention   The time a closed segment is kept, in ms.
+     */
+    public synchronized void configure(String directory, long segmentSize, long retention) {
+        this.directory = new File(directory);
+        this.segmentSize = Math.min(Math.max(segmentSize, 64 * 1024), Integer.MAX_VALUE);
+        this.retention = retention;
+    }
+
+    /**
+     * Opens the log, recovering the end of the last segment, and starts deleting old segments.
+     *
+     * @throws IOException If the directory or a segment could not be opened.
+     */
+    public synchronized void open() throws IOException {
+        if (this.opened) { return; }
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Could not create " + this.directory);
+        }
+
+        loadOffsets();
+        File[] files = this.directory.listFiles((dir, name) -> name.matches("\\d{20}\\" + SUFFIX));
+        for (File file : files == null ? new File[0] : files) {
+            this.segments.put(Long.parseLong(file.getName().substring(0, 20)), file);
+        }
+
+        if (this.segments.isEmpty()) {
+            createSegment(0);
+        } else {
+            this.activeBase = this.segments.lastKey();
+            this.active = map(this.segments.lastEntry().getValue(), FileChannel.MapMode.READ_WRITE);
+            this.position = recover(this.active);
+        }
+        this.appended = this.activeBase + this.position;
+        this.published = this.appended;
+        this.opened = true;
+
+        System.out.println("Change log opened in " + this.directory + ", " + this.segments.size() + " segments, offsets "
+                + this.segments.firstKey() + " to " + this.published + ".");
+
+        Thread cleaner = new Thread(this::retentionLoop, "changelog-retention");
+        cleaner.setDaemon(true);
+        cleaner.start();
+    }
+
+    /**
+     * Appends the records of a frame and forces them to disk. They are not streamed until the frame is published.
+     *
+     * @param source   The write server the frame came from.
+     * @param epoch    The epoch of the feed.
+     * @param seq      The sequence number of the frame, -1 for a snapshot.
+     * @param users    The registrations of the frame.
+     * @param accounts The account states of the frame.
+     * @param entries  The ledger entries of the frame.
+     * @throws IOException If the records could not be written.
+     */
+    public synchronized void append(String source, long epoch, long seq, List<String> users, List<String> accounts, List<String> entries) throws IOException {
+        if (!this.opened) { return; }
+
+        String prefix = source + " " + epoch + ":" + seq + " ";
+        int forceFrom = this.position;
+        long activeBefore = this.activeBase;
+
+        for (String user : users) {
+            String[] userTokens = user.split(" ");
+            if (userTokens.length != 6) { continue; }
+            write(prefix + "U " + userTokens[0] + " " + userTokens[1] + " " + userTokens[3] + " " + userTokens[4] + " " + userTokens[5]);
+        }
+        for (String account : accounts) {
+            write(prefix + "A " + account);
+        }
+        for (String entry : entries) {
+            write(prefix + "E " + entry);
+        }
+
+        if (this.activeBase != activeBefore) { forceFrom = 0; } // The segments before it were forced when they were closed.
+        if (this.position > forceFrom) {
+            this.active.force(forceFrom, this.position - forceFrom);
+        }
+    }
+
+    /**
+     * Makes the records appended so far visible to the consumers, once their frame is committed.
+     */
+    public void publish() {
+        synchronized (this) {
+            if (this.appended == this.published) { return; }
+            this.published = this.appended;
+        }
+        synchronized (this.signal) {
+            this.signal.notifyAll();
+        }
+    }
+
+    /**
+     * Removes the records appended since the last publish, when their frame could not be committed.
+     * The feed sends the frame again, and it is appended again.
+     */
+    public synchronized void rollback() {
+        if (!this.opened || this.appended == this.published) { return; }
+
+        try {
+            while (this.activeBase > this.published) { // Segments opened by the frame.
+                this.segments.remove(this.activeBase).delete();
+                this.activeBase = this.segments.lastKey();
+                this.active = map(this.segments.get(this.activeBase), FileChannel.MapMode.READ_WRITE);
+            }
+
+            int start = (int) (this.published - this.activeBase);
+            for (int i = start; i < this.active.capacity(); i++) {
+                this.active.put(i, (byte) 0);
+            }
+            this.active.force();
+            this.position = start;
+            this.appended = this.published;
+        } catch (IOException e) {
+            System.out.println("Could not roll back the change log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Hands a stream connection over to a consumer thread, which serves it from now on.
+     * The connection must not have sent anything after its CDC request.
+     *
+     * @param socket        The connection.
+     * @param requestTokens The request, "CDC consumer [offset]".
+     */
+    public void stream(Socket socket, String[] requestTokens) {
+        Thread consumer = new Thread(() -> consume(socket, requestTokens), "changelog-consumer-" + (requestTokens.length > 1 ? requestTokens[1] : ""));
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Stores the offset a consumer got to, it resumes from it the next time it streams the log without an offset.
+     *
+     * @param consumer The name of the consumer.
+     * @param offset   The offset of the next record the consumer wants.
+     * @throws IOException If the offset could not be written to disk.
+     */
+    public void commit(String consumer, long offset) throws IOException {
+        if (!consumer.matches("[\\w.-]+") || offset < 0) { throw new IOException("Invalid consumer or offset."); }
+
+        synchronized (this.offsets) {
+            this.offsets.put(consumer, offset);
+            saveOffsets();
+        }
+    }
+
+    /**
+     * Returns the log metrics.
+     *
+     * @return String The records appended and streamed, the segments kept and deleted, and the consumers streaming.
+     */
+    public String getStats() {
+        if (!this.opened) { return "Change log: closed."; }
+        return "Change log: " + this.records.sum() + " records appended, offsets " + this.segments.firstKey() + " to " + this.published
+                + " in " + this.segments.size() + " segments (" + this.deleted.sum() + " deleted), " + this.consumers.get()
+                + " consumers streaming, " + this.streamed.sum() + " records streamed.";
+    }
+    // #endregion Log Methods
+
+    // #region Helper Methods
+    /**
+     * Writes a record at the end of the active segment, opening a new segment if it does not fit.
+     */
+    private void write(String record) throws IOException {
+        byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+        if (HEADER + bytes.length > this.segmentSize) { throw new IOException("A record of " + bytes.length + " bytes does not fit in a segment."); }
+        if (this.position + HEADER + bytes.length > this.active.capacity()) {
+            this.active.force();
+            this.segments.get(this.activeBase).setLastModified(System.currentTimeMillis()); // Retention counts from here.
+            createSegment(this.appended);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        this.active.put(this.position + HEADER, bytes);
+        this.active.putInt(this.position + 4, (int) crc.getValue());
+        this.active.putInt(this.position, bytes.length); // Last, a record is only there once its length is.
+
+        this.position += HEADER + bytes.length;
+        this.appended += HEADER + bytes.length;
+        this.records.increment();
+    }
+
+    /**
+     * Creates a preallocated segment starting at an offset, and makes it the active segment.
+     */
+    private void createSegment(long base) throws IOException {
+        File file = new File(this.directory, String.format("%020d", base) + SUFFIX);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(this.segmentSize);
+        }
+
+        this.active = map(file, FileChannel.MapMode.READ_WRITE);
+        this.activeBase = base;
+        this.position = 0;
+        this.segments.put(base, file);
+    }
+
+    /**
+     * Maps a whole segment into memory. The mapping stays valid after the segment is deleted.
+     */
+    private static MappedByteBuffer map(File file, FileChannel.MapMode mode) throws IOException {
+        StandardOpenOption[] options = mode == FileChannel.MapMode.READ_ONLY ? new StandardOpenOption[] { StandardOpenOption.READ }
+                : new StandardOpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE };
+        try (FileChannel channel = FileChannel.open(file.toPath(), options)) {
+            return channel.map(mode, 0, channel.size());
+        }
+    }
+
+    /**
+     * Finds the end of the last segment: the first record that is missing or torn. What follows it is cleared.
+     *
+     * @return int The position after the last whole record.
+     */
+    private static int recover(MappedByteBuffer segment) {
+        int position = 0;
+        while (position + HEADER <= segment.capacity()) {
+            int length = segment.getInt(position);
+            if (length <= 0 || position + HEADER + length > segment.capacity()) { break; }
+
+            byte[] bytes = new byte[length];
+            segment.get(position + HEADER, bytes);
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            if ((int) crc.getValue() != segment.getInt(position + 4)) { break; }
+
+            position += HEADER + length;
+        }
+
+        if (position + HEADER <= segment.capacity() && segment.getLong(position) != 0) {
+            System.out.println("Change log: dropping a torn record at position " + position + " of the last segment.");
+            for (int i = position; i < segment.capacity(); i++) {
+                segment.put(i, (byte) 0);
+            }
+            segment.force();
+        }
+        return position;
+    }
+
+    /**
+     * Consumer thread, streams the published records from the requested offset until the connection drops.
+     */
+    private void consume(Socket socket, String[] requestTokens) {
+        this.consumers.incrementAndGet();
+        try {
+            PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            String consumer = requestTokens.length > 1 ? requestTokens[1] : "";
+            if (!this.opened || !consumer.matches("[\\w.-]+")) {
+                out.println("There was a unknown issue in your request, please try again!");
+                out.flush();
+                return;
+            }
+
+            long offset;
+            if (requestTokens.length > 2) {
+                offset = Long.parseLong(requestTokens[2]);
+            } else {
+                synchronized (this.offsets) {
+                    offset = this.offsets.getOrDefault(consumer, 0L);
+                }
+            }
+            offset = Math.min(Math.max(offset, this.segments.firstKey()), this.published);
+            System.out.println("Consumer " + consumer + " streaming the change log from offset " + offset + ".");
+            out.println("CDC " + offset);
+
+            MappedByteBuffer segment = null;
+            long segmentBase = -1, idleSince = System.currentTimeMillis();
+            while (!out.checkError()) {
+                if (offset >= this.published) {
+                    out.flush();
+                    synchronized (this.signal) {
+                        if (offset >= this.published) { this.signal.wait(IDLE_INTERVAL); }
+                    }
+                    if (offset >= this.published && System.currentTimeMillis() - idleSince >= IDLE_INTERVAL) {
+                        out.println("IDLE " + offset); // Also finds out when the consumer is gone.
+                        out.flush();
+                        idleSince = System.currentTimeMillis();
+                    }
+                    continue;
+                }
+
+                Map.Entry<Long, File> floor = this.segments.floorEntry(offset);
+                if (floor == null) { // Deleted by the retention while we were behind.
+                    offset = this.segments.firstKey();
+                    continue;
+                }
+                if (floor.getKey() != segmentBase) {
+                    try {
+                        segment = map(floor.getValue(), FileChannel.MapMode.READ_ONLY);
+                    } catch (NoSuchFileException e) {
+                        continue;
+                    }
+                    segmentBase = floor.getKey();
+                }
+
+                int position = (int) (offset - segmentBase);
+                int length = position + HEADER <= segment.capacity() ? segment.getInt(position) : 0;
+                if (length <= 0) { // The end of a segment closed before it was full.
+                    Long next = this.segments.higherKey(segmentBase);
+                    if (next == null) { break; }
+                    offset = next;
+                    continue;
+                }
+
+                byte[] bytes = new byte[length];
+                segment.get(position + HEADER, bytes);
+                offset += HEADER + length;
+                out.println("REC " + offset + " " + new String(bytes, StandardCharsets.UTF_8));
+                this.streamed.increment();
+                idleSince = System.currentTimeMillis();
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Change log stream to " + socket.getInetAddress() + ":" + socket.getPort() + " ended: " + e.getMessage());
+        } catch (InterruptedException e) {
+        } finally {
+            this.consumers.decrementAndGet();
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Deletes the closed segments older than the retention, once a minute.
+     */
+    private void retentionLoop() {
+        while (true) {
+            try {
+                Thread.sleep(RETENTION_CHECK);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long activeBase;
+            synchronized (this) {
+                activeBase = this.activeBase;
+            }
+
+            long cutoff = System.currentTimeMillis() - this.retention;
+            for (Map.Entry<Long, File> segment : this.segments.headMap(activeBase).entrySet()) {
+                if (segment.getValue().lastModified() >= cutoff) { break; } // Segments are closed in order.
+
+                this.segments.remove(segment.getKey());
+                if (segment.getValue().delete()) {
+                    this.deleted.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the offsets the consumers stored, one "consumer offset" line each.
+     */
+    private void loadOffsets() throws IOException {
+        File file = new File(this.directory, OFFSETS_FILE);
+        if (!file.exists()) { return; }
+
+        synchronized (this.offsets) {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                String[] lineTokens = line.split(" ");
+                if (lineTokens.length == 2) { this.offsets.put(lineTokens[0], Long.parseLong(lineTokens[1])); }
+            }
+        }
+    }
+
+    /**
+     * Writes the offsets of the consumers to a new file, forces it to disk and moves it over the old one,
+     * so a crash leaves either file whole.
+     */
+    private void saveOffsets() throws IOException {
+        File file = new File(this.directory, OFFSETS_FILE), temporary = new File(this.directory, OFFSETS_FILE + ".tmp");
+
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, Long> offset : this.offsets.entrySet()) {
+            content.append(offset.getKey()).append(' ').append(offset.getValue()).append('\n');
+        }
+
+        try (FileOutputStream out = new FileOutputStream(temporary)) {
+            out.write(content.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    // #endregion Helper Methods
+}
\ No newline at end of file
@@ -1,13 +1,21 @@
 package server_read;
 
 import Errors.*;
+import java.io.IOException;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class DBController {
     // #region Class Variables
     private String DBURL = new String();
+    private static String databaseFile = "bankmanager_read.db";
     private static DBController dbController = null;
     private Connection db;
+    private final AccountView view = AccountView.getInstance(); // Serves the balance reads, SQLite is only read on startup.
+    private final ChangeLog changeLog = ChangeLog.getInstance(); // Every applied frame is published to it.
     // #endregion Class Variables
 
     // #region Constructors & Instance Methods
@@ -18,7 +26,7 @@ public class DBController {
      *           this class is created.
      */
     private DBController() {
-        this.DBURL = "jdbc:sqlite:bankmanager_read.db"; // This is the path to the database file.
+        this.DBURL = "jdbc:sqlite:" + databaseFile; // This is the path to the database file.
         connect();
     }
 
@@ -33,6 +41,16 @@ public class DBController {
         }
         return dbController;
     }
+
+    /**
+     * Sets the database file, so several read servers can run on the same machine.
+     * Must be called before the first call to getInstance.
+     * 
+     * @param file The path to the database file.
+     */
+    public static void setDatabaseFile(String file) {
+        databaseFile = file;
+    }
     // #endregion Constructors & Instance Methods
 
     /**
@@ -48,6 +66,8 @@ public class DBController {
             } catch (SQLException e) {
                 e.printStackTrace();
             }
+            createReplicationTables();
+            loadAccountView();
         } catch (Exception e) {
             System.out.println("Connection to SQLite has failed.");
             System.exit(1); // Exit the program if the connection fails, as it is required for the program
@@ -66,9 +86,52 @@ public class DBController {
         }
     }
 
+    /**
+     * Adds what replication needs to databases created before the read server subscribed to the write servers:
+     * the version column of the accounts, the position reached in the feed of every write server, and the
+     * ledger. Every write server ships the same entries, which are kept once, ordered by account and time.
+     */
+    private void createReplicationTables() {
+        try (Statement statement = this.db.createStatement()) {
+            boolean versioned = false;
+            ResultSet columns = statement.executeQuery("PRAGMA table_info(accounts)");
+            while (columns.next()) {
+                if (columns.getString("name").equals("version")) { versioned = true; }
+            }
+            if (!versioned) { statement.execute("ALTER TABLE accounts ADD COLUMN version INTEGER NOT NULL DEFAULT 0"); }
+
+            statement.execute("CREATE TABLE IF NOT EXISTS replication_state (source TEXT PRIMARY KEY, epoch INTEGER, last_seq INTEGER)");
+            statement.execute("CREATE TABLE IF NOT EXISTS ledger (account_number INTEGER, created_at INTEGER, txid TEXT, type TEXT, amount REAL, "
+                    + "balance REAL, counterparty INTEGER, PRIMARY KEY (account_number, created_at, txid)) WITHOUT ROWID");
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Loads every account into the in-memory view, which serves the balance reads from then on,
+     * with the total of its deposits for the analytics reports.
+     */
+    private void loadAccountView() {
+        try (Statement statement = this.db.createStatement()) {
+            ResultSet res = statement.executeQuery("SELECT account_number, user_id, balance, version FROM accounts");
+            while (res.next()) {
+                this.view.put(res.getLong("account_number"), res.getInt("user_id"), res.getDouble("balance"), res.getLong("version"));
+            }
+
+            res = statement.executeQuery("SELECT account_number, SUM(amount) AS deposited FROM ledger WHERE type = 'D' AND amount > 0 GROUP BY account_number");
+            while (res.next()) {
+                this.view.addDeposit(res.getLong("account_number"), res.getDouble("deposited"));
+            }
+            System.out.println("Loaded " + this.view.size() + " accounts into memory.");
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
     // #region Misc Methods
     /**
-     * This method will get the balace of an account given the uesr id
+     * This method will get the balace of an account given the uesr id, from the in-memory view
      * 
      * @param accountNo Account number to check balance of
      * @param id        Id of the client
@@ -81,63 +144,209 @@ public class DBController {
         double balance;
 
         try {
-            String selectStatement = "SELECT * FROM accounts WHERE account_number = ? AND user_id = ?";
-            PreparedStatement selectQuery = db.prepareStatement(selectStatement);
-
-            selectQuery.setString(1, accountNo);
-            selectQuery.setString(2, id);
-            ResultSet res = selectQuery.executeQuery();
+            balance = this.view.balance(Long.parseLong(accountNo), Integer.parseInt(id));
+        } catch (NumberFormatException e) {
+            balance = Double.NaN;
+        }
 
-            if (res.next()) { // this means account and user_id were valid
-                balance = res.getDouble("balance");
-                System.out.println("Balance of account #" + accountNo
-                        + " was successfully retrieved, with a balance of " + balance + ".");
-            } else {
-                System.out.println("An invalid account number or user_id was used for balance, account number: "
-                        + accountNo + ".");
-                throw new InvalidError();
-            }
-        } catch (SQLException e) {
-            System.out.println("Error in SQL query for balance.");
-            throw new SQLException();
+        if (Double.isNaN(balance)) { // this means account or user_id were invalid
+            System.out.println("An invalid account number or user_id was used for balance, account number: "
+                    + accountNo + ".");
+            throw new InvalidError();
         }
 
         return balance;
     }
 
     /**
-     * This method will alter the balance of an account given the uesr id
+     * This method will apply a frame of the feed of a write server in a single transaction
      * 
-     * @param id             Id of the client
-     * @param Account        Account number to alter
-     * @param amountToUpdate New amount to alter the account with
-     * @return the new balance of the account
+     * @param users    New users, formatted as "id username password first_name last_name email"
+     * @param accounts Account states, formatted as "accountNo:user_id:balance:version". An account
+     *                 is only overwritten by the same or a newer version, so frames from the
+     *                 different write servers can be applied in any order
+     * @param entries  Ledger entries, formatted as "txid account type amount balance counterparty created_at".
+     *                 Entries already received from another write server are ignored
+     * @param source   The write server the frame came from
+     * @param epoch    The epoch of the feed of the write server
+     * @param seq      The sequence number the write server is applied up to after this frame,
+     *                 or -1 to leave the recorded position untouched
+     * @return the number of accounts that were updated. The in-memory view is updated once the
+     *         frame is committed
      */
-    public double alterAccount(String Account, double amountToUpdate) throws InvalidError, SQLException {
-        double balance = -1.0;
+    public synchronized int applyFrame(List<String> users, List<String> accounts, List<String> entries, String source, long epoch, long seq) throws SQLException {
+        int updated = 0;
+
         try {
-            String selectStatement = "SELECT * FROM accounts WHERE account_number = ?";
-            PreparedStatement selectQuery = db.prepareStatement(selectStatement);
-            selectQuery.setString(1, Account);
-            ResultSet res = selectQuery.executeQuery();
+            this.db.setAutoCommit(false);
 
-            if (res.next()) {
-                balance = amountToUpdate;
-                String updateStatement = "UPDATE accounts SET balance = ? WHERE account_number = ?";
-                PreparedStatement updateQuery = db.prepareStatement(updateStatement);
+            String userStatement = "INSERT OR REPLACE INTO users (id, username, password, first_name, last_name, email) VALUES (?,?,?,?,?,?)";
+            PreparedStatement userQuery = db.prepareStatement(userStatement);
+            for (String user : users) {
+                String[] userTokens = user.split(" ");
+                if (userTokens.length != 6) { continue; }
 
-                updateQuery.setDouble(1, balance);
-                updateQuery.setString(2, Account);
-                updateQuery.executeUpdate();
-            } else {
-                // some one else's account or invalid account number
-                throw new InvalidError();
+                userQuery.setInt(1, Integer.parseInt(userTokens[0]));
+                for (int i = 1; i < 6; i++) { userQuery.setString(i + 1, userTokens[i]); }
+                userQuery.addBatch();
+            }
+            userQuery.executeBatch();
+
+            String accountStatement = "INSERT INTO accounts (account_number, user_id, balance, version) VALUES (?,?,?,?) "
+                    + "ON CONFLICT(account_number) DO UPDATE SET user_id = excluded.user_id, balance = excluded.balance, version = excluded.version "
+                    + "WHERE excluded.version >= accounts.version";
+            PreparedStatement accountQuery = db.prepareStatement(accountStatement);
+            for (String account : accounts) {
+                String[] accountTokens = account.split(":");
+                if (accountTokens.length != 4) { continue; }
+
+                accountQuery.setString(1, accountTokens[0]);
+                accountQuery.setInt(2, Integer.parseInt(accountTokens[1]));
+                accountQuery.setDouble(3, Double.parseDouble(accountTokens[2]));
+                accountQuery.setLong(4, Long.parseLong(accountTokens[3]));
+                accountQuery.addBatch();
+            }
+            for (int rows : accountQuery.executeBatch()) {
+                if (rows > 0) { updated++; }
+            }
+
+            String entryStatement = "INSERT OR IGNORE INTO ledger (txid, account_number, type, amount, balance, counterparty, created_at) VALUES (?,?,?,?,?,?,?)";
+            PreparedStatement entryQuery = db.prepareStatement(entryStatement);
+            List<String[]> parsedEntries = new ArrayList<String[]>();
+            for (String entry : entries) {
+                String[] entryTokens = entry.split(" ");
+                if (entryTokens.length != 7) { continue; }
+
+                entryQuery.setString(1, entryTokens[0]);
+                entryQuery.setLong(2, Long.parseLong(entryTokens[1]));
+                entryQuery.setString(3, entryTokens[2]);
+                entryQuery.setDouble(4, Double.parseDouble(entryTokens[3]));
+                entryQuery.setDouble(5, Double.parseDouble(entryTokens[4]));
+                entryQuery.setLong(6, Long.parseLong(entryTokens[5]));
+                entryQuery.setLong(7, Long.parseLong(entryTokens[6]));
+                entryQuery.addBatch();
+                parsedEntries.add(entryTokens);
+            }
+            int[] inserted = entryQuery.executeBatch();
+
+            if (seq >= 0) {
+                String stateStatement = "INSERT OR REPLACE INTO replication_state (source, epoch, last_seq) VALUES (?,?,?)";
+                PreparedStatement stateQuery = db.prepareStatement(stateStatement);
+                stateQuery.setString(1, source);
+                stateQuery.setLong(2, epoch);
+                stateQuery.setLong(3, seq);
+                stateQuery.executeUpdate();
+            }
+
+            try {
+                this.changeLog.append(source, epoch, seq, users, accounts, entries); // On disk before the frame is committed.
+            } catch (IOException e) {
+                throw new SQLException("Could not append to the change log: " + e.getMessage());
+            }
+
+            this.db.commit();
+            this.changeLog.publish();
+
+            for (String account : accounts) {
+                String[] accountTokens = account.split(":");
+                if (accountTokens.length != 4) { continue; }
+                this.view.put(Long.parseLong(accountTokens[0]), Integer.parseInt(accountTokens[1]),
+                        Double.parseDouble(accountTokens[2]), Long.parseLong(accountTokens[3]));
+            }
+            for (int i = 0; i < inserted.length; i++) {
+                String[] entryTokens = parsedEntries.get(i);
+                double amount = Double.parseDouble(entryTokens[3]);
+                if (inserted[i] > 0 && entryTokens[2].equals("D") && amount > 0) { // Entries already received from another write server are not counted again.
+                    this.view.addDeposit(Long.parseLong(entryTokens[1]), amount);
+                }
             }
-        } catch (SQLException SE) {
-            SE.printStackTrace();
-            throw SE;
+            BalanceSubscriptions.getInstance().changed(accounts); // Pushed to the clients subscribed to these accounts.
+        } catch (SQLException | NumberFormatException e) {
+            this.db.rollback();
+            this.changeLog.rollback();
+            throw e instanceof SQLException ? (SQLException) e : new SQLException("Malformed frame: " + e.getMessage());
+        } finally {
+            this.db.setAutoCommit(true);
         }
-        return balance;
+
+        return updated;
+    }
+
+    /**
+     * This method will return a page of the history of an account, the most recent entries first
+     * 
+     * @param accountNo The account number
+     * @param beforeTs  Only entries older than this time (or as old, with a smaller txid) are returned
+     * @param beforeTx  The txid of the last entry of the previous page, or "" to start at beforeTs
+     * @param limit     The maximum number of entries to return
+     * @return the entries, formatted as "created_at txid type amount balance counterparty"
+     */
+    public synchronized List<String> historyBefore(String accountNo, long beforeTs, String beforeTx, int limit) throws SQLException {
+        String selectStatement = "SELECT * FROM ledger WHERE account_number = ? AND (created_at, txid) < (?, ?) "
+                + "ORDER BY created_at DESC, txid DESC LIMIT ?";
+        PreparedStatement selectQuery = db.prepareStatement(selectStatement);
+        selectQuery.setString(1, accountNo);
+        selectQuery.setLong(2, beforeTs);
+        selectQuery.setString(3, beforeTx);
+        selectQuery.setInt(4, limit);
+
+        return ledgerRows(selectQuery.executeQuery());
+    }
+
+    /**
+     * This method will return a page of the history of an account, the oldest entries first
+     * 
+     * @param accountNo The account number
+     * @param afterTs   Only entries more recent than this time (or as recent, with a greater txid) are returned
+     * @param afterTx   The txid of the last entry of the previous page, or "" to start at afterTs
+     * @param untilTs   Only entries older than this time are returned
+     * @param limit     The maximum number of entries to return
+     * @return the entries, formatted as "created_at txid type amount balance counterparty"
+     */
+    public synchronized List<String> historyAfter(String accountNo, long afterTs, String afterTx, long untilTs, int limit) throws SQLException {
+        String selectStatement = "SELECT * FROM ledger WHERE account_number = ? AND (created_at, txid) > (?, ?) AND created_at < ? "
+                + "ORDER BY created_at, txid LIMIT ?";
+        PreparedStatement selectQuery = db.prepareStatement(selectStatement);
+        selectQuery.setString(1, accountNo);
+        selectQuery.setLong(2, afterTs);
+        selectQuery.setString(3, afterTx);
+        selectQuery.setLong(4, untilTs);
+        selectQuery.setInt(5, limit);
+
+        return ledgerRows(selectQuery.executeQuery());
+    }
+
+    /**
+     * This method will format ledger rows
+     * 
+     * @param res The ledger rows
+     * @return the entries, formatted as "created_at txid type amount balance counterparty"
+     */
+    private List<String> ledgerRows(ResultSet res) throws SQLException {
+        List<String> rows = new ArrayList<String>();
+        while (res.next()) {
+            rows.add(res.getLong("created_at") + " " + res.getString("txid") + " " + res.getString("type") + " "
+                    + res.getDouble("amount") + " " + res.getDouble("balance") + " " + res.getLong("counterparty"));
+        }
+        return rows;
+    }
+
+    /**
+     * This method will return the position reached in the feed of every write server
+     * 
+     * @return the "epoch seq" positions keyed by write server
+     */
+    public Map<String, String> replicationState() throws SQLException {
+        Map<String, String> positions = new HashMap<String, String>();
+
+        try (Statement statement = this.db.createStatement()) {
+            ResultSet res = statement.executeQuery("SELECT source, epoch, last_seq FROM replication_state");
+            while (res.next()) {
+                positions.put(res.getString("source"), res.getLong("epoch") + " " + res.getLong("last_seq"));
+            }
+        }
+
+        return positions;
     }
 
     /**
@@ -1,9 +1,11 @@
 package server_read;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 //import java.util.Queue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -23,6 +25,7 @@ public class MachineSocket extends Thread {
     private boolean shutdown = false;
     private ExecutorService executorPool;
     private DBController db = null;
+    private ReadRouter router = null; // Set when this server routes reads instead of serving them.
     private static MachineSocket server = null;
     // private Queue<String> transactions = null;
 
@@ -66,7 +69,10 @@ public class MachineSocket extends Thread {
     public void run() {
         try {
             // Open the server socket and listen for TCP connections on port (port)
-            ServerSocket serverSocket = new ServerSocket(this.port);
+            // The socket comes from a channel, so subscriber connections can be handed
+            // over to a selector, see BalanceSubscriptions
+            ServerSocket serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.bind(new InetSocketAddress(this.port));
 
             // Set socket timeout to force the server thread to periodically time-out to
             // return from the blocking method accept() (on line 71), and check the status
@@ -83,6 +89,12 @@ public class MachineSocket extends Thread {
                     System.out.println("New connection from " + socket.getInetAddress().getHostAddress() + ":"
                             + socket.getPort() + ".");
 
+                    if (this.router != null) {
+                        // Create a RouterSocketHandler thread to relay the reads of the accepted TCP connection
+                        this.executorPool.execute(new RouterSocketHandler(socket, this.timeout, this.router));
+                        continue;
+                    }
+
                     // Get Singleton instance of database connection for each TCP connection
                     this.db = DBController.getInstance();
 
@@ -113,6 +125,15 @@ public class MachineSocket extends Thread {
         }
     }
 
+    /**
+     * Makes the server relay reads to the read servers behind the router, instead of serving them itself.
+     *
+     * @param router The read router.
+     */
+    public void setRouter(ReadRouter router) {
+        this.router = router;
+    }
+
     /**
      * Signals the server to shutdown.
      *
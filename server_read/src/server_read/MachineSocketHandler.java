@@ -3,8 +3,10 @@ package server_read;
 import Errors.*;
 import java.sql.*;
 import java.io.*;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
@@ -17,6 +19,9 @@ import java.net.SocketTimeoutException;
  * 
  */
 public class MachineSocketHandler extends Thread {
+    private static final int MAX_HISTORY_PAGE = 500; // Entries per history page at most.
+    private static final int STATEMENT_CHUNK = 1000; // Entries read and sent at a time by a statement.
+    private static final AtomicInteger activeRequests = new AtomicInteger(); // Balance reads in progress, reported as the load.
 
     private Socket socket;
     private int timeout;
@@ -43,13 +48,51 @@ public class MachineSocketHandler extends Thread {
      * unresponsive
      * 
      * Server Request Format:
-     * Check balance request:
-     * B <id> <accountNo>
-     * eg. B 2 1234567890
+     * Check balance request, optionally with the read-your-writes token of the
+     * client's last write (STALE is answered if the token is not applied in time):
+     * B <id> <accountNo> [epoch:seq]
+     * eg. B 2 1234567890 1700000000000:1234
      * 
-     * Update balance request:
-     * X <id> <accountNo> <balance>
-     * eg. X 2 1234567890 1000.00
+     * Replication lag request (changes and ms behind the write servers, -1 -1 if none is reachable):
+     * LAG
+     * 
+     * Status request (sent by a read router, balance reads in progress, lag, and the
+     * epoch:seq position applied for every write server):
+     * STATUS
+     * eg. reply STATUS 3 0 0 1700000000000:1234,1700000000500:1190
+     * 
+     * History request (a page of the account's ledger, the most recent entries first,
+     * replies with ROW created_at txid type amount balance counterparty lines followed by
+     * NEXT <cursor> if there are more entries, or END):
+     * H <id> <accountNo> [cursor|-] [limit]
+     * eg. H 2 1234567890 1700000000000:9f1c0e5a2b7d4c3e8a6f1b2c3d4e5f60 50
+     * 
+     * Statement request (every ledger entry of the account between two times, in ms, oldest
+     * first, streamed in chunks, followed by END <rows>):
+     * S <id> <accountNo> <from> <to>
+     * eg. S 2 1234567890 1672531200000 1704067200000
+     * 
+     * Analytics request (runs over a snapshot of the accounts refreshed in the background,
+     * replies with ROW lines followed by END <rows> <snapshot age in ms>):
+     * A <SUMMARY|DEPOSITS [limit]|TOP [limit]|INACTIVE seconds|HIST [buckets]>
+     * eg. A TOP 5
+     * 
+     * Balance subscription (the connection then belongs to the BalanceSubscriptions, which
+     * push the balance of the accounts as they change; send nothing else until SUBSCRIBED):
+     * SUB <id> <account,account,...>
+     * eg. SUB 2 1234567890,1234567891
+     * 
+     * Change log stream (the connection then belongs to a consumer thread of the ChangeLog,
+     * which streams every applied change from the offset, or from the one the consumer stored):
+     * CDC <consumer> [offset]
+     * eg. CDC accounting 1048576
+     * 
+     * Change log commit (stores the offset the consumer got to, replies CDCACK <offset>):
+     * CDCACK <consumer> <offset>
+     * eg. CDCACK accounting 1050112
+     * 
+     * Balances are kept up to date by the ReplicationManager, which subscribes to the
+     * change feed of the write servers.
      */
     public void run() {
         try {
@@ -83,18 +126,70 @@ public class MachineSocketHandler extends Thread {
                     continue;
                 }
 
-                System.out.println(clientRequest);
                 String[] clientRequestTokens = clientRequest.split(" ");
-                String opcode = clientRequestTokens[0],
-                        id = opcode.equals("B") ? clientRequestTokens[1] : "",
-                        usrname_accNo = opcode.equals("B") ? clientRequestTokens[2] : clientRequestTokens[1],
-                        amount_str_sometimes = opcode.equals("B") ? "" : clientRequestTokens[2];
+                String opcode = clientRequestTokens[0];
+
+                if (opcode.equals("SUB") || opcode.equals("UNSUB")) {
+                    BalanceSubscriptions.getInstance().register(this.socket, clientRequest);
+                    return; // The subscriptions serve the connection on their selector thread, it is no longer ours.
+                } else if (opcode.equals("CDC")) {
+                    ChangeLog.getInstance().stream(this.socket, clientRequestTokens);
+                    return; // The consumer thread streams the log on the connection, it is no longer ours.
+                } else if (opcode.equals("CDCACK")) {
+                    try {
+                        ChangeLog.getInstance().commit(clientRequestTokens[1], Long.parseLong(clientRequestTokens[2]));
+                        socketOut.println("CDCACK " + clientRequestTokens[2]);
+                    } catch (IOException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                        socketOut.println("There was a unknown issue in your request, please try again!");
+                    }
+                    continue;
+                } else if (opcode.equals("LAG")) {
+                    socketOut.println(ReplicationManager.getInstance().getLag());
+                    continue;
+                } else if (opcode.equals("STATUS")) {
+                    socketOut.println("STATUS " + activeRequests.get() + " " + ReplicationManager.getInstance().getLag() + " "
+                            + ReplicationManager.getInstance().getPositions());
+                    continue;
+                } else if (opcode.equals("H") || opcode.equals("S")) {
+                    System.out.println(clientRequest);
+                    PrintStream historyOut = new PrintStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+                    try {
+                        if (opcode.equals("H")) {
+                            history(clientRequestTokens, historyOut);
+                        } else {
+                            statement(clientRequestTokens, historyOut);
+                        }
+                    } catch (InvalidError IE) {
+                        historyOut.println("The account number you entered was invalid!");
+                    } catch (SQLException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                        historyOut.println("There was a unknown issue in your request, please try again!");
+                    }
+                    historyOut.flush();
+                    continue;
+                } else if (opcode.equals("A")) {
+                    System.out.println(clientRequest);
+                    PrintStream reportOut = new PrintStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+                    AnalyticsEngine.getInstance().report(clientRequestTokens, reportOut);
+                    reportOut.flush();
+                    continue;
+                }
+
+                if (!opcode.equals("B")) { // Balance reads are too frequent to log one by one.
+                    System.out.println(clientRequest);
+                }
+                String id = opcode.equals("B") ? clientRequestTokens[1] : "",
+                        usrname_accNo = opcode.equals("B") ? clientRequestTokens[2] : clientRequestTokens[1];
 
                 Double status = null;
 
                 switch (opcode) {
                     case "B":
+                        activeRequests.incrementAndGet();
                         try {
+                            if (clientRequestTokens.length > 3 && !ReplicationManager.getInstance().awaitToken(clientRequestTokens[3])) {
+                                socketOut.println("STALE");
+                                break;
+                            }
                             status = balance(id, usrname_accNo);
                         } catch (InvalidError IE) {
                             socketOut.println("The account number you entered was invalid!");
@@ -102,28 +197,14 @@ public class MachineSocketHandler extends Thread {
                         } catch (SQLException SE) {
                             socketOut.println("There was a unknown issue in your request, please try again!");
                             break;
+                        } finally {
+                            activeRequests.decrementAndGet();
                         }
                         if (status <= 0) {
                             socketOut.println("There was a unknown issue in your request, please try again!");
                             break;
                         }
-                        socketOut.println("Your balance is:\n" + status + "\n");
-                        break;
-                    case "X":
-                        try {
-                            status = update(usrname_accNo, amount_str_sometimes);
-                        } catch (InvalidError IE) {
-                            socketOut.println("The account number you wanted to transfer from was invalid!");
-                            break;
-                        } catch (SQLException SE) {
-                            socketOut.println("There was a unknown issue in your request, please try again!");
-                            break;
-                        }
-                        if (status <= 0) {
-                            socketOut.println("There was a unknown issue in your request, please try again!");
-                            break;
-                        }
-                        socketOut.println("Your balance after transfer:\n" + status + "\n");
+                        socketOut.println("Your balance is: " + status + "."); // One line, so a read router can relay it.
                         break;
                 }
             }
@@ -150,17 +231,75 @@ public class MachineSocketHandler extends Thread {
     public double balance(String id, String accountNo) throws InvalidError, SQLException {
         return this.db.balance(accountNo, id);
     }
+    // #endregion Database Methods
 
+    // #region History Methods
     /**
-     * Update db if specified. Calls the database method to update an account.
+     * Writes a page of the history of an account, the most recent entries first.
      * 
-     * @param id        The ID of the user.
-     * @param accountNo The account number of the user that is to be updated.
-     * @param amount    The new amount which the account will be updated to.
-     * @return True if the update was successful, false otherwise.
+     * @param requestTokens The request, "H id accountNo [cursor|-] [limit]".
+     * @param out           Where the page is written.
      */
-    public double update(String accountNo, String amount) throws InvalidError, SQLException {
-        return this.db.alterAccount(accountNo, Double.parseDouble(amount));
+    private void history(String[] requestTokens, PrintStream out) throws InvalidError, SQLException {
+        String id = requestTokens[1], accountNo = requestTokens[2];
+        String cursor = requestTokens.length > 3 ? requestTokens[3] : "-";
+        int limit = requestTokens.length > 4 ? Math.min(Math.max(Integer.parseInt(requestTokens[4]), 1), MAX_HISTORY_PAGE) : 50;
+        balance(id, accountNo); // Only the owner of the account may read its history.
+
+        long beforeTs = Long.MAX_VALUE;
+        String beforeTx = "";
+        if (!cursor.equals("-")) {
+            beforeTs = Long.parseLong(cursor.split(":")[0]);
+            beforeTx = cursor.split(":")[1];
+        }
+
+        List<String> rows = this.db.historyBefore(accountNo, beforeTs, beforeTx, limit);
+        for (String row : rows) {
+            out.println("ROW " + row);
+        }
+
+        if (rows.size() < limit) {
+            out.println("END");
+        } else {
+            String[] lastTokens = rows.get(rows.size() - 1).split(" ");
+            out.println("NEXT " + lastTokens[0] + ":" + lastTokens[1]);
+        }
     }
-    // #endregion Database Methods
+
+    /**
+     * Streams every entry of an account between two times, oldest first. The entries are read
+     * and written one chunk at a time, so a statement of any length runs in constant memory.
+     * 
+     * @param requestTokens The request, "S id accountNo from to".
+     * @param out           Where the statement is written.
+     */
+    private void statement(String[] requestTokens, PrintStream out) throws InvalidError, SQLException {
+        String id = requestTokens[1], accountNo = requestTokens[2];
+        long from = Long.parseLong(requestTokens[3]), to = Long.parseLong(requestTokens[4]);
+        balance(id, accountNo); // Only the owner of the account may read its statement.
+
+        out.println("STATEMENT " + accountNo + " " + from + " " + to);
+
+        long afterTs = from;
+        String afterTx = "";
+        int rows = 0;
+        List<String> chunk;
+        do {
+            chunk = this.db.historyAfter(accountNo, afterTs, afterTx, to, STATEMENT_CHUNK);
+            for (String row : chunk) {
+                out.println("ROW " + row);
+            }
+            out.flush();
+
+            rows += chunk.size();
+            if (!chunk.isEmpty()) {
+                String[] lastTokens = chunk.get(chunk.size() - 1).split(" ");
+                afterTs = Long.parseLong(lastTokens[0]);
+                afterTx = lastTokens[1];
+            }
+        } while (chunk.size() == STATEMENT_CHUNK && !out.checkError());
+
+        out.println("END " + rows);
+    }
+    // #endregion History Methods
 }
\ No newline at end of file
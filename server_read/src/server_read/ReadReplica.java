@@ -0,0 +1,215 @@
+package server_read;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ReadReplica Class
+ *
+ * A read server behind the read router. Its status (load, replication lag and
+ * the positions it has applied) is polled over a dedicated connection, and
+ * balance reads are relayed over a small pool of connections.
+ *
+ */
+public class ReadReplica {
+    // #region Class Variables
+    private static final int CONNECT_TIMEOUT = 1000; // in ms
+    private static final int READ_TIMEOUT = 5 * 1000; // Covers the replica waiting for a read-your-writes token, in ms.
+
+    private final String host;
+    private final int port;
+    private final AtomicInteger inFlight = new AtomicInteger(); // Reads relayed by this router and not answered yet.
+    private final ConcurrentLinkedQueue<Connection> idleConnections = new ConcurrentLinkedQueue<Connection>();
+    private Connection statusConnection = null;
+
+    private volatile boolean available = false;
+    private long load = 0, seqBehind = -1, msBehind = -1;
+    private Map<Long, Long> positions = new HashMap<Long, Long>();
+
+    // Metrics
+    private final AtomicInteger routed = new AtomicInteger(), failures = new AtomicInteger();
+    // #endregion Class Variables
+
+    /**
+     * Constructor
+     *
+     * @param host The host of the read server.
+     * @param port The port of the read server.
+     */
+    public ReadReplica(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    // #region Methods
+    /**
+     * Asks the read server for its status. Called by the router's poller thread only.
+     * A read server that does not answer is marked unavailable until it does again.
+     */
+    public void poll() {
+        try {
+            if (this.statusConnection == null) {
+                this.statusConnection = new Connection(this.host, this.port);
+            }
+
+            // Format: STATUS <load> <seqBehind> <msBehind> <epoch:seq,...|->
+            String[] statusTokens = this.statusConnection.query("STATUS").split(" ");
+            if (statusTokens.length < 5 || !statusTokens[0].equals("STATUS")) {
+                throw new IOException("Unexpected status reply.");
+            }
+
+            Map<Long, Long> newPositions = new HashMap<Long, Long>();
+            if (!statusTokens[4].equals("-")) {
+                for (String position : statusTokens[4].split(",")) {
+                    String[] positionTokens = position.split(":");
+                    newPositions.put(Long.parseLong(positionTokens[0]), Long.parseLong(positionTokens[1]));
+                }
+            }
+
+            synchronized (this) {
+                this.load = Long.parseLong(statusTokens[1]);
+                this.seqBehind = Long.parseLong(statusTokens[2]);
+                this.msBehind = Long.parseLong(statusTokens[3]);
+                this.positions = newPositions;
+            }
+            this.available = true;
+        } catch (IOException | RuntimeException e) {
+            if (this.available) {
+                System.out.println("Read replica " + getName() + " stopped answering: " + e.getMessage());
+            }
+            this.available = false;
+            if (this.statusConnection != null) {
+                this.statusConnection.close();
+            }
+            this.statusConnection = null;
+        }
+    }
+
+    /**
+     * Relays a request to the read server, and returns its one line reply.
+     *
+     * @param request The request.
+     * @return String The reply.
+     * @throws IOException If the read server could not be reached.
+     */
+    public String query(String request) throws IOException {
+        Connection connection = this.idleConnections.poll();
+        this.inFlight.incrementAndGet();
+
+        try {
+            if (connection == null) {
+                connection = new Connection(this.host, this.port);
+            }
+
+            String reply = connection.query(request);
+            this.idleConnections.offer(connection);
+            this.routed.incrementAndGet();
+            return reply;
+        } catch (IOException e) {
+            this.failures.incrementAndGet();
+            this.available = false; // Skipped until the poller hears from it again.
+            if (connection != null) {
+                connection.close();
+            }
+            throw e;
+        } finally {
+            this.inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Checks if the read server has applied the write behind a read-your-writes token.
+     *
+     * @param epoch The epoch of the write server's feed.
+     * @param seq   The sequence number of the write.
+     * @return boolean True if applied as of the last status, false otherwise.
+     */
+    public synchronized boolean hasApplied(long epoch, long seq) {
+        Long applied = this.positions.get(epoch);
+        return applied != null && applied >= seq;
+    }
+    // #endregion Methods
+
+    // #region Getters
+    /**
+     * Returns the address of the read server.
+     *
+     * @return String The host and port.
+     */
+    public String getName() { return this.host + ":" + this.port; }
+
+    /**
+     * Checks if the read server answered its last status request.
+     *
+     * @return boolean True if available, false otherwise.
+     */
+    public boolean isAvailable() { return this.available; }
+
+    /**
+     * Returns the load of the read server: the reads it reported in progress, plus those relayed since.
+     *
+     * @return long The load.
+     */
+    public synchronized long getLoad() { return this.load + this.inFlight.get(); }
+
+    /**
+     * Returns for how long the read server has been behind the write servers.
+     *
+     * @return long The lag in ms, or -1 if it does not receive any feed.
+     */
+    public synchronized long getMsBehind() { return this.msBehind; }
+
+    /**
+     * Returns the routing metrics of the read server.
+     *
+     * @return String The status, lag, load and reads relayed.
+     */
+    public synchronized String getStats() {
+        return getName() + ": " + (this.available ? "available" : "unavailable")
+                + ", " + this.seqBehind + " changes / " + this.msBehind + "ms behind, load " + getLoad()
+                + ", " + this.routed.get() + " reads relayed, " + this.failures.get() + " failures.";
+    }
+    // #endregion Getters
+
+    /**
+     * A connection to the read server, used for one request at a time.
+     */
+    private static class Connection {
+        private final Socket socket = new Socket();
+        private final PrintStream socketOut;
+        private final BufferedReader socketIn;
+
+        Connection(String host, int port) throws IOException {
+            this.socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            this.socket.setSoTimeout(READ_TIMEOUT);
+            this.socketOut = new PrintStream(this.socket.getOutputStream());
+            this.socketIn = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+        }
+
+        String query(String request) throws IOException {
+            this.socketOut.println(request);
+            this.socketOut.flush();
+
+            String reply = this.socketIn.readLine();
+            if (reply == null) {
+                throw new IOException("The read server closed the connection.");
+            }
+            return reply;
+        }
+
+        void close() {
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,161 @@
+package server_read;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * ReadRouter Class
+ *
+ * Spreads balance reads over several read servers, which all follow the change
+ * feed of the write servers on their own. Every read goes to the least loaded
+ * read server within the staleness bound, preferring the ones that already have
+ * the client's last write. Read capacity grows by adding read servers.
+ *
+ */
+public class ReadRouter {
+    // #region Class Variables
+    private static ReadRouter instance = null;
+    private static final int POLL_INTERVAL = 100; // Time between status requests to the read servers, in ms.
+
+    private final List<ReadReplica> replicas = new ArrayList<ReadReplica>();
+    private long maxStaleness = 1000; // Read servers further behind than this are skipped, in ms.
+
+    // Metrics
+    private long routedReads = 0, staleReads = 0;
+    // #endregion Class Variables
+
+    // #region Constructors & Instance Methods
+    /**
+     * Constructor
+     *
+     * @implNote This constructor is private to ensure that only one instance of
+     *           this class is created.
+     */
+    private ReadRouter() {}
+
+    /**
+     * Returns the instance of this class.
+     *
+     * @return ReadRouter The instance of this class.
+     */
+    public static synchronized ReadRouter getInstance() {
+        if (instance == null) {
+            instance = new ReadRouter();
+        }
+        return instance;
+    }
+    // #endregion Constructors & Instance Methods
+
+    // #region Routing Methods
+    /**
+     * Starts polling the read servers for their status.
+     *
+     * @param readServers  The read servers, formatted as "host:port", comma separated.
+     * @param maxStaleness The replication lag after which a read server is skipped, in ms.
+     */
+    public void start(String readServers, long maxStaleness) {
+        synchronized (this) {
+            this.maxStaleness = maxStaleness;
+            for (String readServer : readServers.split(",")) {
+                String[] addressTokens = readServer.trim().split(":");
+                this.replicas.add(new ReadReplica(addressTokens[0], Integer.parseInt(addressTokens[1])));
+            }
+        }
+
+        Thread poller = new Thread(() -> {
+            while (true) {
+                for (ReadReplica replica : this.replicas) {
+                    replica.poll();
+                }
+
+                try {
+                    Thread.sleep(POLL_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        poller.setDaemon(true);
+        poller.start();
+
+        System.out.println("Routing reads to " + readServers + ", skipping read servers more than " + maxStaleness + "ms behind.");
+    }
+
+    /**
+     * Picks the read server for a balance read.
+     *
+     * @param token The read-your-writes token of the read, formatted as "epoch:seq", or null.
+     * @param tried The read servers that already failed this read.
+     * @return ReadReplica The read server, or null if none is available within the staleness bound.
+     */
+    public ReadReplica choose(String token, Set<ReadReplica> tried) {
+        long epoch = -1, seq = -1;
+        if (token != null) {
+            try {
+                String[] tokenTokens = token.split(":");
+                epoch = Long.parseLong(tokenTokens[0]);
+                seq = Long.parseLong(tokenTokens[1]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                token = null;
+            }
+        }
+
+        ReadReplica best = null;
+        boolean bestHasWrite = false;
+        for (ReadReplica replica : this.replicas) {
+            long msBehind = replica.getMsBehind();
+            if (!replica.isAvailable() || tried.contains(replica) || msBehind < 0 || msBehind > this.maxStaleness) {
+                continue;
+            }
+
+            boolean hasWrite = token == null || replica.hasApplied(epoch, seq);
+            if (best == null || (hasWrite && !bestHasWrite)
+                    || (hasWrite == bestHasWrite && (replica.getLoad() < best.getLoad()
+                            || (replica.getLoad() == best.getLoad() && msBehind < best.getMsBehind())))) {
+                best = replica;
+                bestHasWrite = hasWrite;
+            }
+        }
+
+        synchronized (this) {
+            if (best == null) {
+                this.staleReads++;
+            } else {
+                this.routedReads++;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Returns how far the freshest available read server is behind.
+     *
+     * @return String "-1 msBehind" (the router does not track changes), or "-1 -1" if no read server is available.
+     */
+    public String getLag() {
+        long msBehind = -1;
+        for (ReadReplica replica : this.replicas) {
+            if (replica.isAvailable() && replica.getMsBehind() >= 0 && (msBehind < 0 || replica.getMsBehind() < msBehind)) {
+                msBehind = replica.getMsBehind();
+            }
+        }
+        return "-1 " + msBehind;
+    }
+
+    /**
+     * Returns the routing metrics of every read server.
+     *
+     * @return String One line per read server.
+     */
+    public synchronized String getStats() {
+        StringBuilder stats = new StringBuilder("Read router: " + this.routedReads + " reads routed, "
+                + this.staleReads + " sent back to a write server.");
+        for (ReadReplica replica : this.replicas) {
+            stats.append("\n  " + replica.getStats());
+        }
+        return stats.toString();
+    }
+    // #endregion Routing Methods
+}
\ No newline at end of file
@@ -0,0 +1,259 @@
+package server_read;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ReplicationManager Class
+ *
+ * Keeps the read server up to date by subscribing to the change feed of
+ * every write server. A read server without any data is bootstrapped from
+ * a snapshot of one write server, while it follows the others from their
+ * current position, every write reaches all of the write servers anyway.
+ *
+ */
+public class ReplicationManager {
+    // #region Class Variables
+    private static ReplicationManager instance = null;
+
+    private final List<ReplicationSource> sources = new ArrayList<ReplicationSource>();
+    private ReplicationSource snapshotSource = null; // The write server bootstrapping the read server.
+    private boolean bootstrapped = false;
+    private int readWait = 250; // Time a read waits for the feed to catch up with its token, in ms.
+
+    // Metrics
+    private long freshReads = 0, waitedReads = 0, staleReads = 0;
+    // #endregion Class Variables
+
+    // #region Constructors & Instance Methods
+    /**
+     * Constructor
+     *
+     * @implNote This constructor is private to ensure that only one instance of
+     *           this class is created.
+     */
+    private ReplicationManager() {}
+
+    /**
+     * Returns the instance of this class.
+     *
+     * @return ReplicationManager The instance of this class.
+     */
+    public static synchronized ReplicationManager getInstance() {
+        if (instance == null) {
+            instance = new ReplicationManager();
+        }
+        return instance;
+    }
+    // #endregion Constructors & Instance Methods
+
+    // #region Replication Methods
+    /**
+     * Subscribes to the feed of every write server, resuming from the stored positions.
+     *
+     * @param writeServers The write servers, formatted as "host:port", comma separated.
+     */
+    public void start(String writeServers) {
+        Map<String, String> positions;
+        try {
+            positions = DBController.getInstance().replicationState();
+        } catch (SQLException SE) {
+            System.out.println("Could not read the replication state, every write server will be followed from scratch.");
+            positions = new HashMap<String, String>();
+        }
+
+        synchronized (this) {
+            this.bootstrapped = !positions.isEmpty();
+
+            for (String writeServer : writeServers.split(",")) {
+                String[] addressTokens = writeServer.trim().split(":");
+                String position = positions.get(addressTokens[0] + ":" + addressTokens[1]);
+                this.sources.add(new ReplicationSource(addressTokens[0], Integer.parseInt(addressTokens[1]), position, this));
+            }
+        }
+
+        System.out.println("Replicating from " + writeServers + (this.bootstrapped ? ", resuming from the stored positions." : ", bootstrapping from a snapshot."));
+        for (ReplicationSource source : this.sources) {
+            source.start();
+        }
+    }
+
+    /**
+     * Decides where a write server's feed should start from.
+     *
+     * @param source The write server subscribing.
+     * @return String "snapshot", "head", or the sequence number to resume from.
+     */
+    public synchronized String startFrom(ReplicationSource source) {
+        if (source.hasPosition()) {
+            return Long.toString(source.getAppliedSeq());
+        }
+
+        if (!this.bootstrapped && (this.snapshotSource == null || this.snapshotSource == source)) {
+            this.snapshotSource = source;
+            return "snapshot";
+        }
+
+        return this.bootstrapped ? "snapshot" : "head"; // A write server added later still needs its own snapshot.
+    }
+
+    /**
+     * Called once a snapshot has been applied.
+     *
+     * @param source The write server the snapshot came from.
+     */
+    public synchronized void snapshotApplied(ReplicationSource source) {
+        this.bootstrapped = true;
+        this.snapshotSource = null;
+    }
+
+    /**
+     * Called after every frame, wakes up the readers waiting for the read server to catch up.
+     *
+     * @param source The write server the frame came from.
+     */
+    public synchronized void frameApplied(ReplicationSource source) {
+        notifyAll();
+    }
+
+    /**
+     * Called when the feed of a write server drops, another write server may take over the bootstrap.
+     *
+     * @param source The write server that dropped.
+     */
+    public synchronized void sourceDisconnected(ReplicationSource source) {
+        if (this.snapshotSource == source) {
+            this.snapshotSource = null;
+        }
+    }
+
+    /**
+     * Waits, up to the read wait, until the write behind a read-your-writes token has been applied.
+     *
+     * @param token The token returned with the write, formatted as "epoch:seq".
+     * @return boolean True if the write has been applied, false if the read should go to a write server.
+     */
+    public synchronized boolean awaitToken(String token) {
+        String[] tokenTokens = token.split(":");
+        long epoch, seq;
+        try {
+            epoch = Long.parseLong(tokenTokens[0]);
+            seq = Long.parseLong(tokenTokens[1]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            this.staleReads++;
+            return false;
+        }
+
+        if (isApplied(epoch, seq)) {
+            this.freshReads++;
+            return true;
+        }
+
+        long deadline = System.currentTimeMillis() + this.readWait;
+        while (!isApplied(epoch, seq)) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                this.staleReads++;
+                return false;
+            }
+
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                this.staleReads++;
+                return false;
+            }
+        }
+
+        this.waitedReads++;
+        return true;
+    }
+
+    /**
+     * Sets how long a read waits for the feed to catch up with its token.
+     *
+     * @param readWait The time to wait, in ms.
+     */
+    public synchronized void setReadWait(int readWait) {
+        this.readWait = Math.max(readWait, 0);
+    }
+
+    /**
+     * Checks if a write server's feed has been applied up to a sequence number.
+     * Tokens from an earlier epoch of the write server can not be compared, and are never applied.
+     *
+     * @param epoch The epoch of the write server's feed.
+     * @param seq   The sequence number.
+     * @return boolean True if applied, false otherwise.
+     */
+    private boolean isApplied(long epoch, long seq) {
+        for (ReplicationSource source : this.sources) {
+            if (source.getEpoch() == epoch && source.getAppliedSeq() >= seq) {
+                return true;
+            }
+        }
+        return false;
+    }
+    // #endregion Replication Methods
+
+    // #region Metrics Methods
+    /**
+     * Returns how far the read server is behind, according to the most up to date write server feed.
+     *
+     * @return String "seqBehind msBehind", or "-1 -1" if no write server feed is being received.
+     */
+    public synchronized String getLag() {
+        long seqBehind = -1, msBehind = -1;
+
+        for (ReplicationSource source : this.sources) {
+            if (!source.isConnected() || source.getSeqBehind() < 0) {
+                continue;
+            }
+            if (msBehind < 0 || source.getMsBehind() < msBehind) {
+                seqBehind = source.getSeqBehind();
+                msBehind = source.getMsBehind();
+            }
+        }
+
+        return seqBehind + " " + msBehind;
+    }
+
+    /**
+     * Returns the position applied for every write server, so a read router can tell which tokens are applied.
+     *
+     * @return String The "epoch:seq" positions, comma separated, or "-" if none is known.
+     */
+    public synchronized String getPositions() {
+        StringBuilder positions = new StringBuilder();
+        for (ReplicationSource source : this.sources) {
+            if (source.getEpoch() < 0) {
+                continue;
+            }
+            if (positions.length() > 0) {
+                positions.append(",");
+            }
+            positions.append(source.getEpoch() + ":" + source.getAppliedSeq());
+        }
+        return positions.length() == 0 ? "-" : positions.toString();
+    }
+
+    /**
+     * Returns the replication metrics of every write server.
+     *
+     * @return String One line per write server.
+     */
+    public synchronized String getStats() {
+        StringBuilder stats = new StringBuilder("Replication lag: " + getLag() + " (changes, ms), "
+                + AccountView.getInstance().size() + " accounts in memory.");
+        stats.append("\nRead-your-writes: " + this.freshReads + " reads fresh, " + this.waitedReads + " fresh after waiting, "
+                + this.staleReads + " sent back to a write server.");
+        for (ReplicationSource source : this.sources) {
+            stats.append("\n  " + source.getStats());
+        }
+        return stats.toString();
+    }
+    // #endregion Metrics Methods
+}
\ No newline at end of file
@@ -0,0 +1,273 @@
+package server_read;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ReplicationSource Class
+ *
+ * Subscribes to the change feed of one write server, and applies it to the
+ * local database frame by frame. The position reached in the feed is stored
+ * with every frame, so a restarted read server resumes where it stopped
+ * instead of asking for a new snapshot.
+ *
+ */
+public class ReplicationSource extends Thread {
+    // #region Class Variables
+    private static final int CONNECT_TIMEOUT = 5 * 1000; // in ms
+    private static final int READ_TIMEOUT = 10 * 1000; // The feed sends a heartbeat every second, in ms.
+    private static final int RETRY_INTERVAL = 5 * 1000; // Pause before reconnecting to the write server, in ms.
+    private static final int MAX_BUFFERED = 5000; // Snapshot lines applied together, before the snapshot is over.
+
+    private final String host;
+    private final int port;
+    private final ReplicationManager manager;
+    private final DBController db;
+
+    private volatile boolean connected = false;
+    private long epoch = -1, appliedSeq = -1, headSeq = -1;
+    private long behindSince = 0;
+
+    // Metrics
+    private long frames = 0, snapshots = 0, accountsApplied = 0, resubscribes = 0;
+    // #endregion Class Variables
+
+    /**
+     * Constructor
+     *
+     * @param host     The host of the write server.
+     * @param port     The port of the write server.
+     * @param position The "epoch seq" position stored for this write server, or null if there is none.
+     * @param manager  The replication manager.
+     */
+    public ReplicationSource(String host, int port, String position, ReplicationManager manager) {
+        this.host = host;
+        this.port = port;
+        this.manager = manager;
+        this.db = DBController.getInstance();
+
+        if (position != null) {
+            String[] positionTokens = position.split(" ");
+            this.epoch = Long.parseLong(positionTokens[0]);
+            this.appliedSeq = Long.parseLong(positionTokens[1]);
+        }
+
+        setDaemon(true);
+    }
+
+    /**
+     * Keeps a subscription to the write server open, reconnecting whenever it drops.
+     */
+    public void run() {
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(this.host, this.port), CONNECT_TIMEOUT);
+                socket.setSoTimeout(READ_TIMEOUT);
+                subscribe(socket);
+            } catch (IOException e) {
+                if (this.connected) { System.out.println("Lost the feed of " + getSourceName() + ": " + e.getMessage()); }
+            } catch (SQLException SE) {
+                System.out.println("Could not apply the feed of " + getSourceName() + ": " + SE.getMessage());
+            }
+
+            this.connected = false;
+            this.manager.sourceDisconnected(this);
+
+            try {
+                Thread.sleep(RETRY_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // #region Feed Methods
+    /**
+     * Subscribes to the feed and applies frames until the connection drops.
+     * The subscription follows the handshake right away: the write server reads the
+     * handshake without reading past it, see MachineSocket.readHandshake.
+     *
+     * @param socket The connection to the write server.
+     */
+    private void subscribe(Socket socket) throws IOException, SQLException {
+        PrintStream socketOut = new PrintStream(socket.getOutputStream());
+        BufferedReader socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+        socketOut.println("server");
+        String from = this.manager.startFrom(this);
+        socketOut.println("FEED " + (this.epoch < 0 ? "-" : this.epoch) + " " + from);
+        socketOut.flush();
+
+        String[] replyTokens = readLine(socketIn).split(" ");
+        if (replyTokens.length < 3 || !replyTokens[0].equals("FEEDING")) {
+            throw new IOException("Unexpected reply to the subscription.");
+        }
+        if (!replyTokens[2].equals("snapshot")) {
+            this.epoch = Long.parseLong(replyTokens[1]);
+            this.appliedSeq = Long.parseLong(replyTokens[2]);
+        }
+
+        this.connected = true;
+        System.out.println("Subscribed to the feed of " + getSourceName() + (replyTokens[2].equals("snapshot") ? " with a snapshot." : " from #" + replyTokens[2] + "."));
+
+        List<String> users = new ArrayList<String>(), accounts = new ArrayList<String>(), entries = new ArrayList<String>();
+        while (true) {
+            String line = readLine(socketIn);
+
+            if (line.startsWith("XR ")) {
+                users.add(line.substring(3));
+            } else if (line.startsWith("XL ")) {
+                entries.add(line.substring(3));
+            } else if (line.startsWith("XB ")) {
+                if (line.length() > 3) { accounts.addAll(Arrays.asList(line.substring(3).split(","))); }
+            } else if (line.startsWith("XS ")) {
+                endFrame(line.split(" "), users, accounts, entries);
+                users.clear();
+                accounts.clear();
+                entries.clear();
+            }
+
+            if (users.size() + accounts.size() + entries.size() >= MAX_BUFFERED) { // Only snapshots get this big, apply what we have so far.
+                this.accountsApplied += this.db.applyFrame(users, accounts, entries, getSourceName(), this.epoch, -1);
+                users.clear();
+                accounts.clear();
+                entries.clear();
+            }
+        }
+    }
+
+    /**
+     * Applies a frame once its end marker arrives.
+     *
+     * @param markerTokens The end of frame marker: XS epoch prevSeq|snapshot seq timestamp headSeq.
+     * @param users        The users of the frame.
+     * @param accounts     The account states of the frame.
+     * @param entries      The ledger entries of the frame.
+     */
+    private void endFrame(String[] markerTokens, List<String> users, List<String> accounts, List<String> entries) throws IOException, SQLException {
+        long frameEpoch = Long.parseLong(markerTokens[1]);
+        long seq = Long.parseLong(markerTokens[3]);
+        boolean snapshot = markerTokens[2].equals("snapshot");
+
+        if (!snapshot && (frameEpoch != this.epoch || Long.parseLong(markerTokens[2]) > this.appliedSeq)) {
+            this.resubscribes++;
+            throw new IOException("Gap in the feed (applied #" + this.appliedSeq + ", next frame starts after #" + markerTokens[2] + "), resubscribing.");
+        }
+
+        boolean advanced = snapshot || seq > this.appliedSeq;
+        if (!users.isEmpty() || !accounts.isEmpty() || !entries.isEmpty() || advanced) {
+            this.accountsApplied += this.db.applyFrame(users, accounts, entries, getSourceName(), frameEpoch, snapshot ? seq : Math.max(seq, this.appliedSeq));
+        }
+
+        synchronized (this) {
+            this.epoch = frameEpoch;
+            this.appliedSeq = snapshot ? seq : Math.max(seq, this.appliedSeq);
+            this.headSeq = Long.parseLong(markerTokens[5]);
+
+            if (this.appliedSeq >= this.headSeq) {
+                this.behindSince = 0;
+            } else if (this.behindSince == 0) {
+                this.behindSince = System.currentTimeMillis();
+            }
+
+            if (advanced) { this.frames++; }
+            if (snapshot) { this.snapshots++; }
+        }
+
+        if (snapshot) {
+            System.out.println("Applied a snapshot of " + getSourceName() + " up to #" + seq + ".");
+            this.manager.snapshotApplied(this);
+        }
+        this.manager.frameApplied(this);
+    }
+
+    /**
+     * Reads a line from the feed.
+     *
+     * @param socketIn The input stream of the connection.
+     * @return String The line.
+     */
+    private String readLine(BufferedReader socketIn) throws IOException {
+        String line = socketIn.readLine();
+        if (line == null) { throw new IOException("The write server closed the connection."); }
+        return line;
+    }
+    // #endregion Feed Methods
+
+    // #region Getters
+    /**
+     * Returns the name of the write server, as it is recorded in the replication state.
+     *
+     * @return String The host and port of the write server.
+     */
+    public String getSourceName() { return this.host + ":" + this.port; }
+
+    /**
+     * Checks if the feed of the write server is currently being received.
+     *
+     * @return boolean True if subscribed, false otherwise.
+     */
+    public boolean isConnected() { return this.connected; }
+
+    /**
+     * Checks if a position in the feed of this write server is known, so it does not need a snapshot.
+     *
+     * @return boolean True if a position is known, false otherwise.
+     */
+    public synchronized boolean hasPosition() { return this.epoch >= 0; }
+
+    /**
+     * Returns the epoch of the feed being applied.
+     *
+     * @return long The epoch, or -1 if unknown.
+     */
+    public synchronized long getEpoch() { return this.epoch; }
+
+    /**
+     * Returns the sequence number the feed is applied up to.
+     *
+     * @return long The applied sequence number, or -1 if nothing has been applied.
+     */
+    public synchronized long getAppliedSeq() { return this.appliedSeq; }
+
+    /**
+     * Returns the number of changes the feed is behind the write server.
+     *
+     * @return long The changes not applied yet, or -1 if unknown.
+     */
+    public synchronized long getSeqBehind() {
+        return this.headSeq < 0 || this.appliedSeq < 0 ? -1 : Math.max(this.headSeq - this.appliedSeq, 0);
+    }
+
+    /**
+     * Returns for how long the feed has been behind the write server.
+     *
+     * @return long The time since the oldest change not applied yet was noticed, in ms, 0 if caught up.
+     */
+    public synchronized long getMsBehind() {
+        return this.behindSince == 0 ? 0 : System.currentTimeMillis() - this.behindSince;
+    }
+
+    /**
+     * Returns the replication metrics of this write server.
+     *
+     * @return String The position, lag, frames and snapshots applied.
+     */
+    public synchronized String getStats() {
+        return getSourceName() + ": " + (this.connected ? "subscribed" : "disconnected")
+                + ", epoch " + this.epoch + ", applied #" + this.appliedSeq + " of #" + this.headSeq
+                + " (" + getMsBehind() + "ms behind), "
+                + this.frames + " frames, " + this.snapshots + " snapshots, "
+                + this.accountsApplied + " account updates applied, "
+                + this.resubscribes + " resubscribes.";
+    }
+    // #endregion Getters
+}
\ No newline at end of file
@@ -0,0 +1,118 @@
+package server_read;
+
+import java.io.*;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+import java.util.Set;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+/**
+ * RouterSocketHandler Class
+ *
+ * Every client connected to the read router has its requests
+ * relayed to a read server by a dedicated RouterSocketHandler thread
+ *
+ */
+public class RouterSocketHandler extends Thread {
+
+    private Socket socket;
+    private int timeout;
+    private ReadRouter router;
+
+    /**
+     * Constructor
+     *
+     * @param socket  Dedicated socket opened between currently connected client and
+     *                router
+     * @param timeout Timeout used to disconnect a non-responsive client
+     * @param router  Instance of the Singleton read router
+     */
+    public RouterSocketHandler(Socket socket, int timeout, ReadRouter router) {
+        this.socket = socket;
+        this.timeout = timeout;
+        this.router = router;
+    }
+
+    /**
+     * Main read router request handler method
+     *
+     * Request Format (the same as a read server):
+     * Check balance request, relayed to the chosen read server. STALE is answered if
+     * no read server is within the staleness bound:
+     * B <id> <accountNo> [epoch:seq]
+     * eg. B 2 1234567890 1700000000000:1234
+     *
+     * Replication lag request, of the freshest read server:
+     * LAG
+     */
+    public void run() {
+        try {
+            PrintStream socketOut = new PrintStream(socket.getOutputStream());
+            socket.setSoTimeout(this.timeout);
+            Scanner socketInput = new Scanner(this.socket.getInputStream());
+
+            String clientRequest;
+
+            while (socket.isConnected()) {
+                try {
+                    clientRequest = socketInput.nextLine();
+                } catch (NoSuchElementException e) {
+                    System.out.println(
+                            "Client timed out from " + socket.getInetAddress() + ":" + socket.getPort());
+                    break;
+                }
+                if (clientRequest.equals("server")) {
+                    continue;
+                }
+
+                String[] clientRequestTokens = clientRequest.split(" ");
+
+                switch (clientRequestTokens[0]) {
+                    case "B":
+                        socketOut.println(relay(clientRequest, clientRequestTokens.length > 3 ? clientRequestTokens[3] : null));
+                        break;
+                    case "LAG":
+                        socketOut.println(this.router.getLag());
+                        break;
+                    default:
+                        socketOut.println("There was a unknown issue in your request, please try again!");
+                        break;
+                }
+            }
+
+            socketInput.close();
+        } catch (SocketTimeoutException e) {
+            System.out.println("Timeout due to unresponsive client");
+        } catch (SocketException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Relays a balance read to a read server, trying the next best one if it fails.
+     *
+     * @param request The balance read.
+     * @param token   The read-your-writes token of the read, or null.
+     * @return String The reply of the read server, or STALE if none could answer.
+     */
+    private String relay(String request, String token) {
+        Set<ReadReplica> tried = new HashSet<ReadReplica>();
+
+        ReadReplica replica;
+        while ((replica = this.router.choose(token, tried)) != null) {
+            tried.add(replica);
+            try {
+                return replica.query(request);
+            } catch (IOException e) {
+                System.out.println("Read replica " + replica.getName() + " failed a read, trying the next one.");
+            }
+        }
+
+        return "STALE";
+    }
+}
\ No newline at end of file
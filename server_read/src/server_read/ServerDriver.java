@@ -10,6 +10,15 @@ public class ServerDriver {
     private static final int TERM_WAIT_TIME = 10 * 1000; // wait 10 seconds for server process to terminate
     private static final String SERVER_PORT_NUM = "2028";
     private static final String IDLE_TIMEOUT = "0"; // idle connection timeout in milli-seconds, 0 means infinity
+    private static final String WRITE_SERVERS = "144.217.92.18:2026,144.217.92.18:2025,localhost:2027"; // write servers whose feeds are replicated
+    private static final String READ_WAIT = "250"; // time a read waits for its write to be replicated before it is sent to a write server, in milli-seconds
+    private static final String DATABASE_FILE = "bankmanager_read.db";
+    private static final String MODE = "replica"; // "router" spreads reads over the read servers given with -rs instead of serving them
+    private static final String READ_SERVERS = "localhost:2029,localhost:2030"; // read servers behind the router
+    private static final String MAX_STALENESS = "1000"; // read servers further behind are skipped by the router, in milli-seconds
+    private static final String ANALYTICS_REFRESH = "10000"; // time between two snapshots of the accounts for the analytics reports, in milli-seconds
+    private static final String CHANGELOG_SEGMENT = "67108864"; // size of a change log segment, in bytes
+    private static final String CHANGELOG_RETENTION = "604800000"; // time a closed change log segment is kept, in milli-seconds
     //#endregion Class Variables
 
     //#region Methods
@@ -24,6 +33,16 @@ public class ServerDriver {
         // Set the parameters
         int serverPort = Integer.parseInt(params.getOrDefault("-p", SERVER_PORT_NUM));
         int conTimeout = Integer.parseInt(params.getOrDefault("-t", IDLE_TIMEOUT));
+        String writeServers = params.getOrDefault("-w", WRITE_SERVERS);
+        int readWait = Integer.parseInt(params.getOrDefault("-rw", READ_WAIT));
+        String databaseFile = params.getOrDefault("-db", DATABASE_FILE);
+        String mode = params.getOrDefault("-m", MODE);
+        String readServers = params.getOrDefault("-rs", READ_SERVERS);
+        long maxStaleness = Long.parseLong(params.getOrDefault("-s", MAX_STALENESS));
+        int analyticsRefresh = Integer.parseInt(params.getOrDefault("-ar", ANALYTICS_REFRESH));
+        String changeLogDirectory = params.getOrDefault("-cl", databaseFile.replaceAll("\\.db$", "") + "_changelog");
+        long changeLogSegment = Long.parseLong(params.getOrDefault("-cs", CHANGELOG_SEGMENT));
+        long changeLogRetention = Long.parseLong(params.getOrDefault("-cr", CHANGELOG_RETENTION));
 
         // Redirect out to our custom print stream.
         CustomPrintStream customOut = new CustomPrintStream(System.out);
@@ -32,14 +51,35 @@ public class ServerDriver {
         // Standard output
         System.out.println("Starting server on port " + serverPort + " with a connection timeout of " + conTimeout + "ms.");
         MachineSocket server = MachineSocket.getInstance(serverPort, conTimeout);
+
+        if (mode.equals("router")) {
+            // Relay reads to the freshest, least loaded read server.
+            ReadRouter.getInstance().start(readServers, maxStaleness);
+            server.setRouter(ReadRouter.getInstance());
+        } else {
+            // Publish what is applied to the change log, before anything is applied.
+            ChangeLog.getInstance().configure(changeLogDirectory, changeLogSegment, changeLogRetention);
+            try {
+                ChangeLog.getInstance().open();
+            } catch (IOException e) {
+                System.out.println("Could not open the change log: " + e.getMessage());
+                System.exit(1);
+            }
+
+            // Subscribe to the change feed of the write servers.
+            DBController.setDatabaseFile(databaseFile);
+            ReplicationManager.getInstance().setReadWait(readWait);
+            ReplicationManager.getInstance().start(writeServers);
+            AnalyticsEngine.getInstance().start(analyticsRefresh);
+        }
          
         // Start the server
         server.start();
-        System.out.println("Server has been successfully started! Type 'quit' to stop the server.");
+        System.out.println("Server has been successfully started! Type 'quit' to stop the server, or 'stats' to print its " + (mode.equals("router") ? "routing metrics." : "replication lag."));
         System.out.println("Waiting for client connections...");
 
         // Wait for quit command
-        waitForQuit(server);
+        waitForQuit(server, mode);
 
         try {
             // shutdown the server
@@ -56,16 +96,23 @@ public class ServerDriver {
     }
  
     /**
-     * Waits for the user to type 'quit' in the console.
+     * Waits for the user to type 'quit' in the console, printing the replication or routing metrics on 'stats'.
      * @param server The server thread.
+     * @param mode The mode of the server, replica or router.
      */
-    private static void waitForQuit(Thread server) {
+    private static void waitForQuit(Thread server, String mode) {
         BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
 
         try {
             while (server.isAlive()) {
-                if (console.ready() && console.readLine().equals("quit")) { // Avoids blocking the console.
+                if (!console.ready()) { continue; } // Avoids blocking the console.
+
+                String command = console.readLine();
+                if (command.equals("quit")) {
                     break;
+                } else if (command.equals("stats")) {
+                    System.out.println(mode.equals("router") ? ReadRouter.getInstance().getStats() : ReplicationManager.getInstance().getStats()
+                            + "\n" + AnalyticsEngine.getInstance().getStats() + "\n" + BalanceSubscriptions.getInstance().getStats() + "\n" + ChangeLog.getInstance().getStats());
                 }
             }
         } catch (IOException e) {